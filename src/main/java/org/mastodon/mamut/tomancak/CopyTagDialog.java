@@ -37,7 +37,6 @@ import java.awt.event.ItemEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.swing.AbstractAction;
 import javax.swing.Action;
@@ -56,11 +55,8 @@ import javax.swing.JPanel;
 import javax.swing.KeyStroke;
 import javax.swing.WindowConstants;
 
-import org.mastodon.mamut.model.Link;
 import org.mastodon.mamut.model.Model;
-import org.mastodon.mamut.model.Spot;
-import org.mastodon.model.tag.ObjTags;
-import org.mastodon.model.tag.TagSetModel;
+import org.mastodon.mamut.tomancak.util.BulkTagCopy;
 import org.mastodon.model.tag.TagSetStructure;
 import org.mastodon.model.tag.TagSetStructure.Tag;
 import org.mastodon.model.tag.TagSetStructure.TagSet;
@@ -106,9 +102,13 @@ public class CopyTagDialog extends JDialog
 		closeButton.addActionListener( e -> close() );
 		final JButton copyTagButton = new JButton( "Copy Tag" );
 		copyTagButton.addActionListener( e -> copyTag() );
+		final JButton copyTagSetButton = new JButton( "Copy Tag Set" );
+		copyTagSetButton.setToolTipText( "Copy all tags of the tag set, matching tags by label." );
+		copyTagSetButton.addActionListener( e -> copyTagSet() );
 		buttons.setLayout( new BoxLayout( buttons, BoxLayout.LINE_AXIS ) );
 		buttons.add( Box.createHorizontalGlue() );
 		buttons.add( closeButton );
+		buttons.add( copyTagSetButton );
 		buttons.add( copyTagButton );
 
 		getContentPane().add( content, BorderLayout.CENTER );
@@ -160,23 +160,18 @@ public class CopyTagDialog extends JDialog
 	{
 		final Tag from = tspFrom.getSelected();
 		final Tag to = tspTo.getSelected();
-		final ReentrantReadWriteLock lock = model.getGraph().getLock();
-		lock.readLock().lock();
-		try
-		{
-			final TagSetModel< Spot, Link > tsm = model.getTagSetModel();
-			final ObjTags< Spot > vertexTags = tsm.getVertexTags();
-			for ( final Spot spot : vertexTags.getTaggedWith( from ) )
-				vertexTags.set( spot, to );
-			final ObjTags< Link > edgeTags = tsm.getEdgeTags();
-			for ( final Link link : edgeTags.getTaggedWith( from ) )
-				edgeTags.set( link, to );
-			model.setUndoPoint();
-		}
-		finally
-		{
-			lock.readLock().unlock();
-		}
+		if ( from == null || to == null )
+			return;
+		BulkTagCopy.copyTag( model, from, to );
+	}
+
+	private void copyTagSet()
+	{
+		final TagSet from = tspFrom.getSelectedTagSet();
+		final TagSet to = tspTo.getSelectedTagSet();
+		if ( from == null || to == null )
+			return;
+		BulkTagCopy.copyTagSet( model, from, to );
 	}
 
 	static class Item< T >
@@ -274,6 +269,13 @@ public class CopyTagDialog extends JDialog
 			refreshTagSets( tss );
 		}
 
+		TagSet getSelectedTagSet()
+		{
+			@SuppressWarnings( "unchecked" )
+			final Item< TagSet > tagSetItem = ( Item< TagSet > ) cbTagSets.getSelectedItem();
+			return tagSetItem == null ? null : tagSetItem.get();
+		}
+
 		Tag getSelected()
 		{
 			@SuppressWarnings( "unchecked" )
@@ -345,7 +345,7 @@ public class TomancakPlugins extends AbstractContextual implements MamutPlugin
 		if ( pluginAppModel != null )
 		{
 			final Model model = pluginAppModel.getAppModel().getModel();
-			InterpolateMissingSpots.interpolate( model );
+			InterpolateMissingSpots.interpolateBatched( model );
 		}
 	}
 
@@ -425,12 +425,13 @@ public class TomancakPlugins extends AbstractContextual implements MamutPlugin
 				final double distCutoff = mergingDialog.getDistCutoff();
 				final double mahalanobisDistCutoff = mergingDialog.getMahalanobisDistCutoff();
 				final double ratioThreshold = mergingDialog.getRatioThreshold();
+				final int windowSize = mergingDialog.getWindowSize();
 
 				final Dataset dsA = new Dataset( pathA );
 				final Dataset dsB = new Dataset( pathB );
 				pluginAppModel.getWindowManager().getProjectManager().open( new MamutProject( null, dsA.project().getDatasetXmlFile() ) );
 				final MergeDatasets.OutputDataSet output = new MergeDatasets.OutputDataSet( pluginAppModel.getAppModel().getModel() );
-				MergeDatasets.merge( dsA, dsB, output, distCutoff, mahalanobisDistCutoff, ratioThreshold );
+				MergeDatasets.merge( dsA, dsB, output, distCutoff, mahalanobisDistCutoff, ratioThreshold, windowSize );
 			}
 			catch( final Exception e )
 			{
@@ -0,0 +1,319 @@
+package org.mastodon.mamut.tomancak.lineage_registration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FilenameUtils;
+import org.mastodon.graph.io.RawGraphIO;
+import org.mastodon.mamut.feature.MamutRawFeatureModelIO;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.project.MamutProject;
+import org.mastodon.mamut.project.MamutProjectIO;
+import org.mastodon.mamut.tomancak.lineage_registration.angle_feature.CellDivisionAngleFeature;
+import org.mastodon.mamut.tomancak.lineage_registration.spatial_registration.SpatialRegistrationMethod;
+import org.mastodon.mamut.tomancak.util.TimepointExtentIndex;
+import org.scijava.Context;
+
+/**
+ * Registers the lineages of many target projects to one reference project,
+ * without user interface.
+ * <p>
+ * The reference project is loaded once and shared by all registrations,
+ * which run concurrently and only read it. Each target project is loaded,
+ * registered to the reference with automatically aligned first timepoints
+ * (see {@link LineageRegistrationAlgorithm#run(Model, Model, SpatialRegistrationMethod)}),
+ * the requested results are written into the target model, and the target
+ * project is saved, including the features it already had.
+ * <p>
+ * The input projects are not modified unless {@link Options#overwrite} is
+ * set. Every project is first written to a temporary file in the output
+ * directory, which then replaces the output file in one atomic rename. A
+ * failed save therefore never leaves a partially written project behind.
+ */
+public class BatchLineageRegistration
+{
+	/**
+	 * Which results to write into the target projects.
+	 */
+	public static class Options
+	{
+		static final String SUFFIX = "-registered";
+
+		SpatialRegistrationMethod method = SpatialRegistrationMethod.DYNAMIC_ROOTS;
+
+		/** Tag not mapped and flipped cells, see {@link LineageRegistrationUtils#tagCells}. */
+		boolean tagCells = true;
+
+		/** Sort the TrackScheme to match the reference. */
+		boolean sortTrackScheme = false;
+
+		/** Add the {@link CellDivisionAngleFeature}. */
+		boolean addAngleFeature = false;
+
+		/**
+		 * Directory to save the registered projects to, under their original
+		 * file names. If {@code null}, each project is saved next to its input
+		 * with the suffix {@value #SUFFIX}.
+		 */
+		File outputDirectory = null;
+
+		/** Replace the input projects, instead of saving them to new files. */
+		boolean overwrite = false;
+
+		public Options method( SpatialRegistrationMethod method )
+		{
+			this.method = method;
+			return this;
+		}
+
+		public Options tagCells( boolean tagCells )
+		{
+			this.tagCells = tagCells;
+			return this;
+		}
+
+		public Options sortTrackScheme( boolean sortTrackScheme )
+		{
+			this.sortTrackScheme = sortTrackScheme;
+			return this;
+		}
+
+		public Options addAngleFeature( boolean addAngleFeature )
+		{
+			this.addAngleFeature = addAngleFeature;
+			return this;
+		}
+
+		public Options outputDirectory( File outputDirectory )
+		{
+			this.outputDirectory = outputDirectory;
+			return this;
+		}
+
+		public Options overwrite( boolean overwrite )
+		{
+			this.overwrite = overwrite;
+			return this;
+		}
+	}
+
+	public static class Result
+	{
+		final File target;
+
+		final File output;
+
+		final boolean success;
+
+		final String message;
+
+		final int numMappedBranches;
+
+		final double seconds;
+
+		private Result( File target, File output, boolean success, String message, int numMappedBranches, double seconds )
+		{
+			this.target = target;
+			this.output = output;
+			this.success = success;
+			this.message = message;
+			this.numMappedBranches = numMappedBranches;
+			this.seconds = seconds;
+		}
+
+		public boolean isSuccess()
+		{
+			return success;
+		}
+
+		public File getOutput()
+		{
+			return output;
+		}
+	}
+
+	/**
+	 * Registers all {@code targets} to the {@code reference} project, with at
+	 * most {@code numThreads} registrations at the same time.
+	 *
+	 * @param context used to load and save the features of the projects.
+	 * @return the results, in the order of {@code targets}.
+	 */
+	public static List< Result > run( File reference, List< File > targets, Options options, int numThreads, Context context ) throws IOException
+	{
+		Objects.requireNonNull( context, "A context is required to load and save features." );
+		Model referenceModel = new Model();
+		try ( MamutProject.ProjectReader reader = new MamutProjectIO().load( reference.getAbsolutePath() ).openForReading() )
+		{
+			referenceModel.loadRaw( reader );
+		}
+		// NB: Create the shared indices of the reference graph before the
+		// concurrent registrations use it.
+		TimepointExtentIndex.get( referenceModel.getGraph() );
+		DividingRootsIndex.get( referenceModel.getGraph() );
+		BranchIndex.get( referenceModel.getGraph() );
+		ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, numThreads ) );
+		try
+		{
+			List< Future< Result > > futures = new ArrayList<>();
+			for ( File target : targets )
+				futures.add( executor.submit( () -> runTarget( referenceModel, target, options, context ) ) );
+			List< Result > results = new ArrayList<>();
+			for ( int i = 0; i < targets.size(); i++ )
+			{
+				try
+				{
+					results.add( futures.get( i ).get() );
+				}
+				catch ( ExecutionException e )
+				{
+					results.add( failed( targets.get( i ), null, e.getCause(), 0 ) );
+				}
+				catch ( InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+					results.add( failed( targets.get( i ), null, e, 0 ) );
+				}
+			}
+			return results;
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Registers a single target project to the reference model and saves it
+	 * to {@link #getOutputFile}. Exceptions are caught and reported in the
+	 * returned {@link Result}.
+	 */
+	public static Result runTarget( Model reference, File target, Options options, Context context )
+	{
+		long start = System.nanoTime();
+		File output = null;
+		try
+		{
+			output = getOutputFile( target, options );
+			MamutProject project = new MamutProjectIO().load( target.getAbsolutePath() );
+			Model model = new Model();
+			try ( MamutProject.ProjectReader reader = project.openForReading() )
+			{
+				RawGraphIO.FileIdToGraphMap< Spot, Link > idmap = model.loadRaw( reader );
+				MamutRawFeatureModelIO.deserialize( context, model, idmap, reader );
+			}
+			int numMappedBranches;
+			try ( ClosableLock ignored = LockUtils.lockBoth(
+					reference.getGraph().getLock().readLock(),
+					model.getGraph().getLock().writeLock() ) )
+			{
+				RegisteredGraphs registration = LineageRegistrationAlgorithm.run( reference, model, options.method );
+				numMappedBranches = registration.mapAB.size();
+				if ( options.tagCells )
+					LineageRegistrationUtils.tagCells( registration, false, true );
+				if ( options.addAngleFeature )
+					CellDivisionAngleFeature.declare( model, registration.anglesB );
+				if ( options.sortTrackScheme )
+					LineageRegistrationUtils.sortSecondTrackSchemeToMatch( registration );
+			}
+			save( project, model, output, context );
+			return new Result( target, output, true, "", numMappedBranches, seconds( start ) );
+		}
+		catch ( Exception | OutOfMemoryError e )
+		{
+			return failed( target, output, e, seconds( start ) );
+		}
+	}
+
+	/**
+	 * Returns the file that the registered {@code target} project is saved
+	 * to, see {@link Options#outputDirectory} and {@link Options#overwrite}.
+	 */
+	static File getOutputFile( File target, Options options ) throws IOException
+	{
+		File output;
+		if ( options.overwrite )
+			output = target;
+		else if ( options.outputDirectory != null )
+			output = new File( options.outputDirectory, target.getName() );
+		else
+			output = new File( target.getAbsoluteFile().getParentFile(),
+					FilenameUtils.getBaseName( target.getName() ) + Options.SUFFIX + ".mastodon" );
+		if ( output.isDirectory() )
+			throw new IOException( "Can not replace the project directory " + output + ", choose an output directory or save it as file." );
+		if ( !options.overwrite && output.getAbsoluteFile().equals( target.getAbsoluteFile() ) )
+			throw new IOException( "The output directory contains the input project " + target + "." );
+		return output;
+	}
+
+	/**
+	 * Saves the project to a temporary file next to {@code output}, and moves
+	 * it to {@code output} once it is complete.
+	 */
+	private static void save( MamutProject project, Model model, File output, Context context ) throws IOException
+	{
+		Path outputPath = output.getAbsoluteFile().toPath();
+		Files.createDirectories( outputPath.getParent() );
+		Path tmp = Files.createTempFile( outputPath.getParent(), output.getName(), ".tmp" );
+		try
+		{
+			MamutProject outputProject = new MamutProject( tmp.toFile(), project.getDatasetXmlFile() );
+			outputProject.setSpaceUnits( project.getSpaceUnits() );
+			outputProject.setTimeUnits( project.getTimeUnits() );
+			try ( MamutProject.ProjectWriter writer = outputProject.openForWriting() )
+			{
+				new MamutProjectIO().save( outputProject, writer );
+				RawGraphIO.GraphToFileIdMap< Spot, Link > idmap = model.saveRaw( writer );
+				MamutRawFeatureModelIO.serialize( context, model, idmap, writer );
+			}
+			Files.move( tmp, outputPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+		finally
+		{
+			Files.deleteIfExists( tmp );
+		}
+	}
+
+	private static Result failed( File target, File output, Throwable e, double seconds )
+	{
+		return new Result( target, output, false, String.valueOf( e ), -1, seconds );
+	}
+
+	private static double seconds( long start )
+	{
+		return ( System.nanoTime() - start ) * 1e-9;
+	}
+
+	/**
+	 * Writes the results as tab separated table with a header line.
+	 */
+	public static void writeSummary( List< Result > results, File summary ) throws IOException
+	{
+		try ( PrintWriter out = new PrintWriter( Files.newBufferedWriter( summary.toPath(), StandardCharsets.UTF_8 ) ) )
+		{
+			out.println( "target\toutput\tstatus\tmappedBranches\tseconds\tmessage" );
+			for ( Result result : results )
+				out.println( result.target + "\t"
+						+ ( result.output == null ? "" : result.output ) + "\t"
+						+ ( result.success ? "OK" : "FAILED" ) + "\t"
+						+ result.numMappedBranches + "\t"
+						+ String.format( Locale.ROOT, "%.1f", result.seconds ) + "\t"
+						+ result.message.replaceAll( "\\s+", " " ) );
+		}
+	}
+}
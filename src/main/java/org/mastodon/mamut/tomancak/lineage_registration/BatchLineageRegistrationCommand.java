@@ -0,0 +1,124 @@
+package org.mastodon.mamut.tomancak.lineage_registration;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.mastodon.mamut.tomancak.lineage_registration.BatchLineageRegistration.Options;
+import org.mastodon.mamut.tomancak.lineage_registration.BatchLineageRegistration.Result;
+import org.mastodon.mamut.tomancak.lineage_registration.spatial_registration.SpatialRegistrationMethod;
+import org.scijava.Context;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.widget.FileWidget;
+
+/**
+ * Headless command that registers many Mastodon projects to one reference
+ * project, see {@link BatchLineageRegistration}. Can also be run from the
+ * command line:
+ *
+ * <pre>
+ * java ... BatchLineageRegistrationCommand reference.mastodon summary.tsv output-directory target1.mastodon target2.mastodon ...
+ * </pre>
+ */
+@Plugin( type = Command.class, name = "Batch lineage registration" )
+public class BatchLineageRegistrationCommand implements Command
+{
+	@Parameter( label = "Reference project:", style = FileWidget.OPEN_STYLE )
+	File reference;
+
+	@Parameter( label = "Target projects:", description = "The projects that are registered to the reference.", style = FileWidget.OPEN_STYLE )
+	File[] targets;
+
+	@Parameter( label = "Output directory:", description = "Where to save the registered projects. If empty, they are saved next to the target projects, with the suffix \"" + Options.SUFFIX + "\".", style = FileWidget.DIRECTORY_STYLE, required = false )
+	File outputDirectory;
+
+	@Parameter( label = "Overwrite target projects", description = "Replace the target projects instead of saving to the output directory." )
+	boolean overwrite = false;
+
+	@Parameter( label = "Summary:", description = "Tab separated file that the result of every target is written to.", style = FileWidget.SAVE_STYLE )
+	File summary;
+
+	@Parameter( label = "Spatial registration:" )
+	SpatialRegistrationMethod method = SpatialRegistrationMethod.DYNAMIC_ROOTS;
+
+	@Parameter( label = "Tag unmapped and flipped cells" )
+	boolean tagCells = true;
+
+	@Parameter( label = "Sort TrackScheme to match the reference" )
+	boolean sortTrackScheme = false;
+
+	@Parameter( label = "Add cell division angle feature" )
+	boolean addAngleFeature = false;
+
+	@Parameter( label = "Concurrent registrations:", min = "1" )
+	int numThreads = Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 );
+
+	@Parameter
+	private Context context;
+
+	@Parameter
+	private LogService logService;
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			Options options = new Options()
+					.method( method )
+					.tagCells( tagCells )
+					.sortTrackScheme( sortTrackScheme )
+					.addAngleFeature( addAngleFeature )
+					.outputDirectory( outputDirectory )
+					.overwrite( overwrite );
+			List< Result > results = run( reference, Arrays.asList( targets ), summary, options, numThreads, context );
+			long failed = results.stream().filter( r -> !r.isSuccess() ).count();
+			logService.info( "Registered " + ( results.size() - failed ) + " of " + results.size() + " projects. Summary: " + summary );
+		}
+		catch ( IOException e )
+		{
+			logService.error( "Batch lineage registration failed: " + e.getMessage() );
+		}
+	}
+
+	static List< Result > run( File reference, List< File > targets, File summary, Options options, int numThreads, Context context ) throws IOException
+	{
+		List< Result > results = BatchLineageRegistration.run( reference, targets, options, numThreads, context );
+		BatchLineageRegistration.writeSummary( results, summary );
+		return results;
+	}
+
+	/**
+	 * Runs with the default {@link Options}, saving the registered projects
+	 * to the given output directory.
+	 */
+	public static void main( String... args ) throws IOException
+	{
+		if ( args.length < 4 )
+		{
+			System.err.println( "Usage: BatchLineageRegistrationCommand reference summary output-directory target..." );
+			System.exit( 2 );
+		}
+		List< File > targets = new ArrayList<>();
+		for ( int i = 3; i < args.length; i++ )
+			targets.add( new File( args[ i ] ) );
+		int numThreads = Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 );
+		Options options = new Options().outputDirectory( new File( args[ 2 ] ) );
+		Context context = new Context();
+		List< Result > results;
+		try
+		{
+			results = run( new File( args[ 0 ] ), targets, new File( args[ 1 ] ), options, numThreads, context );
+		}
+		finally
+		{
+			context.dispose();
+		}
+		System.exit( results.stream().allMatch( Result::isSuccess ) ? 0 : 1 );
+	}
+}
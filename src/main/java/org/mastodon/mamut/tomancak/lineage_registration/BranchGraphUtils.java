@@ -86,7 +86,7 @@ public class BranchGraphUtils
 		return spot;
 	}
 
-	static Pair< RefList< Spot >, RefList< Link > > getBranchSpotsAndLinks( ModelGraph graph, Spot branchStart )
+	public static Pair< RefList< Spot >, RefList< Link > > getBranchSpotsAndLinks( ModelGraph graph, Spot branchStart )
 	{
 		RefList< Link > links = new RefArrayList<>( graph.edges().getRefPool() );
 		RefList< Spot > spots = new RefArrayList<>( graph.vertices().getRefPool() );
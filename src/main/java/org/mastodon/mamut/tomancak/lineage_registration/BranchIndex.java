@@ -0,0 +1,178 @@
+package org.mastodon.mamut.tomancak.lineage_registration;
+
+import java.util.Arrays;
+
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.util.PerGraphRegistry;
+
+/**
+ * Maps every spot of a {@link ModelGraph} to the start and the end of its
+ * branch, with the same result as {@link BranchGraphUtils#getBranchStart}
+ * and {@link BranchGraphUtils#getBranchEnd}, but in constant time.
+ * <p>
+ * The index consists of two int arrays, indexed by spot pool index. It is
+ * built with one pass over all spots when it is first requested, and
+ * dropped whenever a spot or link is added or removed. Lookups may be done
+ * concurrently, while holding the read lock of the graph.
+ * <p>
+ * Don't use the index from within a {@link GraphListener} of the same graph,
+ * it may not yet be invalidated. Use {@link BranchGraphUtils} there.
+ * <p>
+ * There is one shared instance per {@link ModelGraph}, see
+ * {@link #get(ModelGraph)}.
+ */
+public class BranchIndex implements GraphListener< Spot, Link >
+{
+	private static final PerGraphRegistry< BranchIndex > indices = new PerGraphRegistry<>( BranchIndex::new );
+
+	public static BranchIndex get( ModelGraph graph )
+	{
+		return indices.get( graph );
+	}
+
+	private final ModelGraph graph;
+
+	/** Branch start and end pool index per spot pool index, {@code null} if invalid. */
+	private volatile Table table = null;
+
+	private BranchIndex( ModelGraph graph )
+	{
+		this.graph = graph;
+	}
+
+	public Spot getBranchStart( Spot spot, Spot ref )
+	{
+		int id = getTable().starts[ spot.getInternalPoolIndex() ];
+		return id < 0 ? BranchGraphUtils.getBranchStart( spot, ref ) : graph.getGraphIdBimap().getVertex( id, ref );
+	}
+
+	public Spot getBranchEnd( Spot spot, Spot ref )
+	{
+		int id = getTable().ends[ spot.getInternalPoolIndex() ];
+		return id < 0 ? BranchGraphUtils.getBranchEnd( spot, ref ) : graph.getGraphIdBimap().getVertex( id, ref );
+	}
+
+	private Table getTable()
+	{
+		Table t = table;
+		if ( t == null )
+		{
+			synchronized ( this )
+			{
+				t = table;
+				if ( t == null )
+				{
+					t = new Table( graph );
+					table = t;
+				}
+			}
+		}
+		return t;
+	}
+
+	private void invalidate()
+	{
+		table = null;
+	}
+
+	@Override
+	public void graphRebuilt()
+	{
+		invalidate();
+	}
+
+	@Override
+	public void vertexAdded( Spot vertex )
+	{
+		invalidate();
+	}
+
+	@Override
+	public void vertexRemoved( Spot vertex )
+	{
+		invalidate();
+	}
+
+	@Override
+	public void edgeAdded( Link edge )
+	{
+		invalidate();
+	}
+
+	@Override
+	public void edgeRemoved( Link edge )
+	{
+		invalidate();
+	}
+
+	private static class Table
+	{
+		private final int[] starts;
+
+		private final int[] ends;
+
+		/**
+		 * Walks along every branch once, from its start to its end. Spots
+		 * that are not reached, which only happens for cycles, are marked
+		 * with -1.
+		 */
+		private Table( ModelGraph graph )
+		{
+			int size = 0;
+			for ( Spot spot : graph.vertices() )
+				size = Math.max( size, spot.getInternalPoolIndex() + 1 );
+			starts = new int[ size ];
+			ends = new int[ size ];
+			Arrays.fill( starts, -1 );
+			Arrays.fill( ends, -1 );
+			int[] branch = new int[ 16 ];
+			Spot ref = graph.vertexRef();
+			Spot childRef = graph.vertexRef();
+			try
+			{
+				for ( Spot spot : graph.vertices() )
+				{
+					if ( !isBranchStart( spot, ref ) )
+						continue;
+					int start = spot.getInternalPoolIndex();
+					int length = 0;
+					Spot s = spot;
+					while ( true )
+					{
+						if ( length == branch.length )
+							branch = Arrays.copyOf( branch, 2 * length );
+						branch[ length++ ] = s.getInternalPoolIndex();
+						if ( s.outgoingEdges().size() != 1 )
+							break;
+						Spot child = s.outgoingEdges().iterator().next().getTarget( childRef );
+						if ( child.incomingEdges().size() != 1 )
+							break;
+						s = graph.getGraphIdBimap().getVertex( child.getInternalPoolIndex(), ref );
+					}
+					int end = branch[ length - 1 ];
+					for ( int i = 0; i < length; i++ )
+					{
+						starts[ branch[ i ] ] = start;
+						ends[ branch[ i ] ] = end;
+					}
+				}
+			}
+			finally
+			{
+				graph.releaseRef( ref );
+				graph.releaseRef( childRef );
+			}
+		}
+
+		private static boolean isBranchStart( Spot spot, Spot ref )
+		{
+			if ( spot.incomingEdges().size() != 1 )
+				return true;
+			Spot parent = spot.incomingEdges().iterator().next().getSource( ref );
+			return parent.outgoingEdges().size() != 1;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package org.mastodon.mamut.tomancak.lineage_registration;
+
+import org.mastodon.collection.ObjectRefMap;
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.util.PerGraphRegistry;
+import org.mastodon.properties.PropertyChangeListener;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+/**
+ * Caches, per first timepoint, the map from label to branch start of the
+ * dividing roots of a {@link ModelGraph}, as used by {@link RootsPairing}.
+ * <p>
+ * Computing the map requires a scan over all spots and a walk along each
+ * root branch. The registration UI, {@link LineageColoring} and
+ * {@link RootsPairing#report} request it repeatedly for the same graph and
+ * timepoint. The cache is dropped whenever a spot or link is added or
+ * removed, or a spot label changes.
+ * <p>
+ * There is one shared instance per {@link ModelGraph}, see
+ * {@link #get(ModelGraph)}.
+ */
+class DividingRootsIndex implements GraphListener< Spot, Link >, PropertyChangeListener< Spot >
+{
+	private static final PerGraphRegistry< DividingRootsIndex > indices = new PerGraphRegistry<>( DividingRootsIndex::new );
+
+	static DividingRootsIndex get( ModelGraph graph )
+	{
+		return indices.get( graph );
+	}
+
+	private final ModelGraph graph;
+
+	private final TIntObjectMap< ObjectRefMap< String, Spot > > labelToBranchStart = new TIntObjectHashMap<>();
+
+	private DividingRootsIndex( ModelGraph graph )
+	{
+		this.graph = graph;
+		graph.addVertexLabelListener( this );
+	}
+
+	/**
+	 * Returns the map from label to branch start of the dividing roots at
+	 * the given timepoint. The map is shared and must not be modified.
+	 */
+	synchronized ObjectRefMap< String, Spot > getLabelToBranchStart( int timepoint )
+	{
+		ObjectRefMap< String, Spot > map = labelToBranchStart.get( timepoint );
+		if ( map == null )
+		{
+			map = RootsPairing.createLabelToDividingRootMap( graph, timepoint );
+			labelToBranchStart.put( timepoint, map );
+		}
+		return map;
+	}
+
+	private synchronized void invalidate()
+	{
+		labelToBranchStart.clear();
+	}
+
+	@Override
+	public void propertyChanged( Spot spot )
+	{
+		invalidate();
+	}
+
+	@Override
+	public void graphRebuilt()
+	{
+		invalidate();
+	}
+
+	@Override
+	public void vertexAdded( Spot vertex )
+	{
+		invalidate();
+	}
+
+	@Override
+	public void vertexRemoved( Spot vertex )
+	{
+		invalidate();
+	}
+
+	@Override
+	public void edgeAdded( Link edge )
+	{
+		invalidate();
+	}
+
+	@Override
+	public void edgeRemoved( Link edge )
+	{
+		invalidate();
+	}
+}
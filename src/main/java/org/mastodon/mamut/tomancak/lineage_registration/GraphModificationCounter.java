@@ -0,0 +1,82 @@
+package org.mastodon.mamut.tomancak.lineage_registration;
+
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.util.PerGraphRegistry;
+import org.mastodon.properties.PropertyChangeListener;
+
+/**
+ * Counts the modifications of a {@link ModelGraph} that can change the
+ * result of the lineage registration: spots or links added or removed, and
+ * spot labels or positions changed. Two equal counts of the same graph
+ * guarantee that the registration result is still valid. Tags are not
+ * counted.
+ * <p>
+ * There is one shared instance per {@link ModelGraph}, see
+ * {@link #get(ModelGraph)}.
+ */
+class GraphModificationCounter implements GraphListener< Spot, Link >, PropertyChangeListener< Spot >
+{
+	private static final PerGraphRegistry< GraphModificationCounter > counters = new PerGraphRegistry<>( GraphModificationCounter::new );
+
+	static GraphModificationCounter get( ModelGraph graph )
+	{
+		return counters.get( graph );
+	}
+
+	private volatile long count = 0;
+
+	private GraphModificationCounter( ModelGraph graph )
+	{
+		graph.addVertexLabelListener( this );
+		graph.addVertexPositionListener( this );
+	}
+
+	long getModificationCount()
+	{
+		return count;
+	}
+
+	private synchronized void increment()
+	{
+		count++;
+	}
+
+	@Override
+	public void propertyChanged( Spot spot )
+	{
+		increment();
+	}
+
+	@Override
+	public void graphRebuilt()
+	{
+		increment();
+	}
+
+	@Override
+	public void vertexAdded( Spot vertex )
+	{
+		increment();
+	}
+
+	@Override
+	public void vertexRemoved( Spot vertex )
+	{
+		increment();
+	}
+
+	@Override
+	public void edgeAdded( Link edge )
+	{
+		increment();
+	}
+
+	@Override
+	public void edgeRemoved( Link edge )
+	{
+		increment();
+	}
+}
@@ -0,0 +1,457 @@
+package org.mastodon.mamut.tomancak.lineage_registration;
+
+import org.mastodon.collection.RefDoubleMap;
+import org.mastodon.collection.RefRefMap;
+import org.mastodon.collection.RefSet;
+import org.mastodon.collection.ref.RefDoubleHashMap;
+import org.mastodon.collection.ref.RefRefHashMap;
+import org.mastodon.collection.ref.RefSetImp;
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.lineage_registration.coupling.ModelCoupling;
+import org.mastodon.properties.PropertyChangeListener;
+
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Keeps a {@link RegisteredGraphs} up to date while the two graphs are
+ * edited, for example to keep a {@link ModelCoupling} correct during
+ * curation.
+ * <p>
+ * The class listens to added and removed links, removed spots and spot
+ * position changes in both graphs. A change marks the nearest mapped branch
+ * start above the changed branch as "dirty". The parent branch is included,
+ * because the positions at the start of a branch determine the division
+ * direction of its parent. The next call to {@link #update()}, or to one of
+ * the lookup methods, re-matches only the subtrees below the dirty branch
+ * starts, and patches {@link RegisteredGraphs#mapAB},
+ * {@link RegisteredGraphs#mapBA} and the angles in place.
+ * <p>
+ * The maps that are patched belong to a copy of the {@link RegisteredGraphs}
+ * given to the constructor, see {@link #getRegisteredGraphs()}. The given
+ * instance is not modified, and may still be shared, for example by
+ * {@link RegistrationCache}.
+ * <p>
+ * The {@link RegisteredGraphs#spatialRegistration} and the pairing of the
+ * roots are kept. New lineages are only paired when a graph is rebuilt.
+ */
+public class IncrementalRegistration implements AutoCloseable
+{
+	private final RegisteredGraphs registration;
+
+	private final ModelGraph graphA;
+
+	private final ModelGraph graphB;
+
+	private final int firstTimepointA;
+
+	private final int firstTimepointB;
+
+	private final ChangeListener listenerA = new ChangeListener( true );
+
+	private final ChangeListener listenerB = new ChangeListener( false );
+
+	/** Mapped branch starts in graph A, whose subtrees need to be matched again. */
+	private final RefSet< Spot > dirtyA;
+
+	/** Spots that lost their parent, their subtrees may hold outdated entries. */
+	private final RefSet< Spot > detachedA;
+
+	private final RefSet< Spot > detachedB;
+
+	private boolean rebuilt = false;
+
+	private final Spot walkRefA;
+
+	private final Spot walkRefB;
+
+	private final Spot partnerRefA;
+
+	private final Spot partnerRefB;
+
+	private final Spot endpointRefA;
+
+	private final Spot endpointRefB;
+
+	private final Spot childRefA;
+
+	private final Spot childRefB;
+
+	public IncrementalRegistration( RegisteredGraphs registration, int firstTimepointA, int firstTimepointB )
+	{
+		this.registration = registration.copy();
+		this.graphA = registration.graphA;
+		this.graphB = registration.graphB;
+		this.firstTimepointA = firstTimepointA;
+		this.firstTimepointB = firstTimepointB;
+		this.dirtyA = new RefSetImp<>( graphA.vertices().getRefPool() );
+		this.detachedA = new RefSetImp<>( graphA.vertices().getRefPool() );
+		this.detachedB = new RefSetImp<>( graphB.vertices().getRefPool() );
+		this.walkRefA = graphA.vertexRef();
+		this.walkRefB = graphB.vertexRef();
+		this.partnerRefA = graphA.vertexRef();
+		this.partnerRefB = graphB.vertexRef();
+		this.endpointRefA = graphA.vertexRef();
+		this.endpointRefB = graphB.vertexRef();
+		this.childRefA = graphA.vertexRef();
+		this.childRefB = graphB.vertexRef();
+		graphA.addGraphListener( listenerA );
+		graphA.addVertexPositionListener( listenerA );
+		graphB.addGraphListener( listenerB );
+		graphB.addVertexPositionListener( listenerB );
+	}
+
+	/**
+	 * Returns the registration that is kept up to date. This is a copy of
+	 * the registration given to the constructor.
+	 */
+	public RegisteredGraphs getRegisteredGraphs()
+	{
+		return registration;
+	}
+
+	/**
+	 * Returns the branch start in graph B that is mapped to the given branch
+	 * start in graph A, after applying all pending changes.
+	 */
+	public Spot getBranchStartB( Spot branchStartA, Spot refB )
+	{
+		try ( ClosableLock ignored = lockBoth() )
+		{
+			synchronized ( this )
+			{
+				updateLocked();
+				return registration.mapAB.get( branchStartA, refB );
+			}
+		}
+	}
+
+	/**
+	 * Returns the branch start in graph A that is mapped to the given branch
+	 * start in graph B, after applying all pending changes.
+	 */
+	public Spot getBranchStartA( Spot branchStartB, Spot refA )
+	{
+		try ( ClosableLock ignored = lockBoth() )
+		{
+			synchronized ( this )
+			{
+				updateLocked();
+				return registration.mapBA.get( branchStartB, refA );
+			}
+		}
+	}
+
+	/**
+	 * Re-matches the subtrees that changed since the last update.
+	 */
+	public void update()
+	{
+		try ( ClosableLock ignored = lockBoth() )
+		{
+			synchronized ( this )
+			{
+				updateLocked();
+			}
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		graphA.removeGraphListener( listenerA );
+		graphA.removeVertexPositionListener( listenerA );
+		graphB.removeGraphListener( listenerB );
+		graphB.removeVertexPositionListener( listenerB );
+		synchronized ( this )
+		{
+			graphA.releaseRef( walkRefA );
+			graphB.releaseRef( walkRefB );
+			graphA.releaseRef( partnerRefA );
+			graphB.releaseRef( partnerRefB );
+			graphA.releaseRef( endpointRefA );
+			graphB.releaseRef( endpointRefB );
+			graphA.releaseRef( childRefA );
+			graphB.releaseRef( childRefB );
+		}
+	}
+
+	private ClosableLock lockBoth()
+	{
+		return LockUtils.lockBoth( graphA.getLock().readLock(), graphB.getLock().readLock() );
+	}
+
+	private void updateLocked()
+	{
+		if ( rebuilt )
+		{
+			rematchAll();
+			return;
+		}
+		clearDetachedSubtrees( detachedA, true );
+		clearDetachedSubtrees( detachedB, false );
+		if ( dirtyA.isEmpty() )
+			return;
+		// Resolve dirty branch starts, that lost their mapping in the meantime.
+		RefSet< Spot > resolved = new RefSetImp<>( graphA.vertices().getRefPool() );
+		for ( Spot spot : dirtyA )
+		{
+			Spot start = findMappedAncestor( spot, registration.mapAB, walkRefA, false );
+			if ( start != null )
+				resolved.add( start );
+		}
+		dirtyA.clear();
+		// Only re-match the top most dirty subtrees, they contain the others.
+		TIntArrayList idsA = new TIntArrayList();
+		TIntArrayList idsB = new TIntArrayList();
+		for ( Spot spot : resolved )
+		{
+			if ( hasAncestorIn( spot, resolved ) )
+				continue;
+			idsA.add( spot.getInternalPoolIndex() );
+			idsB.add( registration.mapAB.get( spot, partnerRefB ).getInternalPoolIndex() );
+		}
+		RefRefMap< Spot, Spot > pairs = new RefRefHashMap<>( graphA.vertices().getRefPool(), graphB.vertices().getRefPool() );
+		for ( int i = 0; i < idsA.size(); i++ )
+		{
+			clearSubtree( idsA.get( i ), true );
+			clearSubtree( idsB.get( i ), false );
+			pairs.put( graphA.getGraphIdBimap().getVertex( idsA.get( i ), walkRefA ),
+					graphB.getGraphIdBimap().getVertex( idsB.get( i ), walkRefB ) );
+		}
+		addMatches( pairs );
+	}
+
+	private void rematchAll()
+	{
+		rebuilt = false;
+		dirtyA.clear();
+		detachedA.clear();
+		detachedB.clear();
+		registration.mapAB.clear();
+		registration.mapBA.clear();
+		registration.anglesA.clear();
+		registration.anglesB.clear();
+		addMatches( RootsPairing.pairDividingRoots( graphA, firstTimepointA, graphB, firstTimepointB ) );
+	}
+
+	/**
+	 * Matches the subtrees below the given pairs of branch starts and adds
+	 * the results to the maps of the {@link RegisteredGraphs}.
+	 */
+	private void addMatches( RefRefMap< Spot, Spot > pairs )
+	{
+		RefRefMap< Spot, Spot > mapAB = new RefRefHashMap<>( graphA.vertices().getRefPool(), graphB.vertices().getRefPool() );
+		RefDoubleMap< Spot > anglesA = new RefDoubleHashMap<>( graphA.vertices().getRefPool(), Double.NaN );
+		LineageRegistrationAlgorithm.matchSubtrees( graphA, graphB, pairs, registration.spatialRegistration, mapAB, anglesA );
+		RefMapUtils.forEach( mapAB, ( spotA, spotB ) -> {
+			registration.mapAB.put( spotA, spotB );
+			registration.mapBA.put( spotB, spotA );
+			double angle = anglesA.get( spotA );
+			if ( !Double.isNaN( angle ) )
+			{
+				registration.anglesA.put( spotA, angle );
+				registration.anglesB.put( spotB, angle );
+			}
+		} );
+	}
+
+	private void clearDetachedSubtrees( RefSet< Spot > detached, boolean isA )
+	{
+		TIntArrayList ids = new TIntArrayList( detached.size() );
+		for ( Spot spot : detached )
+			if ( spot.incomingEdges().isEmpty() )
+				ids.add( spot.getInternalPoolIndex() );
+		detached.clear();
+		for ( int i = 0; i < ids.size(); i++ )
+			clearSubtree( ids.get( i ), isA );
+	}
+
+	/**
+	 * Removes the entries of all spots in the subtree below the given spot.
+	 */
+	private void clearSubtree( int rootId, boolean isA )
+	{
+		ModelGraph graph = isA ? graphA : graphB;
+		Spot ref = isA ? walkRefA : walkRefB;
+		Spot childRef = isA ? childRefA : childRefB;
+		TIntArrayList stack = new TIntArrayList();
+		stack.add( rootId );
+		while ( !stack.isEmpty() )
+		{
+			Spot spot = graph.getGraphIdBimap().getVertex( stack.removeAt( stack.size() - 1 ), ref );
+			removeEntries( spot, isA );
+			for ( Link link : spot.outgoingEdges() )
+				stack.add( link.getTarget( childRef ).getInternalPoolIndex() );
+		}
+	}
+
+	private void removeEntries( Spot spot, boolean isA )
+	{
+		if ( isA )
+		{
+			Spot spotB = registration.mapAB.get( spot, partnerRefB );
+			if ( spotB != null )
+			{
+				registration.mapAB.remove( spot );
+				registration.mapBA.remove( spotB );
+				registration.anglesB.remove( spotB );
+			}
+			registration.anglesA.remove( spot );
+		}
+		else
+		{
+			Spot spotA = registration.mapBA.get( spot, partnerRefA );
+			if ( spotA != null )
+			{
+				registration.mapBA.remove( spot );
+				registration.mapAB.remove( spotA );
+				registration.anglesA.remove( spotA );
+			}
+			registration.anglesB.remove( spot );
+		}
+	}
+
+	/**
+	 * Returns the nearest branch start, that is a key in the given map, and
+	 * either starts the branch of the given spot or is an ancestor.
+	 *
+	 * @param includeParent start searching at the parent branch of the given spot.
+	 */
+	private static Spot findMappedAncestor( Spot spot, RefRefMap< Spot, Spot > map, Spot ref, boolean includeParent )
+	{
+		Spot start = BranchGraphUtils.getBranchStart( spot, ref );
+		if ( includeParent && start.incomingEdges().size() == 1 )
+			start = parentBranchStart( start, ref );
+		while ( !map.containsKey( start ) )
+		{
+			if ( start.incomingEdges().size() != 1 )
+				return null;
+			start = parentBranchStart( start, ref );
+		}
+		return start;
+	}
+
+	private boolean hasAncestorIn( Spot branchStart, RefSet< Spot > set )
+	{
+		Spot start = branchStart;
+		while ( start.incomingEdges().size() == 1 )
+		{
+			start = parentBranchStart( start, walkRefA );
+			if ( set.contains( start ) )
+				return true;
+		}
+		return false;
+	}
+
+	private static Spot parentBranchStart( Spot branchStart, Spot ref )
+	{
+		Spot parent = branchStart.incomingEdges().iterator().next().getSource( ref );
+		return BranchGraphUtils.getBranchStart( parent, ref );
+	}
+
+	// -- Graph change handling --
+
+	private synchronized void markDirty( Spot spot, boolean isA )
+	{
+		if ( rebuilt )
+			return;
+		if ( isA )
+		{
+			Spot start = findMappedAncestor( spot, registration.mapAB, walkRefA, true );
+			if ( start != null )
+				dirtyA.add( start );
+		}
+		else
+		{
+			Spot start = findMappedAncestor( spot, registration.mapBA, walkRefB, true );
+			if ( start != null )
+				dirtyA.add( registration.mapBA.get( start, partnerRefA ) );
+		}
+	}
+
+	private synchronized void onSpotRemoved( Spot spot, boolean isA )
+	{
+		if ( rebuilt )
+			return;
+		removeEntries( spot, isA );
+		if ( isA )
+		{
+			dirtyA.remove( spot );
+			detachedA.remove( spot );
+		}
+		else
+			detachedB.remove( spot );
+	}
+
+	private synchronized void onEdgeAdded( Link edge, boolean isA )
+	{
+		markDirty( edge.getSource( isA ? endpointRefA : endpointRefB ), isA );
+	}
+
+	private synchronized void onEdgeRemoved( Link edge, boolean isA )
+	{
+		if ( rebuilt )
+			return;
+		Spot endpointRef = isA ? endpointRefA : endpointRefB;
+		( isA ? detachedA : detachedB ).add( edge.getTarget( endpointRef ) );
+		markDirty( edge.getSource( endpointRef ), isA );
+	}
+
+	private synchronized void onGraphRebuilt()
+	{
+		// NB: All spot references are invalid, the next update re-matches everything.
+		rebuilt = true;
+		dirtyA.clear();
+		detachedA.clear();
+		detachedB.clear();
+	}
+
+	private class ChangeListener implements GraphListener< Spot, Link >, PropertyChangeListener< Spot >
+	{
+		private final boolean isA;
+
+		private ChangeListener( boolean isA )
+		{
+			this.isA = isA;
+		}
+
+		@Override
+		public void propertyChanged( Spot spot )
+		{
+			markDirty( spot, isA );
+		}
+
+		@Override
+		public void graphRebuilt()
+		{
+			onGraphRebuilt();
+		}
+
+		@Override
+		public void vertexAdded( Spot vertex )
+		{
+			// A new spot has no effect, until it is linked.
+		}
+
+		@Override
+		public void vertexRemoved( Spot vertex )
+		{
+			onSpotRemoved( vertex, isA );
+		}
+
+		@Override
+		public void edgeAdded( Link edge )
+		{
+			onEdgeAdded( edge, isA );
+		}
+
+		@Override
+		public void edgeRemoved( Link edge )
+		{
+			onEdgeRemoved( edge, isA );
+		}
+	}
+}
@@ -1,11 +1,20 @@
 package org.mastodon.mamut.tomancak.lineage_registration;
 
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
 import net.imglib2.realtransform.AffineTransform3D;
 
 import org.mastodon.collection.RefDoubleMap;
 import org.mastodon.collection.RefRefMap;
 import org.mastodon.collection.ref.RefDoubleHashMap;
 import org.mastodon.collection.ref.RefRefHashMap;
+import org.mastodon.mamut.model.Link;
 import org.mastodon.mamut.model.Model;
 import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
@@ -14,6 +23,7 @@ import org.mastodon.mamut.tomancak.lineage_registration.spatial_registration.Spa
 import org.mastodon.mamut.tomancak.lineage_registration.spatial_registration.SpatialRegistrationFactory;
 import org.mastodon.mamut.tomancak.lineage_registration.spatial_registration.SpatialRegistrationMethod;
 import org.mastodon.mamut.tomancak.sort_tree.SortTreeUtils;
+import org.mastodon.mamut.tomancak.util.TimepointExtentIndex;
 
 /**
  * An algorithm that compares the "cell division directions" in two lineages.
@@ -42,6 +52,10 @@ public class LineageRegistrationAlgorithm
 	 */
 	private final RefDoubleMap< Spot > angles;
 
+	private final BranchIndex branchIndexA;
+
+	private final BranchIndex branchIndexB;
+
 	/**
 	 * Runs the lineage registration algorithm for to given graphs. The spots before
 	 * the given timepoints are ignored.
@@ -70,6 +84,23 @@ public class LineageRegistrationAlgorithm
 		}
 	}
 
+	/**
+	 * Runs the lineage registration algorithm without user supplied first
+	 * timepoints. The first timepoint of model A is its first non-empty
+	 * timepoint, the first timepoint of model B is estimated by
+	 * {@link TemporalAlignment}.
+	 */
+	public static RegisteredGraphs run(
+			Model modelA,
+			Model modelB,
+			SpatialRegistrationMethod spatialRegistrationMethod )
+	{
+		int firstTimepointA = Math.max( 0, TimepointExtentIndex.get( modelA.getGraph() ).getMinNonEmptyTimepoint() );
+		int[] aligned = TemporalAlignment.align( modelA.getGraph(), modelB.getGraph() );
+		int firstTimepointB = firstTimepointA < aligned.length ? aligned[ firstTimepointA ] : 0;
+		return run( modelA, firstTimepointA, modelB, firstTimepointB, spatialRegistrationMethod );
+	}
+
 	private static NotEnoughPairedRootsException newDetailedNotEnoughPairedRootsException( NotEnoughPairedRootsException e, Model modelA, int firstTimepointA, Model modelB, int firstTimepointB )
 	{
 		String message = e.getMessage() + "\n"
@@ -95,6 +126,20 @@ public class LineageRegistrationAlgorithm
 		return new RegisteredGraphs( modelA, modelB, spatialRegistration, algorithm.getMapping(), algorithm.getAngles() );
 	}
 
+	/**
+	 * Matches the subtrees below the given pairs of branch starts, and adds
+	 * the result to the given maps. Used by {@link IncrementalRegistration} to
+	 * re-match only the parts of the lineages that changed.
+	 */
+	static void matchSubtrees( ModelGraph graphA, ModelGraph graphB, RefRefMap< Spot, Spot > branchStarts,
+			SpatialRegistration spatialRegistration, RefRefMap< Spot, Spot > mapAB, RefDoubleMap< Spot > angles )
+	{
+		LineageRegistrationAlgorithm algorithm = new LineageRegistrationAlgorithm( graphA, graphB, branchStarts, spatialRegistration );
+		RefMapUtils.forEach( algorithm.mapAB, mapAB::put );
+		for ( Spot spot : algorithm.angles.keySet() )
+			angles.put( spot, algorithm.angles.get( spot ) );
+	}
+
 	private RefDoubleMap< Spot > getAngles()
 	{
 		return angles;
@@ -108,64 +153,136 @@ public class LineageRegistrationAlgorithm
 		this.graphB = graphB;
 		this.mapAB = new RefRefHashMap<>( graphA.vertices().getRefPool(), graphB.vertices().getRefPool() );
 		this.angles = new RefDoubleHashMap<>( graphA.vertices().getRefPool(), Double.NaN );
-		Spot refB = graphB.vertexRef();
-		try
-		{
-			for ( Spot rootA : roots.keySet() )
+		this.branchIndexA = BranchIndex.get( graphA );
+		this.branchIndexB = BranchIndex.get( graphB );
+		TIntArrayList rootIdsA = new TIntArrayList( roots.size() );
+		TIntArrayList rootIdsB = new TIntArrayList( roots.size() );
+		RefMapUtils.forEach( roots, ( rootA, rootB ) -> {
+			rootIdsA.add( rootA.getInternalPoolIndex() );
+			rootIdsB.add( rootB.getInternalPoolIndex() );
+		} );
+		// The lineages of different root pairs are disjoint and are matched in parallel.
+		int numChunks = Math.min( rootIdsA.size(), 4 * ForkJoinPool.getCommonPoolParallelism() );
+		List< TreeMatcher > matchers = IntStream.range( 0, numChunks ).parallel().mapToObj( chunk -> {
+			TreeMatcher matcher = new TreeMatcher();
+			try
 			{
-				Spot rootB = roots.get( rootA, refB );
-				matchTree( rootA, rootB );
+				for ( int i = chunk; i < rootIdsA.size(); i += numChunks )
+					matcher.matchTree( rootIdsA.get( i ), rootIdsB.get( i ) );
 			}
-		}
-		finally
-		{
-			graphB.releaseRef( refB );
-		}
+			finally
+			{
+				matcher.releaseRefs();
+			}
+			return matcher;
+		} ).collect( Collectors.toList() );
+		for ( TreeMatcher matcher : matchers )
+			matcher.addResultsTo( mapAB, angles );
 	}
 
-	private void matchTree( Spot rootA, Spot rootB )
+	/**
+	 * Matches the lineage trees of root pairs, iteratively, using its own refs
+	 * and result maps. Each instance is used by one thread only.
+	 */
+	private class TreeMatcher
 	{
-		mapAB.put( rootA, rootB );
-		Spot refA = graphA.vertexRef();
-		Spot refB = graphB.vertexRef();
-		try
+		private final RefRefMap< Spot, Spot > mapAB =
+				new RefRefHashMap<>( graphA.vertices().getRefPool(), graphB.vertices().getRefPool() );
+
+		private final RefDoubleMap< Spot > angles = new RefDoubleHashMap<>( graphA.vertices().getRefPool(), Double.NaN );
+
+		/**
+		 * Transformations without offset, indexed by the timepoint pair
+		 * ({@code timepointA << 32 | timepointB}).
+		 */
+		private final TLongObjectMap< AffineTransform3D > transforms = new TLongObjectHashMap<>();
+
+		/** Pairs of spot ids (A, B) of the branch starts that still need to be matched. */
+		private final TIntArrayList stack = new TIntArrayList();
+
+		private final Spot refA = graphA.vertexRef();
+
+		private final Spot refB = graphB.vertexRef();
+
+		private final Spot endRefA = graphA.vertexRef();
+
+		private final Spot endRefB = graphB.vertexRef();
+
+		private final Spot childRefA = graphA.vertexRef();
+
+		private final Spot childRefB = graphB.vertexRef();
+
+		private final Link edgeRefA = graphA.edgeRef();
+
+		private final Link edgeRefB = graphB.edgeRef();
+
+		private void matchTree( int rootIdA, int rootIdB )
+		{
+			stack.add( rootIdA );
+			stack.add( rootIdB );
+			while ( !stack.isEmpty() )
+			{
+				int idB = stack.removeAt( stack.size() - 1 );
+				int idA = stack.removeAt( stack.size() - 1 );
+				Spot rootA = graphA.getGraphIdBimap().getVertex( idA, refA );
+				Spot rootB = graphB.getGraphIdBimap().getVertex( idB, refB );
+				mapAB.put( rootA, rootB );
+				Spot dividingA = branchIndexA.getBranchEnd( rootA, endRefA );
+				Spot dividingB = branchIndexB.getBranchEnd( rootB, endRefB );
+				boolean bothDivide = dividingA.outgoingEdges().size() == 2 &&
+						dividingB.outgoingEdges().size() == 2;
+				if ( !bothDivide )
+					continue;
+				double[] directionA = SortTreeUtils.directionOfCellDevision( graphA, dividingA );
+				double[] directionB = SortTreeUtils.directionOfCellDevision( graphB, dividingB );
+				AffineTransform3D transformAB = getNoOffsetTransform(
+						dividingA.getTimepoint() + TIME_OFFSET, dividingB.getTimepoint() + TIME_OFFSET );
+				transformAB.apply( directionA, directionA );
+				double angle = SortTreeUtils.angleInDegree( directionA, directionB );
+				angles.put( rootA, angle );
+				boolean flip = angle > 90;
+				pushChildren( dividingA, dividingB, 1, flip ? 0 : 1 );
+				pushChildren( dividingA, dividingB, 0, flip ? 1 : 0 );
+			}
+		}
+
+		private void pushChildren( Spot dividingA, Spot dividingB, int indexA, int indexB )
 		{
-			Spot dividingA = BranchGraphUtils.getBranchEnd( rootA, refA );
-			Spot dividingB = BranchGraphUtils.getBranchEnd( rootB, refB );
-			boolean bothDivide = dividingA.outgoingEdges().size() == 2 &&
-					dividingB.outgoingEdges().size() == 2;
-			if ( !bothDivide )
-				return;
-			double[] directionA = SortTreeUtils.directionOfCellDevision( graphA, dividingA );
-			double[] directionB = SortTreeUtils.directionOfCellDevision( graphB, dividingB );
-			AffineTransform3D transformAB = noOffsetTransform( spatialRegistration.getTransformationAtoB(
-					dividingA.getTimepoint() + TIME_OFFSET, dividingB.getTimepoint() + TIME_OFFSET ) );
-			transformAB.apply( directionA, directionA );
-			double angle = SortTreeUtils.angleInDegree( directionA, directionB );
-			angles.put( rootA, angle );
-			boolean flip = angle > 90;
-			matchChildTree( dividingA, dividingB, 0, flip ? 1 : 0 );
-			matchChildTree( dividingA, dividingB, 1, flip ? 0 : 1 );
+			Spot childA = dividingA.outgoingEdges().get( indexA, edgeRefA ).getTarget( childRefA );
+			Spot childB = dividingB.outgoingEdges().get( indexB, edgeRefB ).getTarget( childRefB );
+			stack.add( childA.getInternalPoolIndex() );
+			stack.add( childB.getInternalPoolIndex() );
 		}
-		finally
+
+		private AffineTransform3D getNoOffsetTransform( int timepointA, int timepointB )
 		{
-			graphA.releaseRef( refA );
-			graphB.releaseRef( refB );
+			long key = ( ( long ) timepointA << 32 ) | ( timepointB & 0xffffffffL );
+			AffineTransform3D transform = transforms.get( key );
+			if ( transform == null )
+			{
+				transform = noOffsetTransform( spatialRegistration.getTransformationAtoB( timepointA, timepointB ) );
+				transforms.put( key, transform );
+			}
+			return transform;
 		}
-	}
 
-	private void matchChildTree( Spot dividingA, Spot dividingB, int indexA, int indexB )
-	{
-		Spot childA = dividingA.outgoingEdges().get( indexA ).getTarget();
-		Spot childB = dividingB.outgoingEdges().get( indexB ).getTarget();
-		try
+		private void addResultsTo( RefRefMap< Spot, Spot > mapAB, RefDoubleMap< Spot > angles )
 		{
-			matchTree( childA, childB );
+			RefMapUtils.forEach( this.mapAB, mapAB::put );
+			for ( Spot spot : this.angles.keySet() )
+				angles.put( spot, this.angles.get( spot ) );
 		}
-		finally
+
+		private void releaseRefs()
 		{
-			graphA.releaseRef( childA );
-			graphB.releaseRef( childB );
+			graphA.releaseRef( refA );
+			graphB.releaseRef( refB );
+			graphA.releaseRef( endRefA );
+			graphB.releaseRef( endRefB );
+			graphA.releaseRef( childRefA );
+			graphB.releaseRef( childRefB );
+			graphA.releaseRef( edgeRefA );
+			graphB.releaseRef( edgeRefB );
 		}
 	}
 
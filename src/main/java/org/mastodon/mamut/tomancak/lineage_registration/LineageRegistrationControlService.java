@@ -1,11 +1,14 @@
 package org.mastodon.mamut.tomancak.lineage_registration;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 
 import net.imagej.ImageJService;
 
@@ -15,7 +18,10 @@ import org.mastodon.mamut.model.Model;
 import org.mastodon.mamut.model.Spot;
 import org.mastodon.mamut.tomancak.lineage_registration.angle_feature.CellDivisionAngleFeature;
 import org.mastodon.mamut.tomancak.lineage_registration.coupling.ModelCoupling;
+import org.mastodon.mamut.tomancak.lineage_registration.spatial_registration.RansacSpatialRegistration;
+import org.mastodon.mamut.tomancak.lineage_registration.spatial_registration.SpatialRegistrationMethod;
 import org.mastodon.model.tag.TagSetStructure;
+import org.mastodon.ui.util.FileChooser;
 import org.scijava.plugin.Plugin;
 import org.scijava.service.AbstractService;
 
@@ -37,6 +43,8 @@ public class LineageRegistrationControlService extends AbstractService implement
 
 	private final List< WindowManager > windowManagers = new ArrayList<>();
 
+	private final RegistrationCache cache = new RegistrationCache();
+
 	public void registerMastodonInstance( WindowManager windowManager )
 	{
 		windowManagers.add( windowManager );
@@ -46,6 +54,7 @@ public class LineageRegistrationControlService extends AbstractService implement
 	public void unregisterMastodonInstance( WindowManager windowManager )
 	{
 		windowManagers.remove( windowManager );
+		cache.remove( windowManager.getAppModel().getModel() );
 		dialog.setMastodonInstances( windowManagers );
 	}
 
@@ -81,6 +90,8 @@ public class LineageRegistrationControlService extends AbstractService implement
 
 		private ModelCoupling coupling = null;
 
+		private IncrementalRegistration incrementalRegistration = null;
+
 		@Override
 		public void onSortTrackSchemeAClicked()
 		{
@@ -217,8 +228,10 @@ public class LineageRegistrationControlService extends AbstractService implement
 			{
 				dialog.log( "... stop synchronization between projects." );
 				coupling.close();
+				incrementalRegistration.close();
 			}
 			coupling = null;
+			incrementalRegistration = null;
 			if ( i < 0 )
 				return;
 			SelectedProject projectA = dialog.getProjectA();
@@ -232,7 +245,8 @@ public class LineageRegistrationControlService extends AbstractService implement
 			}
 			dialog.log( "Synchronize focused and highlighted spot between project A and project B." );
 			dialog.log( "Synchronize navigate to spot actions between project A and project B. (sync. group %d)", i + 1 );
-			coupling = new ModelCoupling( projectA.getAppModel(), projectB.getAppModel(), r, i );
+			incrementalRegistration = new IncrementalRegistration( r, projectA.getFirstTimepoint(), projectB.getFirstTimepoint() );
+			coupling = new ModelCoupling( projectA.getAppModel(), projectB.getAppModel(), incrementalRegistration, i );
 		}
 
 		@Override
@@ -255,13 +269,77 @@ public class LineageRegistrationControlService extends AbstractService implement
 			CellDivisionAngleFeature.declare( registeredGraphs.modelB, registeredGraphs.anglesB );
 		}
 
+		@Override
+		public void onSaveRegistrationClicked()
+		{
+			File file = FileChooser.chooseFile( dialog, "lineage_registration.bin", null,
+					"Save lineage registration result", FileChooser.DialogType.SAVE );
+			if ( file == null )
+				return;
+			SelectedProject projectA = dialog.getProjectA();
+			SelectedProject projectB = dialog.getProjectB();
+			SpatialRegistrationMethod method = dialog.getSpatialRegistrationMethod();
+			executeTask( false, projectA, projectB, () -> {
+				dialog.clearLog();
+				dialog.log( "Save registration of project \"%s\" and project \"%s\" to \"%s\"...",
+						projectA.getName(), projectB.getName(), file.getName() );
+				RegisteredGraphs registration = runRegistrationAlgorithm( projectA, projectB );
+				try
+				{
+					RegisteredGraphsIO.write( registration, projectA.getFirstTimepoint(), projectB.getFirstTimepoint(), method, file );
+					dialog.log( "done." );
+				}
+				catch ( IOException e )
+				{
+					dialog.log( "Failed to save: %s", e.getMessage() );
+				}
+			} );
+		}
+
+		@Override
+		public void onLoadRegistrationClicked()
+		{
+			File file = FileChooser.chooseFile( dialog, null, null,
+					"Load lineage registration result", FileChooser.DialogType.LOAD );
+			if ( file == null )
+				return;
+			SelectedProject projectA = dialog.getProjectA();
+			SelectedProject projectB = dialog.getProjectB();
+			executeTask( false, projectA, projectB, () -> {
+				dialog.clearLog();
+				dialog.log( "Load registration of project \"%s\" and project \"%s\" from \"%s\"...",
+						projectA.getName(), projectB.getName(), file.getName() );
+				try
+				{
+					RegisteredGraphsIO.StoredRegistration stored = RegisteredGraphsIO.read( file, projectA.getModel(), projectB.getModel() );
+					cache.put( stored.registration, stored.firstTimepointA, stored.firstTimepointB, stored.method );
+					SwingUtilities.invokeLater( () -> dialog.setRegistrationParameters( stored.firstTimepointA, stored.firstTimepointB, stored.method ) );
+					if ( stored.numUnresolved > 0 )
+						dialog.log( "%d stored cells were not found in the projects and are ignored.", stored.numUnresolved );
+					dialog.log( "done." );
+				}
+				catch ( IOException e )
+				{
+					dialog.log( "Failed to load: %s", e.getMessage() );
+				}
+			} );
+		}
+
 	}
 
 	private RegisteredGraphs runRegistrationAlgorithm( SelectedProject projectA, SelectedProject projectB )
 	{
-		return LineageRegistrationAlgorithm.run(
+		RegisteredGraphs registration = cache.getOrRun(
 				projectA.getModel(), projectA.getFirstTimepoint(),
 				projectB.getModel(), projectB.getFirstTimepoint(),
 				dialog.getSpatialRegistrationMethod() );
+		if ( registration.spatialRegistration instanceof RansacSpatialRegistration )
+		{
+			RansacSpatialRegistration ransac = ( RansacSpatialRegistration ) registration.spatialRegistration;
+			dialog.log( "Root cells used for the spatial registration: %s", ransac.getInliers() );
+			if ( !ransac.getOutliers().isEmpty() )
+				dialog.log( "Root cells ignored, because their positions don't agree: %s", ransac.getOutliers() );
+		}
+		return registration;
 	}
 }
@@ -89,6 +89,18 @@ public class LineageRegistrationFrame extends JFrame
 			+ "(Note: synchronization of edges is not implemented yet.)"
 			+ "</body></html>";
 
+	private static final String SAVE_REGISTRATION_TOOLTIP = "<html><body>"
+			+ "Saves the found correspondences and cell division angles to a file.<br>"
+			+ "Loading the file later avoids rerunning the registration."
+			+ "</body></html>";
+
+	private static final String LOAD_REGISTRATION_TOOLTIP = "<html><body>"
+			+ "Loads correspondences and cell division angles from a file,<br>"
+			+ "and uses them for the other operations until a project is modified.<br>"
+			+ "The first time points and the spatial registration method are set<br>"
+			+ "to the values used when saving."
+			+ "</body></html>";
+
 	private static final ImageIcon LOCK_ICON = new ImageIcon( GroupLocksPanel.class.getResource( "lock.png" ) );
 
 	private final Listener listener;
@@ -155,6 +167,9 @@ public class LineageRegistrationFrame extends JFrame
 		add( new JLabel( "Cell division angles:") );
 		add( newOperationButton( "plot angles", PLOT_ANGLES_TOOLTIP, listener::onPlotAnglesClicked ), "split 2" );
 		add( newOperationButton( "add angles to table", ANGLES_FEATURE_TOOLTIP, listener::onAddAnglesFeatureClicked ), "wrap" );
+		add( new JLabel( "Registration result:" ) );
+		add( newOperationButton( "save ...", SAVE_REGISTRATION_TOOLTIP, listener::onSaveRegistrationClicked ), "split 2" );
+		add( newOperationButton( "load ...", LOAD_REGISTRATION_TOOLTIP, listener::onLoadRegistrationClicked ), "wrap" );
 		add( new JLabel( "Others:" ), "gaptop unrelated" );
 		add( newOperationButton( "color paired lineages", TAG_LINEAGES_TOOLTIP, listener::onColorLineagesClicked ), "wrap" );
 		add( new JLabel( "Couple projects:" ), "gaptop unrelated" );
@@ -332,6 +347,17 @@ public class LineageRegistrationFrame extends JFrame
 		return ( SpatialRegistrationMethod ) spatialRegistrationComboBox.getSelectedItem();
 	}
 
+	/**
+	 * Sets the first time points and the spatial registration method, for
+	 * example to the values of a loaded registration.
+	 */
+	public void setRegistrationParameters( int firstTimepointA, int firstTimepointB, SpatialRegistrationMethod method )
+	{
+		this.firstTimepointA.setValue( firstTimepointA );
+		this.firstTimepointB.setValue( firstTimepointB );
+		spatialRegistrationComboBox.setSelectedItem( method );
+	}
+
 	private SelectedProject getSelected( JComboBox< MastodonInstance > comboBoxA, JFormattedTextField firstTimepointTextField )
 	{
 		Object selectedItem = comboBoxA.getSelectedItem();
@@ -395,6 +421,10 @@ public class LineageRegistrationFrame extends JFrame
 		void onPlotAnglesClicked();
 
 		void onAddAnglesFeatureClicked();
+
+		void onSaveRegistrationClicked();
+
+		void onLoadRegistrationClicked();
 	}
 
 	private static class DummyListener implements Listener
@@ -465,6 +495,18 @@ public class LineageRegistrationFrame extends JFrame
 		{
 
 		}
+
+		@Override
+		public void onSaveRegistrationClicked()
+		{
+
+		}
+
+		@Override
+		public void onLoadRegistrationClicked()
+		{
+
+		}
 	}
 
 	public static void main( String... args )
@@ -78,11 +78,13 @@ public class LineageRegistrationUtils
 		{
 			ObjTagMap< Link, TagSetStructure.Tag > edgeTagsA = result.modelA.getTagSetModel().getEdgeTags().tags( tagSetModelA );
 			ObjTagMap< Link, TagSetStructure.Tag > edgeTagsB = result.modelB.getTagSetModel().getEdgeTags().tags( tagSetModelB );
+			BranchIndex branchIndexA = BranchIndex.get( graphA );
+			BranchIndex branchIndexB = BranchIndex.get( graphB );
 			for ( Spot spotA : result.mapAB.keySet() )
 			{
 				Spot spotB = result.mapAB.get( spotA, refB );
-				Spot branchEndA = BranchGraphUtils.getBranchEnd( spotA, refA );
-				Spot branchEndB = BranchGraphUtils.getBranchEnd( spotB, refB );
+				Spot branchEndA = branchIndexA.getBranchEnd( spotA, refA );
+				Spot branchEndB = branchIndexB.getBranchEnd( spotB, refB );
 				for ( Link linkA : branchEndA.outgoingEdges() )
 				{
 					Spot targetA = linkA.getTarget( refA2 );
@@ -211,11 +213,13 @@ public class LineageRegistrationUtils
 		try
 		{
 			RefArrayList< Spot > list = new RefArrayList<>( r.graphA.vertices().getRefPool() );
+			BranchIndex branchIndexA = BranchIndex.get( r.graphA );
+			BranchIndex branchIndexB = BranchIndex.get( r.graphB );
 			for ( Spot spotA : r.mapAB.keySet() )
 			{
 				Spot spotB = r.mapAB.get( spotA, refB0 );
-				Spot dividingA = BranchGraphUtils.getBranchEnd( spotA, refA );
-				Spot dividingB = BranchGraphUtils.getBranchEnd( spotB, refB );
+				Spot dividingA = branchIndexA.getBranchEnd( spotA, refA );
+				Spot dividingB = branchIndexB.getBranchEnd( spotB, refB );
 				if ( doesRequireFlip( r, dividingA, dividingB ) )
 					list.add( dividingA );
 			}
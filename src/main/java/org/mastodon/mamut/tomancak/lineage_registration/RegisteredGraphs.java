@@ -80,6 +80,32 @@ public class RegisteredGraphs
 				this.mapAB, this.anglesB, this.anglesA );
 	}
 
+	/**
+	 * @return a {@link RegisteredGraphs} instance with copies of the maps
+	 *         {@link #mapAB}, {@link #mapBA}, {@link #anglesA} and
+	 *         {@link #anglesB}, that can be modified independently of this
+	 *         instance.
+	 */
+	public RegisteredGraphs copy()
+	{
+		RefPool< Spot > poolA = spotRefPool( modelA );
+		RefPool< Spot > poolB = spotRefPool( modelB );
+		RefRefMap< Spot, Spot > mapABCopy = new RefRefHashMap<>( poolA, poolB );
+		RefMapUtils.forEach( mapAB, mapABCopy::put );
+		RefRefMap< Spot, Spot > mapBACopy = new RefRefHashMap<>( poolB, poolA );
+		RefMapUtils.forEach( mapBA, mapBACopy::put );
+		return new RegisteredGraphs( modelA, modelB, spatialRegistration,
+				mapABCopy, mapBACopy, copyAngles( anglesA, poolA ), copyAngles( anglesB, poolB ) );
+	}
+
+	private static RefDoubleMap< Spot > copyAngles( RefDoubleMap< Spot > angles, RefPool< Spot > refPool )
+	{
+		RefDoubleMap< Spot > copy = new RefDoubleHashMap<>( refPool, Double.NaN );
+		for ( Spot spot : angles.keySet() )
+			copy.put( spot, angles.get( spot ) );
+		return copy;
+	}
+
 	private static < K, V > RefRefMap< V, K > invertRefRefMap( RefRefMap< K, V > map, RefPool< K > keysPool, RefPool< V > valuesPool )
 	{
 		RefRefMap< V, K > inverted = new RefRefHashMap<>( valuesPool, keysPool );
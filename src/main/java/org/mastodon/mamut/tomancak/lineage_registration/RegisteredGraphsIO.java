@@ -0,0 +1,284 @@
+package org.mastodon.mamut.tomancak.lineage_registration;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.mastodon.RefPool;
+import org.mastodon.collection.RefDoubleMap;
+import org.mastodon.collection.RefRefMap;
+import org.mastodon.collection.ref.RefDoubleHashMap;
+import org.mastodon.collection.ref.RefRefHashMap;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.merging.MergingUtil;
+import org.mastodon.mamut.tomancak.lineage_registration.spatial_registration.SpatialRegistration;
+import org.mastodon.mamut.tomancak.lineage_registration.spatial_registration.SpatialRegistrationMethod;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Reads and writes the result of the lineage registration,
+ * {@link RegisteredGraphs#mapAB} and {@link RegisteredGraphs#anglesA},
+ * such that it survives closing and reopening the projects.
+ * <p>
+ * Every branch start is stored by its spot pool index, timepoint, position
+ * and its label, if the label is explicitly set. The pool indices usually
+ * change when a project is saved and reopened, and so does the default label
+ * of an unlabeled spot, which is its pool index. Therefore spots are found by
+ * timepoint, position and explicit label when reading. The pool index is only
+ * used to choose between branch starts that have the same key. Entries that
+ * can't be resolved are dropped.
+ * <p>
+ * The {@link SpatialRegistration} is not stored. It's recomputed from the
+ * stored parameters when reading, which is cheap compared to the lineage
+ * registration itself.
+ */
+public class RegisteredGraphsIO
+{
+	private static final int MAGIC = 0x4d4c5247;
+
+	/**
+	 * Version 3 stores the position and the explicit label of a spot.
+	 * Version 2 stored {@link Spot#getLabel()} as length-prefixed UTF-8,
+	 * version 1 used {@link DataOutputStream#writeUTF}, which is limited to
+	 * 64 KB. Versions 1 and 2 can still be read, but only spots with an
+	 * explicit label are found reliably in them.
+	 */
+	private static final int VERSION = 3;
+
+	private RegisteredGraphsIO()
+	{
+		// prevent utility class instantiation
+	}
+
+	/**
+	 * A registration result read from a file, together with the parameters
+	 * that were used to compute it.
+	 */
+	public static class StoredRegistration
+	{
+		public final RegisteredGraphs registration;
+
+		public final int firstTimepointA;
+
+		public final int firstTimepointB;
+
+		public final SpatialRegistrationMethod method;
+
+		/** Number of stored entries that don't match a branch start in the projects. */
+		public final int numUnresolved;
+
+		private StoredRegistration( RegisteredGraphs registration, int firstTimepointA, int firstTimepointB, SpatialRegistrationMethod method, int numUnresolved )
+		{
+			this.registration = registration;
+			this.firstTimepointA = firstTimepointA;
+			this.firstTimepointB = firstTimepointB;
+			this.method = method;
+			this.numUnresolved = numUnresolved;
+		}
+	}
+
+	public static void write( RegisteredGraphs registration, int firstTimepointA, int firstTimepointB, SpatialRegistrationMethod method, File file ) throws IOException
+	{
+		try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( file.toPath() ) ) ) )
+		{
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeInt( firstTimepointA );
+			out.writeInt( firstTimepointB );
+			out.writeUTF( method.name() );
+			out.writeInt( registration.mapAB.size() );
+			IOException[] exception = { null };
+			RefMapUtils.forEach( registration.mapAB, ( spotA, spotB ) -> {
+				if ( exception[ 0 ] != null )
+					return;
+				try
+				{
+					writeSpot( out, spotA );
+					writeSpot( out, spotB );
+					out.writeDouble( registration.anglesA.get( spotA ) );
+				}
+				catch ( IOException e )
+				{
+					exception[ 0 ] = e;
+				}
+			} );
+			if ( exception[ 0 ] != null )
+				throw exception[ 0 ];
+		}
+	}
+
+	private static void writeSpot( DataOutputStream out, Spot spot ) throws IOException
+	{
+		out.writeInt( spot.getInternalPoolIndex() );
+		out.writeInt( spot.getTimepoint() );
+		for ( int d = 0; d < 3; d++ )
+			out.writeDouble( spot.getDoublePosition( d ) );
+		boolean hasLabel = MergingUtil.hasLabel( spot );
+		out.writeBoolean( hasLabel );
+		if ( hasLabel )
+			writeString( out, spot.getLabel() );
+	}
+
+	private static void writeString( DataOutputStream out, String string ) throws IOException
+	{
+		byte[] bytes = string.getBytes( StandardCharsets.UTF_8 );
+		out.writeInt( bytes.length );
+		out.write( bytes );
+	}
+
+	private static String readString( DataInputStream in ) throws IOException
+	{
+		int length = in.readInt();
+		if ( length < 0 )
+			throw new IOException( "Invalid string length: " + length );
+		byte[] bytes = new byte[ length ];
+		in.readFully( bytes );
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+
+	/**
+	 * Reads a registration result written by {@link #write}. The caller must
+	 * hold at least the read locks of both graphs.
+	 *
+	 * @throws IOException if the file is not a stored registration.
+	 */
+	public static StoredRegistration read( File file, Model modelA, Model modelB ) throws IOException
+	{
+		ModelGraph graphA = modelA.getGraph();
+		ModelGraph graphB = modelB.getGraph();
+		try ( DataInputStream in = new DataInputStream( new BufferedInputStream( Files.newInputStream( file.toPath() ) ) ) )
+		{
+			if ( in.readInt() != MAGIC )
+				throw new IOException( "Not a lineage registration file: " + file );
+			int version = in.readInt();
+			if ( version < 1 || version > VERSION )
+				throw new IOException( "Unsupported lineage registration file version " + version + ": " + file );
+			int firstTimepointA = in.readInt();
+			int firstTimepointB = in.readInt();
+			SpatialRegistrationMethod method = SpatialRegistrationMethod.valueOf( in.readUTF() );
+			int size = in.readInt();
+			BranchStartIndex indexA = new BranchStartIndex( graphA );
+			BranchStartIndex indexB = new BranchStartIndex( graphB );
+			RefRefMap< Spot, Spot > mapAB = new RefRefHashMap<>( graphA.vertices().getRefPool(), graphB.vertices().getRefPool() );
+			RefDoubleMap< Spot > anglesA = new RefDoubleHashMap<>( graphA.vertices().getRefPool(), Double.NaN );
+			Spot refA = graphA.vertexRef();
+			Spot refB = graphB.vertexRef();
+			int numUnresolved = 0;
+			try
+			{
+				for ( int i = 0; i < size; i++ )
+				{
+					Spot spotA = indexA.readSpot( in, version, refA );
+					Spot spotB = indexB.readSpot( in, version, refB );
+					double angle = in.readDouble();
+					if ( spotA == null || spotB == null )
+					{
+						numUnresolved++;
+						continue;
+					}
+					mapAB.put( spotA, spotB );
+					if ( !Double.isNaN( angle ) )
+						anglesA.put( spotA, angle );
+				}
+			}
+			finally
+			{
+				graphA.releaseRef( refA );
+				graphB.releaseRef( refB );
+			}
+			RefRefMap< Spot, Spot > roots = RootsPairing.pairDividingRoots( graphA, firstTimepointA, graphB, firstTimepointB );
+			SpatialRegistration spatialRegistration = SpatialRegistrationMethod.getFactory( method ).run( modelA, modelB, roots );
+			RegisteredGraphs registration = new RegisteredGraphs( modelA, modelB, spatialRegistration, mapAB, anglesA );
+			return new StoredRegistration( registration, firstTimepointA, firstTimepointB, method, numUnresolved );
+		}
+	}
+
+	/**
+	 * Finds branch starts by timepoint, position and explicit label, or by
+	 * timepoint and label for files of version 1 and 2.
+	 */
+	private static class BranchStartIndex
+	{
+		private final ModelGraph graph;
+
+		private final RefPool< Spot > pool;
+
+		private Map< String, TIntList > keyToIds;
+
+		private Map< String, TIntList > legacyKeyToIds;
+
+		private final double[] position = new double[ 3 ];
+
+		private BranchStartIndex( ModelGraph graph )
+		{
+			this.graph = graph;
+			this.pool = graph.vertices().getRefPool();
+		}
+
+		private Spot readSpot( DataInputStream in, int version, Spot ref ) throws IOException
+		{
+			int id = in.readInt();
+			int timepoint = in.readInt();
+			TIntList ids;
+			if ( version < 3 )
+			{
+				String label = version == 1 ? in.readUTF() : readString( in );
+				if ( legacyKeyToIds == null )
+					legacyKeyToIds = build( spot -> legacyKey( spot.getTimepoint(), spot.getLabel() ) );
+				ids = legacyKeyToIds.get( legacyKey( timepoint, label ) );
+			}
+			else
+			{
+				for ( int d = 0; d < 3; d++ )
+					position[ d ] = in.readDouble();
+				String label = in.readBoolean() ? readString( in ) : null;
+				if ( keyToIds == null )
+					keyToIds = build( BranchStartIndex::key );
+				ids = keyToIds.get( key( timepoint, position, label ) );
+			}
+			if ( ids == null )
+				return null;
+			if ( ids.size() == 1 )
+				return pool.getObject( ids.get( 0 ), ref );
+			return ids.contains( id ) ? pool.getObject( id, ref ) : null;
+		}
+
+		private Map< String, TIntList > build( Function< Spot, String > key )
+		{
+			Map< String, TIntList > map = new HashMap<>();
+			for ( Spot spot : BranchGraphUtils.getAllBranchStarts( graph ) )
+				map.computeIfAbsent( key.apply( spot ), k -> new TIntArrayList( 1 ) )
+						.add( spot.getInternalPoolIndex() );
+			return map;
+		}
+
+		private static String key( Spot spot )
+		{
+			double[] position = { spot.getDoublePosition( 0 ), spot.getDoublePosition( 1 ), spot.getDoublePosition( 2 ) };
+			return key( spot.getTimepoint(), position, MergingUtil.hasLabel( spot ) ? spot.getLabel() : null );
+		}
+
+		private static String key( int timepoint, double[] position, String label )
+		{
+			return timepoint + "\t" + position[ 0 ] + "\t" + position[ 1 ] + "\t" + position[ 2 ]
+					+ ( label == null ? "" : "\t" + label );
+		}
+
+		private static String legacyKey( int timepoint, String label )
+		{
+			return timepoint + "\t" + label;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package org.mastodon.mamut.tomancak.lineage_registration;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.tomancak.lineage_registration.spatial_registration.SpatialRegistrationMethod;
+
+/**
+ * Remembers the last {@link RegisteredGraphs} per pair of projects, such that
+ * the actions of the {@link LineageRegistrationFrame} don't need to rerun
+ * {@link LineageRegistrationAlgorithm#run} every time.
+ * <p>
+ * A cached result is only returned, if the first timepoints and the spatial
+ * registration method are the same, and if neither graph was modified since
+ * the result was computed, see {@link GraphModificationCounter}.
+ */
+class RegistrationCache
+{
+	private final Map< ModelGraph, Entry > entries = new HashMap<>();
+
+	/**
+	 * Returns the cached registration of {@code modelA} to {@code modelB}, or
+	 * runs the registration algorithm and caches the result.
+	 * <p>
+	 * The caller must hold at least the read locks of both graphs.
+	 */
+	RegisteredGraphs getOrRun( Model modelA, int firstTimepointA, Model modelB, int firstTimepointB, SpatialRegistrationMethod method )
+	{
+		Key key = new Key( modelA.getGraph(), firstTimepointA, modelB.getGraph(), firstTimepointB, method );
+		RegisteredGraphs registration = get( key );
+		if ( registration != null )
+			return registration;
+		registration = LineageRegistrationAlgorithm.run( modelA, firstTimepointA, modelB, firstTimepointB, method );
+		put( key, registration );
+		return registration;
+	}
+
+	/**
+	 * Adds a registration that was computed elsewhere, for example read by
+	 * {@link RegisteredGraphsIO}, for the given parameters.
+	 */
+	void put( RegisteredGraphs registration, int firstTimepointA, int firstTimepointB, SpatialRegistrationMethod method )
+	{
+		put( new Key( registration.graphA, firstTimepointA, registration.graphB, firstTimepointB, method ), registration );
+	}
+
+	/**
+	 * Removes all cached registrations that involve the given model. Must be
+	 * called when a project is closed, as the cache holds the models.
+	 */
+	synchronized void remove( Model model )
+	{
+		ModelGraph graph = model.getGraph();
+		entries.remove( graph );
+		Iterator< Entry > iterator = entries.values().iterator();
+		while ( iterator.hasNext() )
+			if ( iterator.next().key.graphB == graph )
+				iterator.remove();
+	}
+
+	private synchronized RegisteredGraphs get( Key key )
+	{
+		Entry entry = entries.get( key.graphA );
+		return entry != null && entry.key.equals( key ) ? entry.registration : null;
+	}
+
+	private synchronized void put( Key key, RegisteredGraphs registration )
+	{
+		// NB: Only one entry per graph A, the last registration is the one
+		// that is most likely requested again.
+		entries.put( key.graphA, new Entry( key, registration ) );
+	}
+
+	private static class Entry
+	{
+		private final Key key;
+
+		private final RegisteredGraphs registration;
+
+		private Entry( Key key, RegisteredGraphs registration )
+		{
+			this.key = key;
+			this.registration = registration;
+		}
+	}
+
+	private static class Key
+	{
+		private final ModelGraph graphA;
+
+		private final ModelGraph graphB;
+
+		private final long modificationCountA;
+
+		private final long modificationCountB;
+
+		private final int firstTimepointA;
+
+		private final int firstTimepointB;
+
+		private final SpatialRegistrationMethod method;
+
+		private Key( ModelGraph graphA, int firstTimepointA, ModelGraph graphB, int firstTimepointB, SpatialRegistrationMethod method )
+		{
+			this.graphA = graphA;
+			this.graphB = graphB;
+			this.modificationCountA = GraphModificationCounter.get( graphA ).getModificationCount();
+			this.modificationCountB = GraphModificationCounter.get( graphB ).getModificationCount();
+			this.firstTimepointA = firstTimepointA;
+			this.firstTimepointB = firstTimepointB;
+			this.method = method;
+		}
+
+		@Override
+		public boolean equals( Object o )
+		{
+			if ( this == o )
+				return true;
+			if ( !( o instanceof Key ) )
+				return false;
+			Key key = ( Key ) o;
+			return graphA == key.graphA && graphB == key.graphB
+					&& modificationCountA == key.modificationCountA
+					&& modificationCountB == key.modificationCountB
+					&& firstTimepointA == key.firstTimepointA
+					&& firstTimepointB == key.firstTimepointB
+					&& method == key.method;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Objects.hash( System.identityHashCode( graphA ), System.identityHashCode( graphB ),
+					modificationCountA, modificationCountB, firstTimepointA, firstTimepointB, method );
+		}
+	}
+}
@@ -37,25 +37,38 @@ public class RootsPairing
 	 */
 	static RefRefMap< Spot, Spot > pairDividingRoots( ModelGraph graphA, int timepointA, ModelGraph graphB, int timepointB )
 	{
-		RefSet< Spot > rootsA = getRoots( graphA, timepointA );
-		RefSet< Spot > rootsB = getRoots( graphB, timepointB );
-		return pairSpotsBasedOnLabel( rootsA, rootsB );
+		ObjectRefMap< String, Spot > labelToSpotsA = DividingRootsIndex.get( graphA ).getLabelToBranchStart( timepointA );
+		ObjectRefMap< String, Spot > labelToSpotsB = DividingRootsIndex.get( graphB ).getLabelToBranchStart( timepointB );
+		RefRefMap< Spot, Spot > roots =
+				new RefRefHashMap<>( graphA.vertices().getRefPool(), graphB.vertices().getRefPool() );
+		Spot refA = graphA.vertexRef();
+		Spot refB = graphB.vertexRef();
+		try
+		{
+			for ( String label : intersection( labelToSpotsA.keySet(), labelToSpotsB.keySet() ) )
+				roots.put( labelToSpotsA.get( label, refA ), labelToSpotsB.get( label, refB ) );
+		}
+		finally
+		{
+			graphA.releaseRef( refA );
+			graphB.releaseRef( refB );
+		}
+		return roots;
 	}
 
-	private static RefSet< Spot > getRoots( ModelGraph graph, int timepoint )
+	/**
+	 * Computes the map from label to branch start of the dividing roots at
+	 * the given timepoint, by scanning all spots of the graph. Use
+	 * {@link DividingRootsIndex} to get the cached result.
+	 */
+	static ObjectRefMap< String, Spot > createLabelToDividingRootMap( ModelGraph graph, int timepoint )
 	{
-		return getBranchStarts( filterDividingSpots( LineageTreeUtils.getRoots( graph, timepoint ) ) );
+		return createLabelToSpotMap( getRoots( graph, timepoint ) );
 	}
 
-	private static RefRefMap< Spot, Spot > pairSpotsBasedOnLabel( RefSet< Spot > spotsA, RefSet< Spot > spotsB )
+	private static RefSet< Spot > getRoots( ModelGraph graph, int timepoint )
 	{
-		ObjectRefMap< String, Spot > labelToSpotsA = createLabelToSpotMap( spotsA );
-		ObjectRefMap< String, Spot > labelToSpotsB = createLabelToSpotMap( spotsB );
-		RefRefMap< Spot, Spot > roots =
-				new RefRefHashMap<>( RefCollectionUtils.getRefPool( spotsA ), RefCollectionUtils.getRefPool( spotsB ) );
-		for ( String label : intersection( labelToSpotsA.keySet(), labelToSpotsB.keySet() ) )
-			roots.put( labelToSpotsA.get( label ), labelToSpotsB.get( label ) );
-		return roots;
+		return getBranchStarts( graph, filterDividingSpots( LineageTreeUtils.getRoots( graph, timepoint ) ) );
 	}
 
 	private static RefSet< Spot > filterDividingSpots( RefSet< Spot > spots )
@@ -71,12 +84,13 @@ public class RootsPairing
 		}
 	}
 
-	private static RefSet< Spot > getBranchStarts( RefSet< Spot > spots )
+	private static RefSet< Spot > getBranchStarts( ModelGraph graph, RefSet< Spot > spots )
 	{
+		BranchIndex branchIndex = BranchIndex.get( graph );
 		Spot ref = spots.createRef();
 		try
 		{
-			return RefCollectionUtils.applySet( spots, spot -> BranchGraphUtils.getBranchStart( spot, ref ) );
+			return RefCollectionUtils.applySet( spots, spot -> branchIndex.getBranchStart( spot, ref ) );
 		}
 		finally
 		{
@@ -104,8 +118,8 @@ public class RootsPairing
 
 	public static String report( ModelGraph graphA, int firstTimepointA, ModelGraph graphB, int firstTimepointB )
 	{
-		Set< String > rootsA = createLabelToSpotMap( getRoots( graphA, firstTimepointA ) ).keySet();
-		Set< String > rootsB = createLabelToSpotMap( getRoots( graphB, firstTimepointB ) ).keySet();
+		Set< String > rootsA = DividingRootsIndex.get( graphA ).getLabelToBranchStart( firstTimepointA ).keySet();
+		Set< String > rootsB = DividingRootsIndex.get( graphB ).getLabelToBranchStart( firstTimepointB ).keySet();
 		return "Roots found in the first dataset:\n"
 				+ "   " + rootsA + "\n"
 				+ "Roots found in the second dataset:\n"
@@ -0,0 +1,225 @@
+package org.mastodon.mamut.tomancak.lineage_registration;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.util.TimepointExtentIndex;
+
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Estimates which timepoints of two embryos correspond to each other, i.e.
+ * are at the same developmental stage.
+ * <p>
+ * The alignment is a monotonic mapping from the timepoints of embryo A to
+ * the timepoints of embryo B, computed by dynamic time warping (DTW) of the
+ * logarithm of the number of spots per timepoint. Start and end of embryo B
+ * are open (subsequence DTW), so the recordings may start and stop at
+ * different developmental stages. Cells that divide in both embryos and have
+ * the same label are used as additional soft anchors: aligning the division
+ * of such a cell in A with a timepoint far from its division in B is
+ * penalized.
+ */
+public class TemporalAlignment
+{
+	/**
+	 * Cost per timepoint of distance between an aligned timepoint and the
+	 * division time of a paired cell, relative to the cost of spot counts
+	 * that differ by a factor of e.
+	 */
+	private static final double DIVISION_WEIGHT = 0.1;
+
+	private static final byte START = 3;
+
+	private TemporalAlignment()
+	{
+		// prevent instantiation
+	}
+
+	/**
+	 * @return an array, that contains for each timepoint of graph A the
+	 * aligned timepoint of graph B. The array is monotonically
+	 * non-decreasing. Empty timepoints of A before its first spot are
+	 * aligned like the first non-empty timepoint.
+	 */
+	public static int[] align( ModelGraph graphA, ModelGraph graphB )
+	{
+		TimepointExtentIndex indexA = TimepointExtentIndex.get( graphA );
+		int offsetA = Math.max( 0, indexA.getMinNonEmptyTimepoint() );
+		int[] allCountsA = indexA.getSpotCounts();
+		int[] countsA = Arrays.copyOfRange( allCountsA, Math.min( offsetA, allCountsA.length ), allCountsA.length );
+		int[] countsB = TimepointExtentIndex.get( graphB ).getSpotCounts();
+		Map< String, Integer > divisionsA = getDivisionTimepoints( graphA );
+		Map< String, Integer > divisionsB = getDivisionTimepoints( graphB );
+		TIntArrayList pairedA = new TIntArrayList();
+		TIntArrayList pairedB = new TIntArrayList();
+		for ( Map.Entry< String, Integer > entry : divisionsA.entrySet() )
+		{
+			Integer timepointB = divisionsB.get( entry.getKey() );
+			if ( timepointB != null )
+			{
+				pairedA.add( entry.getValue() - offsetA );
+				pairedB.add( timepointB );
+			}
+		}
+		int[] trimmed = align( countsA, countsB, pairedA.toArray(), pairedB.toArray() );
+		int[] aligned = new int[ allCountsA.length ];
+		for ( int i = 0; i < aligned.length; i++ )
+			aligned[ i ] = trimmed.length == 0 ? 0 : trimmed[ Math.max( 0, i - offsetA ) ];
+		return aligned;
+	}
+
+	/**
+	 * Computes the alignment from the number of spots per timepoint, and the
+	 * division timepoints of paired cells.
+	 *
+	 * @param countsA number of spots per timepoint of embryo A.
+	 * @param countsB number of spots per timepoint of embryo B.
+	 * @param divisionsA division timepoints of paired cells in embryo A.
+	 * @param divisionsB division timepoints of the same cells in embryo B.
+	 * @return for each timepoint of A the aligned timepoint of B.
+	 */
+	static int[] align( int[] countsA, int[] countsB, int[] divisionsA, int[] divisionsB )
+	{
+		int nA = countsA.length;
+		int nB = countsB.length;
+		if ( nA == 0 )
+			return new int[ 0 ];
+		if ( nB == 0 )
+			return new int[ nA ];
+
+		double[] logA = logCounts( countsA );
+		double[] logB = logCounts( countsB );
+
+		// division anchors, grouped by timepoint of A
+		TIntArrayList[] anchors = new TIntArrayList[ nA ];
+		for ( int k = 0; k < divisionsA.length; k++ )
+		{
+			int timepointA = divisionsA[ k ];
+			if ( timepointA < 0 || timepointA >= nA )
+				continue;
+			if ( anchors[ timepointA ] == null )
+				anchors[ timepointA ] = new TIntArrayList();
+			anchors[ timepointA ].add( divisionsB[ k ] );
+		}
+
+		// DTW, row by row, remembering the step taken into each cell:
+		// 0 = diagonal, 1 = from previous timepoint of A, 2 = from previous timepoint of B,
+		// START = the path starts here. The start is open: the first timepoint
+		// of A may be aligned with any timepoint of B.
+		byte[] steps = new byte[ nA * nB ];
+		double[] previous = new double[ nB ];
+		double[] current = new double[ nB ];
+		for ( int i = 0; i < nA; i++ )
+		{
+			for ( int j = 0; j < nB; j++ )
+			{
+				double cost = Math.abs( logA[ i ] - logB[ j ] );
+				if ( anchors[ i ] != null )
+					for ( int k = 0; k < anchors[ i ].size(); k++ )
+						cost += DIVISION_WEIGHT * Math.abs( j - anchors[ i ].get( k ) );
+				double best;
+				byte step;
+				if ( i == 0 )
+				{
+					best = 0;
+					step = START;
+				}
+				else
+				{
+					double diagonal = j > 0 ? previous[ j - 1 ] : Double.POSITIVE_INFINITY;
+					double up = previous[ j ];
+					double left = j > 0 ? current[ j - 1 ] : Double.POSITIVE_INFINITY;
+					best = diagonal;
+					step = 0;
+					if ( up < best )
+					{
+						best = up;
+						step = 1;
+					}
+					if ( left < best )
+					{
+						best = left;
+						step = 2;
+					}
+				}
+				current[ j ] = best + cost;
+				steps[ i * nB + j ] = step;
+			}
+			double[] tmp = previous;
+			previous = current;
+			current = tmp;
+		}
+
+		// open end: the last timepoint of A may be aligned with any timepoint
+		// of B, on ties prefer the later one
+		int j = 0;
+		for ( int k = 1; k < nB; k++ )
+			if ( previous[ k ] <= previous[ j ] )
+				j = k;
+
+		// backtrack, for each timepoint of A take the first aligned timepoint of B
+		int[] aligned = new int[ nA ];
+		int i = nA - 1;
+		while ( true )
+		{
+			aligned[ i ] = j;
+			byte step = steps[ i * nB + j ];
+			if ( step == START )
+				break;
+			if ( step == 0 )
+			{
+				i--;
+				j--;
+			}
+			else if ( step == 1 )
+				i--;
+			else
+				j--;
+		}
+		return aligned;
+	}
+
+	private static double[] logCounts( int[] counts )
+	{
+		double[] log = new double[ counts.length ];
+		for ( int i = 0; i < counts.length; i++ )
+			log[ i ] = Math.log1p( counts[ i ] );
+		return log;
+	}
+
+	/**
+	 * @return a map from label to division timepoint, for all labeled
+	 * branches that divide. Labels that are used for more than one dividing
+	 * branch are ignored.
+	 */
+	private static Map< String, Integer > getDivisionTimepoints( ModelGraph graph )
+	{
+		Map< String, Integer > divisions = new HashMap<>();
+		Set< String > duplicates = new HashSet<>();
+		Spot ref = graph.vertexRef();
+		try
+		{
+			for ( Spot start : BranchGraphUtils.getAllBranchStarts( graph ) )
+			{
+				String label = start.getLabel();
+				Spot end = BranchGraphUtils.getBranchEnd( start, ref );
+				if ( end.outgoingEdges().size() < 2 || label.equals( Integer.toString( start.getInternalPoolIndex() ) ) )
+					continue;
+				if ( divisions.put( label, end.getTimepoint() ) != null )
+					duplicates.add( label );
+			}
+		}
+		finally
+		{
+			graph.releaseRef( ref );
+		}
+		divisions.keySet().removeAll( duplicates );
+		return divisions;
+	}
+}
@@ -1,11 +1,13 @@
 package org.mastodon.mamut.tomancak.lineage_registration.coupling;
 
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiFunction;
 import java.util.function.Consumer;
 
-import org.mastodon.collection.RefRefMap;
 import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
-import org.mastodon.mamut.tomancak.lineage_registration.BranchGraphUtils;
+import org.mastodon.mamut.tomancak.lineage_registration.BranchIndex;
+import org.mastodon.mamut.tomancak.lineage_registration.IncrementalRegistration;
 import org.mastodon.mamut.tomancak.lineage_registration.RegisteredGraphs;
 
 /**
@@ -19,6 +21,15 @@ import org.mastodon.mamut.tomancak.lineage_registration.RegisteredGraphs;
  * {@link RegisteredGraphs#mapAB}. Finally, the branch start in the target graph is
  * set to the target {@link SpotHook}.
  * </p>
+ * <p>
+ * Instead of a fixed map, a mapping function can be given, that for example
+ * keeps the map up to date, see {@link IncrementalRegistration}.
+ * </p>
+ * <p>
+ * The branch start is looked up with a {@link BranchIndex}, while holding
+ * the read lock of the source graph. Focus and navigation events arrive on
+ * the event dispatch thread, where no lock is held otherwise.
+ * </p>
  */
 class BranchMapCoupling implements Consumer< Spot >
 {
@@ -28,19 +39,35 @@ class BranchMapCoupling implements Consumer< Spot >
 
 	private final SpotHook targetHook;
 
-	/** Maps branch starts in source graph to branch starts in target graph. */
-	private final RefRefMap< Spot, Spot > map;
+	private final BranchIndex sourceBranchIndex;
+
+	/**
+	 * Maps branch starts in source graph to branch starts in target graph.
+	 * The second argument is a ref in the target graph.
+	 */
+	private final BiFunction< Spot, Spot, Spot > map;
 
 	public BranchMapCoupling(
 			SpotHook sourceHook,
 			SpotHook targetHook,
 			RegisteredGraphs registeredGraphs )
 	{
-		this.sourceGraph = registeredGraphs.graphA;
-		this.targetGraph = registeredGraphs.graphB;
+		this( sourceHook, targetHook, registeredGraphs.graphA, registeredGraphs.graphB, registeredGraphs.mapAB::get );
+	}
+
+	public BranchMapCoupling(
+			SpotHook sourceHook,
+			SpotHook targetHook,
+			ModelGraph sourceGraph,
+			ModelGraph targetGraph,
+			BiFunction< Spot, Spot, Spot > map )
+	{
+		this.sourceGraph = sourceGraph;
+		this.targetGraph = targetGraph;
+		this.sourceBranchIndex = BranchIndex.get( sourceGraph );
 		sourceHook.setListener( this );
 		this.targetHook = targetHook;
-		this.map = registeredGraphs.mapAB;
+		this.map = map;
 	}
 
 	@Override
@@ -50,8 +77,18 @@ class BranchMapCoupling implements Consumer< Spot >
 		Spot refB = targetGraph.vertexRef();
 		try
 		{
-			Spot branchStartA = spotA == null ? null : BranchGraphUtils.getBranchStart( spotA, refA );
-			Spot spotB = branchStartA == null ? null : map.get( branchStartA, refB );
+			Spot spotB;
+			Lock lock = sourceGraph.getLock().readLock();
+			lock.lock();
+			try
+			{
+				Spot branchStartA = spotA == null ? null : sourceBranchIndex.getBranchStart( spotA, refA );
+				spotB = branchStartA == null ? null : map.apply( branchStartA, refB );
+			}
+			finally
+			{
+				lock.unlock();
+			}
 			targetHook.set( spotB );
 		}
 		finally
@@ -0,0 +1,73 @@
+package org.mastodon.mamut.tomancak.lineage_registration.coupling;
+
+import java.util.function.BiFunction;
+
+import org.mastodon.collection.RefCollection;
+import org.mastodon.collection.RefSet;
+import org.mastodon.collection.ref.RefSetImp;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+/**
+ * <p>
+ * Couples the selection of a source {@link SelectionModelHook} to a target
+ * {@link SelectionModelHook}.
+ * </p>
+ * <p>
+ * The branches that were added to or removed from the source selection are
+ * mapped to the target graph, and the mapped branches are selected or
+ * deselected in the target. Only the changed branches are mapped and
+ * updated in the target, but finding them still rescans the whole source
+ * selection. Branches without a mapping are ignored.
+ * </p>
+ */
+class BranchSelectionCoupling implements SelectionModelHook.Listener
+{
+	private final ModelGraph targetGraph;
+
+	private final SelectionModelHook targetHook;
+
+	/**
+	 * Maps branch starts in source graph to branch starts in target graph.
+	 * The second argument is a ref in the target graph.
+	 */
+	private final BiFunction< Spot, Spot, Spot > map;
+
+	public BranchSelectionCoupling(
+			SelectionModelHook sourceHook,
+			SelectionModelHook targetHook,
+			ModelGraph targetGraph,
+			BiFunction< Spot, Spot, Spot > map )
+	{
+		this.targetGraph = targetGraph;
+		this.targetHook = targetHook;
+		this.map = map;
+		sourceHook.setListener( this );
+	}
+
+	@Override
+	public void branchesChanged( RefCollection< Spot > addedBranchStarts, RefCollection< Spot > removedBranchStarts )
+	{
+		targetHook.setBranchesSelected( mapAll( addedBranchStarts ), mapAll( removedBranchStarts ) );
+	}
+
+	private RefSet< Spot > mapAll( RefCollection< Spot > branchStarts )
+	{
+		RefSet< Spot > mapped = new RefSetImp<>( targetGraph.vertices().getRefPool() );
+		Spot ref = targetGraph.vertexRef();
+		try
+		{
+			for ( Spot branchStart : branchStarts )
+			{
+				Spot target = map.apply( branchStart, ref );
+				if ( target != null )
+					mapped.add( target );
+			}
+		}
+		finally
+		{
+			targetGraph.releaseRef( ref );
+		}
+		return mapped;
+	}
+}
@@ -0,0 +1,205 @@
+package org.mastodon.mamut.tomancak.lineage_registration.coupling;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+
+import javax.swing.SwingUtilities;
+
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+/**
+ * <p>
+ * A {@link SpotHook} wrapper that moves the work of a coupling off the
+ * event dispatch thread, and drops intermediate events.
+ * </p>
+ * <p>
+ * Events of the wrapped hook only record the latest spot. At most once per
+ * frame ({@link #FRAME_MILLIS}) the latest spot is passed to the listener on
+ * a background thread, while holding the read lock of the graph. Calls to
+ * {@link #set(Spot)} are forwarded to the wrapped hook on the event dispatch
+ * thread.
+ * </p>
+ * <p>
+ * Events only keep the pool index of the spot. Together with the index, the
+ * number of spots removed from the graph so far is recorded. If a spot was
+ * removed before the event is delivered, the pool index might refer to a
+ * freed or reused slot, and the event is dropped.
+ * </p>
+ * <p>
+ * This is meant for the highlight coupling, where moving the mouse over a
+ * TrackScheme produces many events and only the last one matters. Focus and
+ * navigation should stay synchronous.
+ * </p>
+ */
+class CoalescingHook implements SpotHook
+{
+	static final long FRAME_MILLIS = 16;
+
+	/** Value of {@link #pending} if there is no pending event. */
+	private static final long NONE = Long.MIN_VALUE;
+
+	/** Value of {@link #pending} for an event with a {@code null} spot. */
+	private static final int NULL_SPOT = -1;
+
+	/** One background thread shared by all coupled projects, to keep the events in order. */
+	private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor( runnable -> {
+		Thread thread = new Thread( runnable, "lineage registration coupling" );
+		thread.setDaemon( true );
+		return thread;
+	} );
+
+	private final SpotHook parent;
+
+	private final ModelGraph graph;
+
+	/** Pending event, the removal count in the upper and the spot id in the lower 32 bits. */
+	private final AtomicLong pending = new AtomicLong( NONE );
+
+	/** Number of spots removed from {@link #graph}, only changed while holding the write lock. */
+	private final AtomicInteger removals = new AtomicInteger();
+
+	private final GraphListener< Spot, Link > graphListener = new GraphListener< Spot, Link >()
+	{
+		@Override
+		public void graphRebuilt()
+		{
+			removals.incrementAndGet();
+		}
+
+		@Override
+		public void vertexAdded( Spot vertex )
+		{
+			// ignore
+		}
+
+		@Override
+		public void vertexRemoved( Spot vertex )
+		{
+			removals.incrementAndGet();
+		}
+
+		@Override
+		public void edgeAdded( Link edge )
+		{
+			// ignore
+		}
+
+		@Override
+		public void edgeRemoved( Link edge )
+		{
+			// ignore
+		}
+	};
+
+	private final AtomicBoolean scheduled = new AtomicBoolean( false );
+
+	private volatile boolean closed = false;
+
+	private Consumer< Spot > listener;
+
+	public CoalescingHook( SpotHook parent, ModelGraph graph )
+	{
+		this.parent = parent;
+		this.graph = graph;
+		graph.addGraphListener( graphListener );
+		parent.setListener( this::onEvent );
+	}
+
+	private void onEvent( Spot spot )
+	{
+		pending.set( stamp( spot ) );
+		if ( scheduled.compareAndSet( false, true ) )
+			executor.schedule( this::dispatch, FRAME_MILLIS, TimeUnit.MILLISECONDS );
+	}
+
+	private void dispatch()
+	{
+		// NB: Reset the flag before taking the pending event, such that no event is lost.
+		scheduled.set( false );
+		long stamp = pending.getAndSet( NONE );
+		if ( stamp == NONE || closed || listener == null )
+			return;
+		Lock lock = graph.getLock().readLock();
+		lock.lock();
+		Spot ref = graph.vertexRef();
+		try
+		{
+			if ( !closed && isValid( stamp ) )
+				listener.accept( getSpot( stamp, ref ) );
+		}
+		finally
+		{
+			graph.releaseRef( ref );
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void set( Spot spot )
+	{
+		long stamp = stamp( spot );
+		SwingUtilities.invokeLater( () -> {
+			if ( closed )
+				return;
+			Lock lock = graph.getLock().readLock();
+			lock.lock();
+			Spot ref = graph.vertexRef();
+			try
+			{
+				if ( isValid( stamp ) )
+					parent.set( getSpot( stamp, ref ) );
+			}
+			finally
+			{
+				graph.releaseRef( ref );
+				lock.unlock();
+			}
+		} );
+	}
+
+	private long stamp( Spot spot )
+	{
+		int id = spot == null ? NULL_SPOT : spot.getInternalPoolIndex();
+		return ( ( long ) removals.get() << 32 ) | ( id & 0xffffffffL );
+	}
+
+	/**
+	 * Returns {@code false} if a spot was removed since the stamp was taken,
+	 * such that the recorded spot id might be stale. Must be called while
+	 * holding the read lock.
+	 */
+	private boolean isValid( long stamp )
+	{
+		int id = ( int ) stamp;
+		return id == NULL_SPOT || ( int ) ( stamp >>> 32 ) == removals.get();
+	}
+
+	private Spot getSpot( long stamp, Spot ref )
+	{
+		int id = ( int ) stamp;
+		return id == NULL_SPOT ? null : graph.getGraphIdBimap().getVertex( id, ref );
+	}
+
+	@Override
+	public void setListener( Consumer< Spot > listener )
+	{
+		this.listener = listener;
+	}
+
+	@Override
+	public void close()
+	{
+		closed = true;
+		graph.removeGraphListener( graphListener );
+		parent.close();
+	}
+}
@@ -1,19 +1,34 @@
 package org.mastodon.mamut.tomancak.lineage_registration.coupling;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiFunction;
+
 import org.mastodon.mamut.MamutAppModel;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.lineage_registration.IncrementalRegistration;
 import org.mastodon.mamut.tomancak.lineage_registration.RegisteredGraphs;
 import org.mastodon.model.FocusModel;
 import org.mastodon.model.HighlightModel;
 import org.mastodon.model.NavigationHandler;
+import org.mastodon.model.SelectionModel;
 
 /**
  * <p>
  * This class couples two {@link MamutAppModel}s together by connecting their
- * {@link FocusModel}, {@link HighlightModel} and {@link NavigationHandler}.
+ * {@link FocusModel}, {@link HighlightModel}, {@link NavigationHandler} and
+ * {@link SelectionModel}.
  * </p>
  * <p>
  * The {@link RegisteredGraphs} instance is used to map between the spots
- * of the two models.
+ * of the two models. If an {@link IncrementalRegistration} is given instead,
+ * the mapping stays correct while the models are edited.
+ * </p>
+ * <p>
+ * Highlight events are coalesced, see {@link CoalescingHook}. Focus and
+ * navigation events are mapped synchronously. Selections are coupled on the
+ * level of branches, see {@link SelectionModelHook}.
  * </p>
  * <p>
  * It also provides a {@link #close()} method that allows to remove the
@@ -27,27 +42,52 @@ public class ModelCoupling implements AutoCloseable
 
 	private final ModelHooks hooksB;
 
+	private final List< SpotHook > coalescingHooks = new ArrayList<>();
+
 	public ModelCoupling( final MamutAppModel modelA, final MamutAppModel modelB, final RegisteredGraphs registeredGraphs, int groupId )
+	{
+		this( modelA, modelB, registeredGraphs, registeredGraphs.mapAB::get, registeredGraphs.mapBA::get, groupId );
+	}
+
+	public ModelCoupling( final MamutAppModel modelA, final MamutAppModel modelB, final IncrementalRegistration registration, int groupId )
+	{
+		this( modelA, modelB, registration.getRegisteredGraphs(), registration::getBranchStartB, registration::getBranchStartA, groupId );
+	}
+
+	private ModelCoupling( final MamutAppModel modelA, final MamutAppModel modelB, final RegisteredGraphs registeredGraphs,
+			final BiFunction< Spot, Spot, Spot > mapAB, final BiFunction< Spot, Spot, Spot > mapBA, int groupId )
 	{
 		this.hooksA = new ModelHooks( modelA, groupId );
 		this.hooksB = new ModelHooks( modelB, groupId );
-		coupleHooks( registeredGraphs, hooksA.highlightModelHook(), hooksB.highlightModelHook() );
-		coupleHooks( registeredGraphs, hooksA.focusModelHook(), hooksB.focusModelHook() );
-		coupleHooks( registeredGraphs, hooksA.navigationHandlerHook(), hooksB.navigationHandlerHook() );
+		ModelGraph graphA = registeredGraphs.graphA;
+		ModelGraph graphB = registeredGraphs.graphB;
+		// NB: Highlight events are frequent while moving the mouse, they are coalesced and mapped off the EDT.
+		SpotHook highlightA = new CoalescingHook( new GuardingHook( hooksA.highlightModelHook() ), graphA );
+		SpotHook highlightB = new CoalescingHook( new GuardingHook( hooksB.highlightModelHook() ), graphB );
+		coalescingHooks.add( highlightA );
+		coalescingHooks.add( highlightB );
+		coupleHooks( graphA, graphB, mapAB, mapBA, highlightA, highlightB );
+		coupleHooks( graphA, graphB, mapAB, mapBA,
+				new GuardingHook( hooksA.focusModelHook() ), new GuardingHook( hooksB.focusModelHook() ) );
+		coupleHooks( graphA, graphB, mapAB, mapBA,
+				new GuardingHook( hooksA.navigationHandlerHook() ), new GuardingHook( hooksB.navigationHandlerHook() ) );
+		new BranchSelectionCoupling( hooksA.selectionModelHook(), hooksB.selectionModelHook(), graphB, mapAB );
+		new BranchSelectionCoupling( hooksB.selectionModelHook(), hooksA.selectionModelHook(), graphA, mapBA );
 	}
 
 	@Override
 	public void close()
 	{
+		coalescingHooks.forEach( SpotHook::close );
 		hooksA.close();
 		hooksB.close();
 	}
 
-	private static void coupleHooks( RegisteredGraphs registeredGraphs, SpotHook a, SpotHook b )
+	private static void coupleHooks( ModelGraph graphA, ModelGraph graphB,
+			BiFunction< Spot, Spot, Spot > mapAB, BiFunction< Spot, Spot, Spot > mapBA,
+			SpotHook ga, SpotHook gb )
 	{
-		SpotHook ga = new GuardingHook( a );
-		SpotHook gb = new GuardingHook( b );
-		new BranchMapCoupling( ga, gb, registeredGraphs );
-		new BranchMapCoupling( gb, ga, registeredGraphs.swapAB() );
+		new BranchMapCoupling( ga, gb, graphA, graphB, mapAB );
+		new BranchMapCoupling( gb, ga, graphB, graphA, mapBA );
 	}
 }
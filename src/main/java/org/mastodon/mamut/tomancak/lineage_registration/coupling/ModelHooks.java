@@ -6,6 +6,7 @@ import org.mastodon.mamut.MamutAppModel;
 /**
  * This class provides {@link SpotHook}s to access the focused spot,
  * highlighted spot and to navigate to a spot in a {@link MamutAppModel}.
+ * And a {@link SelectionModelHook} to access the selection.
  * It also provides a {@link #close()} method as an easy way to  detach
  * the hooks from the {@link MamutAppModel}.
  */
@@ -18,6 +19,8 @@ class ModelHooks implements AutoCloseable
 
 	private final NavigationHandlerHook navigationHandlerHook;
 
+	private final SelectionModelHook selectionModelHook;
+
 	public ModelHooks( MamutAppModel model, int groupId )
 	{
 		this.focusModelHook = new FocusModelHook( model );
@@ -25,6 +28,7 @@ class ModelHooks implements AutoCloseable
 		GroupHandle groupHandle = model.getGroupManager().createGroupHandle();
 		groupHandle.setGroupId( groupId );
 		this.navigationHandlerHook = new NavigationHandlerHook( groupHandle.getModel( model.NAVIGATION ) );
+		this.selectionModelHook = new SelectionModelHook( model );
 	}
 
 	public SpotHook focusModelHook()
@@ -42,11 +46,17 @@ class ModelHooks implements AutoCloseable
 		return navigationHandlerHook;
 	}
 
+	public SelectionModelHook selectionModelHook()
+	{
+		return selectionModelHook;
+	}
+
 	@Override
 	public void close()
 	{
 		focusModelHook.close();
 		highlightModelHook.close();
 		navigationHandlerHook.close();
+		selectionModelHook.close();
 	}
 }
@@ -0,0 +1,193 @@
+package org.mastodon.mamut.tomancak.lineage_registration.coupling;
+
+import net.imglib2.util.Pair;
+
+import org.mastodon.collection.RefCollection;
+import org.mastodon.collection.RefList;
+import org.mastodon.collection.RefSet;
+import org.mastodon.collection.ref.RefSetImp;
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.MamutAppModel;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.lineage_registration.BranchGraphUtils;
+import org.mastodon.model.SelectionListener;
+import org.mastodon.model.SelectionModel;
+
+/**
+ * <p>
+ * Wraps around a {@link SelectionModel} and reports selection changes on
+ * the level of branches: A branch is selected if any of its spots, or the
+ * link into one of its spots, is selected.
+ * </p>
+ * <p>
+ * The hook remembers the branch starts of the selected branches. When the
+ * selection changes, the {@link Listener} gets the branches that were added
+ * or removed, not the whole selection.
+ * {@link #setBranchesSelected} selects or deselects whole branches, with the
+ * listeners of the {@link SelectionModel} paused, such that views only see
+ * one event per update. Changes made by {@link #setBranchesSelected} are not
+ * reported to the {@link Listener}, this breaks loops of a bidirectional
+ * coupling.
+ * </p>
+ * <p>
+ * The selection model may call {@link #selectionChanged()} from within its
+ * graph listener, while a spot or link is being removed. Branch starts are
+ * therefore found by walking the graph, see
+ * {@link BranchGraphUtils#getBranchStart}, and not with a
+ * {@code BranchIndex}, which might not yet know about the removal. Removed
+ * spots are dropped from the remembered branch starts.
+ * </p>
+ */
+class SelectionModelHook implements SelectionListener, AutoCloseable
+{
+	interface Listener
+	{
+		void branchesChanged( RefCollection< Spot > addedBranchStarts, RefCollection< Spot > removedBranchStarts );
+	}
+
+	private final ModelGraph graph;
+
+	private final SelectionModel< Spot, Link > selectionModel;
+
+	private RefSet< Spot > selectedBranchStarts;
+
+	private Listener listener;
+
+	private boolean guard = false;
+
+	private final GraphListener< Spot, Link > graphListener = new GraphListener< Spot, Link >()
+	{
+		@Override
+		public void graphRebuilt()
+		{
+			selectedBranchStarts.clear();
+		}
+
+		@Override
+		public void vertexAdded( Spot vertex )
+		{
+			// ignore
+		}
+
+		@Override
+		public void vertexRemoved( Spot vertex )
+		{
+			selectedBranchStarts.remove( vertex );
+		}
+
+		@Override
+		public void edgeAdded( Link edge )
+		{
+			// ignore
+		}
+
+		@Override
+		public void edgeRemoved( Link edge )
+		{
+			// ignore
+		}
+	};
+
+	public SelectionModelHook( MamutAppModel model )
+	{
+		this( model.getModel().getGraph(), model.getSelectionModel() );
+	}
+
+	SelectionModelHook( ModelGraph graph, SelectionModel< Spot, Link > selectionModel )
+	{
+		this.graph = graph;
+		this.selectionModel = selectionModel;
+		this.selectedBranchStarts = getSelectedBranchStarts();
+		graph.addGraphListener( graphListener );
+		selectionModel.listeners().add( this );
+	}
+
+	public void setListener( Listener listener )
+	{
+		this.listener = listener;
+	}
+
+	@Override
+	public void close()
+	{
+		selectionModel.listeners().remove( this );
+		graph.removeGraphListener( graphListener );
+	}
+
+	@Override
+	public void selectionChanged()
+	{
+		if ( guard )
+			return;
+		RefSet< Spot > current = getSelectedBranchStarts();
+		RefSet< Spot > added = difference( current, selectedBranchStarts );
+		RefSet< Spot > removed = difference( selectedBranchStarts, current );
+		selectedBranchStarts = current;
+		if ( listener != null && !( added.isEmpty() && removed.isEmpty() ) )
+			listener.branchesChanged( added, removed );
+	}
+
+	/**
+	 * Selects all spots and links of the {@code added} branches, and
+	 * deselects all spots and links of the {@code removed} branches.
+	 */
+	public void setBranchesSelected( RefCollection< Spot > added, RefCollection< Spot > removed )
+	{
+		if ( added.isEmpty() && removed.isEmpty() )
+			return;
+		guard = true;
+		selectionModel.pauseListeners();
+		try
+		{
+			for ( Spot branchStart : removed )
+				setBranchSelected( branchStart, false );
+			for ( Spot branchStart : added )
+				setBranchSelected( branchStart, true );
+		}
+		finally
+		{
+			selectionModel.resumeListeners();
+			guard = false;
+		}
+	}
+
+	private void setBranchSelected( Spot branchStart, boolean selected )
+	{
+		Pair< RefList< Spot >, RefList< Link > > branch = BranchGraphUtils.getBranchSpotsAndLinks( graph, branchStart );
+		selectionModel.setVerticesSelected( branch.getA(), selected );
+		selectionModel.setEdgesSelected( branch.getB(), selected );
+		if ( selected )
+			selectedBranchStarts.add( branchStart );
+		else
+			selectedBranchStarts.remove( branchStart );
+	}
+
+	private RefSet< Spot > getSelectedBranchStarts()
+	{
+		RefSet< Spot > branchStarts = new RefSetImp<>( graph.vertices().getRefPool() );
+		Spot ref = graph.vertexRef();
+		try
+		{
+			for ( Spot spot : selectionModel.getSelectedVertices() )
+				branchStarts.add( BranchGraphUtils.getBranchStart( spot, ref ) );
+			for ( Link link : selectionModel.getSelectedEdges() )
+				branchStarts.add( BranchGraphUtils.getBranchStart( link.getTarget( ref ), ref ) );
+		}
+		finally
+		{
+			graph.releaseRef( ref );
+		}
+		return branchStarts;
+	}
+
+	private RefSet< Spot > difference( RefSet< Spot > a, RefSet< Spot > b )
+	{
+		RefSet< Spot > difference = new RefSetImp<>( graph.vertices().getRefPool() );
+		for ( Spot spot : a )
+			if ( !b.contains( spot ) )
+				difference.add( spot );
+		return difference;
+	}
+}
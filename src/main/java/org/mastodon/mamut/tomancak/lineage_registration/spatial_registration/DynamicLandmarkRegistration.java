@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -25,9 +26,6 @@ import org.mastodon.mamut.tomancak.sort_tree.SortTreeUtils;
 import org.mastodon.model.tag.TagSetStructure;
 import org.mastodon.util.TagSetUtils;
 
-import mpicbg.models.Point;
-import mpicbg.models.PointMatch;
-
 public class DynamicLandmarkRegistration implements SpatialRegistration
 {
 
@@ -41,17 +39,33 @@ public class DynamicLandmarkRegistration implements SpatialRegistration
 	 */
 	private static final int HALF_WINDOW_SIZE = 2;
 
+	/**
+	 * Default maximum number of transformations that are kept in the
+	 * {@link #transforms cache}.
+	 */
+	private static final int DEFAULT_CACHE_SIZE = 4096;
+
 	/**
 	 * Landmark positions that are used to compute the registration.
 	 * <p>
-	 * A list of type {@code List< double[] >} is thereby used to
-	 * hold a landmarks position as it changes over time. The i-th
-	 * element of the list is the position of the landmark at timepoint i.
+	 * A flat {@code double[]} array is thereby used to hold a landmarks
+	 * position as it changes over time. Elements {@code 3 * i} to
+	 * {@code 3 * i + 2} are the position of the landmark at timepoint i.
 	 * <p>
 	 * The "left" value in each pair belongs to landmark in {@code modelA}.
 	 * The "right" value belongs to the respective landmark in {@code modelB}.
 	 */
-	private final List< Pair< List< double[] >, List< double[] > > > landmarks;
+	private final List< Pair< double[], double[] > > landmarks;
+
+	/**
+	 * Cache of the transformations returned by {@link #getTransformationAtoB},
+	 * indexed by the timepoint pair ({@code timepointA << 32 | timepointB}),
+	 * least recently used entries are evicted first.
+	 */
+	private final LinkedHashMap< Long, AffineTransform3D > transforms;
+
+	/** The maximum number of entries in {@link #transforms}. */
+	private int cacheSize = DEFAULT_CACHE_SIZE;
 
 	/** The number of timepoints in {@code modelA}. */
 	private final int numTimepointsA;
@@ -132,15 +146,39 @@ public class DynamicLandmarkRegistration implements SpatialRegistration
 		numTimepointsA = SortTreeUtils.getNumberOfTimePoints( graphA );
 		numTimepointsB = SortTreeUtils.getNumberOfTimePoints( graphB );
 		landmarks = new ArrayList<>();
+		transforms = new LinkedHashMap< Long, AffineTransform3D >( 16, 0.75f, true )
+		{
+			@Override
+			protected boolean removeEldestEntry( Map.Entry< Long, AffineTransform3D > eldest )
+			{
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/** @return the number of timepoints in {@code modelA}. */
+	public int getNumberOfTimepointsA()
+	{
+		return numTimepointsA;
+	}
+
+	/** @return the number of timepoints in {@code modelB}. */
+	public int getNumberOfTimepointsB()
+	{
+		return numTimepointsB;
 	}
 
 	private void addLandmark( Collection< Spot > descendantsA, Collection< Spot > descendantsB )
 	{
 		List< double[] > landmarkA = SortTreeUtils.calculateAndInterpolateAveragePosition( numTimepointsA, descendantsA );
 		List< double[] > landmarkB = SortTreeUtils.calculateAndInterpolateAveragePosition( numTimepointsB, descendantsB );
-		List< double[] > rollingAverageA = rollingAverage( landmarkA );
-		List< double[] > rollingAverageB = rollingAverage( landmarkB );
+		double[] rollingAverageA = rollingAverage( flatten( landmarkA ) );
+		double[] rollingAverageB = rollingAverage( flatten( landmarkB ) );
 		landmarks.add( Pair.of( rollingAverageA, rollingAverageB ) );
+		synchronized ( transforms )
+		{
+			transforms.clear();
+		}
 	}
 
 	private static Collection< Spot > getDescendants( ModelGraph graph, Spot spot )
@@ -152,47 +190,119 @@ public class DynamicLandmarkRegistration implements SpatialRegistration
 		return descendants;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The transformations are cached per timepoint pair. The returned
+	 * transformation is shared and must not be modified.
+	 */
 	@Override
 	public AffineTransform3D getTransformationAtoB( int timepointA, int timepointB )
 	{
-		List< PointMatch > matches = new ArrayList<>();
-		landmarks.forEach( pair -> {
-			List< double[] > landmarkA = pair.getLeft();
-			List< double[] > landmarkB = pair.getRight();
-			Point pointA = new Point( get( landmarkA, timepointA ) );
-			Point pointB = new Point( get( landmarkB, timepointB ) );
-			matches.add( new PointMatch( pointA, pointB ) );
-		} );
-		return EstimateTransformation.fitTransform( matches );
+		Long key = key( timepointA, timepointB );
+		synchronized ( transforms )
+		{
+			AffineTransform3D transform = transforms.get( key );
+			if ( transform != null )
+				return transform;
+		}
+		AffineTransform3D transform = computeTransformationAtoB( timepointA, timepointB );
+		synchronized ( transforms )
+		{
+			transforms.put( key, transform );
+		}
+		return transform;
+	}
+
+	/**
+	 * Sets the maximum number of cached transformations. Least recently used
+	 * entries beyond the new size are evicted.
+	 */
+	void setCacheSize( int cacheSize )
+	{
+		synchronized ( transforms )
+		{
+			this.cacheSize = cacheSize;
+			Iterator< Long > keys = transforms.keySet().iterator();
+			for ( int i = transforms.size(); i > cacheSize; i-- )
+			{
+				keys.next();
+				keys.remove();
+			}
+		}
+	}
+
+	/** @return the number of cached transformations. */
+	int getNumberOfCachedTransformations()
+	{
+		synchronized ( transforms )
+		{
+			return transforms.size();
+		}
+	}
+
+	AffineTransform3D computeTransformationAtoB( int timepointA, int timepointB )
+	{
+		int n = landmarks.size();
+		double[] pointsA = new double[ 3 * n ];
+		double[] pointsB = new double[ 3 * n ];
+		double[] position = new double[ 3 ];
+		for ( int i = 0; i < n; i++ )
+		{
+			Pair< double[], double[] > pair = landmarks.get( i );
+			System.arraycopy( get( pair.getLeft(), timepointA, position ), 0, pointsA, 3 * i, 3 );
+			System.arraycopy( get( pair.getRight(), timepointB, position ), 0, pointsB, 3 * i, 3 );
+		}
+		return EstimateTransformation.fitSimilarity( pointsA, pointsB, n, new AffineTransform3D() );
 	}
 
 	// -- Helper methods --
 
-	private static List< double[] > rollingAverage( List< double[] > list )
+	private static Long key( int timepointA, int timepointB )
 	{
-		List< double[] > output = new ArrayList<>( list.size() );
+		return ( ( long ) timepointA << 32 ) | ( timepointB & 0xffffffffL );
+	}
+
+	/**
+	 * Packs a list of 3d positions into a flat array.
+	 */
+	private static double[] flatten( List< double[] > list )
+	{
+		double[] flat = new double[ 3 * list.size() ];
 		for ( int i = 0; i < list.size(); i++ )
+			System.arraycopy( list.get( i ), 0, flat, 3 * i, 3 );
+		return flat;
+	}
+
+	private static double[] rollingAverage( double[] trajectory )
+	{
+		double[] output = new double[ trajectory.length ];
+		double[] position = new double[ 3 ];
+		double[] sum = new double[ 3 ];
+		for ( int i = 0; i < trajectory.length / 3; i++ )
 		{
-			double[] array = new double[ 3 ];
+			sum[ 0 ] = sum[ 1 ] = sum[ 2 ] = 0;
 			for ( int j = i - HALF_WINDOW_SIZE; j <= i + HALF_WINDOW_SIZE; j++ )
-				LinAlgHelpers.add( array, get( list, j ), array );
-			SortTreeUtils.divide( array, 2 * HALF_WINDOW_SIZE + 1 );
-			output.add( array );
+				LinAlgHelpers.add( sum, get( trajectory, j, position ), sum );
+			SortTreeUtils.divide( sum, 2 * HALF_WINDOW_SIZE + 1 );
+			System.arraycopy( sum, 0, output, 3 * i, 3 );
 		}
 		return output;
 	}
 
 	/**
-	 * Similar to {@code list.get( i )} but returns the first or last element
-	 * instead of throwing an {@link IndexOutOfBoundsException}.
+	 * Copies the position at timepoint {@code j} of the given trajectory
+	 * into {@code position}. Uses the first or last position if {@code j}
+	 * is out of bounds.
+	 *
+	 * @return {@code position}
 	 */
-	private static double[] get( List< double[] > list, int j )
+	private static double[] get( double[] trajectory, int j, double[] position )
 	{
-		if ( j < 0 )
-			return list.get( 0 );
-		if ( j >= list.size() )
-			return list.get( list.size() - 1 );
-		return list.get( j );
+		int n = trajectory.length / 3;
+		int i = Math.max( 0, Math.min( n - 1, j ) );
+		System.arraycopy( trajectory, 3 * i, position, 0, 3 );
+		return position;
 	}
 
 	/**
@@ -1,11 +1,9 @@
 package org.mastodon.mamut.tomancak.lineage_registration.spatial_registration;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import mpicbg.models.IllDefinedDataPointsException;
 import mpicbg.models.NotEnoughDataPointsException;
-import mpicbg.models.Point;
 import mpicbg.models.PointMatch;
 import mpicbg.models.SimilarityModel3D;
 
@@ -43,28 +41,179 @@ class EstimateTransformation
 	 */
 	public static AffineTransform3D estimateScaleRotationAndTranslation( RefRefMap< Spot, Spot > pairs )
 	{
-		// NB: This method is not as memory efficient as it could be.
-		// It creates multiple objects (Point, PointMatch, arrays) per item in "pairs".
-		// Memory efficiency should be improved if performance problems arise.
+		int n = pairs.size();
+		double[] pointsA = new double[ 3 * n ];
+		double[] pointsB = new double[ 3 * n ];
 		Spot refB = pairs.createValueRef();
 		try
 		{
-			List< PointMatch > matches = new ArrayList<>( pairs.size() );
+			int i = 0;
 			for ( Spot spotA : pairs.keySet() )
 			{
 				Spot spotB = pairs.get( spotA, refB );
-				Point pointA = new Point( spotA.positionAsDoubleArray() );
-				Point pointB = new Point( spotB.positionAsDoubleArray() );
-				matches.add( new PointMatch( pointA, pointB, 1 ) );
+				for ( int d = 0; d < 3; d++ )
+				{
+					pointsA[ 3 * i + d ] = spotA.getDoublePosition( d );
+					pointsB[ 3 * i + d ] = spotB.getDoublePosition( d );
+				}
+				i++;
 			}
-			return fitTransform( matches );
 		}
 		finally
 		{
 			pairs.releaseValueRef( refB );
 		}
+		return fitSimilarity( pointsA, pointsB, n, new AffineTransform3D() );
 	}
 
+	/**
+	 * Scratch space for {@link #fitSimilarity}: the 4x4 matrix N and its
+	 * eigenvectors.
+	 */
+	private static final ThreadLocal< double[] > scratch = ThreadLocal.withInitial( () -> new double[ 32 ] );
+
+	/**
+	 * Closed-form least squares fit of a 3d similarity transform (scaling,
+	 * rotation and translation) that maps {@code pointsA} onto
+	 * {@code pointsB}, following Horn's unit quaternion method. Gives the same
+	 * result as {@link #fitTransform} with a {@link SimilarityModel3D}, but
+	 * works directly on packed coordinates and does not allocate.
+	 *
+	 * @param pointsA coordinates {@code x, y, z} of the first point set, packed.
+	 * @param pointsB coordinates of the second point set, packed.
+	 * @param n number of points.
+	 * @param result the transform is written into this.
+	 * @return {@code result}
+	 */
+	public static AffineTransform3D fitSimilarity( double[] pointsA, double[] pointsB, int n, AffineTransform3D result )
+	{
+		if ( n < 3 )
+			throw new RuntimeException( new NotEnoughDataPointsException( n + " data points are not enough to estimate a 3d similarity model, at least 3 data points required." ) );
+
+		// centroids
+		double cax = 0, cay = 0, caz = 0, cbx = 0, cby = 0, cbz = 0;
+		for ( int i = 0; i < 3 * n; i += 3 )
+		{
+			cax += pointsA[ i ];
+			cay += pointsA[ i + 1 ];
+			caz += pointsA[ i + 2 ];
+			cbx += pointsB[ i ];
+			cby += pointsB[ i + 1 ];
+			cbz += pointsB[ i + 2 ];
+		}
+		cax /= n; cay /= n; caz /= n;
+		cbx /= n; cby /= n; cbz /= n;
+
+		// cross covariance M = sum( a' b'^T ), and squared norms
+		double sxx = 0, sxy = 0, sxz = 0, syx = 0, syy = 0, syz = 0, szx = 0, szy = 0, szz = 0;
+		double normA = 0, normB = 0;
+		for ( int i = 0; i < 3 * n; i += 3 )
+		{
+			double ax = pointsA[ i ] - cax, ay = pointsA[ i + 1 ] - cay, az = pointsA[ i + 2 ] - caz;
+			double bx = pointsB[ i ] - cbx, by = pointsB[ i + 1 ] - cby, bz = pointsB[ i + 2 ] - cbz;
+			sxx += ax * bx; sxy += ax * by; sxz += ax * bz;
+			syx += ay * bx; syy += ay * by; syz += ay * bz;
+			szx += az * bx; szy += az * by; szz += az * bz;
+			normA += ax * ax + ay * ay + az * az;
+			normB += bx * bx + by * by + bz * bz;
+		}
+		if ( normA == 0 )
+			throw new RuntimeException( new IllDefinedDataPointsException() );
+
+		// the rotation is the eigenvector of N to the largest eigenvalue
+		double[] N = scratch.get();
+		N[ 0 ] = sxx + syy + szz; N[ 1 ] = syz - szy; N[ 2 ] = szx - sxz; N[ 3 ] = sxy - syx;
+		N[ 5 ] = sxx - syy - szz; N[ 6 ] = sxy + syx; N[ 7 ] = szx + sxz;
+		N[ 10 ] = -sxx + syy - szz; N[ 11 ] = syz + szy;
+		N[ 15 ] = -sxx - syy + szz;
+		N[ 4 ] = N[ 1 ]; N[ 8 ] = N[ 2 ]; N[ 12 ] = N[ 3 ]; N[ 9 ] = N[ 6 ]; N[ 13 ] = N[ 7 ]; N[ 14 ] = N[ 11 ];
+		int k = largestEigenvectorSymmetric4x4( N, 16 );
+		double q0 = N[ 16 + k ], qx = N[ 20 + k ], qy = N[ 24 + k ], qz = N[ 28 + k ];
+
+		double r00 = q0 * q0 + qx * qx - qy * qy - qz * qz;
+		double r01 = 2 * ( qx * qy - q0 * qz );
+		double r02 = 2 * ( qx * qz + q0 * qy );
+		double r10 = 2 * ( qy * qx + q0 * qz );
+		double r11 = q0 * q0 - qx * qx + qy * qy - qz * qz;
+		double r12 = 2 * ( qy * qz - q0 * qx );
+		double r20 = 2 * ( qz * qx - q0 * qy );
+		double r21 = 2 * ( qz * qy + q0 * qx );
+		double r22 = q0 * q0 - qx * qx - qy * qy + qz * qz;
+
+		// symmetric scale, see Horn 1987, section 2.D
+		double s = Math.sqrt( normB / normA );
+		result.set(
+				s * r00, s * r01, s * r02, cbx - s * ( r00 * cax + r01 * cay + r02 * caz ),
+				s * r10, s * r11, s * r12, cby - s * ( r10 * cax + r11 * cay + r12 * caz ),
+				s * r20, s * r21, s * r22, cbz - s * ( r20 * cax + r21 * cay + r22 * caz ) );
+		return result;
+	}
+
+	/**
+	 * Eigen decomposition of the symmetric 4x4 matrix stored row-major in
+	 * {@code a[0..15]}, by cyclic Jacobi rotations. {@code a} is overwritten,
+	 * the unit eigenvectors are written as columns of the 4x4 matrix at
+	 * {@code a[v..v+15]}.
+	 *
+	 * @return the column index of the eigenvector to the largest eigenvalue.
+	 */
+	private static int largestEigenvectorSymmetric4x4( double[] a, int v )
+	{
+		for ( int i = 0; i < 4; i++ )
+			for ( int j = 0; j < 4; j++ )
+				a[ v + 4 * i + j ] = i == j ? 1 : 0;
+		for ( int sweep = 0; sweep < 50; sweep++ )
+		{
+			double off = 0, diag = 0;
+			for ( int i = 0; i < 4; i++ )
+			{
+				diag += a[ 5 * i ] * a[ 5 * i ];
+				for ( int j = i + 1; j < 4; j++ )
+					off += a[ 4 * i + j ] * a[ 4 * i + j ];
+			}
+			if ( off <= 1e-30 * diag || off == 0 )
+				break;
+			for ( int p = 0; p < 3; p++ )
+				for ( int q = p + 1; q < 4; q++ )
+				{
+					double apq = a[ 4 * p + q ];
+					if ( apq == 0 )
+						continue;
+					double theta = ( a[ 5 * q ] - a[ 5 * p ] ) / ( 2 * apq );
+					double t = Math.signum( theta == 0 ? 1 : theta ) / ( Math.abs( theta ) + Math.sqrt( theta * theta + 1 ) );
+					double c = 1 / Math.sqrt( t * t + 1 );
+					double sn = t * c;
+					for ( int r = 0; r < 4; r++ )
+					{
+						double arp = a[ 4 * r + p ], arq = a[ 4 * r + q ];
+						a[ 4 * r + p ] = c * arp - sn * arq;
+						a[ 4 * r + q ] = sn * arp + c * arq;
+					}
+					for ( int r = 0; r < 4; r++ )
+					{
+						double apr = a[ 4 * p + r ], aqr = a[ 4 * q + r ];
+						a[ 4 * p + r ] = c * apr - sn * aqr;
+						a[ 4 * q + r ] = sn * apr + c * aqr;
+					}
+					for ( int r = 0; r < 4; r++ )
+					{
+						double vrp = a[ v + 4 * r + p ], vrq = a[ v + 4 * r + q ];
+						a[ v + 4 * r + p ] = c * vrp - sn * vrq;
+						a[ v + 4 * r + q ] = sn * vrp + c * vrq;
+					}
+				}
+		}
+		int largest = 0;
+		for ( int i = 1; i < 4; i++ )
+			if ( a[ 5 * i ] > a[ 5 * largest ] )
+				largest = i;
+		return largest;
+	}
+
+	/**
+	 * Reference implementation of the similarity fit, based on mpicbg's
+	 * {@link SimilarityModel3D}.
+	 */
 	public static AffineTransform3D fitTransform( List< PointMatch > matches )
 	{
 		try
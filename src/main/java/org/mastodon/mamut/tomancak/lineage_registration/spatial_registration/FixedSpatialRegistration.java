@@ -7,7 +7,7 @@ import org.mastodon.collection.ref.RefRefHashMap;
 import org.mastodon.mamut.model.Model;
 import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
-import org.mastodon.mamut.tomancak.lineage_registration.BranchGraphUtils;
+import org.mastodon.mamut.tomancak.lineage_registration.BranchIndex;
 import org.mastodon.mamut.tomancak.lineage_registration.RefMapUtils;
 
 public class FixedSpatialRegistration implements SpatialRegistration
@@ -50,9 +50,11 @@ public class FixedSpatialRegistration implements SpatialRegistration
 		try
 		{
 			RefRefMap< Spot, Spot > branchEnds = new RefRefHashMap<>( graphA.vertices().getRefPool(), graphB.vertices().getRefPool() );
+			BranchIndex branchIndexA = BranchIndex.get( graphA );
+			BranchIndex branchIndexB = BranchIndex.get( graphB );
 			RefMapUtils.forEach( pairs, ( spotA, spotB ) -> {
-				Spot endA = BranchGraphUtils.getBranchEnd( spotA, refA );
-				Spot endB = BranchGraphUtils.getBranchEnd( spotB, refB );
+				Spot endA = branchIndexA.getBranchEnd( spotA, refA );
+				Spot endB = branchIndexB.getBranchEnd( spotB, refB );
 				branchEnds.put( endA, endB );
 			} );
 			return branchEnds;
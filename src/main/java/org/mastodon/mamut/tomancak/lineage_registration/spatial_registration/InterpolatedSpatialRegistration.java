@@ -0,0 +1,294 @@
+package org.mastodon.mamut.tomancak.lineage_registration.spatial_registration;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import net.imglib2.realtransform.AffineTransform3D;
+
+import org.mastodon.collection.RefRefMap;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.lineage_registration.BranchGraphUtils;
+
+/**
+ * A dynamic {@link SpatialRegistration} that fits one similarity transform
+ * per timepoint of embryo A, against the temporally aligned timepoint of
+ * embryo B, once, when it's created. Queries are answered by interpolating
+ * between these keyframes: scale geometrically, rotation by quaternion slerp
+ * and translation linearly.
+ * <p>
+ * For a query {@code (timepointA, timepointB)}, {@code timepointB} is mapped
+ * back to a (fractional) timepoint of A through the alignment, and the
+ * keyframes are interpolated at the mean of both A timepoints. This makes
+ * {@link #getTransformationAtoB} a constant time lookup.
+ */
+public class InterpolatedSpatialRegistration implements SpatialRegistration
+{
+	/**
+	 * The timepoint of B that is aligned with timepoint {@code i} of A.
+	 * Monotonically non-decreasing.
+	 */
+	private final int[] alignedTimepointsB;
+
+	/**
+	 * For each timepoint of B, the fractional timepoint of A that is aligned
+	 * with it. Inverse of {@link #alignedTimepointsB}.
+	 */
+	private final double[] alignedTimepointsA;
+
+	/** Per keyframe: scale. */
+	private final double[] scales;
+
+	/** Per keyframe: unit quaternion {@code w, x, y, z}. */
+	private final double[] rotations;
+
+	/** Per keyframe: translation. */
+	private final double[] translations;
+
+	/**
+	 * Uses the descendants of the given root pairs as landmarks, like
+	 * {@link DynamicLandmarkRegistration#forRoots}, and aligns the timepoints
+	 * of A and B by the median time shift between the divisions of the
+	 * paired roots.
+	 */
+	public static InterpolatedSpatialRegistration forRoots( Model modelA, Model modelB, RefRefMap< Spot, Spot > rootsAB )
+	{
+		DynamicLandmarkRegistration landmarks = DynamicLandmarkRegistration.forRoots( modelA, modelB, rootsAB );
+		int offset = medianDivisionTimeShift( modelA, modelB, rootsAB );
+		int numTimepointsB = landmarks.getNumberOfTimepointsB();
+		int[] aligned = new int[ landmarks.getNumberOfTimepointsA() ];
+		for ( int timepointA = 0; timepointA < aligned.length; timepointA++ )
+			aligned[ timepointA ] = Math.max( 0, Math.min( numTimepointsB - 1, timepointA + offset ) );
+		return new InterpolatedSpatialRegistration( landmarks, aligned );
+	}
+
+	/**
+	 * @param registration the registration used to fit the keyframes.
+	 * @param alignedTimepointsB for each timepoint of A, the aligned timepoint
+	 *                           of B. Must be monotonically non-decreasing.
+	 */
+	public InterpolatedSpatialRegistration( SpatialRegistration registration, int[] alignedTimepointsB )
+	{
+		int n = alignedTimepointsB.length;
+		if ( n == 0 )
+			throw new IllegalArgumentException( "At least one timepoint is required." );
+		for ( int i = 1; i < n; i++ )
+			if ( alignedTimepointsB[ i ] < alignedTimepointsB[ i - 1 ] )
+				throw new IllegalArgumentException( "The timepoint alignment must be monotonic." );
+		this.alignedTimepointsB = alignedTimepointsB.clone();
+		this.alignedTimepointsA = invert( alignedTimepointsB );
+		this.scales = new double[ n ];
+		this.rotations = new double[ 4 * n ];
+		this.translations = new double[ 3 * n ];
+		IntStream.range( 0, n ).parallel().forEach( timepointA -> decompose(
+				registration.getTransformationAtoB( timepointA, this.alignedTimepointsB[ timepointA ] ), timepointA ) );
+	}
+
+	/**
+	 * @return the timepoint of B, that is aligned with the given timepoint of A.
+	 */
+	public int getAlignedTimepointB( int timepointA )
+	{
+		return alignedTimepointsB[ clamp( timepointA, alignedTimepointsB.length ) ];
+	}
+
+	@Override
+	public AffineTransform3D getTransformationAtoB( int timepointA, int timepointB )
+	{
+		double a = clamp( timepointA, alignedTimepointsB.length );
+		double b = alignedTimepointsA[ clamp( timepointB, alignedTimepointsA.length ) ];
+		double u = 0.5 * ( a + b );
+		int i = ( int ) Math.floor( u );
+		int j = Math.min( i + 1, scales.length - 1 );
+		return interpolate( i, j, u - i );
+	}
+
+	// -- Helper methods --
+
+	private AffineTransform3D interpolate( int i, int j, double f )
+	{
+		double s = Math.pow( scales[ i ], 1 - f ) * Math.pow( scales[ j ], f );
+
+		// slerp
+		double w0 = rotations[ 4 * i ], x0 = rotations[ 4 * i + 1 ], y0 = rotations[ 4 * i + 2 ], z0 = rotations[ 4 * i + 3 ];
+		double w1 = rotations[ 4 * j ], x1 = rotations[ 4 * j + 1 ], y1 = rotations[ 4 * j + 2 ], z1 = rotations[ 4 * j + 3 ];
+		double dot = w0 * w1 + x0 * x1 + y0 * y1 + z0 * z1;
+		if ( dot < 0 )
+		{
+			dot = -dot;
+			w1 = -w1;
+			x1 = -x1;
+			y1 = -y1;
+			z1 = -z1;
+		}
+		double c0, c1;
+		if ( dot > 0.9995 )
+		{
+			c0 = 1 - f;
+			c1 = f;
+		}
+		else
+		{
+			double theta = Math.acos( dot );
+			double sin = Math.sin( theta );
+			c0 = Math.sin( ( 1 - f ) * theta ) / sin;
+			c1 = Math.sin( f * theta ) / sin;
+		}
+		double w = c0 * w0 + c1 * w1, x = c0 * x0 + c1 * x1, y = c0 * y0 + c1 * y1, z = c0 * z0 + c1 * z1;
+		double norm = Math.sqrt( w * w + x * x + y * y + z * z );
+		w /= norm;
+		x /= norm;
+		y /= norm;
+		z /= norm;
+
+		double[] t = new double[ 3 ];
+		for ( int d = 0; d < 3; d++ )
+			t[ d ] = ( 1 - f ) * translations[ 3 * i + d ] + f * translations[ 3 * j + d ];
+
+		AffineTransform3D transform = new AffineTransform3D();
+		transform.set(
+				s * ( w * w + x * x - y * y - z * z ), s * 2 * ( x * y - w * z ), s * 2 * ( x * z + w * y ), t[ 0 ],
+				s * 2 * ( y * x + w * z ), s * ( w * w - x * x + y * y - z * z ), s * 2 * ( y * z - w * x ), t[ 1 ],
+				s * 2 * ( z * x - w * y ), s * 2 * ( z * y + w * x ), s * ( w * w - x * x - y * y + z * z ), t[ 2 ] );
+		return transform;
+	}
+
+	/**
+	 * Splits a similarity transform into scale, rotation quaternion and
+	 * translation, and stores them as keyframe {@code k}.
+	 */
+	private void decompose( AffineTransform3D transform, int k )
+	{
+		double m00 = transform.get( 0, 0 ), m01 = transform.get( 0, 1 ), m02 = transform.get( 0, 2 );
+		double m10 = transform.get( 1, 0 ), m11 = transform.get( 1, 1 ), m12 = transform.get( 1, 2 );
+		double m20 = transform.get( 2, 0 ), m21 = transform.get( 2, 1 ), m22 = transform.get( 2, 2 );
+		double det = m00 * ( m11 * m22 - m12 * m21 ) - m01 * ( m10 * m22 - m12 * m20 ) + m02 * ( m10 * m21 - m11 * m20 );
+		double s = Math.cbrt( det );
+		scales[ k ] = s;
+		double r00 = m00 / s, r01 = m01 / s, r02 = m02 / s;
+		double r10 = m10 / s, r11 = m11 / s, r12 = m12 / s;
+		double r20 = m20 / s, r21 = m21 / s, r22 = m22 / s;
+		double w, x, y, z;
+		double trace = r00 + r11 + r22;
+		if ( trace > 0 )
+		{
+			double S = 2 * Math.sqrt( trace + 1 );
+			w = 0.25 * S;
+			x = ( r21 - r12 ) / S;
+			y = ( r02 - r20 ) / S;
+			z = ( r10 - r01 ) / S;
+		}
+		else if ( r00 > r11 && r00 > r22 )
+		{
+			double S = 2 * Math.sqrt( 1 + r00 - r11 - r22 );
+			w = ( r21 - r12 ) / S;
+			x = 0.25 * S;
+			y = ( r01 + r10 ) / S;
+			z = ( r02 + r20 ) / S;
+		}
+		else if ( r11 > r22 )
+		{
+			double S = 2 * Math.sqrt( 1 + r11 - r00 - r22 );
+			w = ( r02 - r20 ) / S;
+			x = ( r01 + r10 ) / S;
+			y = 0.25 * S;
+			z = ( r12 + r21 ) / S;
+		}
+		else
+		{
+			double S = 2 * Math.sqrt( 1 + r22 - r00 - r11 );
+			w = ( r10 - r01 ) / S;
+			x = ( r02 + r20 ) / S;
+			y = ( r12 + r21 ) / S;
+			z = 0.25 * S;
+		}
+		double norm = Math.sqrt( w * w + x * x + y * y + z * z );
+		rotations[ 4 * k ] = w / norm;
+		rotations[ 4 * k + 1 ] = x / norm;
+		rotations[ 4 * k + 2 ] = y / norm;
+		rotations[ 4 * k + 3 ] = z / norm;
+		for ( int d = 0; d < 3; d++ )
+			translations[ 3 * k + d ] = transform.get( d, 3 );
+	}
+
+	/**
+	 * For each timepoint of B, computes the (fractional) timepoint of A that
+	 * is aligned with it. If several timepoints of A are aligned with the same
+	 * timepoint of B, their mean is used. Timepoints of B between aligned
+	 * timepoints are interpolated linearly.
+	 */
+	private static double[] invert( int[] alignedTimepointsB )
+	{
+		int n = alignedTimepointsB.length;
+		int numTimepointsB = alignedTimepointsB[ n - 1 ] + 1;
+		double[] alignedTimepointsA = new double[ numTimepointsB ];
+		for ( int timepointB = 0; timepointB < numTimepointsB; timepointB++ )
+		{
+			int first = lowerBound( alignedTimepointsB, timepointB );
+			int last = lowerBound( alignedTimepointsB, timepointB + 1 ) - 1;
+			if ( first <= last )
+				alignedTimepointsA[ timepointB ] = 0.5 * ( first + last );
+			else if ( first == 0 )
+				alignedTimepointsA[ timepointB ] = 0;
+			else
+			{
+				// alignedTimepointsB[ first - 1 ] < timepointB < alignedTimepointsB[ first ]
+				int b0 = alignedTimepointsB[ first - 1 ];
+				int b1 = alignedTimepointsB[ first ];
+				alignedTimepointsA[ timepointB ] = first - 1 + ( double ) ( timepointB - b0 ) / ( b1 - b0 );
+			}
+		}
+		return alignedTimepointsA;
+	}
+
+	/** @return the first index {@code i} with {@code array[ i ] >= value}. */
+	private static int lowerBound( int[] array, int value )
+	{
+		int low = 0;
+		int high = array.length;
+		while ( low < high )
+		{
+			int mid = ( low + high ) >>> 1;
+			if ( array[ mid ] < value )
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	private static int clamp( int value, int size )
+	{
+		return Math.max( 0, Math.min( size - 1, value ) );
+	}
+
+	/**
+	 * @return the median of the time shifts between the divisions of the
+	 * paired roots in A and B.
+	 */
+	private static int medianDivisionTimeShift( Model modelA, Model modelB, RefRefMap< Spot, Spot > rootsAB )
+	{
+		int[] shifts = new int[ rootsAB.size() ];
+		Spot refB = modelB.getGraph().vertexRef();
+		Spot endRefA = modelA.getGraph().vertexRef();
+		Spot endRefB = modelB.getGraph().vertexRef();
+		try
+		{
+			int i = 0;
+			for ( Spot rootA : rootsAB.keySet() )
+			{
+				Spot rootB = rootsAB.get( rootA, refB );
+				shifts[ i++ ] = BranchGraphUtils.getBranchEnd( rootB, endRefB ).getTimepoint()
+						- BranchGraphUtils.getBranchEnd( rootA, endRefA ).getTimepoint();
+			}
+		}
+		finally
+		{
+			modelB.getGraph().releaseRef( refB );
+			modelA.getGraph().releaseRef( endRefA );
+			modelB.getGraph().releaseRef( endRefB );
+		}
+		Arrays.sort( shifts );
+		return shifts.length == 0 ? 0 : shifts[ shifts.length / 2 ];
+	}
+}
@@ -0,0 +1,286 @@
+package org.mastodon.mamut.tomancak.lineage_registration.spatial_registration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+import net.imglib2.realtransform.AffineTransform3D;
+
+import org.mastodon.collection.RefRefMap;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.lineage_registration.BranchGraphUtils;
+
+/**
+ * A fixed spatial registration based on the dividing roots, like
+ * {@link FixedSpatialRegistration}, that is robust against a few wrongly
+ * paired (e.g. mislabeled) roots.
+ * <p>
+ * The transformation is estimated with RANSAC: Similarity transforms are
+ * fitted to random triples of root pairs. The hypothesis that maps the most
+ * roots (inliers) to within a maximum error of their partner wins, and the
+ * final transformation is a least squares fit to its inliers. Hypotheses are
+ * evaluated in parallel. Each one draws its triple from a random generator
+ * seeded with a fixed seed plus the hypothesis index, so the result is
+ * reproducible and independent of the number of threads.
+ */
+public class RansacSpatialRegistration implements SpatialRegistration
+{
+	private static final long SEED = 42;
+
+	private static final int MAX_HYPOTHESES = 2000;
+
+	/**
+	 * A root pair is an inlier if its error is less than this factor times
+	 * the median distance between a root in embryo B and its nearest
+	 * neighbor.
+	 */
+	private static final double MAX_ERROR_FACTOR = 0.5;
+
+	private final AffineTransform3D transformAB;
+
+	private final List< String > inliers;
+
+	private final List< String > outliers;
+
+	public static RansacSpatialRegistration forDividingRoots( Model modelA, Model modelB, RefRefMap< Spot, Spot > rootsAB )
+	{
+		if ( rootsAB.size() < 3 )
+			throw new NotEnoughPairedRootsException();
+		int n = rootsAB.size();
+		double[] pointsA = new double[ 3 * n ];
+		double[] pointsB = new double[ 3 * n ];
+		String[] labels = new String[ n ];
+		Spot refB = modelB.getGraph().vertexRef();
+		Spot endRefA = modelA.getGraph().vertexRef();
+		Spot endRefB = modelB.getGraph().vertexRef();
+		try
+		{
+			int i = 0;
+			for ( Spot rootA : rootsAB.keySet() )
+			{
+				Spot rootB = rootsAB.get( rootA, refB );
+				labels[ i ] = rootA.getLabel();
+				Spot endA = BranchGraphUtils.getBranchEnd( rootA, endRefA );
+				Spot endB = BranchGraphUtils.getBranchEnd( rootB, endRefB );
+				for ( int d = 0; d < 3; d++ )
+				{
+					pointsA[ 3 * i + d ] = endA.getDoublePosition( d );
+					pointsB[ 3 * i + d ] = endB.getDoublePosition( d );
+				}
+				i++;
+			}
+		}
+		finally
+		{
+			modelB.getGraph().releaseRef( refB );
+			modelA.getGraph().releaseRef( endRefA );
+			modelB.getGraph().releaseRef( endRefB );
+		}
+		return fit( pointsA, pointsB, labels, MAX_ERROR_FACTOR * medianNearestNeighborDistance( pointsB ) );
+	}
+
+	/**
+	 * Estimates the transformation from {@code pointsA} to {@code pointsB}.
+	 *
+	 * @param pointsA packed coordinates of the points in embryo A.
+	 * @param pointsB packed coordinates of the paired points in embryo B.
+	 * @param labels names of the point pairs, used for reporting.
+	 * @param maxError a pair is an inlier if its point A is transformed to
+	 *                 within this distance of its point B.
+	 */
+	public static RansacSpatialRegistration fit( double[] pointsA, double[] pointsB, String[] labels, double maxError )
+	{
+		int n = labels.length;
+		if ( n < 3 )
+			throw new NotEnoughPairedRootsException();
+		double maxErrorSqu = maxError * maxError;
+		int numHypotheses = ( int ) Math.min( MAX_HYPOTHESES, ( long ) n * ( n - 1 ) * ( n - 2 ) / 6 );
+		Hypothesis best = IntStream.range( 0, numHypotheses ).parallel()
+				.mapToObj( i -> evaluate( i, pointsA, pointsB, n, maxErrorSqu ) )
+				.reduce( null, RansacSpatialRegistration::better );
+		boolean[] isInlier = best == null ? null : best.isInlier;
+		if ( isInlier == null || best.numInliers < 3 )
+		{
+			// no valid hypothesis, fall back to the least squares fit to all pairs
+			isInlier = new boolean[ n ];
+			Arrays.fill( isInlier, true );
+		}
+		AffineTransform3D transform = fitSubset( pointsA, pointsB, isInlier );
+		List< String > inliers = new ArrayList<>();
+		List< String > outliers = new ArrayList<>();
+		for ( int i = 0; i < n; i++ )
+			( isInlier[ i ] ? inliers : outliers ).add( labels[ i ] );
+		Collections.sort( inliers );
+		Collections.sort( outliers );
+		return new RansacSpatialRegistration( transform, inliers, outliers );
+	}
+
+	private RansacSpatialRegistration( AffineTransform3D transformAB, List< String > inliers, List< String > outliers )
+	{
+		this.transformAB = transformAB;
+		this.inliers = Collections.unmodifiableList( inliers );
+		this.outliers = Collections.unmodifiableList( outliers );
+	}
+
+	@Override
+	public AffineTransform3D getTransformationAtoB( int timepointA, int timepointB )
+	{
+		return transformAB;
+	}
+
+	/**
+	 * @return the labels of the root pairs that agree with the transformation.
+	 */
+	public List< String > getInliers()
+	{
+		return inliers;
+	}
+
+	/**
+	 * @return the labels of the root pairs that were ignored, because they
+	 * don't agree with the transformation.
+	 */
+	public List< String > getOutliers()
+	{
+		return outliers;
+	}
+
+	// -- Helper methods --
+
+	private static class Hypothesis
+	{
+		private final int index;
+
+		private final int numInliers;
+
+		private final double cost;
+
+		private final boolean[] isInlier;
+
+		private Hypothesis( int index, int numInliers, double cost, boolean[] isInlier )
+		{
+			this.index = index;
+			this.numInliers = numInliers;
+			this.cost = cost;
+			this.isInlier = isInlier;
+		}
+	}
+
+	private static Hypothesis evaluate( int index, double[] pointsA, double[] pointsB, int n, double maxErrorSqu )
+	{
+		SplittableRandom random = new SplittableRandom( SEED + index );
+		int i0 = random.nextInt( n );
+		int i1 = random.nextInt( n - 1 );
+		if ( i1 >= i0 )
+			i1++;
+		int i2 = random.nextInt( n - 2 );
+		if ( i2 >= Math.min( i0, i1 ) )
+			i2++;
+		if ( i2 >= Math.max( i0, i1 ) )
+			i2++;
+		double[] sampleA = new double[ 9 ];
+		double[] sampleB = new double[ 9 ];
+		int[] sample = { i0, i1, i2 };
+		for ( int j = 0; j < 3; j++ )
+		{
+			System.arraycopy( pointsA, 3 * sample[ j ], sampleA, 3 * j, 3 );
+			System.arraycopy( pointsB, 3 * sample[ j ], sampleB, 3 * j, 3 );
+		}
+		AffineTransform3D transform;
+		try
+		{
+			transform = EstimateTransformation.fitSimilarity( sampleA, sampleB, 3, new AffineTransform3D() );
+		}
+		catch ( RuntimeException e )
+		{
+			// degenerate sample
+			return null;
+		}
+		boolean[] isInlier = new boolean[ n ];
+		int numInliers = 0;
+		double cost = 0;
+		double[] a = new double[ 3 ];
+		for ( int i = 0; i < n; i++ )
+		{
+			System.arraycopy( pointsA, 3 * i, a, 0, 3 );
+			transform.apply( a, a );
+			double errorSqu = 0;
+			for ( int d = 0; d < 3; d++ )
+			{
+				double diff = a[ d ] - pointsB[ 3 * i + d ];
+				errorSqu += diff * diff;
+			}
+			if ( errorSqu < maxErrorSqu )
+			{
+				isInlier[ i ] = true;
+				numInliers++;
+				cost += errorSqu;
+			}
+			else
+				cost += maxErrorSqu;
+		}
+		return new Hypothesis( index, numInliers, cost, isInlier );
+	}
+
+	/**
+	 * Deterministic choice of the better hypothesis: more inliers, then
+	 * lower cost, then lower index.
+	 */
+	private static Hypothesis better( Hypothesis a, Hypothesis b )
+	{
+		if ( a == null )
+			return b;
+		if ( b == null )
+			return a;
+		if ( a.numInliers != b.numInliers )
+			return a.numInliers > b.numInliers ? a : b;
+		if ( a.cost != b.cost )
+			return a.cost < b.cost ? a : b;
+		return a.index < b.index ? a : b;
+	}
+
+	private static AffineTransform3D fitSubset( double[] pointsA, double[] pointsB, boolean[] subset )
+	{
+		int m = 0;
+		for ( boolean b : subset )
+			if ( b )
+				m++;
+		double[] subsetA = new double[ 3 * m ];
+		double[] subsetB = new double[ 3 * m ];
+		int j = 0;
+		for ( int i = 0; i < subset.length; i++ )
+			if ( subset[ i ] )
+			{
+				System.arraycopy( pointsA, 3 * i, subsetA, 3 * j, 3 );
+				System.arraycopy( pointsB, 3 * i, subsetB, 3 * j, 3 );
+				j++;
+			}
+		return EstimateTransformation.fitSimilarity( subsetA, subsetB, m, new AffineTransform3D() );
+	}
+
+	private static double medianNearestNeighborDistance( double[] points )
+	{
+		int n = points.length / 3;
+		double[] distances = new double[ n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			double min = Double.POSITIVE_INFINITY;
+			for ( int j = 0; j < n; j++ )
+			{
+				if ( i == j )
+					continue;
+				double dx = points[ 3 * i ] - points[ 3 * j ];
+				double dy = points[ 3 * i + 1 ] - points[ 3 * j + 1 ];
+				double dz = points[ 3 * i + 2 ] - points[ 3 * j + 2 ];
+				min = Math.min( min, dx * dx + dy * dy + dz * dz );
+			}
+			distances[ i ] = Math.sqrt( min );
+		}
+		Arrays.sort( distances );
+		return distances[ n / 2 ];
+	}
+}
@@ -2,6 +2,13 @@ package org.mastodon.mamut.tomancak.lineage_registration.spatial_registration;
 
 import net.imglib2.realtransform.AffineTransform3D;
 
+/**
+ * A coordinate transformation from embryo A to embryo B, that may depend on
+ * the timepoints.
+ * <p>
+ * {@link #getTransformationAtoB} may be called concurrently from multiple
+ * threads, and the returned transformation must not be modified.
+ */
 public interface SpatialRegistration
 {
 
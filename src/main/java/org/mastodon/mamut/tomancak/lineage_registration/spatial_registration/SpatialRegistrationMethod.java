@@ -7,7 +7,9 @@ package org.mastodon.mamut.tomancak.lineage_registration.spatial_registration;
 public enum SpatialRegistrationMethod
 {
 	FIXED_ROOTS( "fixed spatial registration based on root cells" ),
+	ROBUST_ROOTS( "robust fixed spatial registration based on root cells (RANSAC)" ),
 	DYNAMIC_ROOTS( "dynamic spatial registration based on root cells and their descendants" ),
+	DYNAMIC_ROOTS_INTERPOLATED( "dynamic spatial registration based on root cells and their descendants, interpolated over time" ),
 	DYNAMIC_LANDMARKS( "dynamic spatial registration based on \"landmarks\" tag set" );
 
 	private final String toString;
@@ -29,8 +31,12 @@ public enum SpatialRegistrationMethod
 		{
 		case FIXED_ROOTS:
 			return FixedSpatialRegistration::forDividingRoots;
+		case ROBUST_ROOTS:
+			return RansacSpatialRegistration::forDividingRoots;
 		case DYNAMIC_ROOTS:
 			return DynamicLandmarkRegistration::forRoots;
+		case DYNAMIC_ROOTS_INTERPOLATED:
+			return InterpolatedSpatialRegistration::forRoots;
 		case DYNAMIC_LANDMARKS:
 			return ( modelA, modelB, rootsAB ) -> DynamicLandmarkRegistration.forTagSet( modelA, modelB );
 		}
@@ -0,0 +1,449 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2022 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.merging.MergeDatasets.OutputDataSet;
+import org.mastodon.model.tag.ObjTags;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+
+/**
+ * Merges many pairs or groups of Mastodon projects without user interface.
+ * <p>
+ * The jobs are read from a manifest file. Every non-empty line, that does
+ * not start with {@code #}, describes one merge job by tab separated
+ * columns:
+ *
+ * <pre>
+ * projectA  projectB  [projectC ...]  outputProject  distCutoff  mahalanobisDistCutoff  ratioThreshold
+ * </pre>
+ *
+ * Only tabs separate columns, such that paths may contain commas and spaces.
+ * Relative paths are resolved against the directory of the manifest. Jobs
+ * with two projects are merged with
+ * {@link MergeDatasets#merge(Dataset, Dataset, OutputDataSet, double, double, double, int)},
+ * and all of them use the same window size. Jobs with more projects are
+ * merged with {@link NWayMerge}, the projects are named "A", "B", "C", ...
+ * in the order of the columns.
+ * <p>
+ * The jobs run concurrently on a bounded number of threads. Additionally,
+ * every job reserves an estimate of its memory consumption from a memory
+ * budget before it starts, so that large projects do not run concurrently
+ * if they would not fit into the heap together.
+ * <p>
+ * The outcome of every job, including the number of spots tagged with each
+ * merge conflict tag, is written to a tab separated summary file.
+ */
+public class BatchMerge
+{
+	/**
+	 * Categories of the tags added by {@link MergeModels} and
+	 * {@link NWayMerge}, that are counted in the summary. The "Singleton" tags
+	 * of all projects are counted together, as are "MatchAB" and "Match".
+	 */
+	private static final List< String > CONFLICT_TAGS = Arrays.asList(
+			"Singleton", "Match", "Conflict", "Tag Conflict", "Label Conflict" );
+
+	/**
+	 * Rough factor between the size of the project files and the heap needed
+	 * to merge them, i.e. to hold both input models and the output model.
+	 */
+	private static final long MEMORY_PER_FILE_BYTE = 16;
+
+	private static final long MIN_MEMORY_PER_JOB = 256L << 20;
+
+	public static class Job
+	{
+		final List< File > projects;
+
+		final File output;
+
+		final double distCutoff;
+
+		final double mahalanobisDistCutoff;
+
+		final double ratioThreshold;
+
+		final int windowSize;
+
+		public Job( final File projectA, final File projectB, final File output,
+				final double distCutoff, final double mahalanobisDistCutoff, final double ratioThreshold )
+		{
+			this( projectA, projectB, output, distCutoff, mahalanobisDistCutoff, ratioThreshold, 0 );
+		}
+
+		public Job( final File projectA, final File projectB, final File output,
+				final double distCutoff, final double mahalanobisDistCutoff, final double ratioThreshold,
+				final int windowSize )
+		{
+			this( Arrays.asList( projectA, projectB ), output, distCutoff, mahalanobisDistCutoff, ratioThreshold, windowSize );
+		}
+
+		/**
+		 * Creates a job that merges two or more projects. The window size is
+		 * only used if there are exactly two projects.
+		 */
+		public Job( final List< File > projects, final File output,
+				final double distCutoff, final double mahalanobisDistCutoff, final double ratioThreshold,
+				final int windowSize )
+		{
+			if ( projects.size() < 2 )
+				throw new IllegalArgumentException( "Expected at least two projects." );
+			this.projects = new ArrayList<>( projects );
+			this.output = output;
+			this.distCutoff = distCutoff;
+			this.mahalanobisDistCutoff = mahalanobisDistCutoff;
+			this.ratioThreshold = ratioThreshold;
+			this.windowSize = windowSize;
+		}
+
+		/**
+		 * Returns an estimate of the heap in bytes needed to run this job.
+		 */
+		long estimateMemory()
+		{
+			return Math.max( MIN_MEMORY_PER_JOB, MEMORY_PER_FILE_BYTE * projects.stream().mapToLong( Job::sizeOf ).sum() );
+		}
+
+		private static long sizeOf( final File file )
+		{
+			if ( !file.isDirectory() )
+				return file.length();
+			final File[] files = file.listFiles();
+			return files == null ? 0 : Arrays.stream( files ).mapToLong( File::length ).sum();
+		}
+	}
+
+	public static class Result
+	{
+		final Job job;
+
+		final boolean success;
+
+		final String message;
+
+		final int[] spotsInput;
+
+		final int spotsOutput;
+
+		final int[] conflictCounts;
+
+		final double seconds;
+
+		private Result( final Job job, final boolean success, final String message,
+				final int[] spotsInput, final int spotsOutput,
+				final int[] conflictCounts, final double seconds )
+		{
+			this.job = job;
+			this.success = success;
+			this.message = message;
+			this.spotsInput = spotsInput;
+			this.spotsOutput = spotsOutput;
+			this.conflictCounts = conflictCounts;
+			this.seconds = seconds;
+		}
+
+		public boolean isSuccess()
+		{
+			return success;
+		}
+	}
+
+	/**
+	 * Reads the merge jobs from a manifest file.
+	 *
+	 * @param manifest
+	 *            the manifest file.
+	 * @return the list of jobs.
+	 * @throws IOException
+	 *             if the manifest can not be read or is malformed.
+	 */
+	public static List< Job > readManifest( final File manifest ) throws IOException
+	{
+		return readManifest( manifest, 0 );
+	}
+
+	/**
+	 * Reads the merge jobs from a manifest file.
+	 *
+	 * @param manifest
+	 *            the manifest file.
+	 * @param windowSize
+	 *            the window size of all jobs, 0 to merge all timepoints at
+	 *            once.
+	 * @return the list of jobs.
+	 * @throws IOException
+	 *             if the manifest can not be read or is malformed.
+	 */
+	public static List< Job > readManifest( final File manifest, final int windowSize ) throws IOException
+	{
+		final File baseDir = manifest.getAbsoluteFile().getParentFile();
+		final List< Job > jobs = new ArrayList<>();
+		final List< String > lines = Files.readAllLines( manifest.toPath(), StandardCharsets.UTF_8 );
+		for ( int i = 0; i < lines.size(); i++ )
+		{
+			final String line = lines.get( i ).trim();
+			if ( line.isEmpty() || line.startsWith( "#" ) )
+				continue;
+			final String[] columns = line.split( "\\s*\\t\\s*" );
+			if ( columns.length < 6 )
+				throw new IOException( manifest + ", line " + ( i + 1 ) + ": expected at least 6 tab separated columns but found " + columns.length );
+			final int n = columns.length;
+			try
+			{
+				final List< File > projects = new ArrayList<>();
+				for ( int c = 0; c < n - 4; c++ )
+					projects.add( resolve( baseDir, columns[ c ] ) );
+				jobs.add( new Job(
+						projects,
+						resolve( baseDir, columns[ n - 4 ] ),
+						Double.parseDouble( columns[ n - 3 ] ),
+						Double.parseDouble( columns[ n - 2 ] ),
+						Double.parseDouble( columns[ n - 1 ] ),
+						windowSize ) );
+			}
+			catch ( final NumberFormatException e )
+			{
+				throw new IOException( manifest + ", line " + ( i + 1 ) + ": " + e.getMessage(), e );
+			}
+		}
+		return jobs;
+	}
+
+	private static File resolve( final File baseDir, final String path )
+	{
+		final File file = new File( path );
+		return file.isAbsolute() ? file : new File( baseDir, path );
+	}
+
+	/**
+	 * Runs all {@code jobs}, at most {@code numThreads} at the same time, and
+	 * all together within a memory budget of {@code memoryBudget} bytes. A job
+	 * that is estimated to need more than the budget runs alone.
+	 *
+	 * @param jobs
+	 *            the merge jobs.
+	 * @param numThreads
+	 *            the maximal number of concurrent jobs.
+	 * @param memoryBudget
+	 *            the memory budget in bytes.
+	 * @return the results, in the order of {@code jobs}.
+	 */
+	public static List< Result > run( final List< Job > jobs, final int numThreads, final long memoryBudget )
+	{
+		// NB: Memory is accounted in units of MiB, to stay within int range.
+		final int budgetMiB = ( int ) Math.max( 1, Math.min( Integer.MAX_VALUE, memoryBudget >> 20 ) );
+		final Semaphore memory = new Semaphore( budgetMiB, true );
+		final ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, numThreads ) );
+		try
+		{
+			final List< Future< Result > > futures = new ArrayList<>();
+			for ( final Job job : jobs )
+			{
+				final int permits = ( int ) Math.min( budgetMiB, Math.max( 1, job.estimateMemory() >> 20 ) );
+				futures.add( executor.submit( () -> {
+					memory.acquire( permits );
+					try
+					{
+						return runJob( job );
+					}
+					finally
+					{
+						memory.release( permits );
+					}
+				} ) );
+			}
+			final List< Result > results = new ArrayList<>();
+			for ( int i = 0; i < jobs.size(); i++ )
+			{
+				try
+				{
+					results.add( futures.get( i ).get() );
+				}
+				catch ( final ExecutionException e )
+				{
+					results.add( failed( jobs.get( i ), e.getCause(), 0 ) );
+				}
+				catch ( final InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+					results.add( failed( jobs.get( i ), e, 0 ) );
+				}
+			}
+			return results;
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Runs a single merge job. Exceptions are caught and reported in the
+	 * returned {@link Result}.
+	 *
+	 * @param job
+	 *            the job.
+	 * @return the result of the job.
+	 */
+	public static Result runJob( final Job job )
+	{
+		final long start = System.nanoTime();
+		try
+		{
+			final List< Dataset > datasets = new ArrayList<>();
+			for ( final File project : job.projects )
+				datasets.add( new Dataset( project.getAbsolutePath() ) );
+			final int[] spotsInput = datasets.stream().mapToInt( ds -> ds.model().getGraph().vertices().size() ).toArray();
+			final OutputDataSet output = new OutputDataSet();
+			output.setDatasetXmlFile( datasets.get( 0 ).project().getDatasetXmlFile() );
+			if ( datasets.size() == 2 )
+				MergeDatasets.merge( datasets.get( 0 ), datasets.get( 1 ), output, job.distCutoff, job.mahalanobisDistCutoff, job.ratioThreshold, job.windowSize );
+			else
+				mergeAll( datasets, output, job );
+			output.saveProject( job.output );
+			return new Result( job, true, "", spotsInput,
+					output.getModel().getGraph().vertices().size(),
+					countConflicts( output ), seconds( start ) );
+		}
+		catch ( final Exception | OutOfMemoryError e )
+		{
+			return failed( job, e, seconds( start ) );
+		}
+	}
+
+	private static void mergeAll( final List< Dataset > datasets, final OutputDataSet output, final Job job )
+	{
+		final List< Model > models = new ArrayList<>();
+		final List< String > names = new ArrayList<>();
+		int maxTimepoint = 0;
+		for ( int i = 0; i < datasets.size(); i++ )
+		{
+			models.add( datasets.get( i ).model() );
+			names.add( i < 26 ? String.valueOf( ( char ) ( 'A' + i ) ) : "P" + i );
+			maxTimepoint = Math.max( maxTimepoint, datasets.get( i ).maxNonEmptyTimepoint() );
+		}
+		NWayMerge.merge( models, names, output, 0, maxTimepoint, job.distCutoff, job.mahalanobisDistCutoff, job.ratioThreshold );
+	}
+
+	private static Result failed( final Job job, final Throwable e, final double seconds )
+	{
+		final int[] counts = new int[ CONFLICT_TAGS.size() ];
+		Arrays.fill( counts, -1 );
+		final int[] spotsInput = new int[ job.projects.size() ];
+		Arrays.fill( spotsInput, -1 );
+		return new Result( job, false, String.valueOf( e ), spotsInput, -1, counts, seconds );
+	}
+
+	private static double seconds( final long start )
+	{
+		return ( System.nanoTime() - start ) * 1e-9;
+	}
+
+	private static int[] countConflicts( final OutputDataSet output )
+	{
+		final int[] counts = new int[ CONFLICT_TAGS.size() ];
+		final ObjTags< Spot > vertexTags = output.getModel().getTagSetModel().getVertexTags();
+		for ( final TagSet tagSet : output.getModel().getTagSetModel().getTagSetStructure().getTagSets() )
+		{
+			if ( !tagSet.getName().startsWith( "Merge Conflict" ) )
+				continue;
+			for ( final Tag tag : tagSet.getTags() )
+			{
+				final int i = CONFLICT_TAGS.indexOf( conflictCategory( tag.label() ) );
+				if ( i >= 0 )
+					counts[ i ] += vertexTags.getTaggedWith( tag ).size();
+			}
+		}
+		return counts;
+	}
+
+	private static String conflictCategory( final String label )
+	{
+		if ( label.startsWith( "Singleton" ) )
+			return "Singleton";
+		if ( label.startsWith( "Match" ) )
+			return "Match";
+		return label;
+	}
+
+	/**
+	 * Writes the results as tab separated table with a header line.
+	 *
+	 * @param results
+	 *            the results.
+	 * @param summary
+	 *            the file to write.
+	 * @throws IOException
+	 *             if the file can not be written.
+	 */
+	public static void writeSummary( final List< Result > results, final File summary ) throws IOException
+	{
+		try (final PrintWriter out = new PrintWriter( Files.newBufferedWriter( summary.toPath(), StandardCharsets.UTF_8 ) ))
+		{
+			final StringBuilder header = new StringBuilder( "projects\toutput\tstatus\tspotsInput\tspotsOutput" );
+			for ( final String tag : CONFLICT_TAGS )
+				header.append( '\t' ).append( tag );
+			header.append( "\tseconds\tmessage" );
+			out.println( header );
+			for ( final Result result : results )
+			{
+				final StringBuilder line = new StringBuilder();
+				line.append( result.job.projects.stream().map( File::toString ).collect( Collectors.joining( ";" ) ) ).append( '\t' );
+				line.append( result.job.output ).append( '\t' );
+				line.append( result.success ? "OK" : "FAILED" ).append( '\t' );
+				line.append( Arrays.stream( result.spotsInput ).mapToObj( String::valueOf ).collect( Collectors.joining( ";" ) ) ).append( '\t' );
+				line.append( result.spotsOutput );
+				for ( final int count : result.conflictCounts )
+					line.append( '\t' ).append( count );
+				line.append( '\t' ).append( String.format( Locale.ROOT, "%.1f", result.seconds ) );
+				line.append( '\t' ).append( result.message.replaceAll( "\\s+", " " ) );
+				out.println( line );
+			}
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2022 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.mastodon.mamut.tomancak.merging.BatchMerge.Job;
+import org.mastodon.mamut.tomancak.merging.BatchMerge.Result;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.widget.FileWidget;
+
+/**
+ * Headless command that merges many pairs or groups of Mastodon projects, see
+ * {@link BatchMerge}. Can also be run from the command line:
+ *
+ * <pre>
+ * java ... BatchMergeCommand manifest.tsv summary.tsv [numThreads] [memoryBudgetMiB] [windowSize]
+ * </pre>
+ */
+@Plugin( type = Command.class, name = "Batch merge Mastodon projects" )
+public class BatchMergeCommand implements Command
+{
+	@Parameter( label = "Manifest:", description = "Tab separated file with the columns: projectA, projectB, [projectC, ...,] outputProject, distCutoff, mahalanobisDistCutoff, ratioThreshold.", style = FileWidget.OPEN_STYLE )
+	File manifest;
+
+	@Parameter( label = "Summary:", description = "Tab separated file that the results and conflict counts of every pair are written to.", style = FileWidget.SAVE_STYLE )
+	File summary;
+
+	@Parameter( label = "Concurrent merges:", min = "1" )
+	int numThreads = Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 );
+
+	@Parameter( label = "Memory budget (MiB):", description = "Value of 0 means 80% of the maximal heap size.", min = "0" )
+	long memoryBudgetMiB = 0;
+
+	@Parameter( label = "Window size (timepoints):", description = "Merge this many timepoints at a time, to reduce memory use. Value of 0 merges all timepoints at once.", min = "0" )
+	int windowSize = 0;
+
+	@Parameter
+	private LogService logService;
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			final List< Result > results = run( manifest, summary, numThreads, memoryBudgetMiB, windowSize );
+			final long failed = results.stream().filter( r -> !r.isSuccess() ).count();
+			logService.info( "Merged " + ( results.size() - failed ) + " of " + results.size() + " project pairs. Summary: " + summary );
+		}
+		catch ( final IOException e )
+		{
+			logService.error( "Batch merge failed: " + e.getMessage() );
+		}
+	}
+
+	static List< Result > run( final File manifest, final File summary, final int numThreads, final long memoryBudgetMiB, final int windowSize ) throws IOException
+	{
+		final List< Job > jobs = BatchMerge.readManifest( manifest, windowSize );
+		final long memoryBudget = memoryBudgetMiB > 0
+				? memoryBudgetMiB << 20
+				: ( long ) ( 0.8 * Runtime.getRuntime().maxMemory() );
+		final List< Result > results = BatchMerge.run( jobs, numThreads, memoryBudget );
+		BatchMerge.writeSummary( results, summary );
+		return results;
+	}
+
+	public static void main( final String... args ) throws IOException
+	{
+		if ( args.length < 2 )
+		{
+			System.err.println( "Usage: BatchMergeCommand manifest summary [numThreads] [memoryBudgetMiB] [windowSize]" );
+			System.exit( 2 );
+		}
+		final int numThreads = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 );
+		final long memoryBudgetMiB = args.length > 3 ? Long.parseLong( args[ 3 ] ) : 0;
+		final int windowSize = args.length > 4 ? Integer.parseInt( args[ 4 ] ) : 0;
+		final List< Result > results = run( new File( args[ 0 ] ), new File( args[ 1 ] ), numThreads, memoryBudgetMiB, windowSize );
+		System.exit( results.stream().allMatch( Result::isSuccess ) ? 0 : 1 );
+	}
+}
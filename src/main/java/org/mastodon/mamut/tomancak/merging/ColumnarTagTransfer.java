@@ -0,0 +1,191 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2022 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import org.mastodon.RefPool;
+import org.mastodon.collection.RefCollection;
+import org.mastodon.collection.RefRefMap;
+import org.mastodon.mamut.tomancak.merging.MergeTags.TagSetStructureMaps;
+import org.mastodon.model.tag.ObjTagMap;
+import org.mastodon.model.tag.ObjTags;
+import org.mastodon.model.tag.TagSetStructure;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+
+/**
+ * Transfers the tags of many objects at once, with the same result as calling
+ * {@link MergeModels#transferTags} for every object.
+ * <p>
+ * The objects are given as columns of source and destination ids. The
+ * transfer is done one tag set at a time: First the source tags (and for
+ * conflict checking the present destination tags) are read in parallel and
+ * translated into an int column of actions. Then the actions are applied in
+ * a single sequential pass, because {@link ObjTags} must not be modified
+ * concurrently.
+ *
+ * @param <O>
+ *            type of the tagged objects.
+ */
+class ColumnarTagTransfer< O >
+{
+	private static final int CHUNK_SIZE = 4096;
+
+	private static final int NONE = -1;
+
+	/** Action: set the copied and the merged tag. */
+	private static final int SET_MERGED = 0;
+
+	/** Action: set the copied tag and the tag conflict tag. */
+	private static final int SET_CONFLICT = 1;
+
+	/** Action: set the copied tag, the merged tag is already present. */
+	private static final int SET_COPY_ONLY = 2;
+
+	private final RefPool< O > sourcePool;
+
+	private final RefPool< O > destPool;
+
+	private final int[] sourceIds;
+
+	private final int[] destIds;
+
+	/**
+	 * @param sources
+	 *            the objects to transfer tags from.
+	 * @param sourceToDest
+	 *            maps every object in {@code sources} to the object to
+	 *            transfer its tags to.
+	 * @param sourcePool
+	 *            pool of the source objects.
+	 * @param destPool
+	 *            pool of the destination objects.
+	 */
+	ColumnarTagTransfer( final RefCollection< O > sources, final RefRefMap< O, O > sourceToDest, final RefPool< O > sourcePool, final RefPool< O > destPool )
+	{
+		this.sourcePool = sourcePool;
+		this.destPool = destPool;
+		sourceIds = new int[ sources.size() ];
+		destIds = new int[ sources.size() ];
+		final O ref = destPool.createRef();
+		int i = 0;
+		for ( final O source : sources )
+		{
+			sourceIds[ i ] = sourcePool.getId( source );
+			destIds[ i ] = destPool.getId( sourceToDest.get( source, ref ) );
+			i++;
+		}
+		destPool.releaseRef( ref );
+	}
+
+	/**
+	 * Transfer the tags of all source objects, see
+	 * {@link MergeModels#transferTags} for the parameters.
+	 */
+	void transfer(
+			final ObjTags< O > sourceTags,
+			final TagSetStructure sourceTss,
+			final ObjTags< O > destTags,
+			final TagSetStructureMaps toCopy,
+			final TagSetStructureMaps toDest,
+			final Tag tagTagConflict )
+	{
+		final int[] actions = new int[ sourceIds.length ];
+		for ( final TagSet tagSet : sourceTss.getTagSets() )
+		{
+			final List< Tag > tags = tagSet.getTags();
+			final Map< Tag, Integer > tagIndex = new HashMap<>();
+			final Tag[] copyTags = new Tag[ tags.size() ];
+			final Tag[] mergedTags = new Tag[ tags.size() ];
+			for ( int t = 0; t < tags.size(); t++ )
+			{
+				tagIndex.put( tags.get( t ), t );
+				copyTags[ t ] = toCopy.tagMap.get( tags.get( t ) );
+				mergedTags[ t ] = toDest.tagMap.get( tags.get( t ) );
+			}
+			final ObjTagMap< O, Tag > sourceTagMap = sourceTags.tags( tagSet );
+			final ObjTagMap< O, Tag > destTagMap = destTags.tags( toDest.tagSetMap.get( tagSet ) );
+
+			// read and translate, in parallel
+			final int numChunks = ( sourceIds.length + CHUNK_SIZE - 1 ) / CHUNK_SIZE;
+			IntStream.range( 0, numChunks ).parallel().forEach( chunk -> {
+				final O sref = sourcePool.createRef();
+				final O dref = destPool.createRef();
+				final int end = Math.min( sourceIds.length, ( chunk + 1 ) * CHUNK_SIZE );
+				for ( int i = chunk * CHUNK_SIZE; i < end; i++ )
+				{
+					final Tag tag = sourceTagMap.get( sourcePool.getObject( sourceIds[ i ], sref ) );
+					if ( tag == null )
+					{
+						actions[ i ] = NONE;
+						continue;
+					}
+					final int t = tagIndex.get( tag );
+					int action = SET_MERGED;
+					if ( tagTagConflict != null )
+					{
+						final Tag destTag = destTagMap.get( destPool.getObject( destIds[ i ], dref ) );
+						if ( destTag != null )
+							action = destTag.equals( mergedTags[ t ] ) ? SET_COPY_ONLY : SET_CONFLICT;
+					}
+					actions[ i ] = 3 * t + action;
+				}
+				sourcePool.releaseRef( sref );
+				destPool.releaseRef( dref );
+			} );
+
+			// apply, in one sequential pass
+			final O dref = destPool.createRef();
+			for ( int i = 0; i < sourceIds.length; i++ )
+			{
+				if ( actions[ i ] == NONE )
+					continue;
+				final int t = actions[ i ] / 3;
+				final O dest = destPool.getObject( destIds[ i ], dref );
+				destTags.set( dest, copyTags[ t ] );
+				switch ( actions[ i ] % 3 )
+				{
+				case SET_MERGED:
+					destTags.set( dest, mergedTags[ t ] );
+					break;
+				case SET_CONFLICT:
+					destTags.set( dest, tagTagConflict );
+					break;
+				default:
+					break;
+				}
+			}
+			destPool.releaseRef( dref );
+		}
+	}
+}
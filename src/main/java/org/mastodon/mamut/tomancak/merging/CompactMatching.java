@@ -0,0 +1,594 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2022 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.merging.MatchCandidates.CandidateBatch;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+
+/**
+ * Low-memory alternative to {@link MatchingGraph}. The match candidates are
+ * stored in primitive arrays in compressed sparse row (CSR) layout. Spots are
+ * identified by {@code (graphId, spotId)}, where {@code graphId} is the index
+ * of the {@link ModelGraph} in the list of graphs, and {@code spotId} is the
+ * internal pool index of the spot.
+ * <p>
+ * The outgoing candidates of every spot are sorted by increasing Mahalanobis
+ * distance and pruned in place, when the matching is built by the
+ * {@link Builder}. No vertex objects are created. Only spots that occur in a
+ * candidate get a row in the arrays, a hash map per graph maps the spot id to
+ * the row. The memory is therefore proportional to the number of candidates,
+ * not to the range of spot ids, which matters when matching a small window of
+ * timepoints in a large model.
+ */
+public class CompactMatching implements SpotMatching
+{
+	private final List< ModelGraph > graphs;
+
+	/*
+	 * Maps the spot id of spot s in graph g to its row r = rows[g].get(s), or
+	 * -1 if the spot has no candidates. spotIds[g][r] is the inverse.
+	 */
+
+	private final TIntIntHashMap[] rows;
+
+	private final int[][] spotIds;
+
+	/*
+	 * Outgoing edges, indexed by source graph. Outgoing edges of the spot in
+	 * row r of graph g are at positions outOffsets[g][r] to outOffsets[g][r+1].
+	 * Target spots are stored as spot ids.
+	 */
+
+	private final int[][] outOffsets;
+
+	private final int[][] outTargetGraph;
+
+	private final int[][] outTargetSpot;
+
+	private final double[][] outDistSqu;
+
+	private final double[][] outMahalDistSqu;
+
+	/*
+	 * Incoming edges, indexed by target graph. Source spots are stored as spot
+	 * ids.
+	 */
+
+	private final int[][] inOffsets;
+
+	private final int[][] inSourceGraph;
+
+	private final int[][] inSourceSpot;
+
+	private CompactMatching(
+			final List< ModelGraph > graphs,
+			final TIntIntHashMap[] rows,
+			final int[][] spotIds,
+			final int[][] outOffsets,
+			final int[][] outTargetGraph,
+			final int[][] outTargetSpot,
+			final double[][] outDistSqu,
+			final double[][] outMahalDistSqu )
+	{
+		this.graphs = graphs;
+		this.rows = rows;
+		this.spotIds = spotIds;
+		this.outOffsets = outOffsets;
+		this.outTargetGraph = outTargetGraph;
+		this.outTargetSpot = outTargetSpot;
+		this.outDistSqu = outDistSqu;
+		this.outMahalDistSqu = outMahalDistSqu;
+
+		final int numGraphs = graphs.size();
+		inOffsets = new int[ numGraphs ][];
+		inSourceGraph = new int[ numGraphs ][];
+		inSourceSpot = new int[ numGraphs ][];
+		for ( int g = 0; g < numGraphs; g++ )
+			inOffsets[ g ] = new int[ outOffsets[ g ].length ];
+		for ( int g = 0; g < numGraphs; g++ )
+			for ( int e = 0; e < numEdges( g ); e++ )
+				inOffsets[ outTargetGraph[ g ][ e ] ][ targetRow( g, e ) + 1 ]++;
+		final int[][] fill = new int[ numGraphs ][];
+		for ( int g = 0; g < numGraphs; g++ )
+		{
+			final int[] offsets = inOffsets[ g ];
+			for ( int s = 1; s < offsets.length; s++ )
+				offsets[ s ] += offsets[ s - 1 ];
+			final int numIncoming = offsets[ offsets.length - 1 ];
+			inSourceGraph[ g ] = new int[ numIncoming ];
+			inSourceSpot[ g ] = new int[ numIncoming ];
+			fill[ g ] = offsets.clone();
+		}
+		for ( int g = 0; g < numGraphs; g++ )
+		{
+			final int[] offsets = outOffsets[ g ];
+			for ( int r = 0; r < offsets.length - 1; r++ )
+			{
+				for ( int e = offsets[ r ]; e < offsets[ r + 1 ]; e++ )
+				{
+					final int tg = outTargetGraph[ g ][ e ];
+					final int p = fill[ tg ][ targetRow( g, e ) ]++;
+					inSourceGraph[ tg ][ p ] = g;
+					inSourceSpot[ tg ][ p ] = spotIds[ g ][ r ];
+				}
+			}
+		}
+	}
+
+	public List< ModelGraph > getModelGraphs()
+	{
+		return graphs;
+	}
+
+	/**
+	 * Returns the index of {@code graph} in the list of model graphs.
+	 *
+	 * @param graph
+	 *            the model graph.
+	 * @return the index of the model graph.
+	 * @throws IllegalArgumentException
+	 *             if {@code graph} is not part of this matching.
+	 */
+	public int graphId( final ModelGraph graph )
+	{
+		for ( int g = 0; g < graphs.size(); g++ )
+			if ( graphs.get( g ) == graph )
+				return g;
+		throw new IllegalArgumentException();
+	}
+
+	private int numEdges( final int graphId )
+	{
+		final int[] offsets = outOffsets[ graphId ];
+		return offsets[ offsets.length - 1 ];
+	}
+
+	private int row( final int graphId, final int spotId )
+	{
+		return rows[ graphId ].get( spotId );
+	}
+
+	private int targetRow( final int graphId, final int edge )
+	{
+		return row( outTargetGraph[ graphId ][ edge ], outTargetSpot[ graphId ][ edge ] );
+	}
+
+	public int outDegree( final int graphId, final int spotId )
+	{
+		final int r = row( graphId, spotId );
+		final int[] offsets = outOffsets[ graphId ];
+		return r < 0 ? 0 : offsets[ r + 1 ] - offsets[ r ];
+	}
+
+	public int inDegree( final int graphId, final int spotId )
+	{
+		final int r = row( graphId, spotId );
+		final int[] offsets = inOffsets[ graphId ];
+		return r < 0 ? 0 : offsets[ r + 1 ] - offsets[ r ];
+	}
+
+	/**
+	 * Returns the position of the {@code i}-th outgoing edge of the given spot.
+	 * Use {@link #targetGraphId(int, int)}, {@link #targetSpotId(int, int)},
+	 * {@link #distSqu(int, int)} and {@link #mahalDistSqu(int, int)} to access
+	 * the edge.
+	 *
+	 * @param graphId
+	 *            graph index of the source spot.
+	 * @param spotId
+	 *            pool index of the source spot.
+	 * @param i
+	 *            index of the outgoing edge, {@code 0 <= i < outDegree}.
+	 * @return edge position.
+	 */
+	public int outEdge( final int graphId, final int spotId, final int i )
+	{
+		return outOffsets[ graphId ][ row( graphId, spotId ) ] + i;
+	}
+
+	public int targetGraphId( final int graphId, final int edge )
+	{
+		return outTargetGraph[ graphId ][ edge ];
+	}
+
+	public int targetSpotId( final int graphId, final int edge )
+	{
+		return outTargetSpot[ graphId ][ edge ];
+	}
+
+	public double distSqu( final int graphId, final int edge )
+	{
+		return outDistSqu[ graphId ][ edge ];
+	}
+
+	public double mahalDistSqu( final int graphId, final int edge )
+	{
+		return outMahalDistSqu[ graphId ][ edge ];
+	}
+
+	/**
+	 * Returns the position of the {@code i}-th incoming edge of the given
+	 * spot. Use {@link #sourceGraphId(int, int)} and
+	 * {@link #sourceSpotId(int, int)} to access the edge.
+	 *
+	 * @param graphId
+	 *            graph index of the target spot.
+	 * @param spotId
+	 *            pool index of the target spot.
+	 * @param i
+	 *            index of the incoming edge, {@code 0 <= i < inDegree}.
+	 * @return edge position.
+	 */
+	public int inEdge( final int graphId, final int spotId, final int i )
+	{
+		return inOffsets[ graphId ][ row( graphId, spotId ) ] + i;
+	}
+
+	public int sourceGraphId( final int graphId, final int edge )
+	{
+		return inSourceGraph[ graphId ][ edge ];
+	}
+
+	public int sourceSpotId( final int graphId, final int edge )
+	{
+		return inSourceSpot[ graphId ][ edge ];
+	}
+
+	/**
+	 * Returns the perfect match of the given spot in graph
+	 * {@code targetGraphId}. Spots {@code a} and {@code b} are a perfect
+	 * match, if {@code b} is the best candidate of {@code a} in the graph of
+	 * {@code b}, and {@code a} is the best candidate of {@code b} in the graph
+	 * of {@code a}. For two graphs, this is the same as
+	 * {@link #getPerfectMatch(Spot, Spot)}.
+	 *
+	 * @param graphId
+	 *            graph index of the spot.
+	 * @param spotId
+	 *            pool index of the spot.
+	 * @param targetGraphId
+	 *            graph index of the perfect match.
+	 * @return pool index of the perfect match, or -1 if there is none.
+	 */
+	public int perfectMatch( final int graphId, final int spotId, final int targetGraphId )
+	{
+		final int ts = bestCandidate( graphId, spotId, targetGraphId );
+		if ( ts < 0 || bestCandidate( targetGraphId, ts, graphId ) != spotId )
+			return -1;
+		return ts;
+	}
+
+	/**
+	 * Returns the pool index of the first (best) candidate of the given spot
+	 * in graph {@code targetGraphId}, or -1 if there is none.
+	 */
+	private int bestCandidate( final int graphId, final int spotId, final int targetGraphId )
+	{
+		final int r = row( graphId, spotId );
+		if ( r < 0 )
+			return -1;
+		for ( int e = outOffsets[ graphId ][ r ], end = outOffsets[ graphId ][ r + 1 ]; e < end; e++ )
+			if ( outTargetGraph[ graphId ][ e ] == targetGraphId )
+				return outTargetSpot[ graphId ][ e ];
+		return -1;
+	}
+
+	@Override
+	public boolean isUnmatched( final Spot spot )
+	{
+		final int g = graphId( spot.getModelGraph() );
+		final int s = spot.getInternalPoolIndex();
+		return outDegree( g, s ) == 0 && inDegree( g, s ) == 0;
+	}
+
+	@Override
+	public Spot getPerfectMatch( final Spot spot, final Spot ref )
+	{
+		final int g = graphId( spot.getModelGraph() );
+		final int s = spot.getInternalPoolIndex();
+		if ( outDegree( g, s ) == 0 )
+			return null;
+		final int e = outEdge( g, s, 0 );
+		final int tg = outTargetGraph[ g ][ e ];
+		final int ts = outTargetSpot[ g ][ e ];
+		if ( outDegree( tg, ts ) == 0 )
+			return null;
+		final int te = outEdge( tg, ts, 0 );
+		if ( outTargetGraph[ tg ][ te ] != g || outTargetSpot[ tg ][ te ] != s )
+			return null;
+		return graphs.get( tg ).getGraphIdBimap().getVertex( ts, ref );
+	}
+
+	@Override
+	public void forEachConnected( final Spot spot, final Consumer< Spot > action )
+	{
+		final Spot[] refs = new Spot[ graphs.size() ];
+		for ( int g = 0; g < graphs.size(); g++ )
+			refs[ g ] = graphs.get( g ).vertexRef();
+
+		final TLongHashSet visited = new TLongHashSet();
+		final TLongArrayList stack = new TLongArrayList();
+		final long start = key( graphId( spot.getModelGraph() ), spot.getInternalPoolIndex() );
+		visited.add( start );
+		stack.add( start );
+		while ( !stack.isEmpty() )
+		{
+			final long key = stack.removeAt( stack.size() - 1 );
+			final int g = ( int ) ( key >>> 32 );
+			final int s = ( int ) key;
+			action.accept( graphs.get( g ).getGraphIdBimap().getVertex( s, refs[ g ] ) );
+
+			final int r = row( g, s );
+			if ( r >= 0 )
+			{
+				for ( int e = outOffsets[ g ][ r ], end = outOffsets[ g ][ r + 1 ]; e < end; e++ )
+				{
+					final long next = key( outTargetGraph[ g ][ e ], outTargetSpot[ g ][ e ] );
+					if ( visited.add( next ) )
+						stack.add( next );
+				}
+			}
+			if ( r >= 0 )
+			{
+				for ( int e = inOffsets[ g ][ r ], end = inOffsets[ g ][ r + 1 ]; e < end; e++ )
+				{
+					final long next = key( inSourceGraph[ g ][ e ], inSourceSpot[ g ][ e ] );
+					if ( visited.add( next ) )
+						stack.add( next );
+				}
+			}
+		}
+
+		for ( int g = 0; g < graphs.size(); g++ )
+			graphs.get( g ).releaseRef( refs[ g ] );
+	}
+
+	private static long key( final int graphId, final int spotId )
+	{
+		return ( ( long ) graphId << 32 ) | ( spotId & 0xffffffffL );
+	}
+
+	/**
+	 * Collects {@link CandidateBatch}es and builds a pruned
+	 * {@link CompactMatching}.
+	 */
+	public static class Builder
+	{
+		private final List< ModelGraph > graphs;
+
+		private final TIntIntHashMap[] rows;
+
+		private final TIntArrayList[] spotIds;
+
+		/** Row of the source spot of every collected candidate. */
+		private final TIntArrayList[] sourceRow;
+
+		private final TIntArrayList[] targetGraph;
+
+		private final TIntArrayList[] targetSpot;
+
+		private final TDoubleArrayList[] distSqu;
+
+		private final TDoubleArrayList[] mahalDistSqu;
+
+		public Builder( final List< ModelGraph > graphs )
+		{
+			this.graphs = graphs;
+			final int n = graphs.size();
+			rows = new TIntIntHashMap[ n ];
+			spotIds = new TIntArrayList[ n ];
+			sourceRow = new TIntArrayList[ n ];
+			targetGraph = new TIntArrayList[ n ];
+			targetSpot = new TIntArrayList[ n ];
+			distSqu = new TDoubleArrayList[ n ];
+			mahalDistSqu = new TDoubleArrayList[ n ];
+			for ( int g = 0; g < n; g++ )
+			{
+				rows[ g ] = new TIntIntHashMap( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1, -1 );
+				spotIds[ g ] = new TIntArrayList();
+				sourceRow[ g ] = new TIntArrayList();
+				targetGraph[ g ] = new TIntArrayList();
+				targetSpot[ g ] = new TIntArrayList();
+				distSqu[ g ] = new TDoubleArrayList();
+				mahalDistSqu[ g ] = new TDoubleArrayList();
+			}
+		}
+
+		void add( final CandidateBatch batch )
+		{
+			final int g = batch.sourceGraphId();
+			final int tg = batch.targetGraphId();
+			for ( int i = 0; i < batch.size(); i++ )
+			{
+				sourceRow[ g ].add( row( g, batch.source( i ) ) );
+				targetGraph[ g ].add( tg );
+				targetSpot[ g ].add( batch.target( i ) );
+				distSqu[ g ].add( batch.distSqu( i ) );
+				mahalDistSqu[ g ].add( batch.mahalDistSqu( i ) );
+				// NB: The target needs a row for its incoming edges.
+				row( tg, batch.target( i ) );
+			}
+		}
+
+		/**
+		 * Returns the row of the given spot, and adds a new row if the spot
+		 * has none yet.
+		 */
+		private int row( final int graphId, final int spotId )
+		{
+			final int r = rows[ graphId ].get( spotId );
+			if ( r >= 0 )
+				return r;
+			final int newRow = spotIds[ graphId ].size();
+			rows[ graphId ].put( spotId, newRow );
+			spotIds[ graphId ].add( spotId );
+			return newRow;
+		}
+
+		/**
+		 * Sort the collected candidates of every spot by Mahalanobis distance
+		 * and prune them separately for every target graph, like
+		 * {@link MatchCandidates#pruneMatchingGraph(MatchingGraph)} does for a pair of
+		 * graphs: Candidates in a target graph are accepted in order of
+		 * increasing Mahalanobis distance, until the ratio of squared
+		 * Mahalanobis distances of the next to the current candidate in the
+		 * same target graph exceeds {@code ratioThresholdSqu}. The collected
+		 * candidates are cleared.
+		 *
+		 * @param ratioThresholdSqu
+		 *            the squared ratio threshold.
+		 * @return the pruned matching.
+		 */
+		public CompactMatching build( final double ratioThresholdSqu )
+		{
+			final int n = graphs.size();
+			final int[][] rowSpotIds = new int[ n ][];
+			final int[][] outOffsets = new int[ n ][];
+			final int[][] outTargetGraph = new int[ n ][];
+			final int[][] outTargetSpot = new int[ n ][];
+			final double[][] outDistSqu = new double[ n ][];
+			final double[][] outMahalDistSqu = new double[ n ][];
+			final boolean[] stopped = new boolean[ n ];
+			final int[] lastKept = new int[ n ];
+			for ( int g = 0; g < n; g++ )
+			{
+				final int numRows = spotIds[ g ].size();
+				final int numEdges = sourceRow[ g ].size();
+
+				// counting sort by source row
+				final int[] offsets = new int[ numRows + 1 ];
+				for ( int i = 0; i < numEdges; i++ )
+					offsets[ sourceRow[ g ].get( i ) + 1 ]++;
+				for ( int r = 1; r <= numRows; r++ )
+					offsets[ r ] += offsets[ r - 1 ];
+				final int[] fill = offsets.clone();
+				final int[] tg = new int[ numEdges ];
+				final int[] ts = new int[ numEdges ];
+				final double[] d = new double[ numEdges ];
+				final double[] md = new double[ numEdges ];
+				for ( int i = 0; i < numEdges; i++ )
+				{
+					final int p = fill[ sourceRow[ g ].get( i ) ]++;
+					tg[ p ] = targetGraph[ g ].get( i );
+					ts[ p ] = targetSpot[ g ].get( i );
+					d[ p ] = distSqu[ g ].get( i );
+					md[ p ] = mahalDistSqu[ g ].get( i );
+				}
+				rowSpotIds[ g ] = spotIds[ g ].toArray();
+				sourceRow[ g ] = new TIntArrayList();
+				targetGraph[ g ] = new TIntArrayList();
+				targetSpot[ g ] = new TIntArrayList();
+				distSqu[ g ] = new TDoubleArrayList();
+				mahalDistSqu[ g ] = new TDoubleArrayList();
+
+				// sort every row, prune and compact in place
+				int w = 0;
+				for ( int r = 0; r < numRows; r++ )
+				{
+					final int start = offsets[ r ];
+					final int end = offsets[ r + 1 ];
+					sortByMahalDistSqu( tg, ts, d, md, start, end );
+					Arrays.fill( stopped, false );
+					Arrays.fill( lastKept, -1 );
+					offsets[ r ] = w;
+					for ( int i = start; i < end; i++ )
+					{
+						final int t = tg[ i ];
+						if ( stopped[ t ] )
+							continue;
+						if ( lastKept[ t ] >= 0 && md[ i ] / md[ lastKept[ t ] ] > ratioThresholdSqu )
+						{
+							stopped[ t ] = true;
+							continue;
+						}
+						tg[ w ] = tg[ i ];
+						ts[ w ] = ts[ i ];
+						d[ w ] = d[ i ];
+						md[ w ] = md[ i ];
+						lastKept[ t ] = w++;
+					}
+				}
+				offsets[ numRows ] = w;
+
+				outOffsets[ g ] = offsets;
+				outTargetGraph[ g ] = tg;
+				outTargetSpot[ g ] = ts;
+				outDistSqu[ g ] = d;
+				outMahalDistSqu[ g ] = md;
+			}
+			final TIntIntHashMap[] rowMaps = rows.clone();
+			for ( int g = 0; g < n; g++ )
+			{
+				rows[ g ] = new TIntIntHashMap( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1, -1 );
+				spotIds[ g ] = new TIntArrayList();
+			}
+			return new CompactMatching( graphs, rowMaps, rowSpotIds, outOffsets, outTargetGraph, outTargetSpot, outDistSqu, outMahalDistSqu );
+		}
+
+		/**
+		 * Stable insertion sort of the range {@code [start, end)} by
+		 * {@code md}. Rows are short, usually only a handful of candidates.
+		 */
+		private static void sortByMahalDistSqu( final int[] tg, final int[] ts, final double[] d, final double[] md, final int start, final int end )
+		{
+			for ( int i = start + 1; i < end; i++ )
+			{
+				final int tgi = tg[ i ];
+				final int tsi = ts[ i ];
+				final double di = d[ i ];
+				final double mdi = md[ i ];
+				int j = i - 1;
+				while ( j >= start && md[ j ] > mdi )
+				{
+					tg[ j + 1 ] = tg[ j ];
+					ts[ j + 1 ] = ts[ j ];
+					d[ j + 1 ] = d[ j ];
+					md[ j + 1 ] = md[ j ];
+					j--;
+				}
+				tg[ j + 1 ] = tgi;
+				ts[ j + 1 ] = tsi;
+				d[ j + 1 ] = di;
+				md[ j + 1 ] = mdi;
+			}
+		}
+	}
+}
@@ -28,26 +28,72 @@
  */
 package org.mastodon.mamut.tomancak.merging;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
 
 import org.mastodon.collection.RefCollections;
 import org.mastodon.collection.RefList;
 import org.mastodon.kdtree.IncrementalNearestNeighborSearch;
 import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
 import org.mastodon.spatial.SpatialIndex;
 
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+
 public class MatchCandidates
 {
+	/**
+	 * How the neighbors of a spot are enumerated when searching for match
+	 * candidates.
+	 */
+	public enum SearchMode
+	{
+		/**
+		 * Neighbors are visited in order of increasing Euclidean distance. The
+		 * search stops at the first neighbor that exceeds the absolute or the
+		 * Mahalanobis distance cutoff. This is fast, but may miss candidates,
+		 * because the order of Euclidean distances differs from the order of
+		 * Mahalanobis distances.
+		 */
+		FIRST_EXCEEDING,
+
+		/**
+		 * The largest eigenvalue of the covariance of the spot is used to turn
+		 * the Mahalanobis distance cutoff into an Euclidean search radius.
+		 * All neighbors within that radius are visited, neighbors that exceed
+		 * the Mahalanobis distance cutoff are skipped. This finds all
+		 * candidates.
+		 */
+		MAHALANOBIS_BOUND
+	}
+
 	private final double absoluteDistSquCutoff;
 	private final double mahalanobisDistSquCutoff;
 	private final double ratioThresholdSqu;
+	private final SearchMode searchMode;
 
+	/**
+	 * Uses {@link SearchMode#MAHALANOBIS_BOUND}, which finds all candidates
+	 * within the cutoffs.
+	 */
 	public MatchCandidates( final double distCutoff, final double mahalanobisDistCutoff, final double ratioThreshold )
+	{
+		this( distCutoff, mahalanobisDistCutoff, ratioThreshold, SearchMode.MAHALANOBIS_BOUND );
+	}
+
+	public MatchCandidates( final double distCutoff, final double mahalanobisDistCutoff, final double ratioThreshold, final SearchMode searchMode )
 	{
 		absoluteDistSquCutoff = distCutoff * distCutoff;
 		mahalanobisDistSquCutoff = mahalanobisDistCutoff * mahalanobisDistCutoff;
 		ratioThresholdSqu = ratioThreshold * ratioThreshold;
+		this.searchMode = searchMode;
 	}
 
 	public MatchingGraph buildMatchingGraph( final Dataset dsA, final Dataset dsB )
@@ -65,20 +111,179 @@ public class MatchCandidates
 	public MatchingGraph buildMatchingGraph(final Model mA, final Model mB, final int minTimepoint, final int maxTimepoint )
 	{
 		final MatchingGraph matching = MatchingGraph.newWithAllSpots( mA, mB );
+		final int graphIdA = matching.modelGraphIndex( mA.getGraph() );
+		final int graphIdB = matching.modelGraphIndex( mB.getGraph() );
+		final PrecisionMatrixCache precisionsA = PrecisionMatrixCache.compute( mA.getGraph() );
+		final PrecisionMatrixCache precisionsB = PrecisionMatrixCache.compute( mB.getGraph() );
+		final SpotMath spotMath = new SpotMath();
+		final CandidateBatch batchAB = new CandidateBatch( graphIdA, graphIdB );
+		final CandidateBatch batchBA = new CandidateBatch( graphIdB, graphIdA );
 		for ( int timepoint = minTimepoint; timepoint <= maxTimepoint; timepoint++ )
 		{
 			final SpatialIndex< Spot > indexA = mA.getSpatioTemporalIndex().getSpatialIndex( timepoint );
 			final SpatialIndex< Spot > indexB = mB.getSpatioTemporalIndex().getSpatialIndex( timepoint );
-			addCandidates( matching, indexA, indexB );
-			addCandidates( matching, indexB, indexA );
+			batchAB.clear();
+			batchBA.clear();
+			addCandidates( batchAB, indexA, indexB, precisionsA, spotMath );
+			addCandidates( batchBA, indexB, indexA, precisionsB, spotMath );
+			batchAB.addTo( matching );
+			batchBA.addTo( matching );
 		}
 
 		return matching;
 	}
 
-	private void addCandidates( final MatchingGraph matching, final SpatialIndex< Spot > indexA, final SpatialIndex< Spot > indexB )
+	/**
+	 * Parallel version of
+	 * {@link #buildMatchingGraph(Model, Model, int, int)}. The nearest
+	 * neighbor queries of each timepoint are run as a separate task on
+	 * {@code pool}. Every task collects its candidate edges into
+	 * {@link CandidateBatch}es, which are then added to the
+	 * {@link MatchingGraph} by the calling thread in order of increasing
+	 * timepoint. The resulting graph is therefore identical to the one
+	 * computed by the serial version.
+	 *
+	 * @param mA
+	 *            the first model.
+	 * @param mB
+	 *            the second model.
+	 * @param minTimepoint
+	 *            the first timepoint to match.
+	 * @param maxTimepoint
+	 *            the last timepoint to match (inclusive).
+	 * @param pool
+	 *            the pool that runs the per-timepoint nearest neighbor
+	 *            queries.
+	 * @return the matching graph.
+	 */
+	public MatchingGraph buildMatchingGraph( final Model mA, final Model mB, final int minTimepoint, final int maxTimepoint, final ForkJoinPool pool )
+	{
+		final MatchingGraph matching = MatchingGraph.newWithAllSpots( mA, mB );
+		final int graphIdA = matching.modelGraphIndex( mA.getGraph() );
+		final int graphIdB = matching.modelGraphIndex( mB.getGraph() );
+		findCandidates( mA, mB, graphIdA, graphIdB, minTimepoint, maxTimepoint, pool, batch -> batch.addTo( matching ) );
+		return matching;
+	}
+
+	/**
+	 * Find match candidates between {@code mA} and {@code mB} in parallel
+	 * (like {@link #buildMatchingGraph(Model, Model, int, int, ForkJoinPool)})
+	 * and collect them into a {@link CompactMatching}, which is pruned with the
+	 * ratio threshold of this {@link MatchCandidates}. In contrast to
+	 * {@link #pruneMatchingGraph(MatchingGraph)} no vertices are allocated and
+	 * pruning happens in place.
+	 * <p>
+	 * In the resulting matching, {@code mA} has graph index 0 and {@code mB}
+	 * has graph index 1.
+	 *
+	 * @param mA
+	 *            the first model.
+	 * @param mB
+	 *            the second model.
+	 * @param minTimepoint
+	 *            the first timepoint to match.
+	 * @param maxTimepoint
+	 *            the last timepoint to match (inclusive).
+	 * @param pool
+	 *            the pool that runs the per-timepoint nearest neighbor
+	 *            queries.
+	 * @return the pruned matching.
+	 */
+	public CompactMatching buildCompactMatching( final Model mA, final Model mB, final int minTimepoint, final int maxTimepoint, final ForkJoinPool pool )
+	{
+		final CompactMatching.Builder builder = new CompactMatching.Builder( Arrays.asList( mA.getGraph(), mB.getGraph() ) );
+		findCandidates( mA, mB, 0, 1, minTimepoint, maxTimepoint, pool, builder::add );
+		return builder.build( ratioThresholdSqu );
+	}
+
+	/**
+	 * Find match candidates between every pair of the given {@code models}
+	 * and collect them into one pruned {@link CompactMatching}. The graph
+	 * index of every model in the resulting matching is its index in
+	 * {@code models}.
+	 *
+	 * @param models
+	 *            the models.
+	 * @param minTimepoint
+	 *            the first timepoint to match.
+	 * @param maxTimepoint
+	 *            the last timepoint to match (inclusive).
+	 * @param pool
+	 *            the pool that runs the per-timepoint nearest neighbor
+	 *            queries.
+	 * @return the pruned matching.
+	 */
+	public CompactMatching buildCompactMatching( final List< Model > models, final int minTimepoint, final int maxTimepoint, final ForkJoinPool pool )
+	{
+		final List< ModelGraph > graphs = new ArrayList<>();
+		final List< PrecisionMatrixCache > precisions = new ArrayList<>();
+		for ( final Model model : models )
+		{
+			graphs.add( model.getGraph() );
+			precisions.add( PrecisionMatrixCache.compute( model.getGraph(), model.getSpatioTemporalIndex(), minTimepoint, maxTimepoint ) );
+		}
+		final CompactMatching.Builder builder = new CompactMatching.Builder( graphs );
+		for ( int i = 0; i < models.size(); i++ )
+			for ( int j = i + 1; j < models.size(); j++ )
+				findCandidates( models.get( i ), models.get( j ), i, j, precisions.get( i ), precisions.get( j ), minTimepoint, maxTimepoint, pool, builder::add );
+		return builder.build( ratioThresholdSqu );
+	}
+
+	private void findCandidates(
+			final Model mA, final Model mB,
+			final int graphIdA, final int graphIdB,
+			final int minTimepoint, final int maxTimepoint,
+			final ForkJoinPool pool,
+			final Consumer< CandidateBatch > sink )
+	{
+		final PrecisionMatrixCache precisionsA = PrecisionMatrixCache.compute( mA.getGraph(), mA.getSpatioTemporalIndex(), minTimepoint, maxTimepoint );
+		final PrecisionMatrixCache precisionsB = PrecisionMatrixCache.compute( mB.getGraph(), mB.getSpatioTemporalIndex(), minTimepoint, maxTimepoint );
+		findCandidates( mA, mB, graphIdA, graphIdB, precisionsA, precisionsB, minTimepoint, maxTimepoint, pool, sink );
+	}
+
+	private void findCandidates(
+			final Model mA, final Model mB,
+			final int graphIdA, final int graphIdB,
+			final PrecisionMatrixCache precisionsA, final PrecisionMatrixCache precisionsB,
+			final int minTimepoint, final int maxTimepoint,
+			final ForkJoinPool pool,
+			final Consumer< CandidateBatch > sink )
+	{
+		final List< ForkJoinTask< CandidateBatch[] > > tasks = new ArrayList<>( Math.max( 0, maxTimepoint - minTimepoint + 1 ) );
+		for ( int timepoint = minTimepoint; timepoint <= maxTimepoint; timepoint++ )
+		{
+			// NB: Spatial indices are retrieved here, in the calling thread.
+			// Each task only touches the indices of its own timepoint.
+			final SpatialIndex< Spot > indexA = mA.getSpatioTemporalIndex().getSpatialIndex( timepoint );
+			final SpatialIndex< Spot > indexB = mB.getSpatioTemporalIndex().getSpatialIndex( timepoint );
+			tasks.add( pool.submit( () -> {
+				final SpotMath spotMath = new SpotMath();
+				final CandidateBatch batchAB = new CandidateBatch( graphIdA, graphIdB );
+				final CandidateBatch batchBA = new CandidateBatch( graphIdB, graphIdA );
+				addCandidates( batchAB, indexA, indexB, precisionsA, spotMath );
+				addCandidates( batchBA, indexB, indexA, precisionsB, spotMath );
+				return new CandidateBatch[] { batchAB, batchBA };
+			} ) );
+		}
+
+		for ( int i = 0; i < tasks.size(); i++ )
+		{
+			for ( final CandidateBatch batch : tasks.get( i ).join() )
+				sink.accept( batch );
+			tasks.set( i, null );
+		}
+	}
+
+	private void addCandidates( final CandidateBatch batch, final SpatialIndex< Spot > indexA, final SpatialIndex< Spot > indexB, final PrecisionMatrixCache precisionsA, final SpotMath spotMath )
+	{
+		if ( searchMode == SearchMode.MAHALANOBIS_BOUND )
+			addCandidatesWithinBound( batch, indexA, indexB, precisionsA, spotMath );
+		else
+			addCandidatesUntilFirstExceeding( batch, indexA, indexB, precisionsA, spotMath );
+	}
+
+	private void addCandidatesUntilFirstExceeding( final CandidateBatch batch, final SpatialIndex< Spot > indexA, final SpatialIndex< Spot > indexB, final PrecisionMatrixCache precisionsA, final SpotMath spotMath )
 	{
-		final SpotMath spotMath = new SpotMath();
 		final IncrementalNearestNeighborSearch< Spot > inns = indexB.getIncrementalNearestNeighborSearch();
 		for ( final Spot spot1 : indexA )
 		{
@@ -90,14 +295,134 @@ public class MatchCandidates
 				if ( dSqu > absoluteDistSquCutoff )
 					break;
 				final Spot spot2 = inns.get();
-				final double mdSqu = spotMath.mahalanobisDistSqu( spot1, spot2 );
+				final double mdSqu = spotMath.mahalanobisDistSqu( precisionsA, spot1, spot2 );
 				if ( mdSqu > mahalanobisDistSquCutoff )
 					break;
-				matching.addEdge(
-						matching.getVertex( spot1 ),
-						matching.getVertex( spot2 )
-				).init( dSqu, mdSqu );
+				batch.add( spot1.getInternalPoolIndex(), spot2.getInternalPoolIndex(), dSqu, mdSqu );
+			}
+		}
+	}
+
+	/**
+	 * For a spot with covariance {@code C}, {@code dSqu / lambdaMax(C) <=
+	 * mdSqu} holds for every point, where {@code dSqu} is the squared
+	 * Euclidean distance, {@code mdSqu} the squared Mahalanobis distance and
+	 * {@code lambdaMax(C)} is the largest eigenvalue of {@code C} (the
+	 * squared bounding sphere radius of the spot). Therefore, no neighbor
+	 * beyond {@code dSqu = mahalanobisDistSquCutoff * lambdaMax(C)} can
+	 * satisfy the Mahalanobis distance cutoff.
+	 */
+	private void addCandidatesWithinBound( final CandidateBatch batch, final SpatialIndex< Spot > indexA, final SpatialIndex< Spot > indexB, final PrecisionMatrixCache precisionsA, final SpotMath spotMath )
+	{
+		final IncrementalNearestNeighborSearch< Spot > inns = indexB.getIncrementalNearestNeighborSearch();
+		for ( final Spot spot1 : indexA )
+		{
+			final double radiusSqu = Math.min( absoluteDistSquCutoff, mahalanobisDistSquCutoff * spot1.getBoundingSphereRadiusSquared() );
+			inns.search( spot1 );
+			while ( inns.hasNext() )
+			{
+				inns.fwd();
+				final double dSqu = inns.getSquareDistance();
+				if ( dSqu > radiusSqu )
+					break;
+				final Spot spot2 = inns.get();
+				final double mdSqu = spotMath.mahalanobisDistSqu( precisionsA, spot1, spot2 );
+				if ( mdSqu > mahalanobisDistSquCutoff )
+					continue;
+				batch.add( spot1.getInternalPoolIndex(), spot2.getInternalPoolIndex(), dSqu, mdSqu );
+			}
+		}
+	}
+
+	/**
+	 * Candidate edges found for one timepoint and one direction, stored in
+	 * primitive arrays. Spots are identified by their internal pool index.
+	 */
+	static class CandidateBatch
+	{
+		private final int sourceGraphId;
+
+		private final int targetGraphId;
+
+		private final TIntArrayList sources = new TIntArrayList();
+
+		private final TIntArrayList targets = new TIntArrayList();
+
+		private final TDoubleArrayList distSqu = new TDoubleArrayList();
+
+		private final TDoubleArrayList mahalDistSqu = new TDoubleArrayList();
+
+		CandidateBatch( final int sourceGraphId, final int targetGraphId )
+		{
+			this.sourceGraphId = sourceGraphId;
+			this.targetGraphId = targetGraphId;
+		}
+
+		void add( final int sourceSpotId, final int targetSpotId, final double dSqu, final double mdSqu )
+		{
+			sources.add( sourceSpotId );
+			targets.add( targetSpotId );
+			distSqu.add( dSqu );
+			mahalDistSqu.add( mdSqu );
+		}
+
+		int sourceGraphId()
+		{
+			return sourceGraphId;
+		}
+
+		int targetGraphId()
+		{
+			return targetGraphId;
+		}
+
+		int size()
+		{
+			return sources.size();
+		}
+
+		int source( final int i )
+		{
+			return sources.get( i );
+		}
+
+		int target( final int i )
+		{
+			return targets.get( i );
+		}
+
+		double distSqu( final int i )
+		{
+			return distSqu.get( i );
+		}
+
+		double mahalDistSqu( final int i )
+		{
+			return mahalDistSqu.get( i );
+		}
+
+		void clear()
+		{
+			sources.resetQuick();
+			targets.resetQuick();
+			distSqu.resetQuick();
+			mahalDistSqu.resetQuick();
+		}
+
+		void addTo( final MatchingGraph matching )
+		{
+			final MatchingVertex ref1 = matching.vertexRef();
+			final MatchingVertex ref2 = matching.vertexRef();
+			final MatchingEdge eref = matching.edgeRef();
+			for ( int i = 0; i < sources.size(); i++ )
+			{
+				final MatchingVertex source = matching.getVertex( sourceGraphId, sources.get( i ), ref1 );
+				final MatchingVertex target = matching.getVertex( targetGraphId, targets.get( i ), ref2 );
+				matching.addEdge( source, target, eref ).init( distSqu.get( i ), mahalDistSqu.get( i ) );
 			}
+			matching.releaseRef( ref1 );
+			matching.releaseRef( ref2 );
+			matching.releaseRef( eref );
 		}
 	}
 
@@ -135,9 +135,24 @@ public class MatchingGraph extends GraphImp<
 
 	public MatchingVertex getVertex( final Spot spot, final MatchingVertex ref )
 	{
-		final int graphId = vertexPool.modelGraphIndex( spot );
-		final int spotId = spot.getInternalPoolIndex();
+		return getVertex( vertexPool.modelGraphIndex( spot ), spot.getInternalPoolIndex(), ref );
+	}
 
+	/**
+	 * Get the vertex corresponding to the spot with internal pool index
+	 * {@code spotId} in the model graph with index {@code graphId}. The
+	 * vertex is created if it does not exist yet.
+	 *
+	 * @param graphId
+	 *            index of the model graph, see {@link #modelGraphIndex(ModelGraph)}.
+	 * @param spotId
+	 *            internal pool index of the spot.
+	 * @param ref
+	 *            a vertex reference.
+	 * @return the matching vertex.
+	 */
+	MatchingVertex getVertex( final int graphId, final int spotId, final MatchingVertex ref )
+	{
 		final IntRefMap< MatchingVertex > map = graphToSpotToMatchingVertex.get( graphId );
 		MatchingVertex v = map.get( spotId, ref );
 		if ( v == null )
@@ -148,6 +163,21 @@ public class MatchingGraph extends GraphImp<
 		return v;
 	}
 
+	/**
+	 * Returns the index of {@code graph} in the list of model graphs of this
+	 * matching graph.
+	 *
+	 * @param graph
+	 *            the model graph.
+	 * @return the index of the model graph.
+	 * @throws IllegalArgumentException
+	 *             if {@code graph} is not part of this matching graph.
+	 */
+	int modelGraphIndex( final ModelGraph graph )
+	{
+		return vertexPool.modelGraphIndex( graph );
+	}
+
 	/**
 	 * Find conflicts, i.e., connected components with cardinality other than 1 or 2.
 	 *
@@ -244,7 +274,12 @@ public class MatchingGraph extends GraphImp<
 
 		int modelGraphIndex( final Spot spot )
 		{
-			final int i = modelGraphToIndex.get( spot.getModelGraph() );
+			return modelGraphIndex( spot.getModelGraph() );
+		}
+
+		int modelGraphIndex( final ModelGraph graph )
+		{
+			final int i = modelGraphToIndex.get( graph );
 			if ( i < 0 )
 				throw new IllegalArgumentException();
 			return i;
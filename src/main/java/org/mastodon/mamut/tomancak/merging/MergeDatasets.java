@@ -138,11 +138,30 @@ public class MergeDatasets
 	}
 
 	public static void merge( final Dataset dsA, final Dataset dsB, final OutputDataSet output, final double distCutoff, final double mahalanobisDistCutoff, final double ratioThreshold )
+	{
+		merge( dsA, dsB, output, distCutoff, mahalanobisDistCutoff, ratioThreshold, 0 );
+	}
+
+	/**
+	 * Merges {@code dsA} and {@code dsB} into {@code output}.
+	 *
+	 * @param windowSize
+	 *            if positive, the timepoints are merged in windows of this
+	 *            many timepoints by {@link WindowedMerge}, which needs less
+	 *            memory. Otherwise all timepoints are merged at once by
+	 *            {@link MergeModels}.
+	 */
+	public static void merge( final Dataset dsA, final Dataset dsB, final OutputDataSet output, final double distCutoff, final double mahalanobisDistCutoff, final double ratioThreshold, final int windowSize )
 	{
 		final int minTimepoint = 0;
 		final int maxTimepoint = Math.max( dsA.maxNonEmptyTimepoint(), dsB.maxNonEmptyTimepoint() );
-		MergeModels.merge( dsA.model(), dsB.model(), output,
-				minTimepoint, maxTimepoint,
-				distCutoff, mahalanobisDistCutoff, ratioThreshold );
+		if ( windowSize > 0 )
+			WindowedMerge.merge( dsA.model(), dsB.model(), output,
+					minTimepoint, maxTimepoint, windowSize,
+					distCutoff, mahalanobisDistCutoff, ratioThreshold );
+		else
+			MergeModels.merge( dsA.model(), dsB.model(), output,
+					minTimepoint, maxTimepoint,
+					distCutoff, mahalanobisDistCutoff, ratioThreshold );
 	}
 }
@@ -28,6 +28,9 @@
  */
 package org.mastodon.mamut.tomancak.merging;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
 import org.mastodon.collection.RefMaps;
 import org.mastodon.collection.RefRefMap;
 import org.mastodon.graph.algorithm.traversal.UndirectedDepthFirstIterator;
@@ -37,6 +40,7 @@ import org.mastodon.mamut.model.Model;
 import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
 import org.mastodon.mamut.tomancak.spots.InterpolateMissingSpots;
+import org.mastodon.mamut.tomancak.util.TimepointExtentIndex;
 import org.mastodon.mamut.tomancak.merging.MergeDatasets.OutputDataSet;
 import org.mastodon.mamut.tomancak.merging.MergeTags.TagSetStructureMaps;
 import org.mastodon.model.tag.ObjTags;
@@ -50,10 +54,7 @@ public class MergeModels
 {
 	static int getMaxNonEmptyTimepoint( final Model m )
 	{
-		int maxTimepoint = 0;
-		for ( final Spot s : m.getGraph().vertices() )
-			maxTimepoint = Math.max( maxTimepoint, s.getTimepoint() );
-		return maxTimepoint;
+		return Math.max( 0, TimepointExtentIndex.get( m.getGraph() ).getMaxNonEmptyTimepoint() );
 	}
 
 	public static void merge( final Model mA, final Model mB, final OutputDataSet output,
@@ -68,14 +69,54 @@ public class MergeModels
 			final int minTimepoint, final int maxTimepoint,
 			final double distCutoff, final double mahalanobisDistCutoff, final double ratioThreshold )
 	{
-		new ModelImporter( output.getModel() ){{ startImport(); }};
-
-		InterpolateMissingSpots.interpolate( mA );
-		InterpolateMissingSpots.interpolate( mB );
+		InterpolateMissingSpots.interpolateBatched( mA, false );
+		InterpolateMissingSpots.interpolateBatched( mB, false );
 
 		final MatchCandidates candidates = new MatchCandidates( distCutoff, mahalanobisDistCutoff, ratioThreshold );
-		final MatchingGraph matching = candidates.pruneMatchingGraph( candidates.buildMatchingGraph( mA, mB, minTimepoint, maxTimepoint ) );
-		final MatchingGraphUtils utils = new MatchingGraphUtils( matching );
+		final CompactMatching matching = candidates.buildCompactMatching( mA, mB, minTimepoint, maxTimepoint, ForkJoinPool.commonPool() );
+		merge( mA, mB, output, maxTimepoint, matching );
+	}
+
+	/**
+	 * Merge {@code mA} and {@code mB} into {@code output}, using a pruned
+	 * {@link MatchingGraph}, as returned by
+	 * {@link MatchCandidates#pruneMatchingGraph(MatchingGraph)}.
+	 *
+	 * @param mA
+	 *            the first model.
+	 * @param mB
+	 *            the second model.
+	 * @param output
+	 *            the output dataset.
+	 * @param maxTimepoint
+	 *            the last timepoint of {@code mB} to merge.
+	 * @param matching
+	 *            the pruned matching graph.
+	 */
+	public static void merge( final Model mA, final Model mB, final OutputDataSet output, final int maxTimepoint, final MatchingGraph matching )
+	{
+		merge( mA, mB, output, maxTimepoint, new MatchingGraphUtils( matching ) );
+	}
+
+	/**
+	 * Merge {@code mA} and {@code mB} into {@code output}, using a pruned
+	 * matching between the spots of both models, for example a
+	 * {@link CompactMatching}.
+	 *
+	 * @param mA
+	 *            the first model.
+	 * @param mB
+	 *            the second model.
+	 * @param output
+	 *            the output dataset.
+	 * @param maxTimepoint
+	 *            the last timepoint of {@code mB} to merge.
+	 * @param matching
+	 *            the pruned matching.
+	 */
+	public static void merge( final Model mA, final Model mB, final OutputDataSet output, final int maxTimepoint, final SpotMatching matching )
+	{
+		new ModelImporter( output.getModel() ){{ startImport(); }};
 
 		final Tag tagA = output.addSourceTag( "A", 0xffffff00 );
 		final Tag tagB = output.addSourceTag( "B", 0xffff00ff );
@@ -149,15 +190,14 @@ public class MergeModels
 */
 		final ModelGraph graphB = mB.getGraph();
 		final RefRefMap< Spot, Spot > mapBtoDest = RefMaps.createRefRefMap( graphA.vertices(), graph.vertices() );
-		final UndirectedDepthFirstIterator< MatchingVertex, MatchingEdge > miter = new UndirectedDepthFirstIterator<>( matching );
+		final Spot refA = graphA.vertexRef();
 		for ( int timepoint = 0; timepoint <= maxTimepoint; timepoint++ )
 		{
 			final SpatialIndex< Spot > indexB = mB.getSpatioTemporalIndex().getSpatialIndex( timepoint );
 			for ( final Spot spotB : indexB )
 			{
-				final MatchingVertex mvB = matching.getVertex( spotB );
-
-				if ( utils.isUnmatched( mvB ) )
+				final Spot spotA;
+				if ( matching.isUnmatched( spotB ) )
 				{
 					final int tp = spotB.getTimepoint();
 					spotB.localize( pos );
@@ -167,10 +207,8 @@ public class MergeModels
 					vertexTags.set( destSpot, tagSingletonB );
 					mapBtoDest.put( spotB, destSpot );
 				}
-				else if ( utils.isPerfectlyMatched( mvB ) )
+				else if ( ( spotA = matching.getPerfectMatch( spotB, refA ) ) != null )
 				{
-					final MatchingVertex mvA = mvB.outgoingEdges().get( 0 ).getTarget();
-					final Spot spotA = mvA.getSpot( vref );
 					final Spot destSpotA = mapAtoDest.get( spotA );
 					if ( ! ( spotB.incomingEdges().isEmpty() || spotA.incomingEdges().isEmpty() ) )
 					{
@@ -204,11 +242,7 @@ public class MergeModels
 					vertexTags.set( destSpot, tagB );
 					mapBtoDest.put( spotB, destSpot );
 
-					miter.reset( mvB );
-					while ( miter.hasNext() )
-					{
-						final MatchingVertex mv = miter.next();
-						final Spot sourceSpot = mv.getSpot();
+					matching.forEachConnected( spotB, sourceSpot -> {
 						final Spot spot;
 						if ( sourceSpot.getModelGraph() == graphA )
 							spot = mapAtoDest.get( sourceSpot );
@@ -216,7 +250,7 @@ public class MergeModels
 							spot = mapBtoDest.get( sourceSpot );
 						if ( spot != null )
 							vertexTags.set( spot, tagConflict );
-					}
+					} );
 				}
 			}
 		}
@@ -271,38 +305,10 @@ public class MergeModels
 					set t" for a'
 		analogous for links in A...
 */
-		for ( final Spot spotA : graphA.vertices() )
-		{
-			final Spot destSpot = mapAtoDest.get( spotA );
-			for ( final TagSet tagSet : tssA.getTagSets() )
-			{
-				final Tag tag = tsmA.getVertexTags().tags( tagSet ).get( spotA );
-				if ( tag != null )
-				{
-					// copy ((A))
-					tsm.getVertexTags().set( destSpot, tssAtoCopy.tagMap.get( tag ) );
-
-					// merged
-					tsm.getVertexTags().set( destSpot, tssAtoDest.tagMap.get( tag ) );
-				}
-			}
-		}
-		for ( final Link linkA : graphA.edges() )
-		{
-			final Link destLink = mapAtoDestLinks.get( linkA );
-			for ( final TagSet tagSet : tssA.getTagSets() )
-			{
-				final Tag tag = tsmA.getEdgeTags().tags( tagSet ).get( linkA );
-				if ( tag != null )
-				{
-					// copy ((A))
-					tsm.getEdgeTags().set( destLink, tssAtoCopy.tagMap.get( tag ) );
-
-					// merged
-					tsm.getEdgeTags().set( destLink, tssAtoDest.tagMap.get( tag ) );
-				}
-			}
-		}
+		new ColumnarTagTransfer<>( graphA.vertices(), mapAtoDest, graphA.vertices().getRefPool(), graph.vertices().getRefPool() )
+				.transfer( tsmA.getVertexTags(), tssA, tsm.getVertexTags(), tssAtoCopy, tssAtoDest, null );
+		new ColumnarTagTransfer<>( graphA.edges(), mapAtoDestLinks, graphA.edges().getRefPool(), graph.edges().getRefPool() )
+				.transfer( tsmA.getEdgeTags(), tssA, tsm.getEdgeTags(), tssAtoCopy, tssAtoDest, null );
 
 /*
 		for every spot b in B:
@@ -321,50 +327,10 @@ public class MergeModels
 						set t" for b'
 		analogous for links in B...
 */
-		for ( final Spot spotB : graphB.vertices() )
-		{
-			final Spot destSpot = mapBtoDest.get( spotB );
-			for ( final TagSet tagSet : tssB.getTagSets() )
-			{
-				final Tag tag = tsmB.getVertexTags().tags( tagSet ).get( spotB );
-				if ( tag != null )
-				{
-					// copy ((B))
-					tsm.getVertexTags().set( destSpot, tssBtoCopy.tagMap.get( tag ) );
-
-					// merged
-					final TagSet destTagSet = tssBtoDest.tagSetMap.get( tagSet );
-					final Tag destTag = tsm.getVertexTags().tags( destTagSet ).get( destSpot );
-					final Tag expectedDestTag = tssBtoDest.tagMap.get( tag );
-					if ( destTag == null )
-						tsm.getVertexTags().set( destSpot, expectedDestTag );
-					else if ( !destTag.equals( expectedDestTag ) )
-						tsm.getVertexTags().set( destSpot, tagTagConflict );
-				}
-			}
-		}
-		for ( final Link linkB : graphB.edges() )
-		{
-			final Link destLink = mapBtoDestLinks.get( linkB );
-			for ( final TagSet tagSet : tssB.getTagSets() )
-			{
-				final Tag tag = tsmB.getEdgeTags().tags( tagSet ).get( linkB );
-				if ( tag != null )
-				{
-					// copy ((B))
-					tsm.getEdgeTags().set( destLink, tssBtoCopy.tagMap.get( tag ) );
-
-					// merged
-					final TagSet destTagSet = tssBtoDest.tagSetMap.get( tagSet );
-					final Tag destTag = tsm.getEdgeTags().tags( destTagSet ).get( destLink );
-					final Tag expectedDestTag = tssBtoDest.tagMap.get( tag );
-					if ( destTag == null )
-						tsm.getEdgeTags().set( destLink, expectedDestTag );
-					else if ( !destTag.equals( expectedDestTag ) )
-						tsm.getEdgeTags().set( destLink, tagTagConflict );
-				}
-			}
-		}
+		new ColumnarTagTransfer<>( graphB.vertices(), mapBtoDest, graphB.vertices().getRefPool(), graph.vertices().getRefPool() )
+				.transfer( tsmB.getVertexTags(), tssB, tsm.getVertexTags(), tssBtoCopy, tssBtoDest, tagTagConflict );
+		new ColumnarTagTransfer<>( graphB.edges(), mapBtoDestLinks, graphB.edges().getRefPool(), graph.edges().getRefPool() )
+				.transfer( tsmB.getEdgeTags(), tssB, tsm.getEdgeTags(), tssBtoCopy, tssBtoDest, tagTagConflict );
 
 
 
@@ -376,52 +342,109 @@ public class MergeModels
 		 */
 
 		for ( final Spot spotA : graphA.vertices() )
-		{
-			if ( MergingUtil.hasLabel( spotA ) )
-			{
-				final Spot destSpot = mapAtoDest.get( spotA );
-				destSpot.setLabel( spotA.getLabel() );
-			}
-		}
+			transferLabel( spotA, mapAtoDest.get( spotA ), tsm.getVertexTags(), tagLabelConflict );
 
 		for ( final Spot spotB : graphB.vertices() )
+			transferLabel( spotB, mapBtoDest.get( spotB ), tsm.getVertexTags(), tagLabelConflict );
+
+		new ModelImporter( output.getModel() ){{ finishImport(); }};
+	}
+
+	/**
+	 * Transfer the tags of {@code source} to {@code dest}. For every tag set
+	 * of {@code sourceTss}, the tag of {@code source} is set as its copy
+	 * (see {@link MergeTags#addTagSetStructureCopy}) and as its merged tag
+	 * (see {@link MergeTags#mergeTagSetStructure}) on {@code dest}.
+	 * <p>
+	 * If {@code tagTagConflict} is not {@code null} and {@code dest} already
+	 * has a different tag in the merged tag set, {@code tagTagConflict} is set
+	 * instead of the merged tag.
+	 */
+	static < O > void transferTags(
+			final O source,
+			final O dest,
+			final ObjTags< O > sourceTags,
+			final TagSetStructure sourceTss,
+			final ObjTags< O > destTags,
+			final TagSetStructureMaps toCopy,
+			final TagSetStructureMaps toDest,
+			final Tag tagTagConflict )
+	{
+		for ( final TagSet tagSet : sourceTss.getTagSets() )
 		{
-			if ( MergingUtil.hasLabel( spotB ) )
+			final Tag tag = sourceTags.tags( tagSet ).get( source );
+			if ( tag != null )
 			{
-				final Spot destSpot = mapBtoDest.get( spotB );
-				final String lB = spotB.getLabel();
-				if ( MergingUtil.hasLabel( destSpot ) )
-				{
-					final String lA = destSpot.getLabel();
-					if ( !lA.equals( lB ) )
-					{
-						destSpot.setLabel( destSpot.getLabel() + " @@@ " + spotB.getLabel() );
-						tsm.getVertexTags().set( destSpot, tagLabelConflict );
-					}
-				}
-				else
+				// copy
+				destTags.set( dest, toCopy.tagMap.get( tag ) );
+
+				// merged
+				final Tag expectedDestTag = toDest.tagMap.get( tag );
+				if ( tagTagConflict == null )
 				{
-					destSpot.setLabel( lB );
+					destTags.set( dest, expectedDestTag );
+					continue;
 				}
+				final TagSet destTagSet = toDest.tagSetMap.get( tagSet );
+				final Tag destTag = destTags.tags( destTagSet ).get( dest );
+				if ( destTag == null )
+					destTags.set( dest, expectedDestTag );
+				else if ( !destTag.equals( expectedDestTag ) )
+					destTags.set( dest, tagTagConflict );
 			}
 		}
+	}
 
-		new ModelImporter( output.getModel() ){{ finishImport(); }};
+	/**
+	 * Transfer the label of {@code source} to {@code dest}, if it is set. If
+	 * {@code dest} already has a different label, both labels are kept and
+	 * {@code tagLabelConflict} is set on {@code dest}.
+	 */
+	static void transferLabel( final Spot source, final Spot dest, final ObjTags< Spot > destTags, final Tag tagLabelConflict )
+	{
+		if ( !MergingUtil.hasLabel( source ) )
+			return;
+
+		final String label = source.getLabel();
+		if ( MergingUtil.hasLabel( dest ) )
+		{
+			if ( !dest.getLabel().equals( label ) )
+			{
+				dest.setLabel( dest.getLabel() + " @@@ " + label );
+				destTags.set( dest, tagLabelConflict );
+			}
+		}
+		else
+		{
+			dest.setLabel( label );
+		}
 	}
 
-	private static class MatchingGraphUtils
+	static class MatchingGraphUtils implements SpotMatching
 	{
+		private final MatchingGraph matchingGraph;
 		private final MatchingEdge eref1;
 		private final MatchingEdge eref2;
 		private final MatchingVertex vref1;
 		private final MatchingVertex vref2;
+		private final MatchingVertex vref3;
+		private final UndirectedDepthFirstIterator< MatchingVertex, MatchingEdge > miter;
 
 		public MatchingGraphUtils( final MatchingGraph matchingGraph )
 		{
+			this.matchingGraph = matchingGraph;
 			eref1 = matchingGraph.edgeRef();
 			eref2 = matchingGraph.edgeRef();
 			vref1 = matchingGraph.vertexRef();
 			vref2 = matchingGraph.vertexRef();
+			vref3 = matchingGraph.vertexRef();
+			miter = new UndirectedDepthFirstIterator<>( matchingGraph );
+		}
+
+		@Override
+		public boolean isUnmatched( final Spot spot )
+		{
+			return isUnmatched( matchingGraph.getVertex( spot, vref3 ) );
 		}
 
 		public boolean isUnmatched( final MatchingVertex mv )
@@ -429,6 +452,23 @@ public class MergeModels
 			return mv.edges().isEmpty();
 		}
 
+		@Override
+		public Spot getPerfectMatch( final Spot spot, final Spot ref )
+		{
+			final MatchingVertex mv = matchingGraph.getVertex( spot, vref3 );
+			if ( !isPerfectlyMatched( mv ) )
+				return null;
+			return mv.outgoingEdges().get( 0, eref1 ).getTarget( vref1 ).getSpot( ref );
+		}
+
+		@Override
+		public void forEachConnected( final Spot spot, final Consumer< Spot > action )
+		{
+			miter.reset( matchingGraph.getVertex( spot, vref3 ) );
+			while ( miter.hasNext() )
+				action.accept( miter.next().getSpot() );
+		}
+
 		/**
 		 * {@code true} if the best target of {@code mv}, has {@code mv} as its
 		 * best target in return. Assumes that outgoing edges are sorted by
@@ -70,6 +70,8 @@ public class MergingDialog extends JDialog
 
 	private final JTextField ratioThresholdTextField;
 
+	private final JTextField windowSizeTextField;
+
 	private Runnable onMerge;
 
 	public MergingDialog( final Frame owner )
@@ -133,6 +135,14 @@ public class MergingDialog extends JDialog
 		c.gridx = 1;
 		content.add( ratioThresholdTextField, c );
 
+		++c.gridy;
+		c.gridx = 0;
+		content.add( new JLabel( "Window size (timepoints): " ), c );
+		windowSizeTextField = new JTextField( "0" );
+		windowSizeTextField.setToolTipText( "Merge this many timepoints at a time, to reduce memory use. 0 merges all timepoints at once." );
+		c.gridx = 1;
+		content.add( windowSizeTextField, c );
+
 		class Browse implements ActionListener
 		{
 			private final JTextField path;
@@ -239,6 +249,11 @@ public class MergingDialog extends JDialog
 		return Double.parseDouble( ratioThresholdTextField.getText() );
 	}
 
+	public int getWindowSize() throws NumberFormatException
+	{
+		return Integer.parseInt( windowSizeTextField.getText().trim() );
+	}
+
 	private void merge()
 	{
 		if ( onMerge != null )
@@ -32,9 +32,8 @@ import org.mastodon.mamut.model.Model;
 import org.mastodon.mamut.model.Spot;
 import org.mastodon.mamut.model.SpotPool;
 import org.mastodon.mamut.project.MamutProject;
+import org.mastodon.mamut.tomancak.util.TimepointExtentIndex;
 import org.mastodon.properties.ObjPropertyMap;
-import org.mastodon.spatial.SpatialIndex;
-import org.mastodon.spatial.SpatioTemporalIndex;
 import org.mastodon.util.DummySpimData;
 
 import bdv.spimdata.SpimDataMinimal;
@@ -96,22 +95,6 @@ public class MergingUtil
 	 */
 	public static int getMaxNonEmptyTimepoint( final Model model, final int numTimepoints )
 	{
-		int maxNonEmptyTimepoint = 0;
-		final SpatioTemporalIndex< Spot > spatioTemporalIndex = model.getSpatioTemporalIndex();
-		spatioTemporalIndex.readLock().lock();
-		try
-		{
-			for ( int t = 0; t < numTimepoints; ++t )
-			{
-				final SpatialIndex< Spot > index = spatioTemporalIndex.getSpatialIndex( t );
-				if ( index.size() > 0 )
-					maxNonEmptyTimepoint = t;
-			}
-		}
-		finally
-		{
-			spatioTemporalIndex.readLock().unlock();
-		}
-		return maxNonEmptyTimepoint;
+		return Math.max( 0, TimepointExtentIndex.get( model.getGraph() ).getMaxNonEmptyTimepointBefore( numTimepoints ) );
 	}
 }
@@ -0,0 +1,449 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2022 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import static org.mastodon.mamut.tomancak.merging.MergeModels.transferLabel;
+import static org.mastodon.mamut.tomancak.merging.MergeModels.transferTags;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+
+import org.mastodon.collection.RefMaps;
+import org.mastodon.collection.RefRefMap;
+import org.mastodon.mamut.importer.ModelImporter;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.merging.MergeDatasets.OutputDataSet;
+import org.mastodon.mamut.tomancak.merging.MergeTags.TagSetStructureMaps;
+import org.mastodon.mamut.tomancak.spots.InterpolateMissingSpots;
+import org.mastodon.model.tag.ObjTags;
+import org.mastodon.model.tag.TagSetStructure;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+
+/**
+ * Merges any number of models into one output in a single pass, following
+ * the rules of {@link MergeModels}. For two models, the output is the same as
+ * that of {@link MergeModels}.
+ * <p>
+ * Match candidates between every pair of models are collected into one
+ * {@link CompactMatching}, which is pruned separately for every pair of
+ * models. Two spots of different models are a perfect match, if each is the
+ * best candidate of the other in its model (see
+ * {@link CompactMatching#perfectMatch(int, int, int)}). The timepoints are
+ * processed in ascending order, and within a timepoint the models in the
+ * order of the list. Every spot is resolved against the spots of the same
+ * timepoint that were already added to the output:
+ * <ul>
+ * <li>If it has perfect matches among the added spots, that were all added
+ * to the same output spot, and whose parents were added to the same output
+ * spot as the parent of the spot (if both have a parent), the spot is merged
+ * into that output spot, which is tagged "Match".</li>
+ * <li>If it has perfect matches among the added spots, but they were added to
+ * different output spots or their parents do not agree, the spot is copied.
+ * The copy and the output spots of the perfect matches are tagged
+ * "Conflict".</li>
+ * <li>Otherwise, if it has any match candidate among the added spots, the spot
+ * is copied. The copy and the output spots of all added spots connected to it
+ * in the matching are tagged "Conflict".</li>
+ * <li>Otherwise, the spot is copied and tagged "Singleton" with the name of
+ * its model.</li>
+ * </ul>
+ * Every output spot is tagged with the source tag of every model that
+ * contributed to it, every model has a distinct source tag color. Tags and
+ * labels are transferred like in {@link MergeModels}. Links are assumed to
+ * connect consecutive timepoints, which is ensured by running
+ * {@link InterpolateMissingSpots} on all models first. Only the spot mappings
+ * of the previous timepoint are kept.
+ */
+public class NWayMerge
+{
+	/**
+	 * Source tag colors of the first models. The first two are the colors
+	 * used by {@link MergeModels}.
+	 */
+	private static final int[] SOURCE_COLORS = {
+			0xffffff00, 0xffff00ff, 0xff00ffff, 0xff00ff00,
+			0xffff8000, 0xff0080ff, 0xff8000ff, 0xffff0080 };
+
+	public static void merge( final List< Model > models, final List< String > names, final OutputDataSet output,
+			final int minTimepoint, final int maxTimepoint,
+			final double distCutoff, final double mahalanobisDistCutoff, final double ratioThreshold )
+	{
+		if ( models.size() != names.size() )
+			throw new IllegalArgumentException( "Expected one name per model." );
+
+		for ( final Model model : models )
+			InterpolateMissingSpots.interpolateBatched( model, false );
+
+		final MatchCandidates candidates = new MatchCandidates( distCutoff, mahalanobisDistCutoff, ratioThreshold );
+		final CompactMatching matching = candidates.buildCompactMatching( models, minTimepoint, maxTimepoint, ForkJoinPool.commonPool() );
+
+		new ModelImporter( output.getModel() ){{ startImport(); }};
+
+		final NWayMerge merge = new NWayMerge( models, names, output, matching );
+		for ( int timepoint = minTimepoint; timepoint <= maxTimepoint; timepoint++ )
+			merge.mergeTimepoint( timepoint );
+		merge.releaseRefs();
+
+		new ModelImporter( output.getModel() ){{ finishImport(); }};
+	}
+
+	/**
+	 * Returns the source tag color of the model with index {@code i}.
+	 */
+	static int sourceColor( final int i )
+	{
+		if ( i < SOURCE_COLORS.length )
+			return SOURCE_COLORS[ i ];
+		final float hue = ( float ) ( ( i * 0.618033988749895 ) % 1.0 );
+		return 0xff000000 | Color.HSBtoRGB( hue, 1f, 1f );
+	}
+
+	/**
+	 * Returns the singleton tag color for a source tag color, i.e. the source
+	 * color blended with 80% white.
+	 */
+	static int singletonColor( final int sourceColor )
+	{
+		int color = 0xff000000;
+		for ( int shift = 0; shift < 24; shift += 8 )
+		{
+			final int c = ( sourceColor >> shift ) & 0xff;
+			color |= ( c + ( int ) Math.round( 0.8 * ( 255 - c ) ) ) << shift;
+		}
+		return color;
+	}
+
+	private final List< Model > models;
+
+	private final CompactMatching matching;
+
+	private final ModelGraph graph;
+
+	private final ObjTags< Spot > vertexTags;
+
+	private final ObjTags< Link > edgeTags;
+
+	private final Tag[] sourceTags;
+
+	private final Tag[] singletonTags;
+
+	private final Tag tagMatch;
+
+	private final Tag tagConflict;
+
+	private final Tag tagTagConflict;
+
+	private final Tag tagLabelConflict;
+
+	private final TagSetStructureMaps[] toCopy;
+
+	private final TagSetStructureMaps[] toDest;
+
+	private final List< RefRefMap< Spot, Spot > > prevToDest = new ArrayList<>();
+
+	private final List< RefRefMap< Spot, Spot > > curToDest = new ArrayList<>();
+
+	/*
+	 * Spot and link references, one per model.
+	 */
+
+	private final Spot[] refs;
+
+	private final Spot[] parentRefs;
+
+	private final Link[] edgeRefs;
+
+	/*
+	 * Output spot and link references.
+	 */
+
+	private final Spot destRef;
+
+	private final Spot destMatchRef;
+
+	private final Spot destLookupRef;
+
+	private final Spot destParentRef1;
+
+	private final Spot destParentRef2;
+
+	private final Link destEdgeRef;
+
+	private final double[] pos = new double[ 3 ];
+
+	private final double[][] cov = new double[ 3 ][ 3 ];
+
+	private NWayMerge( final List< Model > models, final List< String > names, final OutputDataSet output, final CompactMatching matching )
+	{
+		this.models = models;
+		this.matching = matching;
+		graph = output.getModel().getGraph();
+
+		final int n = models.size();
+		sourceTags = new Tag[ n ];
+		for ( int i = 0; i < n; i++ )
+			sourceTags[ i ] = output.addSourceTag( names.get( i ), sourceColor( i ) );
+		singletonTags = new Tag[ n ];
+		for ( int i = 0; i < n; i++ )
+			singletonTags[ i ] = output.addConflictTag( "Singleton " + names.get( i ), singletonColor( sourceColor( i ) ) );
+		tagMatch = output.addConflictTag( "Match", 0xffccffcc );
+		tagConflict = output.addConflictTag( "Conflict", 0xffff0000 );
+		tagTagConflict = output.addTagConflictTag( "Tag Conflict", 0xffff0000 );
+		tagLabelConflict = output.addLabelConflictTag( "Label Conflict", 0xffff0000 );
+
+		final TagSetStructure tss = output.getTagSetStructure();
+		toCopy = new TagSetStructureMaps[ n ];
+		toDest = new TagSetStructureMaps[ n ];
+		for ( int i = 0; i < n; i++ )
+			toCopy[ i ] = MergeTags.addTagSetStructureCopy( tss, tssOf( i ), "((" + names.get( i ) + ")) " );
+		for ( int i = 0; i < n; i++ )
+			toDest[ i ] = MergeTags.mergeTagSetStructure( tss, tssOf( i ) );
+		output.updateTagSetModel();
+		vertexTags = output.getModel().getTagSetModel().getVertexTags();
+		edgeTags = output.getModel().getTagSetModel().getEdgeTags();
+
+		refs = new Spot[ n ];
+		parentRefs = new Spot[ n ];
+		edgeRefs = new Link[ n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			final ModelGraph g = models.get( i ).getGraph();
+			prevToDest.add( RefMaps.createRefRefMap( g.vertices(), graph.vertices() ) );
+			curToDest.add( RefMaps.createRefRefMap( g.vertices(), graph.vertices() ) );
+			refs[ i ] = g.vertexRef();
+			parentRefs[ i ] = g.vertexRef();
+			edgeRefs[ i ] = g.edgeRef();
+		}
+		destRef = graph.vertexRef();
+		destMatchRef = graph.vertexRef();
+		destLookupRef = graph.vertexRef();
+		destParentRef1 = graph.vertexRef();
+		destParentRef2 = graph.vertexRef();
+		destEdgeRef = graph.edgeRef();
+	}
+
+	private void releaseRefs()
+	{
+		for ( int i = 0; i < models.size(); i++ )
+		{
+			final ModelGraph g = models.get( i ).getGraph();
+			g.releaseRef( refs[ i ] );
+			g.releaseRef( parentRefs[ i ] );
+			g.releaseRef( edgeRefs[ i ] );
+		}
+		graph.releaseRef( destRef );
+		graph.releaseRef( destMatchRef );
+		graph.releaseRef( destLookupRef );
+		graph.releaseRef( destParentRef1 );
+		graph.releaseRef( destParentRef2 );
+		graph.releaseRef( destEdgeRef );
+	}
+
+	private TagSetStructure tssOf( final int i )
+	{
+		return models.get( i ).getTagSetModel().getTagSetStructure();
+	}
+
+	private Spot spot( final int graphId, final int spotId )
+	{
+		return models.get( graphId ).getGraph().getGraphIdBimap().getVertex( spotId, refs[ graphId ] );
+	}
+
+	private void mergeTimepoint( final int timepoint )
+	{
+		for ( int i = 0; i < models.size(); i++ )
+			for ( final Spot spot : models.get( i ).getSpatioTemporalIndex().getSpatialIndex( timepoint ) )
+				resolve( i, spot );
+
+		// keep only the mappings of this timepoint
+		for ( int i = 0; i < models.size(); i++ )
+		{
+			final RefRefMap< Spot, Spot > tmp = prevToDest.get( i );
+			prevToDest.set( i, curToDest.get( i ) );
+			tmp.clear();
+			curToDest.set( i, tmp );
+		}
+	}
+
+	/**
+	 * Adds {@code spot} of model {@code graphId} to the output, according to
+	 * the rules described in the class documentation.
+	 */
+	private void resolve( final int graphId, final Spot spot )
+	{
+		final int spotId = spot.getInternalPoolIndex();
+
+		// output spot of the perfect matches that were already added
+		Spot match = null;
+		boolean consistent = true;
+		for ( int h = 0; h < models.size(); h++ )
+		{
+			final Spot partner = addedPerfectMatch( graphId, spotId, h );
+			if ( partner == null )
+				continue;
+			final Spot dest = curToDest.get( h ).get( partner, destLookupRef );
+			if ( match == null )
+				match = destMatchRef.refTo( dest );
+			else if ( !match.equals( dest ) )
+				consistent = false;
+			if ( !hasSameDestParent( graphId, spot, h, partner ) )
+				consistent = false;
+		}
+
+		if ( match != null && consistent )
+		{
+			vertexTags.set( match, tagMatch );
+			addToDest( graphId, spot, match );
+		}
+		else if ( match != null )
+		{
+			final Spot destSpot = copySpot( spot );
+			vertexTags.set( destSpot, tagConflict );
+			addToDest( graphId, spot, destSpot );
+			for ( int h = 0; h < models.size(); h++ )
+			{
+				final Spot partner = addedPerfectMatch( graphId, spotId, h );
+				if ( partner != null )
+					vertexTags.set( curToDest.get( h ).get( partner, destLookupRef ), tagConflict );
+			}
+		}
+		else if ( hasAddedCandidate( graphId, spotId ) )
+		{
+			final Spot destSpot = copySpot( spot );
+			addToDest( graphId, spot, destSpot );
+			matching.forEachConnected( spot, s -> {
+				final int g = matching.graphId( s.getModelGraph() );
+				final Spot dest = curToDest.get( g ).get( s, destLookupRef );
+				if ( dest != null )
+					vertexTags.set( dest, tagConflict );
+			} );
+		}
+		else
+		{
+			final Spot destSpot = copySpot( spot );
+			vertexTags.set( destSpot, singletonTags[ graphId ] );
+			addToDest( graphId, spot, destSpot );
+		}
+	}
+
+	/**
+	 * Returns the perfect match of spot {@code (graphId, spotId)} in model
+	 * {@code h}, if it was already added to the output, and {@code null}
+	 * otherwise.
+	 */
+	private Spot addedPerfectMatch( final int graphId, final int spotId, final int h )
+	{
+		if ( h == graphId )
+			return null;
+		final int p = matching.perfectMatch( graphId, spotId, h );
+		if ( p < 0 )
+			return null;
+		final Spot partner = spot( h, p );
+		return curToDest.get( h ).containsKey( partner ) ? partner : null;
+	}
+
+	/**
+	 * Returns {@code true} if the spot {@code (graphId, spotId)} has an
+	 * incoming or outgoing match candidate that was already added to the
+	 * output.
+	 */
+	private boolean hasAddedCandidate( final int graphId, final int spotId )
+	{
+		for ( int i = 0; i < matching.outDegree( graphId, spotId ); i++ )
+		{
+			final int e = matching.outEdge( graphId, spotId, i );
+			final int h = matching.targetGraphId( graphId, e );
+			if ( curToDest.get( h ).containsKey( spot( h, matching.targetSpotId( graphId, e ) ) ) )
+				return true;
+		}
+		for ( int i = 0; i < matching.inDegree( graphId, spotId ); i++ )
+		{
+			final int e = matching.inEdge( graphId, spotId, i );
+			final int h = matching.sourceGraphId( graphId, e );
+			if ( curToDest.get( h ).containsKey( spot( h, matching.sourceSpotId( graphId, e ) ) ) )
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns {@code false} if both {@code spot} and {@code partner} have a
+	 * parent, and the parents were added to different output spots.
+	 */
+	private boolean hasSameDestParent( final int graphId, final Spot spot, final int partnerGraphId, final Spot partner )
+	{
+		if ( spot.incomingEdges().isEmpty() || partner.incomingEdges().isEmpty() )
+			return true;
+		final Spot parent = spot.incomingEdges().get( 0, edgeRefs[ graphId ] ).getSource( parentRefs[ graphId ] );
+		final Spot partnerParent = partner.incomingEdges().get( 0, edgeRefs[ partnerGraphId ] ).getSource( parentRefs[ partnerGraphId ] );
+		return Objects.equals(
+				prevToDest.get( graphId ).get( parent, destParentRef1 ),
+				prevToDest.get( partnerGraphId ).get( partnerParent, destParentRef2 ) );
+	}
+
+	/**
+	 * Map {@code spot} of model {@code graphId} to {@code destSpot}, transfer
+	 * its source tag, tags and label, and link {@code destSpot} to the output
+	 * spots of its parents.
+	 */
+	private void addToDest( final int graphId, final Spot spot, final Spot destSpot )
+	{
+		final Model model = models.get( graphId );
+		final TagSetStructure tss = tssOf( graphId );
+		curToDest.get( graphId ).put( spot, destSpot );
+		vertexTags.set( destSpot, sourceTags[ graphId ] );
+		transferTags( spot, destSpot, model.getTagSetModel().getVertexTags(), tss, vertexTags, toCopy[ graphId ], toDest[ graphId ], tagTagConflict );
+		transferLabel( spot, destSpot, vertexTags, tagLabelConflict );
+
+		for ( int i = 0; i < spot.incomingEdges().size(); i++ )
+		{
+			final Link link = spot.incomingEdges().get( i, edgeRefs[ graphId ] );
+			final Spot destParent = prevToDest.get( graphId ).get( link.getSource( parentRefs[ graphId ] ), destParentRef1 );
+			if ( destParent == null )
+				continue;
+			Link destLink = graph.getEdge( destParent, destSpot, destEdgeRef );
+			if ( destLink == null )
+				destLink = graph.addEdge( destParent, destSpot, destEdgeRef );
+			transferTags( link, destLink, model.getTagSetModel().getEdgeTags(), tss, edgeTags, toCopy[ graphId ], toDest[ graphId ], tagTagConflict );
+		}
+	}
+
+	private Spot copySpot( final Spot spot )
+	{
+		spot.localize( pos );
+		spot.getCovariance( cov );
+		return graph.addVertex( destRef ).init( spot.getTimepoint(), pos, cov );
+	}
+}
@@ -0,0 +1,182 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2022 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import java.util.stream.IntStream;
+
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.spatial.SpatioTemporalIndex;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+import net.imglib2.util.LinAlgHelpers;
+
+/**
+ * Precision matrices (inverse covariance matrices) of all spots in a
+ * {@link ModelGraph}, stored in a primitive double array that is indexed by
+ * the spots internal pool index.
+ * <p>
+ * If only the spots of some timepoints are included, the array is indexed
+ * by the position of the spot in a hash map instead, such that the memory
+ * does not depend on the range of pool indices in the graph.
+ * <p>
+ * The precision matrix is symmetric, therefore only the six distinct entries
+ * {@code P00, P11, P22, P01, P02, P12} are stored per spot.
+ * <p>
+ * The cache is a snapshot, it is not updated if the spots in the graph are
+ * modified. Only spots that were included when computing the cache may be
+ * queried.
+ */
+public class PrecisionMatrixCache
+{
+	private static final int STRIDE = 6;
+
+	private static final int CHUNK_SIZE = 4096;
+
+	private final ModelGraph graph;
+
+	private final double[] data;
+
+	/**
+	 * Maps pool index to position in {@link #data}, or {@code null} if
+	 * {@link #data} is indexed by pool index.
+	 */
+	private final TIntIntHashMap positions;
+
+	private PrecisionMatrixCache( final ModelGraph graph, final double[] data, final TIntIntHashMap positions )
+	{
+		this.graph = graph;
+		this.data = data;
+		this.positions = positions;
+	}
+
+	/**
+	 * Computes the precision matrices of all spots in {@code graph}. The
+	 * matrix inversions are done in parallel.
+	 *
+	 * @param graph
+	 *            the model graph.
+	 * @return a new {@link PrecisionMatrixCache}.
+	 */
+	public static PrecisionMatrixCache compute( final ModelGraph graph )
+	{
+		final TIntArrayList ids = new TIntArrayList( graph.vertices().size() );
+		for ( final Spot spot : graph.vertices() )
+			ids.add( spot.getInternalPoolIndex() );
+		final int maxId = ids.isEmpty() ? -1 : ids.max();
+		return new PrecisionMatrixCache( graph, compute( graph, ids, false, maxId + 1 ), null );
+	}
+
+	/**
+	 * Computes the precision matrices of the spots in {@code graph} with
+	 * timepoints in the range {@code [minTimepoint, maxTimepoint]}. The
+	 * matrix inversions are done in parallel.
+	 *
+	 * @param graph
+	 *            the model graph.
+	 * @param index
+	 *            the spatio-temporal index of the model.
+	 * @param minTimepoint
+	 *            the first timepoint.
+	 * @param maxTimepoint
+	 *            the last timepoint (inclusive).
+	 * @return a new {@link PrecisionMatrixCache}.
+	 */
+	public static PrecisionMatrixCache compute( final ModelGraph graph, final SpatioTemporalIndex< Spot > index, final int minTimepoint, final int maxTimepoint )
+	{
+		final TIntArrayList ids = new TIntArrayList();
+		for ( int timepoint = minTimepoint; timepoint <= maxTimepoint; timepoint++ )
+			for ( final Spot spot : index.getSpatialIndex( timepoint ) )
+				ids.add( spot.getInternalPoolIndex() );
+		final TIntIntHashMap positions = new TIntIntHashMap( ids.size(), Constants.DEFAULT_LOAD_FACTOR, -1, -1 );
+		for ( int i = 0; i < ids.size(); i++ )
+			positions.put( ids.get( i ), i );
+		return new PrecisionMatrixCache( graph, compute( graph, ids, true, ids.size() ), positions );
+	}
+
+	/**
+	 * Computes the precision matrix of the spot {@code ids[i]} and stores it
+	 * at position {@code i} if {@code dense}, or at position {@code ids[i]}
+	 * otherwise.
+	 */
+	private static double[] compute( final ModelGraph graph, final TIntArrayList ids, final boolean dense, final int size )
+	{
+		final double[] data = new double[ STRIDE * size ];
+		final int numChunks = ( ids.size() + CHUNK_SIZE - 1 ) / CHUNK_SIZE;
+		IntStream.range( 0, numChunks ).parallel().forEach( chunk -> {
+			final Spot ref = graph.vertexRef();
+			final double[][] cov = new double[ 3 ][ 3 ];
+			final double[][] P = new double[ 3 ][ 3 ];
+			final int end = Math.min( ids.size(), ( chunk + 1 ) * CHUNK_SIZE );
+			for ( int i = chunk * CHUNK_SIZE; i < end; i++ )
+			{
+				final int id = ids.get( i );
+				final Spot spot = graph.getGraphIdBimap().getVertex( id, ref );
+				spot.getCovariance( cov );
+				LinAlgHelpers.invertSymmetric3x3( cov, P );
+				final int o = STRIDE * ( dense ? i : id );
+				data[ o ] = P[ 0 ][ 0 ];
+				data[ o + 1 ] = P[ 1 ][ 1 ];
+				data[ o + 2 ] = P[ 2 ][ 2 ];
+				data[ o + 3 ] = P[ 0 ][ 1 ];
+				data[ o + 4 ] = P[ 0 ][ 2 ];
+				data[ o + 5 ] = P[ 1 ][ 2 ];
+			}
+			graph.releaseRef( ref );
+		} );
+		return data;
+	}
+
+	public ModelGraph getModelGraph()
+	{
+		return graph;
+	}
+
+	/**
+	 * Returns {@code b^T P b}, where {@code P} is the cached precision matrix
+	 * of the spot with internal pool index {@code spotId}.
+	 *
+	 * @param spotId
+	 *            internal pool index of the spot.
+	 * @param b
+	 *            a 3D vector.
+	 * @return {@code b^T P b}
+	 */
+	public double multbPb( final int spotId, final double[] b )
+	{
+		final int o = STRIDE * ( positions == null ? spotId : positions.get( spotId ) );
+		final double x = b[ 0 ];
+		final double y = b[ 1 ];
+		final double z = b[ 2 ];
+		return data[ o ] * x * x + data[ o + 1 ] * y * y + data[ o + 2 ] * z * z
+				+ 2 * ( data[ o + 3 ] * x * y + data[ o + 4 ] * x * z + data[ o + 5 ] * y * z );
+	}
+}
@@ -0,0 +1,76 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2022 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import java.util.function.Consumer;
+
+import org.mastodon.mamut.model.Spot;
+
+/**
+ * Read access to a pruned matching between the spots of two (or more) models,
+ * as it is used by {@link MergeModels}. Outgoing matches of every spot are
+ * assumed to be sorted by increasing Mahalanobis distance.
+ */
+public interface SpotMatching
+{
+	/**
+	 * Returns {@code true} if {@code spot} has neither incoming nor outgoing
+	 * matches.
+	 *
+	 * @param spot
+	 *            the spot.
+	 * @return {@code true} if {@code spot} is unmatched.
+	 */
+	boolean isUnmatched( Spot spot );
+
+	/**
+	 * If the best match of {@code spot} has {@code spot} as its best match in
+	 * return, returns that best match. Otherwise returns {@code null}.
+	 *
+	 * @param spot
+	 *            the spot.
+	 * @param ref
+	 *            a spot reference of the model graph of the match, used to
+	 *            return the result.
+	 * @return the perfect match of {@code spot} or {@code null}.
+	 */
+	Spot getPerfectMatch( Spot spot, Spot ref );
+
+	/**
+	 * Calls {@code action} for every spot in the connected component of
+	 * {@code spot} (including {@code spot} itself), ignoring the direction of
+	 * the matches.
+	 *
+	 * @param spot
+	 *            the spot.
+	 * @param action
+	 *            the action to call.
+	 */
+	void forEachConnected( Spot spot, Consumer< Spot > action );
+}
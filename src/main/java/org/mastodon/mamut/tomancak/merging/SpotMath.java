@@ -83,6 +83,27 @@ public class SpotMath
 		return multSymmetric3x3bAb( P, diff );
 	}
 
+	/**
+	 * Returns the squared Mahalanobis distance of the center of {@code s2} to
+	 * {@code s1} ellipsoid. Uses the precision matrix of {@code s1} from
+	 * {@code precisions} instead of inverting the covariance of {@code s1}.
+	 *
+	 * @param precisions
+	 *            cached precision matrices of the model graph of {@code s1}.
+	 * @param s1
+	 *            the first spot.
+	 * @param s2
+	 *            the second spot.
+	 * @return the squared Mahalanobis distance.
+	 */
+	public double mahalanobisDistSqu( final PrecisionMatrixCache precisions, final Spot s1, final Spot s2 )
+	{
+		s1.localize( pos1 );
+		s2.localize( diff );
+		LinAlgHelpers.subtract( diff, pos1, diff );
+		return precisions.multbPb( s1.getInternalPoolIndex(), diff );
+	}
+
 	static double multSymmetric3x3bAb( final double[][] A, final double[] b )
 	{
 		assert cols( A ) == 3;
@@ -0,0 +1,338 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2022 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import static org.mastodon.mamut.tomancak.merging.MergeModels.transferLabel;
+import static org.mastodon.mamut.tomancak.merging.MergeModels.transferTags;
+
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+
+import org.mastodon.collection.RefMaps;
+import org.mastodon.collection.RefRefMap;
+import org.mastodon.mamut.importer.ModelImporter;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.merging.MergeDatasets.OutputDataSet;
+import org.mastodon.mamut.tomancak.merging.MergeTags.TagSetStructureMaps;
+import org.mastodon.mamut.tomancak.spots.InterpolateMissingSpots;
+import org.mastodon.model.tag.ObjTags;
+import org.mastodon.model.tag.TagSetModel;
+import org.mastodon.model.tag.TagSetStructure;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+
+/**
+ * Merges two models like {@link MergeModels}, but processes the timepoints in
+ * windows of a fixed size. For every window, the matching is computed, the
+ * conflicts are resolved, and the spots, links, tags and labels are written
+ * to the output model, before the next window is matched. Only the spot
+ * mappings of the previous timepoint are kept alive, because the parent
+ * consistency check only looks one link back.
+ * <p>
+ * Links are assumed to connect spots in consecutive timepoints, which is
+ * ensured by running {@link InterpolateMissingSpots} on both models first.
+ * In contrast to {@link MergeModels}, only spots of {@code mA} in the range
+ * {@code [minTimepoint, maxTimepoint]} are copied to the output.
+ */
+public class WindowedMerge
+{
+	public static void merge( final Model mA, final Model mB, final OutputDataSet output,
+			final int minTimepoint, final int maxTimepoint, final int windowSize,
+			final double distCutoff, final double mahalanobisDistCutoff, final double ratioThreshold )
+	{
+		if ( windowSize < 1 )
+			throw new IllegalArgumentException( "windowSize must be at least 1" );
+
+		InterpolateMissingSpots.interpolateBatched( mA, false );
+		InterpolateMissingSpots.interpolateBatched( mB, false );
+
+		new ModelImporter( output.getModel() ){{ startImport(); }};
+
+		final WindowedMerge merge = new WindowedMerge( mA, mB, output );
+		final MatchCandidates candidates = new MatchCandidates( distCutoff, mahalanobisDistCutoff, ratioThreshold );
+		for ( int t0 = minTimepoint; t0 <= maxTimepoint; t0 += windowSize )
+		{
+			final int t1 = Math.min( maxTimepoint, t0 + windowSize - 1 );
+			final CompactMatching matching = candidates.buildCompactMatching( mA, mB, t0, t1, ForkJoinPool.commonPool() );
+			for ( int timepoint = t0; timepoint <= t1; timepoint++ )
+				merge.mergeTimepoint( timepoint, matching );
+		}
+
+		new ModelImporter( output.getModel() ){{ finishImport(); }};
+	}
+
+	private final Model mA;
+
+	private final Model mB;
+
+	private final ModelGraph graph;
+
+	private final Tag tagA;
+
+	private final Tag tagB;
+
+	private final Tag tagSingletonA;
+
+	private final Tag tagSingletonB;
+
+	private final Tag tagMatchAB;
+
+	private final Tag tagConflict;
+
+	private final Tag tagTagConflict;
+
+	private final Tag tagLabelConflict;
+
+	private final TagSetModel< Spot, Link > tsm;
+
+	private final TagSetStructure tssA;
+
+	private final TagSetStructure tssB;
+
+	private final TagSetStructureMaps tssAtoCopy;
+
+	private final TagSetStructureMaps tssBtoCopy;
+
+	private final TagSetStructureMaps tssAtoDest;
+
+	private final TagSetStructureMaps tssBtoDest;
+
+	private RefRefMap< Spot, Spot > prevAtoDest;
+
+	private RefRefMap< Spot, Spot > prevBtoDest;
+
+	private RefRefMap< Spot, Spot > curAtoDest;
+
+	private RefRefMap< Spot, Spot > curBtoDest;
+
+	/*
+	 * References used by mergeTimepoint(), to avoid allocations per spot.
+	 */
+
+	private final Spot refA;
+
+	private final Spot refB;
+
+	private final Spot parentRefA;
+
+	private final Spot parentRefB;
+
+	private final Link erefA;
+
+	private final Link erefB;
+
+	private final Spot destRef;
+
+	private final Spot destMatchRef;
+
+	private final Spot destParentRef;
+
+	private final Spot destParentRef2;
+
+	private final Spot destConflictRef;
+
+	private final Link destEdgeRef;
+
+	private final double[] pos = new double[ 3 ];
+
+	private final double[][] cov = new double[ 3 ][ 3 ];
+
+	private WindowedMerge( final Model mA, final Model mB, final OutputDataSet output )
+	{
+		this.mA = mA;
+		this.mB = mB;
+		graph = output.getModel().getGraph();
+
+		tagA = output.addSourceTag( "A", 0xffffff00 );
+		tagB = output.addSourceTag( "B", 0xffff00ff );
+		tagSingletonA = output.addConflictTag( "Singleton A", 0xffffffcc );
+		tagSingletonB = output.addConflictTag( "Singleton B", 0xffffccff );
+		tagMatchAB = output.addConflictTag( "MatchAB", 0xffccffcc );
+		tagConflict = output.addConflictTag( "Conflict", 0xffff0000 );
+		tagTagConflict = output.addTagConflictTag( "Tag Conflict", 0xffff0000 );
+		tagLabelConflict = output.addLabelConflictTag( "Label Conflict", 0xffff0000 );
+
+		final TagSetStructure tss = output.getTagSetStructure();
+		tssA = mA.getTagSetModel().getTagSetStructure();
+		tssB = mB.getTagSetModel().getTagSetStructure();
+		tssAtoCopy = MergeTags.addTagSetStructureCopy( tss, tssA, "((A)) " );
+		tssBtoCopy = MergeTags.addTagSetStructureCopy( tss, tssB, "((B)) " );
+		tssAtoDest = MergeTags.mergeTagSetStructure( tss, tssA );
+		tssBtoDest = MergeTags.mergeTagSetStructure( tss, tssB );
+		output.updateTagSetModel();
+		tsm = output.getModel().getTagSetModel();
+
+		prevAtoDest = RefMaps.createRefRefMap( mA.getGraph().vertices(), graph.vertices() );
+		prevBtoDest = RefMaps.createRefRefMap( mB.getGraph().vertices(), graph.vertices() );
+		curAtoDest = RefMaps.createRefRefMap( mA.getGraph().vertices(), graph.vertices() );
+		curBtoDest = RefMaps.createRefRefMap( mB.getGraph().vertices(), graph.vertices() );
+
+		refA = mA.getGraph().vertexRef();
+		refB = mB.getGraph().vertexRef();
+		parentRefA = mA.getGraph().vertexRef();
+		parentRefB = mB.getGraph().vertexRef();
+		erefA = mA.getGraph().edgeRef();
+		erefB = mB.getGraph().edgeRef();
+		destRef = graph.vertexRef();
+		destMatchRef = graph.vertexRef();
+		destParentRef = graph.vertexRef();
+		destParentRef2 = graph.vertexRef();
+		destConflictRef = graph.vertexRef();
+		destEdgeRef = graph.edgeRef();
+	}
+
+	private void mergeTimepoint( final int timepoint, final CompactMatching matching )
+	{
+		final ObjTags< Spot > vertexTags = tsm.getVertexTags();
+		final ObjTags< Link > edgeTags = tsm.getEdgeTags();
+		final ObjTags< Spot > vertexTagsA = mA.getTagSetModel().getVertexTags();
+		final ObjTags< Link > edgeTagsA = mA.getTagSetModel().getEdgeTags();
+		final ObjTags< Spot > vertexTagsB = mB.getTagSetModel().getVertexTags();
+		final ObjTags< Link > edgeTagsB = mB.getTagSetModel().getEdgeTags();
+		final RefRefMap< Spot, Spot > mapAtoDest = curAtoDest;
+		final RefRefMap< Spot, Spot > mapBtoDest = curBtoDest;
+		final ModelGraph graphA = mA.getGraph();
+
+		// copy all spots of A, and links to their parents
+		for ( final Spot spotA : mA.getSpatioTemporalIndex().getSpatialIndex( timepoint ) )
+		{
+			final Spot destSpot = copySpot( spotA, destRef );
+			vertexTags.set( destSpot, tagA );
+			vertexTags.set( destSpot, tagSingletonA );
+			mapAtoDest.put( spotA, destSpot );
+			transferTags( spotA, destSpot, vertexTagsA, tssA, vertexTags, tssAtoCopy, tssAtoDest, null );
+			transferLabel( spotA, destSpot, vertexTags, tagLabelConflict );
+
+			for ( int i = 0; i < spotA.incomingEdges().size(); i++ )
+			{
+				final Link linkA = spotA.incomingEdges().get( i, erefA );
+				final Spot destParent = prevAtoDest.get( linkA.getSource( refA ), destParentRef );
+				if ( destParent == null )
+					continue;
+				final Link destLink = graph.addEdge( destParent, destSpot, destEdgeRef );
+				transferTags( linkA, destLink, edgeTagsA, tssA, edgeTags, tssAtoCopy, tssAtoDest, null );
+			}
+		}
+
+		// resolve spots of B against the matching, see MergeModels
+		for ( final Spot spotB : mB.getSpatioTemporalIndex().getSpatialIndex( timepoint ) )
+		{
+			final Spot destSpot;
+			final Spot spotA;
+			if ( matching.isUnmatched( spotB ) )
+			{
+				destSpot = copySpot( spotB, destRef );
+				vertexTags.set( destSpot, tagB );
+				vertexTags.set( destSpot, tagSingletonB );
+				mapBtoDest.put( spotB, destSpot );
+			}
+			else if ( ( spotA = matching.getPerfectMatch( spotB, refA ) ) != null )
+			{
+				final Spot destSpotA = mapAtoDest.get( spotA, destMatchRef );
+				if ( hasConsistentParents( spotA, spotB ) )
+				{
+					destSpot = destSpotA;
+					vertexTags.set( destSpot, tagB );
+					vertexTags.set( destSpot, tagMatchAB );
+				}
+				else
+				{
+					destSpot = copySpot( spotB, destRef );
+					vertexTags.set( destSpot, tagB );
+					vertexTags.set( destSpot, tagConflict );
+					vertexTags.set( destSpotA, tagConflict );
+				}
+				mapBtoDest.put( spotB, destSpot );
+			}
+			else
+			{
+				destSpot = copySpot( spotB, destRef );
+				vertexTags.set( destSpot, tagB );
+				mapBtoDest.put( spotB, destSpot );
+
+				matching.forEachConnected( spotB, sourceSpot -> {
+					final Spot spot;
+					if ( sourceSpot.getModelGraph() == graphA )
+						spot = mapAtoDest.get( sourceSpot, destConflictRef );
+					else
+						spot = mapBtoDest.get( sourceSpot, destConflictRef );
+					if ( spot != null )
+						vertexTags.set( spot, tagConflict );
+				} );
+			}
+			transferTags( spotB, destSpot, vertexTagsB, tssB, vertexTags, tssBtoCopy, tssBtoDest, tagTagConflict );
+			transferLabel( spotB, destSpot, vertexTags, tagLabelConflict );
+
+			for ( int i = 0; i < spotB.incomingEdges().size(); i++ )
+			{
+				final Link linkB = spotB.incomingEdges().get( i, erefB );
+				final Spot destParent = prevBtoDest.get( linkB.getSource( refB ), destParentRef );
+				if ( destParent == null )
+					continue;
+				Link destLink = graph.getEdge( destParent, destSpot, destEdgeRef );
+				if ( destLink == null )
+					destLink = graph.addEdge( destParent, destSpot, destEdgeRef );
+				transferTags( linkB, destLink, edgeTagsB, tssB, edgeTags, tssBtoCopy, tssBtoDest, tagTagConflict );
+			}
+		}
+
+		// keep only the mappings of this timepoint
+		final RefRefMap< Spot, Spot > tmpA = prevAtoDest;
+		final RefRefMap< Spot, Spot > tmpB = prevBtoDest;
+		prevAtoDest = curAtoDest;
+		prevBtoDest = curBtoDest;
+		curAtoDest = tmpA;
+		curBtoDest = tmpB;
+		curAtoDest.clear();
+		curBtoDest.clear();
+	}
+
+	/**
+	 * Returns {@code true} if {@code spotA} and {@code spotB} either do not both
+	 * have a parent, or their parents were mapped to the same spot in the
+	 * output.
+	 */
+	private boolean hasConsistentParents( final Spot spotA, final Spot spotB )
+	{
+		if ( spotB.incomingEdges().isEmpty() || spotA.incomingEdges().isEmpty() )
+			return true;
+		final Spot spotC = spotB.incomingEdges().get( 0, erefB ).getSource( parentRefB );
+		final Spot spotD = spotA.incomingEdges().get( 0, erefA ).getSource( parentRefA );
+		return Objects.equals( prevBtoDest.get( spotC, destParentRef ), prevAtoDest.get( spotD, destParentRef2 ) );
+	}
+
+	private Spot copySpot( final Spot spot, final Spot ref )
+	{
+		spot.localize( pos );
+		spot.getCovariance( cov );
+		return graph.addVertex( ref ).init( spot.getTimepoint(), pos, cov );
+	}
+}
@@ -6,7 +6,7 @@ import java.util.function.Predicate;
 import org.mastodon.mamut.model.Link;
 import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
-import org.mastodon.mamut.tomancak.lineage_registration.BranchGraphUtils;
+import org.mastodon.mamut.tomancak.lineage_registration.BranchIndex;
 
 /**
  * A sorting "order" for sorting the lineage tree in a {@link ModelGraph}.
@@ -28,9 +28,12 @@ public class CellLifetimeOrder implements Predicate< Spot >
 {
 	private final ModelGraph graph;
 
+	private final BranchIndex branchIndex;
+
 	public CellLifetimeOrder( ModelGraph graph )
 	{
 		this.graph = graph;
+		this.branchIndex = BranchIndex.get( graph );
 	}
 
 	/**
@@ -51,8 +54,8 @@ public class CellLifetimeOrder implements Predicate< Spot >
 			Iterator< Link > iterator = spot.outgoingEdges().iterator();
 			Spot child1 = iterator.next().getTarget( ref1 );
 			Spot child2 = iterator.next().getTarget( ref2 );
-			Spot end1 = BranchGraphUtils.getBranchEnd( child1, ref3 );
-			Spot end2 = BranchGraphUtils.getBranchEnd( child2, ref4 );
+			Spot end1 = branchIndex.getBranchEnd( child1, ref3 );
+			Spot end2 = branchIndex.getBranchEnd( child2, ref4 );
 			return end1.getTimepoint() >= end2.getTimepoint();
 		}
 		finally
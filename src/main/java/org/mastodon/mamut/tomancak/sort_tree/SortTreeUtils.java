@@ -35,6 +35,7 @@ import org.mastodon.graph.ref.OutgoingEdges;
 import org.mastodon.mamut.model.Link;
 import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.util.TimepointExtentIndex;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -269,10 +270,7 @@ public class SortTreeUtils
 
 	public static int getNumberOfTimePoints( ModelGraph graph )
 	{
-		int max = -1;
-		for(Spot spot : graph.vertices())
-			max = Math.max( max, spot.getTimepoint() );
-		return max + 1;
+		return TimepointExtentIndex.get( graph ).getNumberOfTimepoints();
 	}
 
 	/**
@@ -0,0 +1,232 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2022 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.spots;
+
+import org.mastodon.mamut.model.Spot;
+
+/**
+ * Computes the spots that are missing on an edge that spans more than one
+ * timepoint.
+ * <p>
+ * Positions are interpolated linearly. Covariance matrices are interpolated
+ * in log-Euclidean space, {@code C(r) = exp( (1-r) log(C0) + r log(C1) )},
+ * which keeps them symmetric positive definite and interpolates size,
+ * shape and orientation of the ellipsoids smoothly.
+ * <p>
+ * All scratch arrays are preallocated, interpolating does not allocate.
+ * Instances are not thread-safe, use one instance per thread.
+ */
+class GapInterpolator
+{
+	/**
+	 * Receives the interpolated spots of a gap, in order of increasing
+	 * timepoint. The arrays are reused and only valid during the call.
+	 */
+	interface SpotConsumer
+	{
+		void accept( int timepoint, double[] position, double[][] covariance );
+	}
+
+	/** Eigenvalues are clamped to this, to take the log of degenerate covariances. */
+	private static final double MIN_EIGENVALUE = 1e-12;
+
+	private static final int MAX_SWEEPS = 50;
+
+	private final double[] pos0 = new double[ 3 ];
+	private final double[] pos1 = new double[ 3 ];
+	private final double[] pos = new double[ 3 ];
+
+	private final double[][] cov0 = new double[ 3 ][ 3 ];
+	private final double[][] cov1 = new double[ 3 ][ 3 ];
+	private final double[][] cov = new double[ 3 ][ 3 ];
+
+	private final double[][] log0 = new double[ 3 ][ 3 ];
+	private final double[][] log1 = new double[ 3 ][ 3 ];
+	private final double[][] log = new double[ 3 ][ 3 ];
+
+	private final double[][] tmp = new double[ 3 ][ 3 ];
+	private final double[][] eigenvectors = new double[ 3 ][ 3 ];
+	private final double[] eigenvalues = new double[ 3 ];
+
+	/**
+	 * Interpolates the spots missing between {@code from} and {@code to} and
+	 * passes them to {@code consumer}.
+	 *
+	 * @return the number of interpolated spots.
+	 */
+	public int interpolate( final Spot from, final Spot to, final SpotConsumer consumer )
+	{
+		from.localize( pos0 );
+		to.localize( pos1 );
+		from.getCovariance( cov0 );
+		to.getCovariance( cov1 );
+		return interpolate( from.getTimepoint(), pos0, cov0, to.getTimepoint(), pos1, cov1, consumer );
+	}
+
+	/**
+	 * Interpolates the spots missing between timepoints {@code t0} and
+	 * {@code t1}, given the positions and covariances at the end points, and
+	 * passes them to {@code consumer}. The input arrays are not modified.
+	 *
+	 * @return the number of interpolated spots.
+	 */
+	public int interpolate(
+			final int t0, final double[] p0, final double[][] c0,
+			final int t1, final double[] p1, final double[][] c1,
+			final SpotConsumer consumer )
+	{
+		final int steps = t1 - t0;
+		if ( steps < 2 )
+			return 0;
+
+		logm( c0, log0 );
+		logm( c1, log1 );
+		for ( int s = 1; s < steps; ++s )
+		{
+			final double ratio = ( double ) s / steps;
+			for ( int i = 0; i < 3; i++ )
+			{
+				pos[ i ] = ( 1.0 - ratio ) * p0[ i ] + ratio * p1[ i ];
+				for ( int j = 0; j < 3; j++ )
+					log[ i ][ j ] = ( 1.0 - ratio ) * log0[ i ][ j ] + ratio * log1[ i ][ j ];
+			}
+			expm( log, cov );
+			consumer.accept( t0 + s, pos, cov );
+		}
+		return steps - 1;
+	}
+
+	/**
+	 * Matrix logarithm of a symmetric positive (semi-)definite 3x3 matrix.
+	 */
+	private void logm( final double[][] m, final double[][] result )
+	{
+		eigenSymmetric3x3( m, eigenvalues, eigenvectors );
+		double max = 0;
+		for ( int i = 0; i < 3; i++ )
+			max = Math.max( max, eigenvalues[ i ] );
+		final double min = Math.max( max * MIN_EIGENVALUE, Double.MIN_NORMAL );
+		for ( int i = 0; i < 3; i++ )
+			eigenvalues[ i ] = Math.log( Math.max( eigenvalues[ i ], min ) );
+		compose( eigenvectors, eigenvalues, result );
+	}
+
+	/**
+	 * Matrix exponential of a symmetric 3x3 matrix.
+	 */
+	private void expm( final double[][] m, final double[][] result )
+	{
+		eigenSymmetric3x3( m, eigenvalues, eigenvectors );
+		for ( int i = 0; i < 3; i++ )
+			eigenvalues[ i ] = Math.exp( eigenvalues[ i ] );
+		compose( eigenvectors, eigenvalues, result );
+	}
+
+	/**
+	 * Set {@code result = V diag(d) V^T}.
+	 */
+	private static void compose( final double[][] V, final double[] d, final double[][] result )
+	{
+		for ( int i = 0; i < 3; i++ )
+			for ( int j = i; j < 3; j++ )
+			{
+				double sum = 0;
+				for ( int k = 0; k < 3; k++ )
+					sum += V[ i ][ k ] * d[ k ] * V[ j ][ k ];
+				result[ i ][ j ] = sum;
+				result[ j ][ i ] = sum;
+			}
+	}
+
+	/**
+	 * Eigen decomposition of a symmetric 3x3 matrix by cyclic Jacobi
+	 * rotations. On return, {@code m = V diag(d) V^T}, with the eigenvectors
+	 * in the columns of {@code V}. {@code m} is not modified.
+	 */
+	private void eigenSymmetric3x3( final double[][] m, final double[] d, final double[][] V )
+	{
+		final double[][] a = tmp;
+		for ( int i = 0; i < 3; i++ )
+			for ( int j = 0; j < 3; j++ )
+			{
+				a[ i ][ j ] = m[ i ][ j ];
+				V[ i ][ j ] = i == j ? 1 : 0;
+			}
+
+		for ( int sweep = 0; sweep < MAX_SWEEPS; sweep++ )
+		{
+			final double off = a[ 0 ][ 1 ] * a[ 0 ][ 1 ] + a[ 0 ][ 2 ] * a[ 0 ][ 2 ] + a[ 1 ][ 2 ] * a[ 1 ][ 2 ];
+			final double diag = a[ 0 ][ 0 ] * a[ 0 ][ 0 ] + a[ 1 ][ 1 ] * a[ 1 ][ 1 ] + a[ 2 ][ 2 ] * a[ 2 ][ 2 ];
+			if ( off <= 1e-30 * diag || off == 0 )
+				break;
+			rotate( a, V, 0, 1 );
+			rotate( a, V, 0, 2 );
+			rotate( a, V, 1, 2 );
+		}
+
+		for ( int i = 0; i < 3; i++ )
+			d[ i ] = a[ i ][ i ];
+	}
+
+	/**
+	 * Applies the Jacobi rotation that zeroes {@code a[p][q]}, that is
+	 * {@code a = J^T a J} and {@code V = V J}.
+	 */
+	private static void rotate( final double[][] a, final double[][] V, final int p, final int q )
+	{
+		final double apq = a[ p ][ q ];
+		if ( apq == 0 )
+			return;
+		final double theta = ( a[ q ][ q ] - a[ p ][ p ] ) / ( 2 * apq );
+		final double t = Math.signum( theta == 0 ? 1 : theta ) / ( Math.abs( theta ) + Math.sqrt( theta * theta + 1 ) );
+		final double c = 1 / Math.sqrt( t * t + 1 );
+		final double s = t * c;
+		for ( int k = 0; k < 3; k++ )
+		{
+			final double akp = a[ k ][ p ];
+			final double akq = a[ k ][ q ];
+			a[ k ][ p ] = c * akp - s * akq;
+			a[ k ][ q ] = s * akp + c * akq;
+		}
+		for ( int k = 0; k < 3; k++ )
+		{
+			final double apk = a[ p ][ k ];
+			final double aqk = a[ q ][ k ];
+			a[ p ][ k ] = c * apk - s * aqk;
+			a[ q ][ k ] = s * apk + c * aqk;
+		}
+		for ( int k = 0; k < 3; k++ )
+		{
+			final double vkp = V[ k ][ p ];
+			final double vkq = V[ k ][ q ];
+			V[ k ][ p ] = c * vkp - s * vkq;
+			V[ k ][ q ] = s * vkp + c * vkq;
+		}
+	}
+}
@@ -28,42 +28,298 @@
  */
 package org.mastodon.mamut.tomancak.spots;
 
-import static net.imglib2.util.LinAlgHelpers.rows;
-
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
 
 import org.mastodon.collection.RefCollections;
 import org.mastodon.collection.RefList;
+import org.mastodon.graph.GraphListener;
 import org.mastodon.mamut.model.Link;
 import org.mastodon.mamut.model.Model;
 import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
+import org.mastodon.properties.PropertyChangeListener;
 
-import net.imglib2.util.LinAlgHelpers;
+import gnu.trove.list.array.TIntArrayList;
 
 public class InterpolateMissingSpots
 {
+	private static final int CHUNK_SIZE = 1024;
+
 	public static void interpolate( final Model model )
 	{
 		new InterpolateMissingSpots( model ).interpolate();
 	}
 
+	/**
+	 * Same result as {@link #interpolate(Model)}, but shortens the time the
+	 * graph write lock is held. The insertion is recorded by the undo
+	 * recorder, so this is suitable for interactively edited models.
+	 * <p>
+	 * Gapped edges and the shapes of their end points are collected under
+	 * the read lock. The positions and covariances of the missing spots are
+	 * then computed in parallel into primitive buffers, without holding any
+	 * lock. Finally all spots are inserted under the write lock in one pass,
+	 * that only adds the precomputed spots and links.
+	 * <p>
+	 * If another thread modifies the graph between collecting and inserting,
+	 * the gaps are collected and interpolated again under the write lock, so
+	 * that the result is the same as that of {@link #interpolate(Model)}.
+	 */
+	public static void interpolateBatched( final Model model )
+	{
+		interpolateBatched( model, true );
+	}
+
+	/**
+	 * Same as {@link #interpolateBatched(Model)}. If {@code recordUndo} is
+	 * {@code false}, graph listeners are paused during the insertion and
+	 * receive a single {@code graphRebuilt()} notification instead of one
+	 * notification per added spot and link. This includes the undo recorder,
+	 * which then discards the undo history. Use this only for models that are
+	 * not edited interactively, e.g. merge inputs.
+	 */
+	public static void interpolateBatched( final Model model, final boolean recordUndo )
+	{
+		interpolateBatched( model, recordUndo, null );
+	}
+
+	/**
+	 * Implementation of {@link #interpolateBatched(Model, boolean)}.
+	 * {@code beforeInsert} is run, if not {@code null}, without holding a
+	 * lock after the interpolation is computed, to test concurrent changes.
+	 */
+	static void interpolateBatched( final Model model, final boolean recordUndo, final Runnable beforeInsert )
+	{
+		final ModelGraph graph = model.getGraph();
+		final ReentrantReadWriteLock lock = graph.getLock();
+
+		// collect gapped edges and the shapes of their end points, and watch
+		// for changes until the write lock is taken
+		final ChangeDetector changes = new ChangeDetector();
+		Gaps gaps;
+		lock.readLock().lock();
+		try
+		{
+			gaps = Gaps.collect( graph );
+			if ( gaps != null )
+				changes.register( graph );
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+		if ( gaps == null )
+			return;
+
+		try
+		{
+			// compute interpolated spots, without lock
+			gaps.interpolate();
+			if ( beforeInsert != null )
+				beforeInsert.run();
+		}
+		catch ( final RuntimeException e )
+		{
+			changes.unregister( graph );
+			throw e;
+		}
+
+		// insert
+		lock.writeLock().lock();
+		try
+		{
+			changes.unregister( graph );
+			if ( changes.isChanged() )
+			{
+				// the graph was modified since the gaps were collected
+				gaps = Gaps.collect( graph );
+				if ( gaps == null )
+					return;
+				gaps.interpolate();
+			}
+			if ( recordUndo )
+			{
+				gaps.insert( graph );
+			}
+			else
+			{
+				graph.pauseListeners();
+				try
+				{
+					gaps.insert( graph );
+				}
+				finally
+				{
+					graph.resumeListeners();
+				}
+			}
+			model.setUndoPoint();
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+		graph.notifyGraphChanged();
+	}
+
+	/**
+	 * Records whether spots or links were added or removed, or spots were
+	 * moved or reshaped, while registered.
+	 */
+	private static class ChangeDetector implements GraphListener< Spot, Link >, PropertyChangeListener< Spot >
+	{
+		private volatile boolean changed = false;
+
+		private void register( final ModelGraph graph )
+		{
+			graph.addGraphListener( this );
+			graph.addVertexPositionListener( this );
+			graph.addVertexCovarianceListener( this );
+		}
+
+		private void unregister( final ModelGraph graph )
+		{
+			graph.removeGraphListener( this );
+			graph.removeVertexPositionListener( this );
+			graph.removeVertexCovarianceListener( this );
+		}
+
+		private boolean isChanged()
+		{
+			return changed;
+		}
+
+		@Override
+		public void propertyChanged( final Spot spot )
+		{
+			changed = true;
+		}
+
+		@Override
+		public void graphRebuilt()
+		{
+			changed = true;
+		}
+
+		@Override
+		public void vertexAdded( final Spot vertex )
+		{
+			changed = true;
+		}
+
+		@Override
+		public void vertexRemoved( final Spot vertex )
+		{
+			changed = true;
+		}
+
+		@Override
+		public void edgeAdded( final Link edge )
+		{
+			changed = true;
+		}
+
+		@Override
+		public void edgeRemoved( final Link edge )
+		{
+			changed = true;
+		}
+	}
+
+	/**
+	 * Result of {@link #preview(Model)}.
+	 */
+	public static class Preview
+	{
+		private final int numGaps;
+
+		private final int numSpots;
+
+		private Preview( final int numGaps, final int numSpots )
+		{
+			this.numGaps = numGaps;
+			this.numSpots = numSpots;
+		}
+
+		/**
+		 * Returns the number of edges that span more than one timepoint.
+		 */
+		public int getNumberOfGaps()
+		{
+			return numGaps;
+		}
+
+		/**
+		 * Returns the number of spots that {@link #interpolate(Model)} would
+		 * add.
+		 */
+		public int getNumberOfSpots()
+		{
+			return numSpots;
+		}
+
+		@Override
+		public String toString()
+		{
+			return numSpots + " spots on " + numGaps + " gaps";
+		}
+	}
+
+	/**
+	 * Dry run of {@link #interpolate(Model)}: runs the same interpolation
+	 * on all gaps under the read lock, but does not modify the graph.
+	 */
+	public static Preview preview( final Model model )
+	{
+		final ModelGraph graph = model.getGraph();
+		final ReentrantReadWriteLock lock = graph.getLock();
+		lock.readLock().lock();
+		try
+		{
+			final GapInterpolator interpolator = new GapInterpolator();
+			final GapInterpolator.SpotConsumer discard = ( t, pos, cov ) -> {};
+			final Spot vref1 = graph.vertexRef();
+			final Spot vref2 = graph.vertexRef();
+			int numGaps = 0;
+			int numSpots = 0;
+			for ( final Link edge : graph.edges() )
+			{
+				final Spot from = edge.getSource( vref1 );
+				final Spot to = edge.getTarget( vref2 );
+				if ( to.getTimepoint() - from.getTimepoint() > 1 )
+				{
+					++numGaps;
+					numSpots += interpolator.interpolate( from, to, discard );
+				}
+			}
+			graph.releaseRef( vref1 );
+			graph.releaseRef( vref2 );
+			return new Preview( numGaps, numSpots );
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
 	private final Model model;
 	private final ModelGraph graph;
 
+	private final GapInterpolator interpolator = new GapInterpolator();
+
+	private final GapInterpolator.SpotConsumer appendSpot = this::appendSpot;
+
+	/**
+	 * The last spot of the chain currently being built by
+	 * {@link #interpolateEdge(Link)}.
+	 */
 	private final Spot vref1;
 	private final Spot vref2;
 	private final Spot vref3;
 
 	private final Link eref1;
 
-	private double[] pos0 = new double[ 3 ];
-	private double[] pos1 = new double[ 3 ];
-	private double[] pos = new double[ 3 ];
-
-	private double[][] cov0 = new double[ 3 ][ 3 ];
-	private double[][] cov = new double[ 3 ][ 3 ];
-
 	private InterpolateMissingSpots( final Model model )
 	{
 		this.model = model;
@@ -107,50 +363,176 @@ public class InterpolateMissingSpots
 		final Spot from = edge.getSource( vref1 );
 		final Spot to = edge.getTarget( vref2 );
 		graph.remove( edge );
+		if ( interpolator.interpolate( from, to, appendSpot ) > 0 )
+			graph.addEdge( vref1, to, eref1 ).init();
+	}
 
-		final int t0 = from.getTimepoint();
-		final int t1 = to.getTimepoint();
+	private void appendSpot( final int timepoint, final double[] pos, final double[][] cov )
+	{
+		final Spot current = graph.addVertex( vref3 ).init( timepoint, pos, cov );
+		graph.addEdge( vref1, current, eref1 ).init();
+		vref1.refTo( current );
+	}
 
-		final int steps = t1 - t0;
-		if( steps >= 2 )
-		{
-			from.localize( pos0 );
-			to.localize( pos1 );
-			from.getCovariance( cov0 );
-			final double radiusRatio = Math.sqrt( to.getBoundingSphereRadiusSquared() / from.getBoundingSphereRadiusSquared() );
+	/**
+	 * Primitive buffers for {@link #interpolateBatched(Model)}. Per gapped
+	 * edge {@code i}: the timepoints, positions and covariances of its end
+	 * points, and the offset of its first interpolated spot in the
+	 * output buffers.
+	 */
+	private static class Gaps
+	{
+		private final int[] sourceIds;
+		private final int[] targetIds;
+		private final int[] t0;
+		private final int[] t1;
+		private final double[] pos0;
+		private final double[] pos1;
+		private final double[] cov0;
+		private final double[] cov1;
 
-			Spot previous = from;
-			for ( int s = 1; s < steps; ++s )
-			{
-				final double ratio = ( double ) s / steps;
+		/** offsets[ i ] is the index of the first interpolated spot of gap {@code i}. */
+		private final int[] offsets;
+
+		/** 3 doubles per interpolated spot. */
+		private final double[] positions;
 
-				final int t = t0 + s;
-				lerp( pos0, pos1, ratio, pos );
-				final double scale = ( 1.0 - ratio ) + ratio * radiusRatio;
-				LinAlgHelpers.scale( cov0, scale * scale, cov );
+		/** 9 doubles (row-major 3x3) per interpolated spot. */
+		private final double[] covariances;
 
-				final Spot current = graph.addVertex( vref3 ).init( t, pos, cov );
-				graph.addEdge( previous, current, eref1 ).init();
-				previous = vref1.refTo( current );
+		/**
+		 * Collects the gapped edges of {@code graph}, and the shapes of their
+		 * end points. The caller must hold a lock of the graph.
+		 *
+		 * @return the gaps, or {@code null} if there are none.
+		 */
+		private static Gaps collect( final ModelGraph graph )
+		{
+			final TIntArrayList sourceIds = new TIntArrayList();
+			final TIntArrayList targetIds = new TIntArrayList();
+			final Spot vref1 = graph.vertexRef();
+			final Spot vref2 = graph.vertexRef();
+			try
+			{
+				for ( final Link edge : graph.edges() )
+				{
+					final Spot from = edge.getSource( vref1 );
+					final Spot to = edge.getTarget( vref2 );
+					if ( to.getTimepoint() - from.getTimepoint() > 1 )
+					{
+						sourceIds.add( from.getInternalPoolIndex() );
+						targetIds.add( to.getInternalPoolIndex() );
+					}
+				}
+				return sourceIds.isEmpty() ? null : new Gaps( graph, sourceIds, targetIds, vref1, vref2 );
+			}
+			finally
+			{
+				graph.releaseRef( vref1 );
+				graph.releaseRef( vref2 );
 			}
-			graph.addEdge( previous, to, eref1 ).init();
 		}
-	}
 
+		private Gaps( final ModelGraph graph, final TIntArrayList sourceIds, final TIntArrayList targetIds, final Spot vref1, final Spot vref2 )
+		{
+			final int n = sourceIds.size();
+			this.sourceIds = sourceIds.toArray();
+			this.targetIds = targetIds.toArray();
+			t0 = new int[ n ];
+			t1 = new int[ n ];
+			pos0 = new double[ 3 * n ];
+			pos1 = new double[ 3 * n ];
+			cov0 = new double[ 9 * n ];
+			cov1 = new double[ 9 * n ];
+			offsets = new int[ n + 1 ];
+			final double[] pos = new double[ 3 ];
+			final double[][] cov = new double[ 3 ][ 3 ];
+			for ( int i = 0; i < n; i++ )
+			{
+				final Spot from = graph.getGraphIdBimap().getVertex( this.sourceIds[ i ], vref1 );
+				final Spot to = graph.getGraphIdBimap().getVertex( this.targetIds[ i ], vref2 );
+				t0[ i ] = from.getTimepoint();
+				t1[ i ] = to.getTimepoint();
+				from.localize( pos );
+				System.arraycopy( pos, 0, pos0, 3 * i, 3 );
+				to.localize( pos );
+				System.arraycopy( pos, 0, pos1, 3 * i, 3 );
+				from.getCovariance( cov );
+				for ( int r = 0; r < 3; r++ )
+					System.arraycopy( cov[ r ], 0, cov0, 9 * i + 3 * r, 3 );
+				to.getCovariance( cov );
+				for ( int r = 0; r < 3; r++ )
+					System.arraycopy( cov[ r ], 0, cov1, 9 * i + 3 * r, 3 );
+				offsets[ i + 1 ] = offsets[ i ] + t1[ i ] - t0[ i ] - 1;
+			}
+			positions = new double[ 3 * offsets[ n ] ];
+			covariances = new double[ 9 * offsets[ n ] ];
+		}
 
-	// TODO: Use imglib2 LinAlgHelpers.lerp() when released
-	/**
-	 * set c = ( 1 - t ) * a + t * b, where a, b are vectors and t is scalar. Dimensions of a, b, and c
-	 * must match. In place interpolation (c==a or c==b) is allowed.
-	 */
-	private static void lerp( final double[] a, final double[] b, final double t, final double[] c )
-	{
-		assert rows( a ) == rows( b );
-		assert rows( a ) == rows( c );
+		private void interpolate()
+		{
+			final int n = sourceIds.length;
+			final int numChunks = ( n + CHUNK_SIZE - 1 ) / CHUNK_SIZE;
+			IntStream.range( 0, numChunks ).parallel().forEach( chunk -> {
+				final GapInterpolator interpolator = new GapInterpolator();
+				final double[] p0 = new double[ 3 ];
+				final double[] p1 = new double[ 3 ];
+				final double[][] c0 = new double[ 3 ][ 3 ];
+				final double[][] c1 = new double[ 3 ][ 3 ];
+				final int[] next = new int[ 1 ];
+				final GapInterpolator.SpotConsumer store = ( t, pos, cov ) -> {
+					final int j = next[ 0 ]++;
+					System.arraycopy( pos, 0, positions, 3 * j, 3 );
+					for ( int r = 0; r < 3; r++ )
+						System.arraycopy( cov[ r ], 0, covariances, 9 * j + 3 * r, 3 );
+				};
+				final int end = Math.min( n, ( chunk + 1 ) * CHUNK_SIZE );
+				for ( int i = chunk * CHUNK_SIZE; i < end; i++ )
+				{
+					System.arraycopy( pos0, 3 * i, p0, 0, 3 );
+					System.arraycopy( pos1, 3 * i, p1, 0, 3 );
+					for ( int r = 0; r < 3; r++ )
+					{
+						System.arraycopy( cov0, 9 * i + 3 * r, c0[ r ], 0, 3 );
+						System.arraycopy( cov1, 9 * i + 3 * r, c1[ r ], 0, 3 );
+					}
+					next[ 0 ] = offsets[ i ];
+					interpolator.interpolate( t0[ i ], p0, c0, t1[ i ], p1, c1, store );
+				}
+			} );
+		}
 
-		final int rows = rows( a );
+		private void insert( final ModelGraph graph )
+		{
+			final Spot vref1 = graph.vertexRef();
+			final Spot vref2 = graph.vertexRef();
+			final Spot vref3 = graph.vertexRef();
+			final Link eref = graph.edgeRef();
+			final double[] pos = new double[ 3 ];
+			final double[][] cov = new double[ 3 ][ 3 ];
+			for ( int i = 0; i < sourceIds.length; i++ )
+			{
+				final Spot from = graph.getGraphIdBimap().getVertex( sourceIds[ i ], vref1 );
+				final Spot to = graph.getGraphIdBimap().getVertex( targetIds[ i ], vref2 );
+				graph.remove( graph.getEdge( from, to, eref ) );
 
-		for ( int i = 0; i < rows; ++i )
-			c[ i ] = ( 1.0 - t ) * a[ i ] + t * b[ i ];
+				Spot previous = from;
+				for ( int j = offsets[ i ]; j < offsets[ i + 1 ]; j++ )
+				{
+					System.arraycopy( positions, 3 * j, pos, 0, 3 );
+					for ( int r = 0; r < 3; r++ )
+						System.arraycopy( covariances, 9 * j + 3 * r, cov[ r ], 0, 3 );
+					final int t = t0[ i ] + 1 + j - offsets[ i ];
+					final Spot current = graph.addVertex( vref3 ).init( t, pos, cov );
+					graph.addEdge( previous, current, eref ).init();
+					previous = vref1.refTo( current );
+				}
+				graph.addEdge( previous, to, eref ).init();
+			}
+			graph.releaseRef( vref1 );
+			graph.releaseRef( vref2 );
+			graph.releaseRef( vref3 );
+			graph.releaseRef( eref );
+		}
 	}
 }
@@ -0,0 +1,157 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2022 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.mastodon.RefPool;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.model.tag.ObjTags;
+import org.mastodon.model.tag.TagSetModel;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+
+/**
+ * Copies tags of many spots and links at once: Every object that is tagged
+ * with a source tag is additionally assigned the corresponding target tag.
+ * <p>
+ * The objects to tag are first collected as columns of pool ids, for all
+ * source tags. The assignment is then applied in one pass under the write
+ * lock of the graph, followed by a single {@link ModelGraph#notifyGraphChanged()}.
+ * Taking the snapshot first makes the result independent of the order in
+ * which the tags are copied, e.g. when swapping two tags of the same tag set.
+ */
+public class BulkTagCopy
+{
+	private BulkTagCopy()
+	{
+		// prevent instantiation
+	}
+
+	/**
+	 * Assigns the tag {@code to} to all spots and links tagged with
+	 * {@code from}.
+	 */
+	public static void copyTag( final Model model, final Tag from, final Tag to )
+	{
+		copyTags( model, Collections.singletonMap( from, to ) );
+	}
+
+	/**
+	 * Copies a whole tag set: Every spot and link tagged with a tag of
+	 * {@code from} is assigned the tag of {@code to} with the same label. Tags
+	 * without a counterpart of the same label are ignored.
+	 *
+	 * @return the number of tags that have a counterpart in {@code to}.
+	 */
+	public static int copyTagSet( final Model model, final TagSet from, final TagSet to )
+	{
+		final Map< Tag, Tag > mapping = mapByLabel( from, to );
+		copyTags( model, mapping );
+		return mapping.size();
+	}
+
+	/**
+	 * Assigns the value tag to all spots and links tagged with the key tag,
+	 * for all entries of the given map.
+	 */
+	public static void copyTags( final Model model, final Map< Tag, Tag > mapping )
+	{
+		final ModelGraph graph = model.getGraph();
+		final TagSetModel< Spot, Link > tsm = model.getTagSetModel();
+		final ReentrantReadWriteLock lock = graph.getLock();
+		lock.writeLock().lock();
+		try
+		{
+			copyTags( tsm.getVertexTags(), graph.vertices().getRefPool(), mapping );
+			copyTags( tsm.getEdgeTags(), graph.edges().getRefPool(), mapping );
+			model.setUndoPoint();
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+		graph.notifyGraphChanged();
+	}
+
+	static Map< Tag, Tag > mapByLabel( final TagSet from, final TagSet to )
+	{
+		final Map< String, Tag > toByLabel = new LinkedHashMap<>();
+		for ( final Tag tag : to.getTags() )
+			toByLabel.put( tag.label(), tag );
+		final Map< Tag, Tag > mapping = new LinkedHashMap<>();
+		for ( final Tag tag : from.getTags() )
+		{
+			final Tag target = toByLabel.get( tag.label() );
+			if ( target != null )
+				mapping.put( tag, target );
+		}
+		return mapping;
+	}
+
+	static < O > void copyTags( final ObjTags< O > tags, final RefPool< O > pool, final Map< Tag, Tag > mapping )
+	{
+		// snapshot: getTaggedWith() is a live view, that changes while tags are set
+		final List< Tag > targets = new ArrayList<>();
+		final List< int[] > columns = new ArrayList<>();
+		for ( final Map.Entry< Tag, Tag > entry : mapping.entrySet() )
+		{
+			final Tag from = entry.getKey();
+			final Tag to = entry.getValue();
+			if ( from == null || to == null || from.equals( to ) )
+				continue;
+			final Collection< O > tagged = tags.getTaggedWith( from );
+			final int[] ids = new int[ tagged.size() ];
+			int i = 0;
+			for ( final O obj : tagged )
+				ids[ i++ ] = pool.getId( obj );
+			targets.add( to );
+			columns.add( ids );
+		}
+
+		// apply, in one sequential pass
+		final O ref = pool.createRef();
+		for ( int t = 0; t < targets.size(); t++ )
+		{
+			final Tag to = targets.get( t );
+			for ( final int id : columns.get( t ) )
+				tags.set( pool.getObject( id, ref ), to );
+		}
+		pool.releaseRef( ref );
+	}
+}
@@ -0,0 +1,84 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2022 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.util;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.Function;
+
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+/**
+ * Holds one shared instance of a {@link GraphListener} per
+ * {@link ModelGraph}. The instance is created by the factory when it is
+ * first requested, and registered as listener of the graph.
+ * <p>
+ * Instances usually reference their graph, therefore the registry holds
+ * them by weak references. An instance is kept alive by its graph, which
+ * holds it as listener. Neither prevents the graph from being garbage
+ * collected.
+ *
+ * @param <T>
+ *            the type of the instances.
+ */
+public class PerGraphRegistry< T extends GraphListener< Spot, Link > >
+{
+	private final Map< ModelGraph, WeakReference< T > > instances = new WeakHashMap<>();
+
+	private final Function< ModelGraph, T > factory;
+
+	public PerGraphRegistry( final Function< ModelGraph, T > factory )
+	{
+		this.factory = factory;
+	}
+
+	/**
+	 * Returns the instance of the given graph, and creates it if there is
+	 * none yet.
+	 */
+	public T get( final ModelGraph graph )
+	{
+		synchronized ( instances )
+		{
+			final WeakReference< T > reference = instances.get( graph );
+			T instance = reference == null ? null : reference.get();
+			if ( instance == null )
+			{
+				instance = factory.apply( graph );
+				graph.addGraphListener( instance );
+				instances.put( graph, new WeakReference<>( instance ) );
+			}
+			return instance;
+		}
+	}
+}
@@ -0,0 +1,206 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2022 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.util;
+
+import java.util.Arrays;
+
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+/**
+ * Number of spots per timepoint of a {@link ModelGraph}, and the first and
+ * last non-empty timepoint.
+ * <p>
+ * There is one shared instance per {@link ModelGraph}, see
+ * {@link #get(ModelGraph)}. It is built with one pass over all spots when it
+ * is first requested, and then kept up to date by listening to the graph.
+ */
+public class TimepointExtentIndex implements GraphListener< Spot, Link >
+{
+	private static final PerGraphRegistry< TimepointExtentIndex > indices = new PerGraphRegistry<>( TimepointExtentIndex::new );
+
+	/**
+	 * Returns the {@link TimepointExtentIndex} of the given graph.
+	 */
+	public static TimepointExtentIndex get( final ModelGraph graph )
+	{
+		return indices.get( graph );
+	}
+
+	private final ModelGraph graph;
+
+	private int[] counts = new int[ 0 ];
+
+	private int minTimepoint = -1;
+
+	private int maxTimepoint = -1;
+
+	private TimepointExtentIndex( final ModelGraph graph )
+	{
+		this.graph = graph;
+		rebuild();
+	}
+
+	/**
+	 * Returns the first timepoint with at least one spot, or -1 if the graph
+	 * is empty.
+	 */
+	public synchronized int getMinNonEmptyTimepoint()
+	{
+		return minTimepoint;
+	}
+
+	/**
+	 * Returns the last timepoint with at least one spot, or -1 if the graph
+	 * is empty.
+	 */
+	public synchronized int getMaxNonEmptyTimepoint()
+	{
+		return maxTimepoint;
+	}
+
+	/**
+	 * Returns the last timepoint {@code < endTimepoint} with at least one
+	 * spot, or -1 if there is none.
+	 * <p>
+	 * Takes constant time if {@code endTimepoint} is after the last non-empty
+	 * timepoint. Otherwise the timepoints before {@code endTimepoint} are
+	 * scanned backwards, which takes time linear in the number of empty
+	 * timepoints skipped.
+	 */
+	public synchronized int getMaxNonEmptyTimepointBefore( final int endTimepoint )
+	{
+		if ( endTimepoint > maxTimepoint )
+			return maxTimepoint;
+		for ( int t = endTimepoint - 1; t >= 0; t-- )
+			if ( counts[ t ] > 0 )
+				return t;
+		return -1;
+	}
+
+	/**
+	 * Returns the number of timepoints, that is the last non-empty timepoint
+	 * plus one.
+	 */
+	public synchronized int getNumberOfTimepoints()
+	{
+		return maxTimepoint + 1;
+	}
+
+	/**
+	 * Returns the number of spots in the given timepoint.
+	 */
+	public synchronized int getSpotCount( final int timepoint )
+	{
+		return timepoint >= 0 && timepoint < counts.length ? counts[ timepoint ] : 0;
+	}
+
+	/**
+	 * Returns the number of spots per timepoint, for all timepoints up to the
+	 * last non-empty timepoint.
+	 */
+	public synchronized int[] getSpotCounts()
+	{
+		return Arrays.copyOf( counts, maxTimepoint + 1 );
+	}
+
+	private synchronized void rebuild()
+	{
+		Arrays.fill( counts, 0 );
+		minTimepoint = -1;
+		maxTimepoint = -1;
+		for ( final Spot spot : graph.vertices() )
+			add( spot.getTimepoint() );
+	}
+
+	private void add( final int timepoint )
+	{
+		if ( timepoint >= counts.length )
+			counts = Arrays.copyOf( counts, Math.max( timepoint + 1, 2 * counts.length ) );
+		if ( counts[ timepoint ]++ == 0 )
+		{
+			if ( minTimepoint < 0 || timepoint < minTimepoint )
+				minTimepoint = timepoint;
+			if ( timepoint > maxTimepoint )
+				maxTimepoint = timepoint;
+		}
+	}
+
+	private void remove( final int timepoint )
+	{
+		if ( --counts[ timepoint ] > 0 )
+			return;
+		if ( timepoint == minTimepoint )
+		{
+			while ( minTimepoint <= maxTimepoint && counts[ minTimepoint ] == 0 )
+				minTimepoint++;
+			if ( minTimepoint > maxTimepoint )
+			{
+				minTimepoint = -1;
+				maxTimepoint = -1;
+				return;
+			}
+		}
+		if ( timepoint == maxTimepoint )
+			while ( counts[ maxTimepoint ] == 0 )
+				maxTimepoint--;
+	}
+
+	@Override
+	public void graphRebuilt()
+	{
+		rebuild();
+	}
+
+	@Override
+	public synchronized void vertexAdded( final Spot vertex )
+	{
+		add( vertex.getTimepoint() );
+	}
+
+	@Override
+	public synchronized void vertexRemoved( final Spot vertex )
+	{
+		remove( vertex.getTimepoint() );
+	}
+
+	@Override
+	public void edgeAdded( final Link edge )
+	{
+		// ignore
+	}
+
+	@Override
+	public void edgeRemoved( final Link edge )
+	{
+		// ignore
+	}
+}
@@ -0,0 +1,49 @@
+package org.mastodon.mamut.tomancak.lineage_registration;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BatchLineageRegistrationTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testOutputFileNextToInput() throws IOException
+	{
+		File target = new File( folder.getRoot(), "embryo.mastodon" );
+		File output = BatchLineageRegistration.getOutputFile( target, new BatchLineageRegistration.Options() );
+		assertEquals( new File( folder.getRoot(), "embryo-registered.mastodon" ), output );
+	}
+
+	@Test
+	public void testOutputDirectory() throws IOException
+	{
+		File target = new File( folder.getRoot(), "embryo.mastodon" );
+		File outputDirectory = folder.newFolder( "out" );
+		BatchLineageRegistration.Options options = new BatchLineageRegistration.Options().outputDirectory( outputDirectory );
+		assertEquals( new File( outputDirectory, "embryo.mastodon" ), BatchLineageRegistration.getOutputFile( target, options ) );
+	}
+
+	@Test( expected = IOException.class )
+	public void testInputIsNotOverwrittenByDefault() throws IOException
+	{
+		File target = new File( folder.getRoot(), "embryo.mastodon" );
+		BatchLineageRegistration.Options options = new BatchLineageRegistration.Options().outputDirectory( folder.getRoot() );
+		BatchLineageRegistration.getOutputFile( target, options );
+	}
+
+	@Test
+	public void testOverwrite() throws IOException
+	{
+		File target = new File( folder.getRoot(), "embryo.mastodon" );
+		BatchLineageRegistration.Options options = new BatchLineageRegistration.Options().overwrite( true );
+		assertEquals( target, BatchLineageRegistration.getOutputFile( target, options ) );
+	}
+}
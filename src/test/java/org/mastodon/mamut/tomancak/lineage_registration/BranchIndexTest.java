@@ -0,0 +1,44 @@
+package org.mastodon.mamut.tomancak.lineage_registration;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+public class BranchIndexTest
+{
+	@Test
+	public void testSameAsBranchGraphUtils()
+	{
+		EmbryoA embryoA = new EmbryoA();
+		assertSameAsBranchGraphUtils( embryoA.graph );
+	}
+
+	@Test
+	public void testInvalidation()
+	{
+		EmbryoA embryoA = new EmbryoA();
+		BranchIndex index = BranchIndex.get( embryoA.graph );
+		Spot ref = embryoA.graph.vertexRef();
+		assertEquals( embryoA.aEnd, index.getBranchEnd( embryoA.a, ref ) );
+		embryoA.graph.remove( embryoA.a2 );
+		assertEquals( embryoA.a1, index.getBranchEnd( embryoA.a, ref ) );
+		assertEquals( embryoA.a, index.getBranchStart( embryoA.a1, ref ) );
+		assertSameAsBranchGraphUtils( embryoA.graph );
+	}
+
+	private static void assertSameAsBranchGraphUtils( ModelGraph graph )
+	{
+		BranchIndex index = BranchIndex.get( graph );
+		Spot ref1 = graph.vertexRef();
+		Spot ref2 = graph.vertexRef();
+		for ( Spot spot : graph.vertices() )
+		{
+			assertEquals( BranchGraphUtils.getBranchStart( spot, ref1 ), index.getBranchStart( spot, ref2 ) );
+			assertEquals( BranchGraphUtils.getBranchEnd( spot, ref1 ), index.getBranchEnd( spot, ref2 ) );
+		}
+		graph.releaseRef( ref1 );
+		graph.releaseRef( ref2 );
+	}
+}
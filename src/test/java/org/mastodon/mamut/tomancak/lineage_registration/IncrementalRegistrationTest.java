@@ -0,0 +1,85 @@
+package org.mastodon.mamut.tomancak.lineage_registration;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.mastodon.collection.RefDoubleMap;
+import org.mastodon.collection.RefRefMap;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.lineage_registration.spatial_registration.SpatialRegistrationMethod;
+
+public class IncrementalRegistrationTest
+{
+	@Test
+	public void testChangedDivisionDirection()
+	{
+		EmbryoA embryoA = new EmbryoA();
+		EmbryoB embryoB = new EmbryoB();
+		RegisteredGraphs registration = LineageRegistrationAlgorithm.run( embryoA.model, 0, embryoB.model, 0,
+				SpatialRegistrationMethod.FIXED_ROOTS );
+		try (IncrementalRegistration incremental = new IncrementalRegistration( registration, 0, 0 ))
+		{
+			// swap the daughter cells of A, this flips the division direction
+			embryoA.a1.setPosition( 3, 1 );
+			embryoA.a2.setPosition( 1, 1 );
+			incremental.update();
+			RegisteredGraphs expected = LineageRegistrationAlgorithm.run( embryoA.model, 0, embryoB.model, 0,
+					SpatialRegistrationMethod.FIXED_ROOTS );
+			RegisteredGraphs updated = incremental.getRegisteredGraphs();
+			assertEquals( asStrings( expected.mapAB ), asStrings( updated.mapAB ) );
+			assertEquals( asStrings( expected.mapBA ), asStrings( updated.mapBA ) );
+			assertEquals( asStrings( expected.anglesA ), asStrings( updated.anglesA ) );
+			assertEquals( asStrings( expected.anglesB ), asStrings( updated.anglesB ) );
+		}
+	}
+
+	@Test
+	public void testRemovedDaughterCell()
+	{
+		EmbryoA embryoA = new EmbryoA();
+		EmbryoB embryoB = new EmbryoB();
+		RegisteredGraphs registration = LineageRegistrationAlgorithm.run( embryoA.model, 0, embryoB.model, 0,
+				SpatialRegistrationMethod.FIXED_ROOTS );
+		int originalSize = registration.mapAB.size();
+		try (IncrementalRegistration incremental = new IncrementalRegistration( registration, 0, 0 ))
+		{
+			embryoA.graph.remove( embryoA.a2 );
+			incremental.update();
+			RegisteredGraphs updated = incremental.getRegisteredGraphs();
+			List< String > expected = Arrays.asList(
+					"A -> A",
+					"B -> B",
+					"B1 -> B2",
+					"B2 -> B1",
+					"C -> C",
+					"C1 -> C1",
+					"C2 -> C2" );
+			assertEquals( expected, asStrings( updated.mapAB ) );
+			assertEquals( Arrays.asList( "B -> 180.0", "C -> 0.0" ), asStrings( updated.anglesA ) );
+			assertEquals( updated.mapAB.size(), updated.mapBA.size() );
+			// the registration passed to the constructor, e.g. a cached one, is not modified
+			assertEquals( originalSize, registration.mapAB.size() );
+		}
+	}
+
+	private static List< String > asStrings( RefRefMap< Spot, Spot > map )
+	{
+		List< String > strings = new ArrayList<>();
+		RefMapUtils.forEach( map, ( a, b ) -> strings.add( a.getLabel() + " -> " + b.getLabel() ) );
+		Collections.sort( strings );
+		return strings;
+	}
+
+	private static List< String > asStrings( RefDoubleMap< Spot > map )
+	{
+		List< String > strings = new ArrayList<>();
+		map.forEachEntry( ( a, b ) -> strings.add( a.getLabel() + " -> " + b ) );
+		Collections.sort( strings );
+		return strings;
+	}
+}
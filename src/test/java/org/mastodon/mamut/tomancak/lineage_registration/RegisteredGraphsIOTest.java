@@ -0,0 +1,160 @@
+package org.mastodon.mamut.tomancak.lineage_registration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mastodon.collection.RefDoubleMap;
+import org.mastodon.collection.RefRefMap;
+import org.mastodon.collection.ref.RefRefHashMap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.lineage_registration.spatial_registration.SpatialRegistrationMethod;
+
+public class RegisteredGraphsIOTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testWriteAndRead() throws IOException
+	{
+		EmbryoA embryoA = new EmbryoA();
+		EmbryoB embryoB = new EmbryoB();
+		RegisteredGraphs expected = LineageRegistrationAlgorithm.run( embryoA.model, 0, embryoB.model, 0,
+				SpatialRegistrationMethod.FIXED_ROOTS );
+		File file = folder.newFile( "registration.bin" );
+		RegisteredGraphsIO.write( expected, 0, 0, SpatialRegistrationMethod.FIXED_ROOTS, file );
+		// read into fresh, identically built models
+		EmbryoA embryoA2 = new EmbryoA();
+		EmbryoB embryoB2 = new EmbryoB();
+		RegisteredGraphsIO.StoredRegistration stored = RegisteredGraphsIO.read( file, embryoA2.model, embryoB2.model );
+		assertEquals( 0, stored.numUnresolved );
+		assertEquals( SpatialRegistrationMethod.FIXED_ROOTS, stored.method );
+		assertEquals( asStrings( expected.mapAB ), asStrings( stored.registration.mapAB ) );
+		assertEquals( asStrings( expected.anglesA ), asStrings( stored.registration.anglesA ) );
+		assertEquals( asStrings( expected.anglesB ), asStrings( stored.registration.anglesB ) );
+	}
+
+	@Test
+	public void testWriteAndReadLongLabel() throws IOException
+	{
+		// labels over 64 KB can't be written with DataOutputStream.writeUTF
+		String longLabel = String.join( "", Collections.nCopies( 30000, "\u00e4b" ) );
+		EmbryoA embryoA = new EmbryoA();
+		EmbryoB embryoB = new EmbryoB();
+		embryoA.a1.setLabel( longLabel );
+		RegisteredGraphs expected = LineageRegistrationAlgorithm.run( embryoA.model, 0, embryoB.model, 0,
+				SpatialRegistrationMethod.FIXED_ROOTS );
+		File file = folder.newFile( "registration.bin" );
+		RegisteredGraphsIO.write( expected, 0, 0, SpatialRegistrationMethod.FIXED_ROOTS, file );
+		EmbryoA embryoA2 = new EmbryoA();
+		EmbryoB embryoB2 = new EmbryoB();
+		embryoA2.a1.setLabel( longLabel );
+		RegisteredGraphsIO.StoredRegistration stored = RegisteredGraphsIO.read( file, embryoA2.model, embryoB2.model );
+		assertEquals( 0, stored.numUnresolved );
+		assertEquals( asStrings( expected.mapAB ), asStrings( stored.registration.mapAB ) );
+	}
+
+	@Test
+	public void testWriteAndReadUnlabeledBranchStarts() throws IOException
+	{
+		// only the roots are labeled, the pool indices differ after reading
+		EmbryoA embryoA = new EmbryoA();
+		EmbryoB embryoB = new EmbryoB();
+		Model modelA = copyWithUnlabeledDescendants( embryoA.graph, false );
+		Model modelB = copyWithUnlabeledDescendants( embryoB.graph, false );
+		RegisteredGraphs expected = LineageRegistrationAlgorithm.run( modelA, 0, modelB, 0,
+				SpatialRegistrationMethod.FIXED_ROOTS );
+		File file = folder.newFile( "registration.bin" );
+		RegisteredGraphsIO.write( expected, 0, 0, SpatialRegistrationMethod.FIXED_ROOTS, file );
+		Model modelA2 = copyWithUnlabeledDescendants( embryoA.graph, true );
+		Model modelB2 = copyWithUnlabeledDescendants( embryoB.graph, true );
+		RegisteredGraphsIO.StoredRegistration stored = RegisteredGraphsIO.read( file, modelA2, modelB2 );
+		assertEquals( 0, stored.numUnresolved );
+		assertEquals( asPositionStrings( expected.mapAB ), asPositionStrings( stored.registration.mapAB ) );
+	}
+
+	/**
+	 * Copies the graph into a new model. Only roots keep their label. If
+	 * {@code reverse} is true, spots are added in reverse order, such that
+	 * they get different pool indices.
+	 */
+	private static Model copyWithUnlabeledDescendants( ModelGraph graph, boolean reverse )
+	{
+		Model model = new Model();
+		ModelGraph copy = model.getGraph();
+		List< Spot > spots = new ArrayList<>();
+		for ( Spot spot : graph.vertices() )
+			spots.add( graph.getGraphIdBimap().getVertex( spot.getInternalPoolIndex(), graph.vertexRef() ) );
+		if ( reverse )
+			Collections.reverse( spots );
+		RefRefMap< Spot, Spot > map = new RefRefHashMap<>( graph.vertices().getRefPool(), copy.vertices().getRefPool() );
+		double[] position = new double[ 3 ];
+		for ( Spot spot : spots )
+		{
+			spot.localize( position );
+			Spot spotCopy = copy.addVertex().init( spot.getTimepoint(), position, 1 );
+			if ( spot.incomingEdges().isEmpty() )
+				spotCopy.setLabel( spot.getLabel() );
+			map.put( spot, spotCopy );
+		}
+		for ( Link link : graph.edges() )
+			copy.addEdge( map.get( link.getSource() ), map.get( link.getTarget() ) );
+		return model;
+	}
+
+	private static List< String > asPositionStrings( RefRefMap< Spot, Spot > map )
+	{
+		List< String > strings = new ArrayList<>();
+		RefMapUtils.forEach( map, ( a, b ) -> strings.add( asPositionString( a ) + " -> " + asPositionString( b ) ) );
+		Collections.sort( strings );
+		return strings;
+	}
+
+	private static String asPositionString( Spot spot )
+	{
+		return spot.getTimepoint() + " (" + spot.getDoublePosition( 0 ) + ", " + spot.getDoublePosition( 1 ) + ", " + spot.getDoublePosition( 2 ) + ")";
+	}
+
+	@Test
+	public void testRegistrationCache()
+	{
+		EmbryoA embryoA = new EmbryoA();
+		EmbryoB embryoB = new EmbryoB();
+		RegistrationCache cache = new RegistrationCache();
+		RegisteredGraphs first = cache.getOrRun( embryoA.model, 0, embryoB.model, 0, SpatialRegistrationMethod.FIXED_ROOTS );
+		assertSame( first, cache.getOrRun( embryoA.model, 0, embryoB.model, 0, SpatialRegistrationMethod.FIXED_ROOTS ) );
+		embryoA.a1.setLabel( "A1 modified" );
+		RegisteredGraphs second = cache.getOrRun( embryoA.model, 0, embryoB.model, 0, SpatialRegistrationMethod.FIXED_ROOTS );
+		assertNotSame( first, second );
+		assertEquals( first.mapAB.size(), second.mapAB.size() );
+	}
+
+	private static List< String > asStrings( RefRefMap< Spot, Spot > map )
+	{
+		List< String > strings = new ArrayList<>();
+		RefMapUtils.forEach( map, ( a, b ) -> strings.add( a.getLabel() + " -> " + b.getLabel() ) );
+		Collections.sort( strings );
+		return strings;
+	}
+
+	private static List< String > asStrings( RefDoubleMap< Spot > map )
+	{
+		List< String > strings = new ArrayList<>();
+		map.forEachEntry( ( a, b ) -> strings.add( a.getLabel() + " -> " + b ) );
+		Collections.sort( strings );
+		return strings;
+	}
+}
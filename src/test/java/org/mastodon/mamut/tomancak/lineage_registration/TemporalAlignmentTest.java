@@ -0,0 +1,49 @@
+package org.mastodon.mamut.tomancak.lineage_registration;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TemporalAlignmentTest
+{
+	@Test
+	public void testShiftedCounts()
+	{
+		// embryo B is two timepoints ahead of embryo A
+		int[] countsA = { 1, 1, 2, 2, 4, 4, 8, 8 };
+		int[] countsB = { 2, 2, 4, 4, 8, 8, 16, 16 };
+		int[] aligned = TemporalAlignment.align( countsA, countsB, new int[ 0 ], new int[ 0 ] );
+		assertArrayEquals( new int[] { 0, 0, 0, 1, 2, 3, 4, 5 }, aligned );
+	}
+
+	@Test
+	public void testAheadCounts()
+	{
+		// embryo A is two timepoints ahead of embryo B
+		int[] countsA = { 2, 2, 4, 4, 8, 8, 16, 16 };
+		int[] countsB = { 1, 1, 2, 2, 4, 4, 8, 8 };
+		int[] aligned = TemporalAlignment.align( countsA, countsB, new int[ 0 ], new int[ 0 ] );
+		assertEquals( 2, aligned[ 0 ] );
+		assertArrayEquals( new int[] { 2, 3, 4, 5 }, Arrays.copyOf( aligned, 4 ) );
+	}
+
+	@Test
+	public void testEqualCounts()
+	{
+		int[] counts = { 1, 1, 2, 2, 4, 4, 8, 8 };
+		int[] aligned = TemporalAlignment.align( counts, counts, new int[ 0 ], new int[ 0 ] );
+		assertArrayEquals( new int[] { 0, 1, 2, 3, 4, 5, 6, 7 }, aligned );
+	}
+
+	@Test
+	public void testDivisionAnchors()
+	{
+		// constant counts carry no information, the paired division decides
+		int[] counts = { 5, 5, 5, 5, 5 };
+		int[] aligned = TemporalAlignment.align( counts, counts, new int[] { 1 }, new int[] { 3 } );
+		assertEquals( 3, aligned[ 1 ] );
+	}
+}
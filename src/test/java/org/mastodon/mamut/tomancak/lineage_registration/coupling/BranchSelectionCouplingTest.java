@@ -0,0 +1,128 @@
+package org.mastodon.mamut.tomancak.lineage_registration.coupling;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.model.DefaultSelectionModel;
+
+public class BranchSelectionCouplingTest
+{
+	private final ModelGraph graphA = new ModelGraph();
+
+	private final ModelGraph graphB = new ModelGraph();
+
+	private DefaultSelectionModel< Spot, Link > selectionA;
+
+	private DefaultSelectionModel< Spot, Link > selectionB;
+
+	@Before
+	public void setUp()
+	{
+		selectionA = createLineage( graphA );
+		selectionB = createLineage( graphB );
+		SelectionModelHook hookA = new SelectionModelHook( graphA, selectionA );
+		SelectionModelHook hookB = new SelectionModelHook( graphB, selectionB );
+		new BranchSelectionCoupling( hookA, hookB, graphB, ( spot, ref ) -> findByLabel( graphB, spot.getLabel() ) );
+		new BranchSelectionCoupling( hookB, hookA, graphA, ( spot, ref ) -> findByLabel( graphA, spot.getLabel() ) );
+	}
+
+	@Test
+	public void testSelectBranch()
+	{
+		selectionA.setSelected( findByLabel( graphA, "1" ), true );
+		assertEquals( labels( "0", "1", "2" ), selectedSpots( selectionB ) );
+		assertEquals( labels( "0->1", "1->2" ), selectedLinks( selectionB ) );
+		selectionA.setSelected( findByLabel( graphA, "4" ), true );
+		assertEquals( labels( "0", "1", "2", "4" ), selectedSpots( selectionB ) );
+		selectionA.setSelected( findByLabel( graphA, "1" ), false );
+		assertEquals( labels( "4" ), selectedSpots( selectionB ) );
+		assertEquals( labels(), selectedLinks( selectionB ) );
+	}
+
+	@Test
+	public void testNoEcho()
+	{
+		// selecting the whole branch in B must not be reported back to A
+		selectionA.setSelected( findByLabel( graphA, "1" ), true );
+		assertEquals( labels( "1" ), selectedSpots( selectionA ) );
+		assertEquals( labels(), selectedLinks( selectionA ) );
+		selectionB.setSelected( findByLabel( graphB, "3" ), true );
+		assertEquals( labels( "1", "3" ), selectedSpots( selectionA ) );
+	}
+
+	@Test
+	public void testRemoveSelectedSpot()
+	{
+		selectionA.setSelected( findByLabel( graphA, "3" ), true );
+		assertEquals( labels( "3" ), selectedSpots( selectionB ) );
+		graphA.remove( findByLabel( graphA, "3" ) );
+		assertEquals( labels(), selectedSpots( selectionB ) );
+		// the pool index of the removed spot is reused by the new spot
+		Spot spot = graphA.addVertex().init( 5, new double[] { 0, 0, 0 }, 1 );
+		spot.setLabel( "5" );
+		selectionA.setSelected( spot, true );
+		assertEquals( labels(), selectedSpots( selectionB ) );
+		// in A, spots 0 to 4 are now one branch
+		selectionA.setSelected( findByLabel( graphA, "4" ), true );
+		assertEquals( labels( "0", "1", "2" ), selectedSpots( selectionB ) );
+	}
+
+	/**
+	 * Creates the lineage 0 -> 1 -> 2, that divides into 3 and 4.
+	 */
+	private static DefaultSelectionModel< Spot, Link > createLineage( ModelGraph graph )
+	{
+		DefaultSelectionModel< Spot, Link > selectionModel = new DefaultSelectionModel<>( graph, graph.getGraphIdBimap() );
+		graph.addGraphListener( selectionModel );
+		Spot[] spots = new Spot[ 5 ];
+		for ( int i = 0; i < spots.length; i++ )
+		{
+			spots[ i ] = graph.addVertex().init( Math.min( i, 3 ), new double[] { i, 0, 0 }, 1 );
+			spots[ i ].setLabel( Integer.toString( i ) );
+		}
+		graph.addEdge( spots[ 0 ], spots[ 1 ] ).init();
+		graph.addEdge( spots[ 1 ], spots[ 2 ] ).init();
+		graph.addEdge( spots[ 2 ], spots[ 3 ] ).init();
+		graph.addEdge( spots[ 2 ], spots[ 4 ] ).init();
+		return selectionModel;
+	}
+
+	private static Spot findByLabel( ModelGraph graph, String label )
+	{
+		for ( Spot spot : graph.vertices() )
+			if ( spot.getLabel().equals( label ) )
+				return spot;
+		return null;
+	}
+
+	private static Set< String > labels( String... labels )
+	{
+		return new TreeSet<>( Arrays.asList( labels ) );
+	}
+
+	private static Set< String > selectedSpots( DefaultSelectionModel< Spot, Link > selectionModel )
+	{
+		Set< String > labels = new TreeSet<>();
+		for ( Spot spot : selectionModel.getSelectedVertices() )
+			labels.add( spot.getLabel() );
+		return labels;
+	}
+
+	private static Set< String > selectedLinks( DefaultSelectionModel< Spot, Link > selectionModel )
+	{
+		Set< String > labels = new TreeSet<>();
+		Spot ref = selectionModel.getSelectedVertices().createRef();
+		for ( Link link : selectionModel.getSelectedEdges() )
+			labels.add( link.getSource( ref ).getLabel() + "->" + link.getTarget( ref ).getLabel() );
+		selectionModel.getSelectedVertices().releaseRef( ref );
+		return labels;
+	}
+}
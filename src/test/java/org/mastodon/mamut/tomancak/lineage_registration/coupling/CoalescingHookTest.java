@@ -0,0 +1,133 @@
+package org.mastodon.mamut.tomancak.lineage_registration.coupling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import javax.swing.SwingUtilities;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+public class CoalescingHookTest
+{
+	private final ModelGraph graph = new ModelGraph();
+
+	private final Spot a = graph.addVertex().init( 0, new double[] { 0, 0, 0 }, 1 );
+
+	private final Spot b = graph.addVertex().init( 0, new double[] { 1, 0, 0 }, 1 );
+
+	private final Spot c = graph.addVertex().init( 0, new double[] { 2, 0, 0 }, 1 );
+
+	private final TestHook parent = new TestHook();
+
+	private final CoalescingHook hook = new CoalescingHook( parent, graph );
+
+	private final List< String > received = new CopyOnWriteArrayList<>();
+
+	@Before
+	public void setUp()
+	{
+		hook.setListener( spot -> received.add( spot == null ? "null" : spot.getLabel() ) );
+	}
+
+	@Test
+	public void testCoalescing() throws InterruptedException
+	{
+		a.setLabel( "a" );
+		c.setLabel( "c" );
+		parent.fire( a );
+		parent.fire( b );
+		parent.fire( c );
+		waitForDispatch();
+		assertEquals( 1, received.size() );
+		assertEquals( "c", received.get( 0 ) );
+		parent.fire( null );
+		waitForDispatch();
+		assertEquals( 2, received.size() );
+		assertEquals( "null", received.get( 1 ) );
+	}
+
+	@Test
+	public void testNoEventsAfterClose() throws InterruptedException
+	{
+		parent.fire( a );
+		hook.close();
+		waitForDispatch();
+		assertTrue( received.isEmpty() );
+		assertTrue( parent.closed );
+	}
+
+	@Test
+	public void testDropEventOfRemovedSpot() throws InterruptedException
+	{
+		parent.fire( a );
+		graph.remove( a );
+		// the new spot reuses the pool index of the removed one
+		graph.addVertex().init( 0, new double[] { 3, 0, 0 }, 1 ).setLabel( "new" );
+		waitForDispatch();
+		assertTrue( received.isEmpty() );
+	}
+
+	@Test
+	public void testSet() throws InterruptedException, InvocationTargetException
+	{
+		b.setLabel( "b" );
+		hook.set( b );
+		hook.set( null );
+		SwingUtilities.invokeAndWait( () -> {} );
+		assertEquals( "[b, null]", parent.set.toString() );
+	}
+
+	@Test
+	public void testSetRemovedSpot() throws InterruptedException, InvocationTargetException
+	{
+		hook.set( b );
+		graph.remove( b );
+		SwingUtilities.invokeAndWait( () -> {} );
+		assertTrue( parent.set.isEmpty() );
+	}
+
+	private static void waitForDispatch() throws InterruptedException
+	{
+		Thread.sleep( 10 * CoalescingHook.FRAME_MILLIS );
+	}
+
+	private static class TestHook implements SpotHook
+	{
+		private final List< String > set = new CopyOnWriteArrayList<>();
+
+		private Consumer< Spot > listener;
+
+		private boolean closed = false;
+
+		void fire( Spot spot )
+		{
+			listener.accept( spot );
+		}
+
+		@Override
+		public void set( Spot spot )
+		{
+			set.add( spot == null ? "null" : spot.getLabel() );
+		}
+
+		@Override
+		public void setListener( Consumer< Spot > listener )
+		{
+			this.listener = listener;
+		}
+
+		@Override
+		public void close()
+		{
+			closed = true;
+		}
+	}
+}
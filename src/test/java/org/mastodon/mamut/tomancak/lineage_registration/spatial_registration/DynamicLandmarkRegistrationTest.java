@@ -2,6 +2,8 @@ package org.mastodon.mamut.tomancak.lineage_registration.spatial_registration;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 import java.awt.Color;
 import java.util.ArrayList;
@@ -82,6 +84,44 @@ public class DynamicLandmarkRegistrationTest
 		assertArrayEquals( expected.getRowPackedCopy(), transformation.getRowPackedCopy(), 0.1 );
 	}
 
+	@Test
+	public void testCachedTransformationsEqualUncached()
+	{
+		DynamicLandmarkRegistration registration = DynamicLandmarkRegistration.forRoots( embryo1.model, embryo2.model, pairedRoots );
+		int numTimepoints = registration.getNumberOfTimepointsA();
+		for ( int round = 0; round < 2; round++ )
+			for ( int t = 0; t < numTimepoints; t++ )
+			{
+				AffineTransform3D expected = registration.computeTransformationAtoB( t, numTimepoints - 1 - t );
+				AffineTransform3D actual = registration.getTransformationAtoB( t, numTimepoints - 1 - t );
+				assertArrayEquals( expected.getRowPackedCopy(), actual.getRowPackedCopy(), 0 );
+			}
+		assertEquals( numTimepoints, registration.getNumberOfCachedTransformations() );
+	}
+
+	@Test
+	public void testCacheEviction()
+	{
+		DynamicLandmarkRegistration registration = DynamicLandmarkRegistration.forRoots( embryo1.model, embryo2.model, pairedRoots );
+		registration.setCacheSize( 2 );
+		AffineTransform3D first = registration.getTransformationAtoB( 0, 0 );
+		registration.getTransformationAtoB( 1, 1 );
+		// access (0, 0) again, so that (1, 1) is the least recently used entry
+		assertSame( first, registration.getTransformationAtoB( 0, 0 ) );
+		registration.getTransformationAtoB( 2, 2 );
+		assertEquals( 2, registration.getNumberOfCachedTransformations() );
+		assertSame( first, registration.getTransformationAtoB( 0, 0 ) );
+		registration.setCacheSize( 1 );
+		assertEquals( 1, registration.getNumberOfCachedTransformations() );
+		assertSame( first, registration.getTransformationAtoB( 0, 0 ) );
+		registration.getTransformationAtoB( 2, 2 );
+		assertEquals( 1, registration.getNumberOfCachedTransformations() );
+		// evicted transformations are recomputed with the same result
+		AffineTransform3D recomputed = registration.getTransformationAtoB( 0, 0 );
+		assertNotSame( first, recomputed );
+		assertArrayEquals( first.getRowPackedCopy(), recomputed.getRowPackedCopy(), 0 );
+	}
+
 	private static void addTags( ExampleEmbryo embryo )
 	{
 		List< Pair< String, Integer > > colors = Arrays.asList(
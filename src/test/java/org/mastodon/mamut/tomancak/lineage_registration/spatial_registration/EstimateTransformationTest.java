@@ -2,6 +2,12 @@ package org.mastodon.mamut.tomancak.lineage_registration.spatial_registration;
 
 import static org.junit.Assert.assertArrayEquals;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
 import net.imglib2.realtransform.AffineTransform3D;
 
 import org.junit.Test;
@@ -32,6 +38,34 @@ public class EstimateTransformationTest
 		assertArrayEquals( asArray( expected ), asArray( result ), 0.001 );
 	}
 
+	@Test
+	public void testFitSimilarityAgreesWithReference()
+	{
+		AffineTransform3D transform = exampleTransformation();
+		Random random = new Random( 42 );
+		int n = 50;
+		int numOutliers = 5;
+		double[] pointsA = new double[ 3 * n ];
+		double[] pointsB = new double[ 3 * n ];
+		List< PointMatch > matches = new ArrayList<>();
+		double[] a = new double[ 3 ];
+		double[] b = new double[ 3 ];
+		for ( int i = 0; i < n; i++ )
+		{
+			for ( int d = 0; d < 3; d++ )
+				a[ d ] = 10 * random.nextDouble();
+			transform.apply( a, b );
+			for ( int d = 0; d < 3; d++ )
+				b[ d ] += i < numOutliers ? 20 * random.nextDouble() - 10 : 0.2 * random.nextGaussian();
+			System.arraycopy( a, 0, pointsA, 3 * i, 3 );
+			System.arraycopy( b, 0, pointsB, 3 * i, 3 );
+			matches.add( new PointMatch( new Point( a.clone() ), new Point( b.clone() ) ) );
+		}
+		AffineTransform3D reference = EstimateTransformation.fitTransform( matches );
+		AffineTransform3D result = EstimateTransformation.fitSimilarity( pointsA, pointsB, n, new AffineTransform3D() );
+		assertArrayEquals( asArray( reference ), asArray( result ), 1e-6 );
+	}
+
 	private ModelGraph simpleGraph()
 	{
 		ModelGraph graphA = new ModelGraph();
@@ -0,0 +1,41 @@
+package org.mastodon.mamut.tomancak.lineage_registration.spatial_registration;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import net.imglib2.realtransform.AffineTransform3D;
+
+import org.junit.Test;
+
+public class InterpolatedSpatialRegistrationTest
+{
+	@Test
+	public void testInterpolation()
+	{
+		SpatialRegistration keyframes = ( timepointA, timepointB ) -> transform( timepointA );
+		InterpolatedSpatialRegistration registration =
+				new InterpolatedSpatialRegistration( keyframes, new int[] { 0, 1, 2, 3 } );
+		// on the aligned timepoints, the keyframes are returned
+		assertTransformEquals( transform( 2 ), registration.getTransformationAtoB( 2, 2 ) );
+		// otherwise the mean of both timepoints is used
+		assertTransformEquals( transform( 1 ), registration.getTransformationAtoB( 0, 2 ) );
+		assertTransformEquals( transform( 1.5 ), registration.getTransformationAtoB( 1, 2 ) );
+	}
+
+	private static AffineTransform3D transform( double time )
+	{
+		AffineTransform3D transform = new AffineTransform3D();
+		transform.rotate( 2, time * Math.PI / 10 );
+		transform.scale( Math.pow( 2, time ) );
+		transform.translate( time, 2 * time, 0 );
+		return transform;
+	}
+
+	private static void assertTransformEquals( AffineTransform3D expected, AffineTransform3D actual )
+	{
+		double[] e = new double[ 12 ];
+		double[] a = new double[ 12 ];
+		expected.toArray( e );
+		actual.toArray( a );
+		assertArrayEquals( e, a, 1e-9 );
+	}
+}
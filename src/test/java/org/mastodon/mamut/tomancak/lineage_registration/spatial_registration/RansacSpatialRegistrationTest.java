@@ -0,0 +1,50 @@
+package org.mastodon.mamut.tomancak.lineage_registration.spatial_registration;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import net.imglib2.realtransform.AffineTransform3D;
+
+import org.junit.Test;
+
+public class RansacSpatialRegistrationTest
+{
+	@Test
+	public void testMislabeledRootIsIgnored()
+	{
+		AffineTransform3D expected = new AffineTransform3D();
+		expected.rotate( 2, Math.PI / 5 );
+		expected.scale( 1.5 );
+		expected.translate( 3, -2, 1 );
+		double[][] points = { { 0, 0, 0 }, { 10, 0, 0 }, { 0, 10, 0 }, { 0, 0, 10 }, { 10, 10, 0 }, { 10, 0, 10 } };
+		String[] labels = { "a", "b", "c", "d", "e", "f" };
+		int n = points.length;
+		double[] pointsA = new double[ 3 * n ];
+		double[] pointsB = new double[ 3 * n ];
+		double[] b = new double[ 3 ];
+		for ( int i = 0; i < n; i++ )
+		{
+			System.arraycopy( points[ i ], 0, pointsA, 3 * i, 3 );
+			expected.apply( points[ i ], b );
+			System.arraycopy( b, 0, pointsB, 3 * i, 3 );
+		}
+		// "e" is paired with the wrong cell
+		System.arraycopy( pointsB, 3, pointsB, 3 * 4, 3 );
+
+		RansacSpatialRegistration registration = RansacSpatialRegistration.fit( pointsA, pointsB, labels, 1 );
+
+		assertEquals( Arrays.asList( "a", "b", "c", "d", "f" ), registration.getInliers() );
+		assertEquals( Collections.singletonList( "e" ), registration.getOutliers() );
+		assertArrayEquals( asArray( expected ), asArray( registration.getTransformationAtoB( 0, 0 ) ), 1e-6 );
+	}
+
+	private static double[] asArray( AffineTransform3D transform )
+	{
+		double[] data = new double[ 12 ];
+		transform.toArray( data );
+		return data;
+	}
+}
@@ -0,0 +1,148 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2022 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BatchMergeTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testReadManifest() throws IOException
+	{
+		final File root = folder.getRoot();
+		final File absolute = new File( root, "with, comma and space.mastodon" );
+		final File manifest = writeManifest(
+				"# projectA\tprojectB\toutput\tdistCutoff\tmahalanobisDistCutoff\tratioThreshold",
+				"",
+				"a.mastodon\tb.mastodon\tab.mastodon\t1000\t1\t2",
+				"  a.mastodon \t " + absolute + "\tc.mastodon\tabc.mastodon\t100\t0.5\t3  " );
+		final List< BatchMerge.Job > jobs = BatchMerge.readManifest( manifest, 10 );
+		assertEquals( 2, jobs.size() );
+
+		final BatchMerge.Job first = jobs.get( 0 );
+		assertEquals( Arrays.asList( new File( root, "a.mastodon" ), new File( root, "b.mastodon" ) ), first.projects );
+		assertEquals( new File( root, "ab.mastodon" ), first.output );
+		assertEquals( 1000, first.distCutoff, 0 );
+		assertEquals( 1, first.mahalanobisDistCutoff, 0 );
+		assertEquals( 2, first.ratioThreshold, 0 );
+		assertEquals( 10, first.windowSize );
+
+		final BatchMerge.Job second = jobs.get( 1 );
+		assertEquals( Arrays.asList( new File( root, "a.mastodon" ), absolute, new File( root, "c.mastodon" ) ), second.projects );
+		assertEquals( new File( root, "abc.mastodon" ), second.output );
+		assertEquals( 100, second.distCutoff, 0 );
+		assertEquals( 0.5, second.mahalanobisDistCutoff, 0 );
+		assertEquals( 3, second.ratioThreshold, 0 );
+	}
+
+	@Test
+	public void testReadManifestWithCommas() throws IOException
+	{
+		// NB: commas do not separate columns
+		assertMalformed( writeManifest( "a.mastodon,b.mastodon,ab.mastodon,1000,1,2" ), "line 1" );
+	}
+
+	@Test
+	public void testReadManifestWithMissingColumn() throws IOException
+	{
+		assertMalformed( writeManifest( "# comment", "a.mastodon\tb.mastodon\t1000\t1\t2" ), "line 2" );
+	}
+
+	@Test
+	public void testReadManifestWithInvalidNumber() throws IOException
+	{
+		assertMalformed( writeManifest( "a.mastodon\tb.mastodon\tab.mastodon\t1000\tone\t2" ), "line 1" );
+	}
+
+	@Test
+	public void testWriteSummary() throws IOException
+	{
+		final File root = folder.getRoot();
+		final BatchMerge.Job job = new BatchMerge.Job(
+				Arrays.asList( new File( root, "missing a.mastodon" ), new File( root, "missing b.mastodon" ), new File( root, "missing c.mastodon" ) ),
+				new File( root, "out.mastodon" ), 1000, 1, 2, 0 );
+		final BatchMerge.Result result = BatchMerge.runJob( job );
+		assertFalse( result.isSuccess() );
+		assertFalse( new File( root, "out.mastodon" ).exists() );
+
+		final File summary = new File( root, "summary.tsv" );
+		BatchMerge.writeSummary( Collections.singletonList( result ), summary );
+		final List< String > lines = Files.readAllLines( summary.toPath(), StandardCharsets.UTF_8 );
+		assertEquals( 2, lines.size() );
+		assertEquals( "projects\toutput\tstatus\tspotsInput\tspotsOutput"
+				+ "\tSingleton\tMatch\tConflict\tTag Conflict\tLabel Conflict\tseconds\tmessage", lines.get( 0 ) );
+		final String[] columns = lines.get( 1 ).split( "\t", -1 );
+		assertEquals( 12, columns.length );
+		assertEquals( job.projects.get( 0 ) + ";" + job.projects.get( 1 ) + ";" + job.projects.get( 2 ), columns[ 0 ] );
+		assertEquals( job.output.toString(), columns[ 1 ] );
+		assertEquals( "FAILED", columns[ 2 ] );
+		assertEquals( "-1;-1;-1", columns[ 3 ] );
+		for ( int c = 4; c <= 9; c++ )
+			assertEquals( "-1", columns[ c ] );
+		assertFalse( columns[ 11 ].isEmpty() );
+	}
+
+	private File writeManifest( final String... lines ) throws IOException
+	{
+		final File manifest = folder.newFile( "manifest.tsv" );
+		Files.write( manifest.toPath(), Arrays.asList( lines ), StandardCharsets.UTF_8 );
+		return manifest;
+	}
+
+	private static void assertMalformed( final File manifest, final String expectedMessage )
+	{
+		try
+		{
+			BatchMerge.readManifest( manifest );
+			fail( "Expected an IOException." );
+		}
+		catch ( final IOException e )
+		{
+			assertTrue( e.getMessage(), e.getMessage().contains( expectedMessage ) );
+		}
+	}
+}
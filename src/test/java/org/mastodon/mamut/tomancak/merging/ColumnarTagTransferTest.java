@@ -0,0 +1,193 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2022 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+import org.mastodon.collection.RefMaps;
+import org.mastodon.collection.RefRefMap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.merging.MergeDatasets.OutputDataSet;
+import org.mastodon.mamut.tomancak.merging.MergeTags.TagSetStructureMaps;
+import org.mastodon.model.tag.ObjTags;
+import org.mastodon.model.tag.TagSetModel;
+import org.mastodon.model.tag.TagSetStructure;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+import org.mastodon.util.TagSetUtils;
+
+/**
+ * Tests that {@link ColumnarTagTransfer} gives the same result as calling
+ * {@link MergeModels#transferTags} for every object.
+ */
+public class ColumnarTagTransferTest
+{
+	/*
+	 * Tags of the spots and of the first link in A and B. For B, the cases
+	 * are: the same tag as A (already merged), a different tag (conflict), no
+	 * tag, and a tag where A has none.
+	 */
+
+	private static final String[] SPOT_TAGS_A = { "x", "x", "y", null, "x" };
+
+	private static final String[] SPOT_TAGS_B = { "x", "y", null, "y", "y" };
+
+	@Test
+	public void testSameAsPerObjectTransfer()
+	{
+		final Model mA = createModel( SPOT_TAGS_A, "y" );
+		final Model mB = createModel( SPOT_TAGS_B, "x" );
+		final List< String > expected = transfer( mA, mB, false );
+		final List< String > actual = transfer( mA, mB, true );
+		assertEquals( expected, actual );
+		// NB: make sure that the fixture covers the conflict case
+		assertTrue( expected.stream().anyMatch( line -> line.contains( "Tag Conflict" ) ) );
+	}
+
+	private static List< String > transfer( final Model mA, final Model mB, final boolean columnar )
+	{
+		final OutputDataSet output = new OutputDataSet();
+		final Tag tagTagConflict = output.addTagConflictTag( "Tag Conflict", 0xffff0000 );
+		final ModelGraph graph = output.getModel().getGraph();
+		final RefRefMap< Spot, Spot > mapAtoDest = RefMaps.createRefRefMap( mA.getGraph().vertices(), graph.vertices() );
+		final RefRefMap< Spot, Spot > mapBtoDest = RefMaps.createRefRefMap( mB.getGraph().vertices(), graph.vertices() );
+		final RefRefMap< Link, Link > mapAtoDestLinks = RefMaps.createRefRefMap( mA.getGraph().edges(), graph.edges() );
+		final RefRefMap< Link, Link > mapBtoDestLinks = RefMaps.createRefRefMap( mB.getGraph().edges(), graph.edges() );
+		final List< Spot > spotsA = spots( mA.getGraph() );
+		final List< Spot > spotsB = spots( mB.getGraph() );
+		Spot previous = null;
+		for ( int i = 0; i < spotsA.size(); i++ )
+		{
+			final Spot spot = graph.addVertex().init( 0, new double[] { i, 0, 0 }, 1 );
+			mapAtoDest.put( spotsA.get( i ), spot );
+			mapBtoDest.put( spotsB.get( i ), spot );
+			if ( previous != null )
+			{
+				final Link link = graph.addEdge( previous, spot ).init();
+				mapAtoDestLinks.put( spotsA.get( i - 1 ).outgoingEdges().get( 0 ), link );
+				mapBtoDestLinks.put( spotsB.get( i - 1 ).outgoingEdges().get( 0 ), link );
+			}
+			previous = spot;
+		}
+
+		final TagSetModel< Spot, Link > tsm = output.getModel().getTagSetModel();
+		final TagSetStructure tss = output.getTagSetStructure();
+		final TagSetModel< Spot, Link > tsmA = mA.getTagSetModel();
+		final TagSetModel< Spot, Link > tsmB = mB.getTagSetModel();
+		final TagSetStructure tssA = tsmA.getTagSetStructure();
+		final TagSetStructure tssB = tsmB.getTagSetStructure();
+		final TagSetStructureMaps tssAtoCopy = MergeTags.addTagSetStructureCopy( tss, tssA, "((A)) " );
+		final TagSetStructureMaps tssBtoCopy = MergeTags.addTagSetStructureCopy( tss, tssB, "((B)) " );
+		final TagSetStructureMaps tssAtoDest = MergeTags.mergeTagSetStructure( tss, tssA );
+		final TagSetStructureMaps tssBtoDest = MergeTags.mergeTagSetStructure( tss, tssB );
+		output.updateTagSetModel();
+
+		if ( columnar )
+		{
+			new ColumnarTagTransfer<>( mA.getGraph().vertices(), mapAtoDest, mA.getGraph().vertices().getRefPool(), graph.vertices().getRefPool() )
+					.transfer( tsmA.getVertexTags(), tssA, tsm.getVertexTags(), tssAtoCopy, tssAtoDest, null );
+			new ColumnarTagTransfer<>( mA.getGraph().edges(), mapAtoDestLinks, mA.getGraph().edges().getRefPool(), graph.edges().getRefPool() )
+					.transfer( tsmA.getEdgeTags(), tssA, tsm.getEdgeTags(), tssAtoCopy, tssAtoDest, null );
+			new ColumnarTagTransfer<>( mB.getGraph().vertices(), mapBtoDest, mB.getGraph().vertices().getRefPool(), graph.vertices().getRefPool() )
+					.transfer( tsmB.getVertexTags(), tssB, tsm.getVertexTags(), tssBtoCopy, tssBtoDest, tagTagConflict );
+			new ColumnarTagTransfer<>( mB.getGraph().edges(), mapBtoDestLinks, mB.getGraph().edges().getRefPool(), graph.edges().getRefPool() )
+					.transfer( tsmB.getEdgeTags(), tssB, tsm.getEdgeTags(), tssBtoCopy, tssBtoDest, tagTagConflict );
+		}
+		else
+		{
+			for ( final Spot spot : mA.getGraph().vertices() )
+				MergeModels.transferTags( spot, mapAtoDest.get( spot ), tsmA.getVertexTags(), tssA, tsm.getVertexTags(), tssAtoCopy, tssAtoDest, null );
+			for ( final Link link : mA.getGraph().edges() )
+				MergeModels.transferTags( link, mapAtoDestLinks.get( link ), tsmA.getEdgeTags(), tssA, tsm.getEdgeTags(), tssAtoCopy, tssAtoDest, null );
+			for ( final Spot spot : mB.getGraph().vertices() )
+				MergeModels.transferTags( spot, mapBtoDest.get( spot ), tsmB.getVertexTags(), tssB, tsm.getVertexTags(), tssBtoCopy, tssBtoDest, tagTagConflict );
+			for ( final Link link : mB.getGraph().edges() )
+				MergeModels.transferTags( link, mapBtoDestLinks.get( link ), tsmB.getEdgeTags(), tssB, tsm.getEdgeTags(), tssBtoCopy, tssBtoDest, tagTagConflict );
+		}
+		return MergeTestUtils.describe( output.getModel() );
+	}
+
+	/**
+	 * Returns a chain of spots, one per entry of {@code spotTags}, with the
+	 * given tags. The first link is tagged with {@code firstLinkTag}.
+	 */
+	private static Model createModel( final String[] spotTags, final String firstLinkTag )
+	{
+		final Model model = new Model();
+		final TagSet tagSet = TagSetUtils.addNewTagSetToModel( model, "cell type", Arrays.asList(
+				Pair.of( "x", 0xffff0000 ),
+				Pair.of( "y", 0xff00ff00 ) ) );
+		final ObjTags< Spot > vertexTags = model.getTagSetModel().getVertexTags();
+		final ObjTags< Link > edgeTags = model.getTagSetModel().getEdgeTags();
+		final ModelGraph graph = model.getGraph();
+		Spot previous = null;
+		for ( int i = 0; i < spotTags.length; i++ )
+		{
+			final Spot spot = graph.addVertex().init( 0, new double[] { i, 0, 0 }, 1 );
+			if ( spotTags[ i ] != null )
+				vertexTags.set( spot, getTag( tagSet, spotTags[ i ] ) );
+			if ( previous != null )
+			{
+				final Link link = graph.addEdge( previous, spot ).init();
+				if ( i == 1 )
+					edgeTags.set( link, getTag( tagSet, firstLinkTag ) );
+			}
+			previous = spot;
+		}
+		return model;
+	}
+
+	private static Tag getTag( final TagSet tagSet, final String label )
+	{
+		for ( final Tag tag : tagSet.getTags() )
+			if ( tag.label().equals( label ) )
+				return tag;
+		throw new IllegalArgumentException( label );
+	}
+
+	/**
+	 * Returns the spots of the graph, in order of their x coordinate.
+	 */
+	private static List< Spot > spots( final ModelGraph graph )
+	{
+		final Spot[] spots = new Spot[ graph.vertices().size() ];
+		for ( final Spot spot : graph.vertices() )
+			spots[ ( int ) spot.getDoublePosition( 0 ) ] = graph.getGraphIdBimap().getVertex( spot.getInternalPoolIndex(), graph.vertexRef() );
+		return Arrays.asList( spots );
+	}
+}
@@ -0,0 +1,126 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2022 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mastodon.mamut.tomancak.merging.MergeTestUtils.DIST_CUTOFF;
+import static org.mastodon.mamut.tomancak.merging.MergeTestUtils.MAHALANOBIS_DIST_CUTOFF;
+import static org.mastodon.mamut.tomancak.merging.MergeTestUtils.MAX_TIMEPOINT;
+import static org.mastodon.mamut.tomancak.merging.MergeTestUtils.RATIO_THRESHOLD;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.merging.MergeDatasets.OutputDataSet;
+import org.mastodon.mamut.tomancak.spots.InterpolateMissingSpots;
+
+/**
+ * Tests that a {@link CompactMatching} gives the same results as the pruned
+ * {@link MatchingGraph} that it replaces.
+ */
+public class CompactMatchingTest
+{
+	@Test
+	public void testSameAsPrunedMatchingGraph()
+	{
+		final Model mA = MergeTestUtils.createModel( 0 );
+		final Model mB = MergeTestUtils.createModel( 1 );
+		InterpolateMissingSpots.interpolateBatched( mA, false );
+		InterpolateMissingSpots.interpolateBatched( mB, false );
+
+		final MatchCandidates candidates = new MatchCandidates( DIST_CUTOFF, MAHALANOBIS_DIST_CUTOFF, RATIO_THRESHOLD );
+		final MatchingGraph pruned = candidates.pruneMatchingGraph( candidates.buildMatchingGraph( mA, mB, 0, MAX_TIMEPOINT ) );
+		final SpotMatching expected = new MergeModels.MatchingGraphUtils( pruned );
+		final CompactMatching actual = candidates.buildCompactMatching( mA, mB, 0, MAX_TIMEPOINT, ForkJoinPool.commonPool() );
+
+		int numPerfect = 0;
+		int numUnmatched = 0;
+		for ( final Model model : new Model[] { mA, mB } )
+		{
+			final Model other = model == mA ? mB : mA;
+			final Spot ref1 = other.getGraph().vertexRef();
+			final Spot ref2 = other.getGraph().vertexRef();
+			for ( final Spot spot : model.getGraph().vertices() )
+			{
+				assertEquals( spot.toString(), expected.isUnmatched( spot ), actual.isUnmatched( spot ) );
+				final Spot expectedMatch = expected.getPerfectMatch( spot, ref1 );
+				final Spot actualMatch = actual.getPerfectMatch( spot, ref2 );
+				assertEquals( spot.toString(), expectedMatch, actualMatch );
+				if ( expected.isUnmatched( spot ) )
+					numUnmatched++;
+				if ( expectedMatch != null )
+					numPerfect++;
+			}
+			other.getGraph().releaseRef( ref1 );
+			other.getGraph().releaseRef( ref2 );
+		}
+		// NB: make sure that the fixture covers both cases
+		assertTrue( numPerfect > 0 );
+		assertTrue( numUnmatched > 0 );
+
+		final OutputDataSet outputExpected = new OutputDataSet();
+		MergeModels.merge( mA, mB, outputExpected, MAX_TIMEPOINT, pruned );
+		final OutputDataSet outputActual = new OutputDataSet();
+		MergeModels.merge( mA, mB, outputActual, MAX_TIMEPOINT, actual );
+		assertEquals( MergeTestUtils.describe( outputExpected.getModel() ), MergeTestUtils.describe( outputActual.getModel() ) );
+	}
+
+	/**
+	 * Matching a single timepoint gives the same result for its spots as
+	 * matching all timepoints. Spots of later timepoints have large pool
+	 * indices, which must not increase the size of the per-window arrays.
+	 */
+	@Test
+	public void testWindowSameAsAllTimepoints()
+	{
+		final Model mA = MergeTestUtils.createModel( 0 );
+		final Model mB = MergeTestUtils.createModel( 1 );
+		final MatchCandidates candidates = new MatchCandidates( DIST_CUTOFF, MAHALANOBIS_DIST_CUTOFF, RATIO_THRESHOLD );
+		final CompactMatching expected = candidates.buildCompactMatching( mA, mB, 0, MAX_TIMEPOINT, ForkJoinPool.commonPool() );
+		final Spot ref1 = mB.getGraph().vertexRef();
+		final Spot ref2 = mB.getGraph().vertexRef();
+		for ( int t = 0; t <= MAX_TIMEPOINT; t++ )
+		{
+			final CompactMatching actual = candidates.buildCompactMatching( mA, mB, t, t, ForkJoinPool.commonPool() );
+			for ( final Spot spot : mA.getSpatioTemporalIndex().getSpatialIndex( t ) )
+			{
+				final int id = spot.getInternalPoolIndex();
+				assertEquals( spot.toString(), expected.isUnmatched( spot ), actual.isUnmatched( spot ) );
+				assertEquals( spot.toString(), expected.getPerfectMatch( spot, ref1 ), actual.getPerfectMatch( spot, ref2 ) );
+				assertEquals( spot.toString(), expected.outDegree( 0, id ), actual.outDegree( 0, id ) );
+				assertEquals( spot.toString(), expected.perfectMatch( 0, id, 1 ), actual.perfectMatch( 0, id, 1 ) );
+			}
+		}
+		mB.getGraph().releaseRef( ref1 );
+		mB.getGraph().releaseRef( ref2 );
+	}
+}
@@ -0,0 +1,73 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2022 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.merging.MatchCandidates.SearchMode;
+
+public class MatchCandidatesTest
+{
+	/**
+	 * Spot {@code a} is elongated along the x axis. The nearest spot
+	 * {@code b1} is close in Euclidean distance, but far in Mahalanobis
+	 * distance. The second nearest spot {@code b2} is a valid candidate.
+	 */
+	@Test
+	public void testEuclideanOrderDiffersFromMahalanobisOrder()
+	{
+		final Model mA = new Model();
+		final Model mB = new Model();
+		final Spot a = mA.getGraph().addVertex().init( 0, new double[] { 0, 0, 0 }, new double[][] {
+				{ 100, 0, 0 },
+				{ 0, 1, 0 },
+				{ 0, 0, 1 } } );
+		mB.getGraph().addVertex().init( 0, new double[] { 0, 3, 0 }, 1 );
+		final Spot b2 = mB.getGraph().addVertex().init( 0, new double[] { 8, 0, 0 }, 1 );
+		final int idA = a.getInternalPoolIndex();
+
+		final CompactMatching firstExceeding = new MatchCandidates( 1000, 2, 2, SearchMode.FIRST_EXCEEDING )
+				.buildCompactMatching( mA, mB, 0, 0, ForkJoinPool.commonPool() );
+		assertEquals( 0, firstExceeding.outDegree( 0, idA ) );
+
+		final CompactMatching bound = new MatchCandidates( 1000, 2, 2, SearchMode.MAHALANOBIS_BOUND )
+				.buildCompactMatching( mA, mB, 0, 0, ForkJoinPool.commonPool() );
+		assertEquals( 1, bound.outDegree( 0, idA ) );
+		assertEquals( b2.getInternalPoolIndex(), bound.targetSpotId( 0, bound.outEdge( 0, idA, 0 ) ) );
+
+		final CompactMatching byDefault = new MatchCandidates( 1000, 2, 2 )
+				.buildCompactMatching( mA, mB, 0, 0, ForkJoinPool.commonPool() );
+		assertEquals( 1, byDefault.outDegree( 0, idA ) );
+	}
+}
@@ -0,0 +1,210 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2022 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.model.tag.ObjTags;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+import org.mastodon.util.TagSetUtils;
+
+/**
+ * Small models of the same embryo, with the kind of differences that the
+ * merging has to deal with, and a canonical description of a merged model
+ * to compare the results of different merging methods.
+ */
+class MergeTestUtils
+{
+	static final int MAX_TIMEPOINT = 5;
+
+	static final double DIST_CUTOFF = 1000;
+
+	static final double MAHALANOBIS_DIST_CUTOFF = 1;
+
+	static final double RATIO_THRESHOLD = 2;
+
+	private static final int NUM_LINEAGES = 12;
+
+	private static final double RADIUS = 2;
+
+	private static final double NOISE = 0.3;
+
+	/**
+	 * Returns a new model of the embryo, that was tracked by the given
+	 * {@code annotator}. All annotators track the same cells with slightly
+	 * different positions, but
+	 * <ul>
+	 * <li>annotator {@code i} misses the lineage {@code i},</li>
+	 * <li>annotator 1 adds a second spot close to the root of lineage 2,</li>
+	 * <li>annotator 1 skips a timepoint in lineage 3,</li>
+	 * <li>the labels of lineage 5 and the tags of lineage 7 depend on the
+	 * annotator.</li>
+	 * </ul>
+	 */
+	static Model createModel( final int annotator )
+	{
+		final Random random = new Random( 42 + annotator );
+		final double noise = annotator == 0 ? 0 : NOISE;
+		final Model model = new Model();
+		final TagSet tagSet = TagSetUtils.addNewTagSetToModel( model, "cell type", Arrays.asList(
+				Pair.of( "x", 0xffff0000 ),
+				Pair.of( "y", 0xff00ff00 ) ) );
+		final Tag x = tagSet.getTags().get( 0 );
+		final Tag y = tagSet.getTags().get( 1 );
+		final ObjTags< Spot > vertexTags = model.getTagSetModel().getVertexTags();
+		final ObjTags< Link > edgeTags = model.getTagSetModel().getEdgeTags();
+		final ModelGraph graph = model.getGraph();
+		for ( int lineage = 0; lineage < NUM_LINEAGES; lineage++ )
+		{
+			if ( lineage == annotator )
+				continue;
+			final double[] start = { 20 * ( lineage % 4 ), 20 * ( lineage / 4 ), 0 };
+			final int skippedTimepoint = annotator == 1 && lineage == 3 ? 2 : -1;
+			final Spot root = addLineage( graph, start, lineage % 2 == 0, skippedTimepoint, random, noise );
+			if ( lineage == 4 )
+				root.setLabel( "foo" );
+			if ( lineage == 5 )
+				root.setLabel( annotator == 0 ? "foo" : "bar" );
+			if ( lineage == 6 )
+				vertexTags.set( root, x );
+			if ( lineage == 7 )
+				vertexTags.set( root, annotator == 0 ? x : y );
+			if ( lineage == 8 )
+				edgeTags.set( root.outgoingEdges().get( 0 ), y );
+		}
+		if ( annotator == 1 )
+			graph.addVertex().init( 0, new double[] { 40.5, 0, 0 }, RADIUS );
+		return model;
+	}
+
+	private static Spot addLineage( final ModelGraph graph, final double[] start, final boolean divides, final int skippedTimepoint, final Random random, final double noise )
+	{
+		final Spot root = addSpot( graph, 0, start, 0, random, noise );
+		Spot parent = root;
+		for ( int t = 1; t <= MAX_TIMEPOINT; t++ )
+		{
+			if ( t == skippedTimepoint )
+				continue;
+			if ( divides && t >= 3 )
+			{
+				final Spot left = addSpot( graph, t, start, -3, random, noise );
+				final Spot right = addSpot( graph, t, start, 3, random, noise );
+				graph.addEdge( parent, left ).init();
+				graph.addEdge( parent, right ).init();
+				addChain( graph, left, start, -3, t + 1, random, noise );
+				addChain( graph, right, start, 3, t + 1, random, noise );
+				return root;
+			}
+			final Spot spot = addSpot( graph, t, start, 0, random, noise );
+			graph.addEdge( parent, spot ).init();
+			parent = spot;
+		}
+		return root;
+	}
+
+	private static void addChain( final ModelGraph graph, final Spot first, final double[] start, final double offset, final int fromTimepoint, final Random random, final double noise )
+	{
+		Spot parent = first;
+		for ( int t = fromTimepoint; t <= MAX_TIMEPOINT; t++ )
+		{
+			final Spot spot = addSpot( graph, t, start, offset, random, noise );
+			graph.addEdge( parent, spot ).init();
+			parent = spot;
+		}
+	}
+
+	private static Spot addSpot( final ModelGraph graph, final int timepoint, final double[] start, final double offset, final Random random, final double noise )
+	{
+		final double[] pos = {
+				start[ 0 ] + offset + noise * random.nextGaussian(),
+				start[ 1 ] + noise * random.nextGaussian(),
+				start[ 2 ] + noise * random.nextGaussian() };
+		return graph.addVertex().init( timepoint, pos, RADIUS );
+	}
+
+	/**
+	 * Returns one line per spot and per link of the model, with position,
+	 * label and tags, sorted. The lines do not depend on the internal pool
+	 * indices, therefore two models are equal if their descriptions are
+	 * equal.
+	 */
+	static List< String > describe( final Model model )
+	{
+		final List< TagSet > tagSets = model.getTagSetModel().getTagSetStructure().getTagSets();
+		final ObjTags< Spot > vertexTags = model.getTagSetModel().getVertexTags();
+		final ObjTags< Link > edgeTags = model.getTagSetModel().getEdgeTags();
+		final ModelGraph graph = model.getGraph();
+		final Spot ref1 = graph.vertexRef();
+		final Spot ref2 = graph.vertexRef();
+		final List< String > lines = new ArrayList<>();
+		for ( final Spot spot : graph.vertices() )
+			lines.add( "spot " + describe( spot ) + " " + describeTags( vertexTags, tagSets, spot ) );
+		for ( final Link link : graph.edges() )
+			lines.add( "link " + describe( link.getSource( ref1 ) ) + " -> " + describe( link.getTarget( ref2 ) ) + " " + describeTags( edgeTags, tagSets, link ) );
+		graph.releaseRef( ref1 );
+		graph.releaseRef( ref2 );
+		Collections.sort( lines );
+		return lines;
+	}
+
+	private static String describe( final Spot spot )
+	{
+		return String.format( Locale.ROOT, "%d (%.3f, %.3f, %.3f) '%s'",
+				spot.getTimepoint(),
+				spot.getDoublePosition( 0 ),
+				spot.getDoublePosition( 1 ),
+				spot.getDoublePosition( 2 ),
+				MergingUtil.hasLabel( spot ) ? spot.getLabel() : "" );
+	}
+
+	private static < O > String describeTags( final ObjTags< O > tags, final List< TagSet > tagSets, final O obj )
+	{
+		final Set< String > labels = new TreeSet<>();
+		for ( final TagSet tagSet : tagSets )
+		{
+			final Tag tag = tags.tags( tagSet ).get( obj );
+			if ( tag != null )
+				labels.add( tagSet.getName() + ":" + tag.label() );
+		}
+		return labels.toString();
+	}
+}
@@ -0,0 +1,101 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2022 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mastodon.mamut.tomancak.merging.MergeTestUtils.DIST_CUTOFF;
+import static org.mastodon.mamut.tomancak.merging.MergeTestUtils.MAHALANOBIS_DIST_CUTOFF;
+import static org.mastodon.mamut.tomancak.merging.MergeTestUtils.MAX_TIMEPOINT;
+import static org.mastodon.mamut.tomancak.merging.MergeTestUtils.RATIO_THRESHOLD;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+import org.mastodon.mamut.tomancak.merging.MergeDatasets.OutputDataSet;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+
+public class NWayMergeTest
+{
+	@Test
+	public void testTwoModelsSameAsMergeModels()
+	{
+		final OutputDataSet expected = new OutputDataSet();
+		MergeModels.merge( MergeTestUtils.createModel( 0 ), MergeTestUtils.createModel( 1 ), expected,
+				0, MAX_TIMEPOINT, DIST_CUTOFF, MAHALANOBIS_DIST_CUTOFF, RATIO_THRESHOLD );
+		// MergeModels names the match tag after the two models
+		final List< String > expectedDescription = MergeTestUtils.describe( expected.getModel() ).stream()
+				.map( line -> line.replace( "Merge Conflict:MatchAB", "Merge Conflict:Match" ) )
+				.sorted()
+				.collect( Collectors.toList() );
+
+		final OutputDataSet actual = new OutputDataSet();
+		NWayMerge.merge( Arrays.asList( MergeTestUtils.createModel( 0 ), MergeTestUtils.createModel( 1 ) ), Arrays.asList( "A", "B" ), actual,
+				0, MAX_TIMEPOINT, DIST_CUTOFF, MAHALANOBIS_DIST_CUTOFF, RATIO_THRESHOLD );
+		assertEquals( expectedDescription, MergeTestUtils.describe( actual.getModel() ) );
+	}
+
+	@Test
+	public void testThreeModels()
+	{
+		final OutputDataSet output = new OutputDataSet();
+		NWayMerge.merge( Arrays.asList( MergeTestUtils.createModel( 0 ), MergeTestUtils.createModel( 1 ), MergeTestUtils.createModel( 2 ) ),
+				Arrays.asList( "A", "B", "C" ), output,
+				0, MAX_TIMEPOINT, DIST_CUTOFF, MAHALANOBIS_DIST_CUTOFF, RATIO_THRESHOLD );
+		final Set< Integer > colors = new HashSet<>();
+		for ( final String name : Arrays.asList( "A", "B", "C" ) )
+		{
+			final TagSet tagSet = output.getTagSetStructure().getTagSets().stream()
+					.filter( ts -> ts.getName().equals( "Merge Source " + name ) )
+					.findFirst().get();
+			assertTrue( colors.add( tagSet.getTags().get( 0 ).color() ) );
+		}
+		// lineages traced by all annotators are matched
+		final long matched = MergeTestUtils.describe( output.getModel() ).stream()
+				.filter( line -> line.startsWith( "spot " ) && line.contains( "Merge Conflict:Match" ) )
+				.count();
+		assertTrue( matched > 0 );
+	}
+
+	@Test
+	public void testDistinctSourceColors()
+	{
+		assertEquals( 0xffffff00, NWayMerge.sourceColor( 0 ) );
+		assertEquals( 0xffff00ff, NWayMerge.sourceColor( 1 ) );
+		assertEquals( 0xffffffcc, NWayMerge.singletonColor( NWayMerge.sourceColor( 0 ) ) );
+		assertEquals( 0xffffccff, NWayMerge.singletonColor( NWayMerge.sourceColor( 1 ) ) );
+		final Set< Integer > colors = new HashSet<>();
+		for ( int i = 0; i < 20; i++ )
+			assertTrue( "color of model " + i, colors.add( NWayMerge.sourceColor( i ) ) );
+	}
+}
@@ -0,0 +1,60 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2022 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import static org.junit.Assert.assertEquals;
+import static org.mastodon.mamut.tomancak.merging.MergeTestUtils.DIST_CUTOFF;
+import static org.mastodon.mamut.tomancak.merging.MergeTestUtils.MAHALANOBIS_DIST_CUTOFF;
+import static org.mastodon.mamut.tomancak.merging.MergeTestUtils.MAX_TIMEPOINT;
+import static org.mastodon.mamut.tomancak.merging.MergeTestUtils.RATIO_THRESHOLD;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.mastodon.mamut.tomancak.merging.MergeDatasets.OutputDataSet;
+
+public class WindowedMergeTest
+{
+	@Test
+	public void testSameAsMergeModels()
+	{
+		final OutputDataSet expected = new OutputDataSet();
+		MergeModels.merge( MergeTestUtils.createModel( 0 ), MergeTestUtils.createModel( 1 ), expected,
+				0, MAX_TIMEPOINT, DIST_CUTOFF, MAHALANOBIS_DIST_CUTOFF, RATIO_THRESHOLD );
+		final List< String > expectedDescription = MergeTestUtils.describe( expected.getModel() );
+
+		for ( final int windowSize : new int[] { 1, 2, MAX_TIMEPOINT + 1 } )
+		{
+			final OutputDataSet actual = new OutputDataSet();
+			WindowedMerge.merge( MergeTestUtils.createModel( 0 ), MergeTestUtils.createModel( 1 ), actual,
+					0, MAX_TIMEPOINT, windowSize, DIST_CUTOFF, MAHALANOBIS_DIST_CUTOFF, RATIO_THRESHOLD );
+			assertEquals( "window size " + windowSize, expectedDescription, MergeTestUtils.describe( actual.getModel() ) );
+		}
+	}
+}
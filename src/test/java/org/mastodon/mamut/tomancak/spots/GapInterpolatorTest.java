@@ -0,0 +1,73 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2022 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.spots;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class GapInterpolatorTest
+{
+	@Test
+	public void testScaledCovariance()
+	{
+		// log-Euclidean interpolation between C and 4C gives 2C at the midpoint
+		final double[][] c0 = { { 2, 1, 0 }, { 1, 3, 0.5 }, { 0, 0.5, 1 } };
+		final double[][] c1 = new double[ 3 ][ 3 ];
+		for ( int i = 0; i < 3; i++ )
+			for ( int j = 0; j < 3; j++ )
+				c1[ i ][ j ] = 4 * c0[ i ][ j ];
+		final List< double[] > positions = new ArrayList<>();
+		final List< double[][] > covariances = new ArrayList<>();
+		final int n = new GapInterpolator().interpolate( 0, new double[] { 0, 0, 0 }, c0, 2, new double[] { 2, 4, 6 }, c1,
+				( t, pos, cov ) -> {
+					assertEquals( 1, t );
+					positions.add( pos.clone() );
+					covariances.add( new double[][] { cov[ 0 ].clone(), cov[ 1 ].clone(), cov[ 2 ].clone() } );
+				} );
+		assertEquals( 1, n );
+		assertArrayEquals( new double[] { 1, 2, 3 }, positions.get( 0 ), 1e-12 );
+		for ( int i = 0; i < 3; i++ )
+			for ( int j = 0; j < 3; j++ )
+				assertEquals( 2 * c0[ i ][ j ], covariances.get( 0 )[ i ][ j ], 1e-9 );
+	}
+
+	@Test
+	public void testNoGap()
+	{
+		final double[][] c = { { 1, 0, 0 }, { 0, 1, 0 }, { 0, 0, 1 } };
+		final int n = new GapInterpolator().interpolate( 3, new double[ 3 ], c, 4, new double[ 3 ], c,
+				( t, pos, cov ) -> { throw new AssertionError(); } );
+		assertEquals( 0, n );
+	}
+}
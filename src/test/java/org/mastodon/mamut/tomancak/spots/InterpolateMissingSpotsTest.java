@@ -0,0 +1,156 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2022 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.spots;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+public class InterpolateMissingSpotsTest
+{
+	@Test
+	public void testBatchedSameAsInterpolate()
+	{
+		final Model expected = createModel();
+		InterpolateMissingSpots.interpolate( expected );
+		final Model actual = createModel();
+		InterpolateMissingSpots.interpolateBatched( actual );
+		assertEquals( 5, actual.getGraph().vertices().size() );
+		assertEquals( describe( expected ), describe( actual ) );
+	}
+
+	@Test
+	public void testBatchedWithConcurrentChange()
+	{
+		// move the end point of the gap after the interpolation was computed
+		final Model expected = createModel();
+		moveLastSpot( expected );
+		InterpolateMissingSpots.interpolate( expected );
+		final Model actual = createModel();
+		InterpolateMissingSpots.interpolateBatched( actual, true, () -> moveLastSpot( actual ) );
+		assertEquals( describe( expected ), describe( actual ) );
+	}
+
+	@Test
+	public void testBatchedWithConcurrentRemoval()
+	{
+		final Model model = createModel();
+		final ModelGraph graph = model.getGraph();
+		InterpolateMissingSpots.interpolateBatched( model, true, () -> {
+			graph.getLock().writeLock().lock();
+			try
+			{
+				graph.remove( graph.edges().iterator().next() );
+			}
+			finally
+			{
+				graph.getLock().writeLock().unlock();
+			}
+		} );
+		assertEquals( 2, graph.vertices().size() );
+		assertEquals( 0, graph.edges().size() );
+	}
+
+	@Test
+	public void testBatchedCanBeUndone()
+	{
+		final Model model = createModel();
+		InterpolateMissingSpots.interpolateBatched( model );
+		assertEquals( 5, model.getGraph().vertices().size() );
+		model.undo();
+		assertEquals( 2, model.getGraph().vertices().size() );
+		assertEquals( 1, model.getGraph().edges().size() );
+	}
+
+	private static void moveLastSpot( final Model model )
+	{
+		final ModelGraph graph = model.getGraph();
+		graph.getLock().writeLock().lock();
+		try
+		{
+			for ( final Spot spot : graph.vertices() )
+				if ( spot.getTimepoint() == 4 )
+					spot.setPosition( new double[] { 8, 4, 0 } );
+		}
+		finally
+		{
+			graph.getLock().writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Sorted description of all spots, by timepoint, position and
+	 * covariance, and of all links.
+	 */
+	private static List< String > describe( final Model model )
+	{
+		final ModelGraph graph = model.getGraph();
+		final List< String > lines = new ArrayList<>();
+		final double[][] cov = new double[ 3 ][ 3 ];
+		final Spot ref1 = graph.vertexRef();
+		final Spot ref2 = graph.vertexRef();
+		for ( final Spot spot : graph.vertices() )
+		{
+			spot.getCovariance( cov );
+			lines.add( "spot " + describe( spot ) + " " + Arrays.deepToString( cov ) );
+		}
+		for ( final Link link : graph.edges() )
+			lines.add( "link " + describe( link.getSource( ref1 ) ) + " -> " + describe( link.getTarget( ref2 ) ) );
+		graph.releaseRef( ref1 );
+		graph.releaseRef( ref2 );
+		Collections.sort( lines );
+		return lines;
+	}
+
+	private static String describe( final Spot spot )
+	{
+		return spot.getTimepoint() + " " + Arrays.toString( new double[] {
+				spot.getDoublePosition( 0 ), spot.getDoublePosition( 1 ), spot.getDoublePosition( 2 ) } );
+	}
+
+	private static Model createModel()
+	{
+		final Model model = new Model();
+		final ModelGraph graph = model.getGraph();
+		final Spot a = graph.addVertex().init( 0, new double[] { 0, 0, 0 }, 1 );
+		final Spot b = graph.addVertex().init( 4, new double[] { 4, 0, 0 }, 2 );
+		graph.addEdge( a, b ).init();
+		model.setUndoPoint();
+		return model;
+	}
+}
@@ -0,0 +1,133 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2022 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.model.tag.ObjTags;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+import org.mastodon.util.TagSetUtils;
+
+public class BulkTagCopyTest
+{
+	@Test
+	public void testCopyTag()
+	{
+		final Model model = new Model();
+		final ModelGraph graph = model.getGraph();
+		final Spot a = graph.addVertex().init( 0, new double[] { 0, 0, 0 }, 1 );
+		final Spot b = graph.addVertex().init( 1, new double[] { 0, 0, 0 }, 1 );
+		final Spot c = graph.addVertex().init( 1, new double[] { 1, 0, 0 }, 1 );
+		final Link ab = graph.addEdge( a, b ).init();
+		addTagSet( model, "source" );
+		addTagSet( model, "target" );
+		final TagSet source = tagSet( model, "source" );
+		final TagSet target = tagSet( model, "target" );
+		final ObjTags< Spot > vertexTags = model.getTagSetModel().getVertexTags();
+		final ObjTags< Link > edgeTags = model.getTagSetModel().getEdgeTags();
+		vertexTags.set( a, tag( source, "foo" ) );
+		vertexTags.set( b, tag( source, "foo" ) );
+		edgeTags.set( ab, tag( source, "foo" ) );
+		BulkTagCopy.copyTag( model, tag( source, "foo" ), tag( target, "bar" ) );
+		assertEquals( tag( target, "bar" ), vertexTags.tags( target ).get( a ) );
+		assertEquals( tag( target, "bar" ), vertexTags.tags( target ).get( b ) );
+		assertNull( vertexTags.tags( target ).get( c ) );
+		assertEquals( tag( target, "bar" ), edgeTags.tags( target ).get( ab ) );
+		assertEquals( tag( source, "foo" ), vertexTags.tags( source ).get( a ) );
+	}
+
+	@Test
+	public void testCopyTagSet()
+	{
+		final Model model = new Model();
+		final ModelGraph graph = model.getGraph();
+		final Spot a = graph.addVertex().init( 0, new double[] { 0, 0, 0 }, 1 );
+		final Spot b = graph.addVertex().init( 0, new double[] { 1, 0, 0 }, 1 );
+		addTagSet( model, "source" );
+		addTagSet( model, "target" );
+		final TagSet source = tagSet( model, "source" );
+		final TagSet target = tagSet( model, "target" );
+		final ObjTags< Spot > vertexTags = model.getTagSetModel().getVertexTags();
+		vertexTags.set( a, tag( source, "foo" ) );
+		vertexTags.set( b, tag( source, "bar" ) );
+		assertEquals( 2, BulkTagCopy.copyTagSet( model, source, target ) );
+		assertEquals( tag( target, "foo" ), vertexTags.tags( target ).get( a ) );
+		assertEquals( tag( target, "bar" ), vertexTags.tags( target ).get( b ) );
+	}
+
+	@Test
+	public void testSwapTagsWithinTagSet()
+	{
+		final Model model = new Model();
+		final ModelGraph graph = model.getGraph();
+		final Spot a = graph.addVertex().init( 0, new double[] { 0, 0, 0 }, 1 );
+		final Spot b = graph.addVertex().init( 0, new double[] { 1, 0, 0 }, 1 );
+		final TagSet tagSet = addTagSet( model, "tags" );
+		final Tag foo = tag( tagSet, "foo" );
+		final Tag bar = tag( tagSet, "bar" );
+		final ObjTags< Spot > vertexTags = model.getTagSetModel().getVertexTags();
+		vertexTags.set( a, foo );
+		vertexTags.set( b, bar );
+		final Map< Tag, Tag > swap = new HashMap<>();
+		swap.put( foo, bar );
+		swap.put( bar, foo );
+		BulkTagCopy.copyTags( model, swap );
+		assertEquals( bar, vertexTags.tags( tagSet ).get( a ) );
+		assertEquals( foo, vertexTags.tags( tagSet ).get( b ) );
+	}
+
+	private static TagSet addTagSet( final Model model, final String name )
+	{
+		return TagSetUtils.addNewTagSetToModel( model, name, Arrays.asList(
+				Pair.of( "foo", 0xffff0000 ),
+				Pair.of( "bar", 0xff00ff00 ) ) );
+	}
+
+	private static TagSet tagSet( final Model model, final String name )
+	{
+		return model.getTagSetModel().getTagSetStructure().getTagSets().stream().filter( tagSet -> tagSet.getName().equals( name ) ).findFirst().get();
+	}
+
+	private static Tag tag( final TagSet tagSet, final String label )
+	{
+		return tagSet.getTags().stream().filter( tag -> tag.label().equals( label ) ).findFirst().get();
+	}
+}
@@ -0,0 +1,66 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2022 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+public class TimepointExtentIndexTest
+{
+	@Test
+	public void testIncrementalUpdates()
+	{
+		final ModelGraph graph = new ModelGraph();
+		final TimepointExtentIndex index = TimepointExtentIndex.get( graph );
+		assertEquals( 0, index.getNumberOfTimepoints() );
+		final Spot a = graph.addVertex().init( 2, new double[] { 0, 0, 0 }, 1 );
+		final Spot b = graph.addVertex().init( 5, new double[] { 0, 0, 0 }, 1 );
+		assertEquals( 2, index.getMinNonEmptyTimepoint() );
+		assertEquals( 5, index.getMaxNonEmptyTimepoint() );
+		assertEquals( 6, index.getNumberOfTimepoints() );
+		assertEquals( 2, index.getMaxNonEmptyTimepointBefore( 5 ) );
+		assertEquals( 5, index.getMaxNonEmptyTimepointBefore( 100 ) );
+		assertEquals( -1, index.getMaxNonEmptyTimepointBefore( 2 ) );
+		graph.remove( b );
+		assertEquals( 2, index.getMaxNonEmptyTimepoint() );
+		assertEquals( 0, index.getSpotCount( 5 ) );
+		graph.remove( a );
+		assertEquals( 0, index.getNumberOfTimepoints() );
+	}
+
+	@Test
+	public void testSharedInstance()
+	{
+		final ModelGraph graph = new ModelGraph();
+		assertEquals( TimepointExtentIndex.get( graph ), TimepointExtentIndex.get( graph ) );
+	}
+}